@@ -0,0 +1,180 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * This class benchmarks the scans of MatrixKernels - the scalar kernels against MatrixKernels.get() (the vector kernels when
+ * the JVM runs with --add-modules jdk.incubator.vector and the vector module is on the classpath) on large grids.
+ *
+ * For every scan x grid size: warmup iterations (not measured, the JIT compiles both kernels first), then measured iterations
+ * that count the scans completed in a fixed time. A scan reads every cell of the grid once:
+ *  - ones:     findAllOnes - the places of the '1' cells (indexesOf)
+ *  - count:    the number of '1' cells - the cost estimate of task 2 (count)
+ *  - negative: is there a negative weight - task 4 (containsLessThan, on a grid without one, so every cell is read)
+ *  - filled:   is the whole grid without a '0' cell - the rectangle of battleshipCheck (contains)
+ *  - hash:     the hash of Matrix.summary() (hash)
+ *  - bitmap:   the bitmap of the '1' cells - ComponentIndex and MatrixStore (setBitsOf)
+ * The grids hold 0/1 cells with density 0.5 (all '1' for filled, weights 1..9 for negative), as rows of int arrays.
+ * The results (cells per nanosecond of each kernel, and the speedup) are printed and written as CSV (out.csv).
+ *
+ * Usage: java --add-modules jdk.incubator.vector ScanBenchmark [--scans=ones,count,negative,filled,hash,bitmap]
+ *        [--sizes=512,2048,4096] [--warmup=3] [--iterations=5] [--time=500] [--seed=42] [--out=scan-results]
+ */
+public class ScanBenchmark {
+
+    private static final List<String> ALL_SCANS = Arrays.asList("ones", "count", "negative", "filled", "hash", "bitmap");
+
+    private List<String> scans = ALL_SCANS;
+    private int[] sizes = {512, 2048, 4096};
+    private int warmupIterations = 3;
+    private int measuredIterations = 5;
+    private long iterationMillis = 500;
+    private long seed = 42;
+    private String out = "scan-results";
+
+    /**
+     * A scan of the whole grid with the given kernels - the result is folded into the sink
+     */
+    private interface Scan {
+        long run(MatrixKernels kernels, int[][] grid);
+    }
+
+    /**
+     * Keeps the results alive - read once at the end
+     */
+    private static volatile long sink;
+
+    public static void main(String[] args) throws IOException {
+        ScanBenchmark benchmark = new ScanBenchmark();
+        benchmark.parse(args);
+        benchmark.runAll();
+    }
+
+    private void parse(String[] args) {
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0)
+                throw new IllegalArgumentException("Unknown argument " + arg + " - expected --name=value");
+            String name = arg.substring(2, equals), value = arg.substring(equals + 1);
+            switch (name) {
+                case "scans": scans = Arrays.asList(value.split(",")); break;
+                case "sizes": sizes = Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).toArray(); break;
+                case "warmup": warmupIterations = Integer.parseInt(value); break;
+                case "iterations": measuredIterations = Integer.parseInt(value); break;
+                case "time": iterationMillis = Long.parseLong(value); break;
+                case "seed": seed = Long.parseLong(value); break;
+                case "out": out = value; break;
+                default: throw new IllegalArgumentException("Unknown argument " + arg);
+            }
+        }
+        for (String scan : scans)
+            if (!ALL_SCANS.contains(scan))
+                throw new IllegalArgumentException("Unknown scan " + scan + " - one of " + ALL_SCANS);
+    }
+
+    private void runAll() throws IOException {
+        MatrixKernels scalar = MatrixKernels.scalar(), kernels = MatrixKernels.get();
+        System.out.println("Kernels: " + kernels + (kernels == scalar ? " (run with --add-modules jdk.incubator.vector for the vector kernels)" : ""));
+        try (PrintWriter csv = new PrintWriter(Files.newBufferedWriter(Paths.get(out + ".csv")))) {
+            csv.println("scan,size,kernels,scalarCellsPerNs,kernelsCellsPerNs,speedup");
+            for (String scan : scans) {
+                for (int size : sizes) {
+                    int[][] grid = grid(scan, size);
+                    Scan operation = scanOf(scan);
+                    if (operation.run(scalar, grid) != operation.run(kernels, grid))
+                        throw new IllegalStateException(scan + ": the kernels " + kernels + " disagree with the scalar kernels");
+                    double scalarRate = measure(operation, scalar, grid), kernelsRate = measure(operation, kernels, grid);
+                    System.out.printf(Locale.ROOT, "%-9s size %5d: scalar %6.2f cells/ns, %-10s %6.2f cells/ns, speedup x%.2f%n",
+                            scan, size, scalarRate, kernels, kernelsRate, kernelsRate / scalarRate);
+                    csv.printf(Locale.ROOT, "%s,%d,%s,%.4f,%.4f,%.3f%n", scan, size, kernels, scalarRate, kernelsRate, kernelsRate / scalarRate);
+                }
+            }
+        }
+        System.out.println("sink " + sink);
+    }
+
+    private int[][] grid(String scan, int size) {
+        Random random = new Random(seed + size * 31L + scan.hashCode());
+        int[][] grid = new int[size][size];
+        for (int[] row : grid)
+            for (int j = 0; j < size; j++)
+                row[j] = scan.equals("filled") ? 1 : scan.equals("negative") ? 1 + random.nextInt(9) : random.nextInt(2);
+        return grid;
+    }
+
+    private static Scan scanOf(String scan) {
+        switch (scan) {
+            case "ones":
+                return (kernels, grid) -> {
+                    int[] places = new int[grid[0].length];
+                    long found = 0;
+                    for (int[] row : grid)
+                        found += kernels.indexesOf(row, 0, row.length, 1, places);
+                    return found;
+                };
+            case "count":
+                return (kernels, grid) -> {
+                    long count = 0;
+                    for (int[] row : grid)
+                        count += kernels.count(row, 0, row.length, 1);
+                    return count;
+                };
+            case "negative":
+                return (kernels, grid) -> {
+                    for (int[] row : grid)
+                        if (kernels.containsLessThan(row, 0, row.length, 0))
+                            return 1;
+                    return 0;
+                };
+            case "filled":
+                return (kernels, grid) -> {
+                    for (int[] row : grid)
+                        if (kernels.contains(row, 0, row.length, 0))
+                            return 0;
+                    return 1;
+                };
+            case "hash":
+                return (kernels, grid) -> {
+                    int hash = 1;
+                    for (int[] row : grid)
+                        hash = kernels.hash(hash, row, 0, row.length);
+                    return hash;
+                };
+            default: // bitmap
+                return (kernels, grid) -> {
+                    int columns = grid[0].length;
+                    long[] bits = new long[(int) (((long) grid.length * columns + 63) >>> 6)];
+                    for (int i = 0; i < grid.length; i++)
+                        kernels.setBitsOf(grid[i], 0, columns, 1, bits, (long) i * columns);
+                    return Arrays.hashCode(bits);
+                };
+        }
+    }
+
+    /**
+     * measure: warmup iterations, then the measured ones
+     * @return the cells scanned per nanosecond, the average of the measured iterations
+     */
+    private double measure(Scan scan, MatrixKernels kernels, int[][] grid) {
+        for (int i = 0; i < warmupIterations; i++)
+            iteration(scan, kernels, grid);
+        double sum = 0;
+        for (int i = 0; i < measuredIterations; i++)
+            sum += iteration(scan, kernels, grid);
+        return sum / Math.max(1, measuredIterations);
+    }
+
+    private double iteration(Scan scan, MatrixKernels kernels, int[][] grid) {
+        long cells = (long) grid.length * grid[0].length, scanned = 0, result = 0;
+        long start = System.nanoTime(), end = start + iterationMillis * 1_000_000, now;
+        do {
+            result += scan.run(kernels, grid);
+            scanned += cells;
+            now = System.nanoTime();
+        } while (now < end);
+        sink += result;
+        return (double) scanned / (now - start);
+    }
+}
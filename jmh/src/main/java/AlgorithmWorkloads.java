@@ -0,0 +1,106 @@
+import benchmarks.Workload;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * This class builds the workloads of the JMH benchmarks (package benchmarks) - what the handler runs for the task,
+ * without printing. It is in the default package, with the server code, and the benchmarks load it by name.
+ *
+ * The sample grids: 0/1 cells with the given density (the corners are '1'), or weights of the given distribution:
+ * uniform 1..9, wide 1..1000, negative -5..9. The corners are the source and the destination of the path searches.
+ */
+public class AlgorithmWorkloads implements Workload.Factory {
+
+    @Override
+    public Workload of(String benchmark, int size, String distribution, int samples, long seed) {
+        boolean weighted = benchmark.toLowerCase().contains("bellmanford");
+        Matrix[] matrices = samples(size, distribution, weighted, samples, seed);
+        switch (benchmark) {
+            case "components":
+                // findSCCs(Matrix) with the given pool
+                return (sample, pool) -> {
+                    ThreadLocalDFSVisit<Index> visit = new ThreadLocalDFSVisit<>();
+                    visit.threadPoolExecutor = pool;
+                    HashSet<HashSet<Index>> components = visit.parallelDFSTraverse(new TraversableMatrix(matrices[sample]), matrices[sample].findAllOnes());
+                    List<HashSet<Index>> sorted = new ArrayList<>(components);
+                    sorted.sort(Comparator.comparingInt(HashSet::size));
+                    return sorted;
+                };
+            case "battleshipCheck": {
+                // only the check - the components are found once, here
+                List<List<HashSet<Index>>> components = new ArrayList<>();
+                for (Matrix matrix : matrices) {
+                    List<HashSet<Index>> found = new ArrayList<>();
+                    new ThreadLocalDFSVisit<Index>().findSCCs(matrix, found::add);
+                    components.add(found);
+                }
+                return (sample, pool) -> new ThreadLocalDFSVisit<Index>().battleshipCheck(components.get(sample), matrices[sample]);
+            }
+            case "bfs":
+                return (sample, pool) -> {
+                    TraversableMatrix traversable = traversable(matrices[sample]);
+                    return new ThreadLocalBFS<Index>().findShortestPathsBFS(traversable, traversable.getOrigin(), traversable.getDestination());
+                };
+            case "parallelBfs":
+                return (sample, pool) -> {
+                    TraversableMatrix traversable = traversable(matrices[sample]);
+                    ParallelBFS<Index> search = new ParallelBFS<>();
+                    search.threadPoolExecutor = pool;
+                    return search.findShortestPathsParallelBFS(traversable, traversable.getOrigin(), traversable.getDestination());
+                };
+            case "bellmanFord":
+                return (sample, pool) -> {
+                    TraversableMatrix traversable = traversable(matrices[sample]);
+                    return new ThreadLocalBellmanFord<Index>().findLightestPathsBellmanFord(traversable, traversable.getOrigin(), traversable.getDestination());
+                };
+            case "parallelBellmanFord":
+                return (sample, pool) -> {
+                    TraversableMatrix traversable = traversable(matrices[sample]);
+                    ParallelBellmanFord<Index> search = new ParallelBellmanFord<>();
+                    search.threadPoolExecutor = pool;
+                    return search.findLightestPathsParallelBellmanFord(traversable, traversable.getOrigin(), traversable.getDestination());
+                };
+            default:
+                throw new IllegalArgumentException("Unknown benchmark " + benchmark);
+        }
+    }
+
+    private static Matrix[] samples(int size, String distribution, boolean weighted, int samples, long seed) {
+        Random random = new Random(seed + size * 31L + distribution.hashCode());
+        Matrix[] matrices = new Matrix[samples];
+        for (int k = 0; k < samples; k++) {
+            int[][] cells = new int[size][size];
+            for (int[] row : cells) {
+                for (int j = 0; j < size; j++) {
+                    if (!weighted)
+                        row[j] = random.nextDouble() < Double.parseDouble(distribution) ? 1 : 0;
+                    else if (distribution.equals("wide"))
+                        row[j] = 1 + random.nextInt(1000);
+                    else if (distribution.equals("negative"))
+                        row[j] = random.nextInt(15) - 5;
+                    else if (distribution.equals("uniform"))
+                        row[j] = 1 + random.nextInt(9);
+                    else
+                        throw new IllegalArgumentException("Unknown weight distribution " + distribution);
+                }
+            }
+            if (!weighted) {
+                cells[0][0] = 1;
+                cells[size - 1][size - 1] = 1;
+            }
+            matrices[k] = new Matrix(cells);
+        }
+        return matrices;
+    }
+
+    private static TraversableMatrix traversable(Matrix matrix) {
+        TraversableMatrix traversable = new TraversableMatrix(matrix);
+        traversable.setStartIndex(new Index(0, 0));
+        traversable.setEndIndex(new Index(matrix.getRows() - 1, matrix.getColumns() - 1));
+        return traversable;
+    }
+}
@@ -0,0 +1,51 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Task 1 and task 3: the components of the '1' cells (ThreadLocalDFSVisit with a pool of "threads" threads) and
+ * battleshipCheck on its own - its components are found once, in the setup.
+ * The grids hold 0/1 cells with the given density of ones.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ComponentsBenchmark {
+
+    @State(Scope.Thread)
+    public static class Grids {
+
+        @Param({"3", "4", "8"})
+        public int size;
+
+        @Param({"0.3", "0.6"})
+        public String density;
+
+        Workload components, battleshipCheck;
+        private int next;
+
+        @Setup
+        public void setUp() {
+            components = Workload.of("components", size, density, Samples.COUNT, Samples.SEED);
+            battleshipCheck = Workload.of("battleshipCheck", size, density, Samples.COUNT, Samples.SEED);
+        }
+
+        int nextSample() {
+            return next++ % Samples.COUNT;
+        }
+    }
+
+    @Benchmark
+    public Object components(Grids grids, Pool pool) {
+        return grids.components.run(grids.nextSample(), pool.newPool());
+    }
+
+    @Benchmark
+    public Object battleshipCheck(Grids grids) {
+        return grids.battleshipCheck.run(grids.nextSample(), null);
+    }
+}
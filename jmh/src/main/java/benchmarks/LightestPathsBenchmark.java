@@ -0,0 +1,51 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Task 4: the lightest paths between the corners - ThreadLocalBellmanFord (4.1) against ParallelBellmanFord (4.2) with a
+ * pool of "threads" threads. The weights are uniform 1..9, wide 1..1000 or negative -5..9.
+ * Both enumerate every simple path, so they explode on bigger grids - keep the sizes small.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LightestPathsBenchmark {
+
+    @State(Scope.Thread)
+    public static class Grids {
+
+        @Param({"3", "4"})
+        public int size;
+
+        @Param({"uniform", "wide", "negative"})
+        public String weights;
+
+        Workload bellmanFord, parallelBellmanFord;
+        private int next;
+
+        @Setup
+        public void setUp() {
+            bellmanFord = Workload.of("bellmanFord", size, weights, Samples.COUNT, Samples.SEED);
+            parallelBellmanFord = Workload.of("parallelBellmanFord", size, weights, Samples.COUNT, Samples.SEED);
+        }
+
+        int nextSample() {
+            return next++ % Samples.COUNT;
+        }
+    }
+
+    @Benchmark
+    public Object bellmanFord(Grids grids) {
+        return grids.bellmanFord.run(grids.nextSample(), null);
+    }
+
+    @Benchmark
+    public Object parallelBellmanFord(Grids grids, Pool pool) {
+        return grids.parallelBellmanFord.run(grids.nextSample(), pool.newPool());
+    }
+}
@@ -0,0 +1,24 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The pool size of the parallel variants. Every invocation gets a new pool, the same as the server, that creates a new
+ * search (and pool) for every request - the search shuts it down when it ends.
+ */
+@State(Scope.Thread)
+public class Pool {
+
+    @Param({"1", "2", "4"})
+    public int threads;
+
+    public ThreadPoolExecutor newPool() {
+        return new ThreadPoolExecutor(threads, threads, 1000, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+    }
+}
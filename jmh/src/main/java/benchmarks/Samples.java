@@ -0,0 +1,13 @@
+package benchmarks;
+
+/**
+ * The sample grids of every configuration - used round robin, so a single grid doesn't decide the result
+ */
+final class Samples {
+
+    static final int COUNT = 4;
+    static final long SEED = 42;
+
+    private Samples() {
+    }
+}
@@ -0,0 +1,51 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Task 2: the shortest paths between the corners - ThreadLocalBFS (2.1) against ParallelBFS (2.2) with a pool of
+ * "threads" threads. The grids hold 0/1 cells with the given density of ones, the corners are '1'.
+ * 2.2 enumerates every simple path, so it explodes on bigger grids - keep the sizes small.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShortestPathsBenchmark {
+
+    @State(Scope.Thread)
+    public static class Grids {
+
+        @Param({"3", "4", "5"})
+        public int size;
+
+        @Param({"0.3", "0.6"})
+        public String density;
+
+        Workload bfs, parallelBfs;
+        private int next;
+
+        @Setup
+        public void setUp() {
+            bfs = Workload.of("bfs", size, density, Samples.COUNT, Samples.SEED);
+            parallelBfs = Workload.of("parallelBfs", size, density, Samples.COUNT, Samples.SEED);
+        }
+
+        int nextSample() {
+            return next++ % Samples.COUNT;
+        }
+    }
+
+    @Benchmark
+    public Object bfs(Grids grids) {
+        return grids.bfs.run(grids.nextSample(), null);
+    }
+
+    @Benchmark
+    public Object parallelBfs(Grids grids, Pool pool) {
+        return grids.parallelBfs.run(grids.nextSample(), pool.newPool());
+    }
+}
@@ -0,0 +1,42 @@
+package benchmarks;
+
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * One invocation of the benchmarked code.
+ *
+ * The server code is in the default package - JMH doesn't generate benchmarks there, and a named package can't import it.
+ * So the benchmarks reach it through this interface: AlgorithmWorkloads (the default package of this module) builds the
+ * workloads, and of() loads it by name, like MatrixKernels loads the vector kernels.
+ */
+public interface Workload {
+
+    String WORKLOADS = "AlgorithmWorkloads";
+
+    /**
+     * @param sample the index of the sample grid
+     * @param pool the pool of a parallel variant, null for the sequential ones
+     * @return the result - consumed by the Blackhole, so the JIT can't drop the work as dead code
+     */
+    Object run(int sample, ThreadPoolExecutor pool);
+
+    /**
+     * Builds the workload of a benchmark on its sample grids
+     */
+    interface Factory {
+        /**
+         * @param benchmark components, battleshipCheck, bfs, parallelBfs, bellmanFord or parallelBellmanFord
+         * @param distribution the density of ones ("0.3") or the weight distribution (uniform, wide, negative)
+         */
+        Workload of(String benchmark, int size, String distribution, int samples, long seed);
+    }
+
+    static Workload of(String benchmark, int size, String distribution, int samples, long seed) {
+        try {
+            Factory factory = (Factory) Class.forName(WORKLOADS).getDeclaredConstructor().newInstance();
+            return factory.of(benchmark, size, distribution, samples, seed);
+        } catch (ReflectiveOperationException reflectiveOperationException) {
+            throw new IllegalStateException("The workloads (" + WORKLOADS + ") aren't on the classpath", reflectiveOperationException);
+        }
+    }
+}
@@ -0,0 +1,229 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * This class chooses between the sequential and the parallel implementation of tasks 2 and 4 ("auto" mode).
+ *
+ * On small matrices the parallel variants are slower (thread pool and lock overhead), on big ones the sequential
+ * variants leave cores idle. The selector estimates the cost of a request from the matrix and compares it to a
+ * threshold per task:
+ *  - task 2 walks only through '1' cells: cost = number of ones * expected number of '1' neighbors (8 * density)
+ *  - task 4 walks through every cell: cost = cells * 8, multiplied by negativeWeightFactor if the matrix has negative weights
+ * The thresholds are loaded from a tuning file (properties), or measured by a startup micro-benchmark (calibrate).
+ */
+public class AlgorithmSelector {
+
+    public static final String TUNING_FILE_PROPERTY = "matrix.tuning";
+    public static final String CALIBRATE_PROPERTY = "matrix.calibrate";
+    public static final String DEFAULT_TUNING_FILE = "tuning.properties";
+
+    private static final String TASK2_THRESHOLD = "task2.parallelThreshold";
+    private static final String TASK4_THRESHOLD = "task4.parallelThreshold";
+    private static final String NEGATIVE_WEIGHT_FACTOR = "task4.negativeWeightFactor";
+
+    /**
+     * Both parallel variants first enumerate every path and only then filter them in parallel, so they do more work
+     * than the sequential ones - the calibration found no size from which they win. Without a tuning file
+     * (or a calibration on the machine that runs the server) auto mode always chooses the sequential variants.
+     */
+    private double task2Threshold = Double.POSITIVE_INFINITY;
+    private double task4Threshold = Double.POSITIVE_INFINITY;
+    private double negativeWeightFactor = 2.0;
+
+    public AlgorithmSelector() {
+    }
+
+    public AlgorithmSelector(double task2Threshold, double task4Threshold, double negativeWeightFactor) {
+        this.task2Threshold = task2Threshold;
+        this.task4Threshold = task4Threshold;
+        this.negativeWeightFactor = negativeWeightFactor;
+    }
+
+    /**
+     * fromEnvironment: the selector the server starts with -
+     * (1) the file in the "matrix.tuning" system property, or tuning.properties in the working directory if it exists
+     * (2) otherwise, if "matrix.calibrate" is true, a calibration (which is saved to the tuning file for the next start)
+     * (3) otherwise the default thresholds
+     */
+    public static AlgorithmSelector fromEnvironment() {
+        Path tuningFile = Paths.get(System.getProperty(TUNING_FILE_PROPERTY, DEFAULT_TUNING_FILE));
+        try {
+            if (Files.isRegularFile(tuningFile))
+                return load(tuningFile);
+            if (Boolean.getBoolean(CALIBRATE_PROPERTY)) {
+                AlgorithmSelector calibrated = calibrate();
+                calibrated.save(tuningFile);
+                return calibrated;
+            }
+        } catch (IOException ioException) {
+            ServerLog.warn("The tuning file can't be used - the default cost model is used", "file", tuningFile, "reason", String.valueOf(ioException));
+        }
+        return new AlgorithmSelector();
+    }
+
+    public static AlgorithmSelector load(Path tuningFile) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(tuningFile)) {
+            properties.load(reader);
+        }
+        AlgorithmSelector selector = new AlgorithmSelector();
+        selector.task2Threshold = Double.parseDouble(properties.getProperty(TASK2_THRESHOLD, String.valueOf(selector.task2Threshold)));
+        selector.task4Threshold = Double.parseDouble(properties.getProperty(TASK4_THRESHOLD, String.valueOf(selector.task4Threshold)));
+        selector.negativeWeightFactor = Double.parseDouble(properties.getProperty(NEGATIVE_WEIGHT_FACTOR, String.valueOf(selector.negativeWeightFactor)));
+        return selector;
+    }
+
+    public void save(Path tuningFile) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(TASK2_THRESHOLD, String.valueOf(task2Threshold));
+        properties.setProperty(TASK4_THRESHOLD, String.valueOf(task4Threshold));
+        properties.setProperty(NEGATIVE_WEIGHT_FACTOR, String.valueOf(negativeWeightFactor));
+        try (Writer writer = Files.newBufferedWriter(tuningFile)) {
+            properties.store(writer, "Thresholds of the sequential/parallel selection of tasks 2 and 4");
+        }
+    }
+
+    /**
+     * estimateCost: the cost model of a path search on the matrix (see the class comment)
+     * @param task "2" or "4"
+     * @param primitiveMatrix the matrix of the request
+     * @return the estimated number of neighbor checks of the search
+     */
+    public double estimateCost(String task, int[][] primitiveMatrix) {
+        return estimateCost(task, Matrix.wrap(primitiveMatrix));
+    }
+
+    public double estimateCost(String task, Matrix matrix) {
+        long cells = (long) matrix.getRows() * matrix.getColumns();
+        if (cells == 0)
+            return 0;
+        if (task.startsWith("2")) {
+            long ones = matrix.count(1);
+            double density = (double) ones / cells;
+            return ones * 8 * density;
+        }
+        return cells * 8 * (matrix.hasNegativeValues() ? negativeWeightFactor : 1.0);
+    }
+
+    /**
+     * select: chooses the implementation of an "auto" request
+     * @param task "2" or "4"
+     * @param matrix the matrix of the request
+     * @return the task id of the chosen implementation - "2.1"/"2.2" or "4.1"/"4.2"
+     */
+    public String select(String task, Matrix matrix) {
+        double threshold = task.startsWith("2") ? task2Threshold : task4Threshold;
+        boolean parallel = estimateCost(task, matrix) >= threshold;
+        return task.substring(0, 1) + (parallel ? ".2" : ".1");
+    }
+
+    /**
+     * select: chooses the implementation of an "auto" task 2 request whose paths stay in a single component (see ComponentIndex) -
+     * the same cost model, on the bounding box of the component instead of the whole matrix
+     * @param component the component of the request - ComponentIndex.pathComponent
+     * @return "2.1" or "2.2"
+     */
+    public String select(ComponentIndex componentIndex, int component) {
+        long ones = componentIndex.sizeOf(component);
+        double density = (double) ones / componentIndex.boxCellsOf(component);
+        return ones * 8 * density >= task2Threshold ? "2.2" : "2.1";
+    }
+
+    public double getTask2Threshold() {
+        return task2Threshold;
+    }
+
+    public double getTask4Threshold() {
+        return task4Threshold;
+    }
+
+    /**
+     * calibrate: a micro-benchmark that runs both implementations of each task on random matrices of growing size
+     * (fixed seed, so every start measures the same matrices), and sets each threshold to the lowest cost from which
+     * the parallel implementation won on every larger sample. If it never won, the parallel implementation is never chosen.
+     * A single run is limited by a deadline - an implementation that doesn't finish in time loses that sample.
+     */
+    public static AlgorithmSelector calibrate() {
+        AlgorithmSelector selector = new AlgorithmSelector();
+        Random random = new Random(42);
+        selector.task2Threshold = calibrateTask("2", random, 0.6, 1);
+        selector.task4Threshold = calibrateTask("4", random, 1.0, 100);
+        ServerLog.info("Calibrated thresholds", "task2", selector.task2Threshold, "task4", selector.task4Threshold);
+        return selector;
+    }
+
+    private static final long CALIBRATION_DEADLINE_MILLIS = 200;
+    private static final int CALIBRATION_REPEATS = 3;
+
+    private static double calibrateTask(String task, Random random, double density, int maxWeight) {
+        AlgorithmSelector costModel = new AlgorithmSelector();
+        TreeMap<Double, Boolean> parallelWins = new TreeMap<>(); // cost -> did the parallel implementation win
+        for (int size = 2; size <= 8; size++) {
+            int[][] sample = new int[size][size];
+            for (int[] row : sample)
+                for (int j = 0; j < size; j++)
+                    row[j] = random.nextDouble() < density ? (maxWeight == 1 ? 1 : 1 + random.nextInt(maxWeight)) : 0;
+            sample[0][0] = 1;
+            sample[size - 1][size - 1] = 1;
+            long sequential = timeSearch(task + ".1", sample);
+            long parallel = timeSearch(task + ".2", sample);
+            parallelWins.put(costModel.estimateCost(task, sample), parallel < sequential);
+            if (sequential == Long.MAX_VALUE && parallel == Long.MAX_VALUE)
+                break; // both implementations are already too slow, bigger samples won't tell us more
+        }
+        double threshold = Double.POSITIVE_INFINITY;
+        for (Map.Entry<Double, Boolean> sample : parallelWins.descendingMap().entrySet()) {
+            if (!sample.getValue())
+                break;
+            threshold = sample.getKey();
+        }
+        return threshold;
+    }
+
+    /**
+     * @return the best time of a few runs in nanoseconds, Long.MAX_VALUE if the search missed the deadline
+     */
+    private static long timeSearch(String variant, int[][] sample) {
+        long best = Long.MAX_VALUE;
+        for (int repeat = 0; repeat < CALIBRATION_REPEATS; repeat++) {
+            CancellationToken token = CancellationToken.withTimeout(CALIBRATION_DEADLINE_MILLIS);
+            TraversableMatrix traversable = new TraversableMatrix(new Matrix(sample));
+            traversable.setStartIndex(new Index(0, 0));
+            traversable.setEndIndex(new Index(sample.length - 1, sample.length - 1));
+            long start = System.nanoTime();
+            switch (variant) {
+                case "2.1": {
+                    ThreadLocalBFS<Index> search = new ThreadLocalBFS<>();
+                    search.setCancellationToken(token);
+                    search.findShortestPathsBFS(traversable, traversable.getOrigin(), traversable.getDestination());
+                    break;
+                }
+                case "2.2": {
+                    ParallelBFS<Index> search = new ParallelBFS<>();
+                    search.setCancellationToken(token);
+                    search.findShortestPathsParallelBFS(traversable, traversable.getOrigin(), traversable.getDestination());
+                    break;
+                }
+                case "4.1": {
+                    ThreadLocalBellmanFord<Index> search = new ThreadLocalBellmanFord<>();
+                    search.setCancellationToken(token);
+                    search.findLightestPathsBellmanFord(traversable, traversable.getOrigin(), traversable.getDestination());
+                    break;
+                }
+                default: {
+                    ParallelBellmanFord<Index> search = new ParallelBellmanFord<>();
+                    search.setCancellationToken(token);
+                    search.findLightestPathsParallelBellmanFord(traversable, traversable.getOrigin(), traversable.getDestination());
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            if (token.isTimedOut())
+                return Long.MAX_VALUE;
+            best = Math.min(best, elapsed);
+        }
+        return best;
+    }
+}
@@ -0,0 +1,643 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * This class runs the tasks of the server offline - on a directory (or a zip archive) of matrix files, without a connection,
+ * and writes the answers to a file. Sending tens of thousands of matrices over TCP, one request at a time, spends most of
+ * the time on the protocol; here the matrices go straight from the disk to the compute pool.
+ *
+ * The work is a pipeline of three stages, with a bounded queue between every two of them:
+ *
+ *    files -> [parse: "parsers" threads] -> matrices (queue) -> [compute: the compute pool] -> answers (queue) -> [encode] -> out
+ *
+ *  - parse:   reads and parses the matrix files, in parallel - at most "queue" parsed matrices wait for the compute stage,
+ *             so a fast disk doesn't fill the heap with matrices
+ *  - compute: every job of the job spec on every matrix is a request of MatrixIHandler (computeAsync) - the same algorithms,
+ *             fair scheduler and compute pool as the server (one thread per core by default). At most "inflight" requests are
+ *             queued or running at a time, enough to keep every compute thread busy
+ *  - encode:  a single thread turns the answers into JSON lines and appends them to the output file, in the order they finish
+ *
+ * Matrix files: ".txt"/".csv" - a row per line, the cells separated by spaces, tabs or commas; ".matrix" - a file of a
+ * MatrixStore (mapped as it is, in a directory only - its ".updates" are not applied).
+ * The job spec is a text file with a job per line (and '#' comments) - every job runs on every matrix:
+ *    task [source->destination ...]        an index is row,column - e.g. "1", "3", "2 0,0->9,9", "4 0,0->9,9 0,0->5,5"
+ * Tasks 2 and 4 (and their variants) need at least one pair - a job with more pairs is a batch (grouped by source).
+ * The output has a JSON line per (file, job):
+ *    {"file":"a.txt","job":"2 0,0->9,9","status":"OK","millis":12,"result":[[[0,0],[1,1],...]]}
+ * status: OK, TIMEOUT (the deadline passed - the result holds what was found until then) or ERROR ("error" - the reason).
+ * The deadline (--deadline) is the time a job may compute - it starts when a compute thread takes the job (the first task
+ * of a batch), so the jobs that wait in the queue behind the "inflight" others don't run out of time before they start.
+ * millis: from the submission of the job to its answer - the wait for a compute thread included.
+ * A result is an Index as [row,column], a collection as an array - the components of task 1, the paths of 2 and 4
+ * (an array per pair for a batch), the number of task 3.
+ *
+ * Resume: the lines are appended (and flushed whenever the encode stage catches up), so an interrupted run leaves the
+ * answers it wrote. With --resume the output is read first - a cut off last line is dropped, and every (file, job) that has
+ * an OK or TIMEOUT line is skipped - so the run continues where the previous one stopped (with the same job spec).
+ * The jobs that ended with an ERROR run again, and their new line follows the old one - the last line of a (file, job)
+ * is its answer.
+ *
+ * Usage: java BatchRunner --input=<directory or .zip> --jobs=<job spec> [--out=batch-results.jsonl] [--resume]
+ *        [--threads=<cores>] [--parsers=<cores / 2>] [--queue=64] [--inflight=<threads * 4>] [--deadline=0 (none)]
+ */
+public class BatchRunner {
+
+    private static final List<String> TASKS = Arrays.asList("1", "2", "2.1", "2.2", "3", "4", "4.1", "4.2");
+    private static final long CLIENT_ID = -1; // the share of the fair queue of the batch - it has the scheduler to itself
+    private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private Path input;
+    private Path jobSpec;
+    private Path out = Paths.get("batch-results.jsonl");
+    private boolean resume;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int parsers = Math.max(1, threads / 2);
+    private int queueCapacity = 64;
+    private int inFlight;
+    private long deadlineMillis;
+
+    /**
+     * A line of the job spec
+     */
+    private static class Job {
+        final String key;     // the line, normalized - the name of the job in the output
+        final String task;
+        final Index[][] pairs; // empty for tasks 1 and 3
+
+        Job(String key, String task, Index[][] pairs) {
+            this.key = key;
+            this.task = task;
+            this.pairs = pairs;
+        }
+    }
+
+    /**
+     * A matrix file after the parse stage - its matrix, or the reason it couldn't be parsed
+     */
+    private static class Parsed {
+        final String file;
+        final Matrix matrix;
+        final String error;
+
+        Parsed(String file, Matrix matrix, String error) {
+            this.file = file;
+            this.matrix = matrix;
+            this.error = error;
+        }
+    }
+
+    /**
+     * The answer of a job on a file, for the encode stage
+     */
+    private static class Answer {
+        final String file, job, status, error;
+        final long millis;
+        final Object result;
+
+        Answer(String file, String job, String status, long millis, Object result, String error) {
+            this.file = file;
+            this.job = job;
+            this.status = status;
+            this.millis = millis;
+            this.result = result;
+            this.error = error;
+        }
+    }
+
+    private static final Parsed END_OF_MATRICES = new Parsed(null, null, null);
+    private static final Answer END_OF_ANSWERS = new Answer(null, null, null, 0, null, null);
+
+    /**
+     * The files of the input - a directory or a zip archive
+     */
+    private interface MatrixSource extends AutoCloseable {
+        List<String> names() throws IOException;
+
+        Matrix read(String name) throws IOException;
+
+        @Override
+        void close() throws IOException;
+    }
+
+    private final AtomicLong okAnswers = new AtomicLong(), timeouts = new AtomicLong(), errors = new AtomicLong();
+    private final AtomicInteger matricesParsed = new AtomicInteger();
+    private long skipped;
+
+    public static void main(String[] args) throws Exception {
+        BatchRunner runner = new BatchRunner();
+        runner.parse(args);
+        try {
+            runner.run();
+        } catch (IOException ioException) {
+            // the input can't be read or the answers can't be written - --resume continues from what was written
+            ServerLog.error("The batch failed", "input", runner.input, "out", runner.out, "reason", String.valueOf(ioException));
+            ServerLog.flush(1000);
+            System.exit(1);
+        }
+    }
+
+    private void parse(String[] args) {
+        for (String arg : args) {
+            if (arg.equals("--resume")) {
+                resume = true;
+                continue;
+            }
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0)
+                throw new IllegalArgumentException("Unknown argument " + arg + " - expected --name=value");
+            String name = arg.substring(2, equals), value = arg.substring(equals + 1);
+            switch (name) {
+                case "input": input = Paths.get(value); break;
+                case "jobs": jobSpec = Paths.get(value); break;
+                case "out": out = Paths.get(value); break;
+                case "threads": threads = Integer.parseInt(value); break;
+                case "parsers": parsers = Integer.parseInt(value); break;
+                case "queue": queueCapacity = Integer.parseInt(value); break;
+                case "inflight": inFlight = Integer.parseInt(value); break;
+                case "deadline": deadlineMillis = Long.parseLong(value); break;
+                default: throw new IllegalArgumentException("Unknown argument " + arg);
+            }
+        }
+        if (input == null || jobSpec == null)
+            throw new IllegalArgumentException("Usage: java BatchRunner --input=<directory or .zip> --jobs=<job spec> [--out=...] [--resume]");
+        if (inFlight <= 0)
+            inFlight = threads * 4;
+    }
+
+    private void run() throws Exception {
+        List<Job> jobs = readJobs(jobSpec);
+        Set<String> done = resume ? readDone(out) : new HashSet<>();
+        if (!resume)
+            Files.deleteIfExists(out);
+        FairScheduler scheduler = new FairScheduler(threads);
+        MatrixIHandler handler = new MatrixIHandler(scheduler, AlgorithmSelector.fromEnvironment());
+        long start = System.nanoTime();
+        try (MatrixSource source = open(input)) {
+            List<String> names = source.names();
+            // the files whose jobs all have an answer are not even parsed
+            List<String> pending = new ArrayList<>();
+            for (String name : names) {
+                long answered = jobs.stream().filter(job -> done.contains(key(name, job.key))).count();
+                skipped += answered;
+                if (answered < jobs.size())
+                    pending.add(name);
+            }
+            System.out.println("Batch: " + names.size() + " matrix files, " + jobs.size() + " jobs, " + skipped + " answers already in " + out
+                    + ", " + threads + " compute threads, " + parsers + " parsers");
+            BlockingQueue<Parsed> matrices = new ArrayBlockingQueue<>(queueCapacity);
+            // the compute stage never blocks on the answers - the in flight permits bound them
+            BlockingQueue<Answer> answers = new LinkedBlockingQueue<>();
+            Semaphore inFlightPermits = new Semaphore(inFlight);
+            // an encode stage that fails stops the compute stage - nothing would release its permits anymore
+            Thread computeThread = Thread.currentThread();
+            AtomicReference<Exception> encodeFailure = new AtomicReference<>();
+            Thread encoder = new Thread(() -> {
+                try {
+                    encode(answers, inFlightPermits);
+                } catch (IOException | InterruptedException exception) {
+                    encodeFailure.set(exception);
+                    computeThread.interrupt();
+                }
+            }, "batch-encode");
+            encoder.start();
+            startParsers(source, pending, matrices);
+            try {
+                computeAll(handler, jobs, done, matrices, answers, inFlightPermits);
+                encoder.join();
+            } catch (InterruptedException interruptedException) {
+                if (encodeFailure.get() == null)
+                    throw interruptedException;
+            }
+            if (encodeFailure.get() != null) {
+                Thread.interrupted(); // the interrupt of the encode stage, if it came after the compute stage was done
+                throw new IOException("The answers can't be written to " + out, encodeFailure.get());
+            }
+        } finally {
+            scheduler.shutdown();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long answered = okAnswers.get() + timeouts.get() + errors.get();
+        System.out.printf(Locale.ROOT, "Batch finished: %d matrices, %d answers (%d OK, %d TIMEOUT, %d ERROR), %d skipped, %.1f s, %.1f answers/s%n",
+                matricesParsed.get(), answered, okAnswers.get(), timeouts.get(), errors.get(), skipped, seconds, answered / Math.max(seconds, 1e-9));
+        ServerLog.flush(1000);
+    }
+
+    /**
+     * startParsers: the parse stage - the threads take the next file of the list, and put its matrix in the queue.
+     * The last thread that finishes ends the queue.
+     */
+    private void startParsers(MatrixSource source, List<String> names, BlockingQueue<Parsed> matrices) {
+        AtomicInteger nextFile = new AtomicInteger(), running = new AtomicInteger(parsers);
+        for (int i = 0; i < parsers; i++) {
+            Thread parser = new Thread(() -> {
+                try {
+                    for (int file = nextFile.getAndIncrement(); file < names.size(); file = nextFile.getAndIncrement()) {
+                        String name = names.get(file);
+                        Parsed parsed;
+                        try {
+                            parsed = new Parsed(name, source.read(name), null);
+                        } catch (IOException | RuntimeException exception) {
+                            parsed = new Parsed(name, null, String.valueOf(exception.getMessage()));
+                        }
+                        matrices.put(parsed);
+                    }
+                } catch (InterruptedException interruptedException) {
+                    ServerLog.warn("A parser was interrupted - the matrices it didn't parse have no answers", "thread", Thread.currentThread().getName());
+                } finally {
+                    // also when this thread stopped early - the compute stage waits for the end of the queue
+                    if (running.decrementAndGet() == 0)
+                        putUninterruptibly(matrices, END_OF_MATRICES);
+                }
+            }, "batch-parse-" + i);
+            parser.setDaemon(true);
+            parser.start();
+        }
+    }
+
+    private static <E> void putUninterruptibly(BlockingQueue<E> queue, E element) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(element);
+                break;
+            } catch (InterruptedException interruptedException) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * computeAll: the compute stage - every job that has no answer yet on every parsed matrix is submitted to the compute pool,
+     * and its answer is queued for the encode stage when it completes
+     */
+    private void computeAll(MatrixIHandler handler, List<Job> jobs, Set<String> done, BlockingQueue<Parsed> matrices,
+                            BlockingQueue<Answer> answers, Semaphore inFlightPermits) throws InterruptedException {
+        for (Parsed parsed = matrices.take(); parsed != END_OF_MATRICES; parsed = matrices.take()) {
+            matricesParsed.incrementAndGet();
+            for (Job job : jobs) {
+                if (done.contains(key(parsed.file, job.key)))
+                    continue;
+                inFlightPermits.acquire(); // released by the encode stage, when the answer is written
+                String problem = parsed.error != null ? parsed.error : problemOf(job, parsed.matrix);
+                if (problem != null) {
+                    answers.put(new Answer(parsed.file, job.key, "ERROR", 0, null, problem));
+                    continue;
+                }
+                MatrixRequest request = new MatrixRequest(job.task, parsed.matrix, null, null);
+                if (job.pairs.length == 1) {
+                    request.setSource(job.pairs[0][0]);
+                    request.setDestination(job.pairs[0][1]);
+                } else if (job.pairs.length > 1)
+                    request.setPairs(job.pairs);
+                CancellationToken token = CancellationToken.withTimeoutOnStart(deadlineMillis);
+                String file = parsed.file;
+                long submitted = System.nanoTime();
+                CompletableFuture<Object> computed;
+                try {
+                    computed = handler.computeAsync(request, token, CLIENT_ID);
+                } catch (RuntimeException runtimeException) {
+                    // not even submitted - its answer is the error, and the encode stage releases its permit as usual
+                    answers.put(new Answer(file, job.key, "ERROR", 0, null, String.valueOf(runtimeException)));
+                    continue;
+                }
+                computed.whenComplete((result, failure) -> {
+                    long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - submitted);
+                    Answer answer;
+                    if (failure != null) {
+                        Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+                        answer = new Answer(file, job.key, "ERROR", millis, null, String.valueOf(cause));
+                    } else
+                        answer = new Answer(file, job.key, token.isTimedOut() ? "TIMEOUT" : "OK", millis, result, null);
+                    answers.add(answer);
+                });
+            }
+        }
+        inFlightPermits.acquire(inFlight); // every answer was written
+        answers.put(END_OF_ANSWERS);
+    }
+
+    /**
+     * @return why the job can't run on the matrix, null if it can
+     */
+    private static String problemOf(Job job, Matrix matrix) {
+        for (Index[] pair : job.pairs)
+            for (Index index : pair)
+                if (index.row >= matrix.getRows() || index.column >= matrix.getColumns())
+                    return "the index " + index + " is outside of the " + matrix.getRows() + "x" + matrix.getColumns() + " matrix";
+        return null;
+    }
+
+    /**
+     * encode: the encode stage - writes the answers as JSON lines. The file is flushed whenever no answer is waiting, so
+     * an interruption loses only the answers of the last moments (they are computed again by --resume).
+     * @throws IOException if the answers can't be written - the run stops
+     */
+    private void encode(BlockingQueue<Answer> answers, Semaphore inFlightPermits) throws IOException, InterruptedException {
+        long nextProgress = System.nanoTime() + PROGRESS_INTERVAL_NANOS;
+        try (BufferedWriter writer = Files.newBufferedWriter(out, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            StringBuilder line = new StringBuilder();
+            while (true) {
+                Answer answer = answers.poll();
+                if (answer == null) {
+                    writer.flush();
+                    answer = answers.take();
+                }
+                if (answer == END_OF_ANSWERS)
+                    break;
+                line.setLength(0);
+                line.append("{\"file\":");
+                appendString(line, answer.file);
+                line.append(",\"job\":");
+                appendString(line, answer.job);
+                line.append(",\"status\":\"").append(answer.status).append("\",\"millis\":").append(answer.millis);
+                if (answer.error != null) {
+                    line.append(",\"error\":");
+                    appendString(line, answer.error);
+                } else {
+                    line.append(",\"result\":");
+                    appendValue(line, answer.result);
+                }
+                line.append('}');
+                writer.append(line).append('\n');
+                (answer.error != null ? errors : answer.status.equals("OK") ? okAnswers : timeouts).incrementAndGet();
+                inFlightPermits.release();
+                if (System.nanoTime() > nextProgress) {
+                    nextProgress = System.nanoTime() + PROGRESS_INTERVAL_NANOS;
+                    ServerLog.info("Batch progress", "matrices", matricesParsed.get(), "answers", okAnswers.get() + timeouts.get() + errors.get(),
+                            "errors", errors.get());
+                }
+            }
+        }
+    }
+
+    private static void appendValue(StringBuilder line, Object value) {
+        if (value == null)
+            line.append("null");
+        else if (value instanceof Index)
+            line.append('[').append(((Index) value).row).append(',').append(((Index) value).column).append(']');
+        else if (value instanceof Number || value instanceof Boolean)
+            line.append(value);
+        else if (value instanceof Collection) {
+            line.append('[');
+            boolean first = true;
+            for (Object element : (Collection<?>) value) {
+                if (!first)
+                    line.append(',');
+                first = false;
+                appendValue(line, element);
+            }
+            line.append(']');
+        } else
+            appendString(line, value.toString());
+    }
+
+    private static void appendString(StringBuilder line, String value) {
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+                line.append('\\').append(c);
+            else if (c < 0x20)
+                line.append(String.format("\\u%04x", (int) c));
+            else
+                line.append(c);
+        }
+        line.append('"');
+    }
+
+    /**
+     * readDone: the (file, job) keys of the OK and TIMEOUT answers of a previous run - the ERROR ones run again.
+     * A last line that was cut off by the interruption is removed from the file, so the new answers start on a line of their own
+     */
+    private static Set<String> readDone(Path out) throws IOException {
+        Set<String> done = new HashSet<>();
+        if (!Files.exists(out))
+            return done;
+        try (FileChannel channel = FileChannel.open(out, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size(), complete = size;
+            ByteBuffer last = ByteBuffer.allocate(1);
+            while (complete > 0) {
+                last.clear();
+                channel.read(last, complete - 1);
+                if (last.get(0) == '\n')
+                    break;
+                complete--;
+            }
+            if (complete < size) {
+                ServerLog.warn("The last answer of the previous run was cut off - it is computed again", "file", out, "bytes", size - complete);
+                channel.truncate(complete);
+            }
+        }
+        try (Stream<String> lines = Files.lines(out, StandardCharsets.UTF_8)) {
+            lines.forEach(line -> {
+                // every line starts with {"file":"...","job":"...","status":"..."
+                int[] position = {"{\"file\":".length()};
+                if (!line.startsWith("{\"file\":"))
+                    return;
+                String file = readString(line, position);
+                position[0] += ",\"job\":".length();
+                String job = readString(line, position);
+                position[0] += ",\"status\":".length();
+                String status = readString(line, position);
+                if (file != null && job != null && ("OK".equals(status) || "TIMEOUT".equals(status)))
+                    done.add(key(file, job));
+            });
+        }
+        return done;
+    }
+
+    /**
+     * readString: the JSON string at position[0] - position[0] is moved past it
+     * @return null if there is no string there
+     */
+    private static String readString(String line, int[] position) {
+        int i = position[0];
+        if (i >= line.length() || line.charAt(i) != '"')
+            return null;
+        StringBuilder value = new StringBuilder();
+        for (i++; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                position[0] = i + 1;
+                return value.toString();
+            }
+            if (c == '\\' && i + 1 < line.length()) {
+                char escaped = line.charAt(++i);
+                if (escaped == 'u' && i + 4 < line.length()) {
+                    value.append((char) Integer.parseInt(line.substring(i + 1, i + 5), 16));
+                    i += 4;
+                } else
+                    value.append(escaped);
+            } else
+                value.append(c);
+        }
+        return null;
+    }
+
+    private static String key(String file, String job) {
+        return file + '\n' + job;
+    }
+
+    /**
+     * readJobs: the lines of the job spec
+     * @throws IllegalArgumentException for a line that is not a job
+     */
+    private static List<Job> readJobs(Path file) throws IOException {
+        List<Job> jobs = new ArrayList<>();
+        Set<String> keys = new HashSet<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            int comment = line.indexOf('#');
+            String[] tokens = (comment < 0 ? line : line.substring(0, comment)).trim().split("\\s+");
+            if (tokens[0].isEmpty())
+                continue;
+            String task = tokens[0];
+            if (!TASKS.contains(task))
+                throw new IllegalArgumentException("Unknown task " + task + " in the job spec - one of " + TASKS);
+            boolean paths = task.startsWith("2") || task.startsWith("4");
+            if (paths == (tokens.length == 1))
+                throw new IllegalArgumentException("Task " + task + (paths ? " needs source->destination pairs: " : " has no pairs: ") + line);
+            Index[][] pairs = new Index[tokens.length - 1][];
+            for (int i = 1; i < tokens.length; i++) {
+                String[] ends = tokens[i].split("->");
+                if (ends.length != 2)
+                    throw new IllegalArgumentException("A pair is row,column->row,column: " + tokens[i]);
+                pairs[i - 1] = new Index[]{parseIndex(ends[0]), parseIndex(ends[1])};
+            }
+            String key = String.join(" ", tokens);
+            if (keys.add(key))
+                jobs.add(new Job(key, task, pairs));
+        }
+        if (jobs.isEmpty())
+            throw new IllegalArgumentException("The job spec " + file + " has no jobs");
+        return jobs;
+    }
+
+    private static Index parseIndex(String text) {
+        String[] parts = text.split(",");
+        if (parts.length != 2)
+            throw new IllegalArgumentException("An index is row,column: " + text);
+        int row = Integer.parseInt(parts[0].trim()), column = Integer.parseInt(parts[1].trim());
+        if (row < 0 || column < 0)
+            throw new IllegalArgumentException("An index is not negative: " + text);
+        return new Index(row, column);
+    }
+
+    private static boolean isMatrixFile(String name) {
+        return name.endsWith(".txt") || name.endsWith(".csv") || name.endsWith(".matrix");
+    }
+
+    /**
+     * open: the matrix files of a directory (all its subdirectories) or of a zip archive, in the order of their names
+     */
+    private static MatrixSource open(Path input) throws IOException {
+        if (Files.isDirectory(input)) {
+            return new MatrixSource() {
+                @Override
+                public List<String> names() throws IOException {
+                    try (Stream<Path> files = Files.walk(input)) {
+                        return files.filter(Files::isRegularFile).map(file -> input.relativize(file).toString().replace('\\', '/'))
+                                .filter(BatchRunner::isMatrixFile).sorted().collect(Collectors.toList());
+                    }
+                }
+
+                @Override
+                public Matrix read(String name) throws IOException {
+                    Path file = input.resolve(name);
+                    return name.endsWith(".matrix") ? MatrixStore.open(file) : parseMatrix(Files.readAllBytes(file));
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+        ZipFile zip = new ZipFile(input.toFile());
+        return new MatrixSource() {
+            @Override
+            public List<String> names() {
+                return zip.stream().filter(entry -> !entry.isDirectory()).map(ZipEntry::getName)
+                        .filter(BatchRunner::isMatrixFile).sorted().collect(Collectors.toList());
+            }
+
+            @Override
+            public Matrix read(String name) throws IOException {
+                if (name.endsWith(".matrix"))
+                    throw new IOException("A stored matrix is mapped from a directory, not read from an archive");
+                try (InputStream in = zip.getInputStream(zip.getEntry(name))) {
+                    return parseMatrix(in.readAllBytes());
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                zip.close();
+            }
+        };
+    }
+
+    /**
+     * parseMatrix: a text matrix - a row per line, the cells separated by spaces, tabs or commas (empty lines are ignored)
+     * @throws IOException if it is not a matrix - a cell that is not a number, rows of different lengths
+     */
+    static Matrix parseMatrix(byte[] text) throws IOException {
+        List<int[]> rows = new ArrayList<>();
+        int[] row = new int[16];
+        int cells = 0, columns = -1;
+        int i = 0;
+        while (i <= text.length) {
+            byte b = i < text.length ? text[i] : (byte) '\n';
+            if (b == '\n') {
+                if (cells > 0) {
+                    if (columns >= 0 && cells != columns)
+                        throw new IOException("Row " + rows.size() + " has " + cells + " cells, not " + columns);
+                    columns = cells;
+                    rows.add(Arrays.copyOf(row, cells));
+                    cells = 0;
+                }
+                i++;
+            } else if (b == ' ' || b == '\t' || b == ',' || b == '\r')
+                i++;
+            else {
+                boolean negative = b == '-';
+                if (negative || b == '+')
+                    i++;
+                long value = 0;
+                int start = i;
+                while (i < text.length && text[i] >= '0' && text[i] <= '9' && value <= Integer.MAX_VALUE)
+                    value = value * 10 + (text[i++] - '0');
+                if (i == start || value > Integer.MAX_VALUE || i < text.length && !isSeparator(text[i]))
+                    throw new IOException("Row " + rows.size() + ": cell " + (cells + 1) + " is not an int");
+                if (cells == row.length)
+                    row = Arrays.copyOf(row, cells * 2);
+                row[cells++] = (int) (negative ? -value : value);
+            }
+        }
+        if (rows.isEmpty())
+            throw new IOException("An empty matrix");
+        // the rows were just parsed and nobody else holds them - no need to clone them
+        return Matrix.wrap(rows.toArray(new int[0][]));
+    }
+
+    private static boolean isSeparator(byte b) {
+        return b == ' ' || b == '\t' || b == ',' || b == '\r' || b == '\n';
+    }
+}
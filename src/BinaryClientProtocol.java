@@ -0,0 +1,113 @@
+import java.io.IOException;
+import java.net.Socket;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * The client side of the binary protocol - see BinaryProtocol for the frames
+ */
+public class BinaryClientProtocol implements ClientProtocol {
+
+    private final Socket socket;
+    private final BinaryProtocol.Reader reader;
+    private final BinaryProtocol.Writer writer;
+    private int nextRequestId;
+    private boolean compactPaths, sharedPrefixes;
+    private boolean searchStats;
+    private SearchStats lastSearchStats; // the counters of the search of the last answer
+
+    public BinaryClientProtocol(Socket socket) throws IOException {
+        this.socket = socket;
+        this.reader = new BinaryProtocol.Reader(socket.getInputStream());
+        this.writer = new BinaryProtocol.Writer(socket.getOutputStream());
+        BinaryProtocol.writeHandshake(writer);
+        int version = BinaryProtocol.readHandshake(reader);
+        if (version != BinaryProtocol.VERSION)
+            throw new IOException("The server speaks version " + version + " of the binary protocol");
+    }
+
+    @Override
+    public Object request(String task, int[][] matrix, Index src, Index dest) throws IOException {
+        return send(new MatrixRequest(task, Matrix.wrap(matrix), src, dest));
+    }
+
+    /**
+     * send: sends a request with the path encoding of this connection and waits for its answer
+     * @throws PartialAnswerException if the server ran out of time - the exception holds the partial answer
+     */
+    private Object send(MatrixRequest request) throws IOException {
+        request.setRequestId(++nextRequestId);
+        request.setCompactPaths(compactPaths);
+        request.setSharedPrefixes(sharedPrefixes);
+        request.setSearchStatsRequested(searchStats);
+        BinaryProtocol.writeRequest(writer, request);
+        writer.flush();
+        BinaryProtocol.Response response = BinaryProtocol.readResponse(reader);
+        lastSearchStats = response.getSearchStats();
+        if (response.getStatus() == BinaryProtocol.STATUS_ERROR)
+            throw new IOException("The server failed the task: " + response.getResult());
+        if (response.getStatus() == BinaryProtocol.STATUS_TIMEOUT)
+            throw new PartialAnswerException("The server ran out of time, the answer is partial", response.getResult());
+        return response.getResult();
+    }
+
+    @Override
+    public List<List<List<Index>>> requestBatch(String task, int[][] matrix, Index[][] pairs) throws IOException {
+        MatrixRequest request = new MatrixRequest(task, Matrix.wrap(matrix), null, null);
+        request.setPairs(pairs);
+        @SuppressWarnings("unchecked") // the paths of every pair
+        List<List<List<Index>>> answers = (List<List<List<Index>>>) send(request);
+        return answers;
+    }
+
+    @Override
+    public boolean requestStream(String task, int[][] matrix, Index src, Index dest, int chunkSize, Consumer<List<?>> onChunk) throws IOException {
+        MatrixRequest request = new MatrixRequest(task, Matrix.wrap(matrix), src, dest);
+        request.setRequestId(++nextRequestId);
+        request.setCompactPaths(compactPaths);
+        request.setSharedPrefixes(sharedPrefixes);
+        request.setSearchStatsRequested(searchStats);
+        request.setChunkSize(chunkSize);
+        BinaryProtocol.writeRequest(writer, request);
+        writer.flush();
+        BinaryProtocol.Response response = BinaryProtocol.readResponse(reader);
+        while (response.getStatus() == BinaryProtocol.STATUS_CHUNK) {
+            onChunk.accept((List<?>) response.getResult());
+            response = BinaryProtocol.readResponse(reader);
+        }
+        lastSearchStats = response.getSearchStats(); // on the trailer
+        if (response.getStatus() == BinaryProtocol.STATUS_ERROR)
+            throw new IOException("The server failed the task: " + response.getResult());
+        return response.getStatus() == BinaryProtocol.STATUS_OK;
+    }
+
+    @Override
+    public String requestStats() throws IOException {
+        return (String) send(new MatrixRequest("stats"));
+    }
+
+    @Override
+    public void setCompactPaths(boolean compactPaths, boolean sharedPrefixes) {
+        // the binary protocol carries the encoding in the flags of every request
+        this.compactPaths = compactPaths;
+        this.sharedPrefixes = sharedPrefixes;
+    }
+
+    @Override
+    public void setSearchStats(boolean searchStats) {
+        // a flag of every request, like the path encoding
+        this.searchStats = searchStats;
+    }
+
+    @Override
+    public SearchStats getSearchStats() {
+        return lastSearchStats;
+    }
+
+    @Override
+    public void close() throws IOException {
+        BinaryProtocol.writeRequest(writer, new MatrixRequest("stop"));
+        writer.flush();
+        socket.close();
+    }
+}
@@ -0,0 +1,690 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * This class defines the compact binary protocol between the client and the server, as an alternative to Java object serialization.
+ *
+ * Connection: the client starts with the handshake "MXB" + version byte, the server answers with the same 4 bytes.
+ * (an ObjectOutputStream starts with 0xACED, so the server knows which protocol the client speaks from the first byte)
+ *
+ * Every message is a frame - int32 length of the body, then the body. All the numbers are little-endian.
+ *  request body:  opcode(1) flags(1) requestId(4) deadlineMillis(8) rows(4) columns(4) source(4) destination(4) matrix(rows*columns*4)
+ *                 [pairCount(4), for every pair: source(4) destination(4) - only with FLAG_BATCH]
+ *                 [chunkSize(4) - only with FLAG_STREAM]
+ *  response body: status(1) resultKind(1) requestId(4) result [metadata]
+ * A cell is sent as a single int - its id is row * columns + column, -1 means "no cell".
+ * Results:
+ *  RESULT_INT:        value(4)
+ *  RESULT_COMPONENTS: columns(4) count(4), for every component: size(4) cell ids
+ *  RESULT_PATHS:      columns(4) count(4), for every path: length(4) cell ids
+ *  RESULT_TEXT:       length(4) UTF-8 bytes
+ *  RESULT_COMPACT_PATHS: columns(4) count(4) length(4) the records of CompactPaths
+ *  RESULT_BATCH:      count(4), for every pair: kind(1) and a RESULT_PATHS or RESULT_COMPACT_PATHS result
+ * Request flags: FLAG_COMPACT_PATHS - answer tasks 2 and 4 with RESULT_COMPACT_PATHS,
+ *                FLAG_SHARED_PREFIXES - and let every path store only what differs from the previous path
+ *                FLAG_STREAM - tasks 1, 2 and 4 answer with a frame of STATUS_CHUNK for every chunkSize components/paths,
+ *                as soon as the search finds them, and end with a trailer: the final status and RESULT_INT - the number of results
+ *                FLAG_BATCH - task 2 or 4 for every (source, destination) pair of the request, answered with RESULT_BATCH
+ *                (at most MAX_BATCH_PAIRS pairs)
+ *                FLAG_SEARCH_STATS - the answer ends with a metadata block of the counters of the search (see SearchStats)
+ * Metadata: optional blocks after the result, each one starts with its kind -
+ *  METADATA_SEARCH_STATS: nodesExpanded(8) pathsEnqueued(8) peakQueueLength(8) pathsDiscarded(8) bytesAllocated(8)
+ *  A streamed answer carries it on its trailer. A reader that doesn't know the metadata skips it with the rest of the frame.
+ *
+ * The server reads the matrix cells of a request straight into a direct ByteBuffer that becomes the storage of the Matrix -
+ * no int[][] and no copies on the way (when the connection has a SocketChannel, the kernel copies the bytes right into the buffer).
+ */
+public class BinaryProtocol {
+
+    public static final byte[] MAGIC = {'M', 'X', 'B'};
+    public static final byte VERSION = 1;
+
+    // request opcodes
+    public static final byte OP_TASK_1 = 0x10;
+    public static final byte OP_TASK_2 = 0x20;
+    public static final byte OP_TASK_2_1 = 0x21;
+    public static final byte OP_TASK_2_2 = 0x22;
+    public static final byte OP_TASK_3 = 0x30;
+    public static final byte OP_TASK_4 = 0x40;
+    public static final byte OP_TASK_4_1 = 0x41;
+    public static final byte OP_TASK_4_2 = 0x42;
+    public static final byte OP_STATS = 0x50; // no matrix - answered with RESULT_TEXT, the metrics of the server as JSON
+    public static final byte OP_STOP = 0x7F;
+
+    // response status
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_TIMEOUT = 1;
+    public static final byte STATUS_ERROR = 2;
+    public static final byte STATUS_CHUNK = 3; // a part of a streamed answer, more frames follow
+
+    // response result kinds
+    public static final byte RESULT_INT = 1;
+    public static final byte RESULT_COMPONENTS = 2;
+    public static final byte RESULT_PATHS = 3;
+    public static final byte RESULT_TEXT = 4;
+    public static final byte RESULT_COMPACT_PATHS = 5;
+    public static final byte RESULT_BATCH = 6;
+
+    // request flags
+    public static final int FLAG_COMPACT_PATHS = 0x01;
+    public static final int FLAG_SHARED_PREFIXES = 0x02;
+    public static final int FLAG_STREAM = 0x04;
+    public static final int FLAG_BATCH = 0x08;
+    public static final int FLAG_SEARCH_STATS = 0x10;
+
+    // response metadata kinds
+    public static final byte METADATA_SEARCH_STATS = 1;
+    private static final int SEARCH_STATS_SIZE = 1 + 5 * 8;
+
+    /**
+     * The size of the request body before the matrix cells
+     */
+    private static final int REQUEST_HEADER_SIZE = 1 + 1 + 4 + 8 + 4 * 4;
+
+    /**
+     * The most (source, destination) pairs of a batch request
+     */
+    public static final int MAX_BATCH_PAIRS = 1 << 20;
+
+    private static final String[] TASKS = {"1", "2", "2.1", "2.2", "3", "4", "4.1", "4.2", "stats", "stop"};
+    private static final byte[] OPCODES = {OP_TASK_1, OP_TASK_2, OP_TASK_2_1, OP_TASK_2_2, OP_TASK_3, OP_TASK_4, OP_TASK_4_1, OP_TASK_4_2, OP_STATS, OP_STOP};
+
+    public static byte opcodeOf(String task) {
+        for (int i = 0; i < TASKS.length; i++)
+            if (TASKS[i].equals(task))
+                return OPCODES[i];
+        throw new IllegalArgumentException("Unknown task " + task);
+    }
+
+    /**
+     * @return the task of the opcode, or null if the opcode is unknown
+     */
+    public static String taskOf(byte opcode) {
+        for (int i = 0; i < OPCODES.length; i++)
+            if (OPCODES[i] == opcode)
+                return TASKS[i];
+        return null;
+    }
+
+    public static void writeHandshake(Writer writer) throws IOException {
+        for (byte b : MAGIC)
+            writer.writeByte(b);
+        writer.writeByte(VERSION);
+        writer.flush();
+    }
+
+    /**
+     * readHandshake: reads the 4 handshake bytes of the other side
+     * @return the protocol version of the other side
+     */
+    public static int readHandshake(Reader reader) throws IOException {
+        for (byte b : MAGIC)
+            if (reader.readByte() != b)
+                throw new IOException("Not a binary protocol stream");
+        return reader.readByte();
+    }
+
+    /**
+     * writeRequest: encodes a request frame (the caller flushes the writer)
+     * @throws IllegalArgumentException if the request doesn't fit in a frame - its length is an int
+     */
+    public static void writeRequest(Writer writer, MatrixRequest request) throws IOException {
+        int rows = request.getRows(), columns = request.getColumns();
+        boolean stream = request.getChunkSize() > 0;
+        Index[][] pairs = request.getPairs();
+        long length = REQUEST_HEADER_SIZE + (long) rows * columns * 4 + (pairs != null ? 4 + pairs.length * 8L : 0) + (stream ? 4 : 0);
+        if (length > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("A request of a " + rows + "x" + columns + " matrix doesn't fit in a frame of " + Integer.MAX_VALUE + " bytes");
+        writer.writeInt((int) length);
+        writer.writeByte(opcodeOf(request.getTask()));
+        writer.writeByte(flagsOf(request));
+        writer.writeInt(request.getRequestId());
+        writer.writeLong(request.getDeadlineMillis());
+        writer.writeInt(rows);
+        writer.writeInt(columns);
+        writer.writeInt(cellId(request.getSource(), columns));
+        writer.writeInt(cellId(request.getDestination(), columns));
+        int[][] primitiveMatrix = rows == 0 ? null : request.getMatrix().getPrimitiveMatrix();
+        for (int i = 0; i < rows; i++)
+            writer.writeInts(primitiveMatrix[i], 0, columns);
+        if (pairs != null) {
+            writer.writeInt(pairs.length);
+            for (Index[] pair : pairs) {
+                writer.writeInt(cellId(pair[0], columns));
+                writer.writeInt(cellId(pair[1], columns));
+            }
+        }
+        if (stream)
+            writer.writeInt(request.getChunkSize());
+    }
+
+    /**
+     * @return the request flags of the path encoding the request asks for
+     */
+    static int flagsOf(MatrixRequest request) {
+        int flags = 0;
+        if (request.isCompactPaths())
+            flags |= FLAG_COMPACT_PATHS;
+        if (request.isSharedPrefixes())
+            flags |= FLAG_SHARED_PREFIXES;
+        if (request.getChunkSize() > 0)
+            flags |= FLAG_STREAM;
+        if (request.getPairs() != null)
+            flags |= FLAG_BATCH;
+        if (request.isSearchStatsRequested())
+            flags |= FLAG_SEARCH_STATS;
+        return flags;
+    }
+
+    static void setFlags(MatrixRequest request, int flags) {
+        request.setCompactPaths((flags & FLAG_COMPACT_PATHS) != 0);
+        request.setSharedPrefixes((flags & FLAG_SHARED_PREFIXES) != 0);
+        request.setSearchStatsRequested((flags & FLAG_SEARCH_STATS) != 0);
+    }
+
+    /**
+     * readRequest: decodes a request frame
+     * @return the request - its task is null if the opcode is unknown, its decode error is set if the frame is malformed
+     *         (the frame is skipped in both cases)
+     */
+    public static MatrixRequest readRequest(Reader reader) throws IOException {
+        return readRequest(reader, 0);
+    }
+
+    /**
+     * readRequest: the same, and emits the MatrixDecoded flight recorder event of the request
+     * @param connectionId the connection the request came from - for the event
+     */
+    public static MatrixRequest readRequest(Reader reader, long connectionId) throws IOException {
+        int length = reader.readInt();
+        long decodeStart = System.nanoTime(); // the frame has started to arrive - the wait for it isn't part of the decoding
+        ServerEvents.MatrixDecoded decoded = new ServerEvents.MatrixDecoded();
+        decoded.begin();
+        long frameEnd = reader.getPosition() + length;
+        MatrixRequest request = new MatrixRequest(taskOf(reader.readByte()));
+        int flags = reader.readByte();
+        setFlags(request, flags);
+        request.setRequestId(reader.readInt());
+        request.setDeadlineMillis(reader.readLong());
+        int rows = reader.readInt();
+        int columns = reader.readInt();
+        int source = reader.readInt();
+        int destination = reader.readInt();
+        if (request.getTask() != null && rows > 0 && columns > 0 && (long) rows * columns * Integer.BYTES > frameEnd - reader.getPosition())
+            // the header is the client's - a matrix larger than its frame would allocate what the client never sends
+            request.setDecodeError("The matrix of " + rows + "x" + columns + " cells doesn't fit in a frame of " + length + " bytes");
+        else if (request.getTask() != null && rows > 0 && columns > 0) {
+            long start = System.nanoTime();
+            ByteBuffer cells = ByteBuffer.allocateDirect(rows * columns * Integer.BYTES);
+            reader.readFully(cells);
+            cells.flip();
+            request.setIngestNanos(System.nanoTime() - start);
+            request.setMatrix(new Matrix(rows, columns, cells));
+            request.setSource(indexOf(source, columns));
+            request.setDestination(indexOf(destination, columns));
+            if ((flags & FLAG_BATCH) != 0) {
+                int pairCount = reader.readInt();
+                if (pairCount < 0 || pairCount > MAX_BATCH_PAIRS || pairCount > (frameEnd - reader.getPosition()) / 8)
+                    request.setDecodeError(pairCount + " pairs don't fit in a frame of " + length + " bytes (at most " + MAX_BATCH_PAIRS + ")");
+                else {
+                    Index[][] pairs = new Index[pairCount][];
+                    for (int i = 0; i < pairs.length; i++)
+                        pairs[i] = new Index[]{indexOf(reader.readInt(), columns), indexOf(reader.readInt(), columns)};
+                    request.setPairs(pairs);
+                }
+            }
+            if ((flags & FLAG_STREAM) != 0 && frameEnd - reader.getPosition() >= 4)
+                request.setChunkSize(Math.max(1, reader.readInt()));
+        }
+        // skip what we don't know - an unknown request, or fields of a newer version
+        reader.skip(frameEnd - reader.getPosition());
+        request.setDeserializeNanos(System.nanoTime() - decodeStart);
+        ServerEvents.matrixDecoded(decoded, request, connectionId);
+        return request;
+    }
+
+    /**
+     * writeResponse: encodes the answer of a request (the caller flushes the writer).
+     * @param result Integer, the components of task 1 (a list of sets of indexes), the paths of tasks 2 and 4
+     *               (a list of lists of indexes or of Node<Index>, or CompactPaths), or a String
+     * @param columns the number of columns of the request matrix - used to turn the indexes into cell ids
+     */
+    public static void writeResponse(Writer writer, int requestId, byte status, Object result, int columns) throws IOException {
+        writeResponse(writer, requestId, status, result, columns, null);
+    }
+
+    /**
+     * writeResponse: the same, with the counters of the search as a metadata block
+     * @param searchStats the counters of the search, null - no metadata
+     */
+    public static void writeResponse(Writer writer, int requestId, byte status, Object result, int columns, SearchStats searchStats) throws IOException {
+        int metadataSize = searchStats != null ? SEARCH_STATS_SIZE : 0;
+        if (result instanceof Integer) {
+            writeResponseHeader(writer, 4 + metadataSize, status, RESULT_INT, requestId);
+            writer.writeInt((Integer) result);
+        } else if (result instanceof String) {
+            byte[] text = ((String) result).getBytes(StandardCharsets.UTF_8);
+            writeResponseHeader(writer, 4 + text.length + metadataSize, status, RESULT_TEXT, requestId);
+            writer.writeInt(text.length);
+            writer.writeBytes(text);
+        } else if (result instanceof CompactPaths) {
+            writeResponseHeader(writer, sizeOf((CompactPaths) result) + metadataSize, status, RESULT_COMPACT_PATHS, requestId);
+            writeCompactPaths(writer, (CompactPaths) result);
+        } else {
+            @SuppressWarnings("unchecked") // the components of task 1 or the paths of tasks 2 and 4
+            Collection<? extends Collection<?>> groups = (Collection<? extends Collection<?>>) result;
+            boolean components = !groups.isEmpty() && groups.iterator().next() instanceof Set;
+            writeResponseHeader(writer, sizeOf(groups) + metadataSize, status, components ? RESULT_COMPONENTS : RESULT_PATHS, requestId);
+            writeGroups(writer, groups, columns);
+        }
+        writeSearchStats(writer, searchStats);
+    }
+
+    /**
+     * writeBatchResponse: encodes the answer of a batch request - the paths of every pair, in the order of the pairs
+     * @param answers for every pair - a list of paths or CompactPaths
+     * @param searchStats the counters of the searches of all the pairs, null - no metadata
+     */
+    public static void writeBatchResponse(Writer writer, int requestId, byte status, List<?> answers, int columns, SearchStats searchStats) throws IOException {
+        int size = 4 + (searchStats != null ? SEARCH_STATS_SIZE : 0);
+        for (Object answer : answers)
+            size += 1 + (answer instanceof CompactPaths ? sizeOf((CompactPaths) answer) : sizeOf(pathsOf(answer)));
+        writeResponseHeader(writer, size, status, RESULT_BATCH, requestId);
+        writer.writeInt(answers.size());
+        for (Object answer : answers) {
+            if (answer instanceof CompactPaths) {
+                writer.writeByte(RESULT_COMPACT_PATHS);
+                writeCompactPaths(writer, (CompactPaths) answer);
+            } else {
+                writer.writeByte(RESULT_PATHS);
+                writeGroups(writer, pathsOf(answer), columns);
+            }
+        }
+        writeSearchStats(writer, searchStats);
+    }
+
+    /**
+     * @return the paths of a pair of a batch answer - a list of lists of indexes
+     */
+    @SuppressWarnings("unchecked")
+    private static Collection<? extends Collection<?>> pathsOf(Object answer) {
+        return (Collection<? extends Collection<?>>) answer;
+    }
+
+    private static void writeSearchStats(Writer writer, SearchStats searchStats) throws IOException {
+        if (searchStats == null)
+            return;
+        writer.writeByte(METADATA_SEARCH_STATS);
+        writer.writeLong(searchStats.getNodesExpanded());
+        writer.writeLong(searchStats.getPathsEnqueued());
+        writer.writeLong(searchStats.getPeakQueueLength());
+        writer.writeLong(searchStats.getPathsDiscarded());
+        writer.writeLong(searchStats.getBytesAllocated());
+    }
+
+    private static int sizeOf(Collection<? extends Collection<?>> groups) {
+        int size = 8;
+        for (Collection<?> group : groups)
+            size += 4 + group.size() * 4;
+        return size;
+    }
+
+    private static void writeGroups(Writer writer, Collection<? extends Collection<?>> groups, int columns) throws IOException {
+        writer.writeInt(columns);
+        writer.writeInt(groups.size());
+        for (Collection<?> group : groups) {
+            writer.writeInt(group.size());
+            for (Object cell : group)
+                writer.writeInt(cellId(cell, columns));
+        }
+    }
+
+    private static int sizeOf(CompactPaths paths) {
+        return 12 + paths.getEncoded().length;
+    }
+
+    private static void writeCompactPaths(Writer writer, CompactPaths paths) throws IOException {
+        byte[] encoded = paths.getEncoded();
+        writer.writeInt(paths.getColumns());
+        writer.writeInt(paths.size());
+        writer.writeInt(encoded.length);
+        writer.writeBytes(encoded);
+    }
+
+    private static void writeResponseHeader(Writer writer, int resultSize, byte status, byte kind, int requestId) throws IOException {
+        writer.writeInt(1 + 1 + 4 + resultSize);
+        writer.writeByte(status);
+        writer.writeByte(kind);
+        writer.writeInt(requestId);
+    }
+
+    /**
+     * readResponse: decodes a response frame into the same Java types that the object protocol sends -
+     * Integer, List<HashSet<Index>> for components, List<List<Index>> for paths (CompactPaths - decoded lazily), or String
+     */
+    public static Response readResponse(Reader reader) throws IOException {
+        int length = reader.readInt();
+        long frameEnd = reader.getPosition() + length;
+        byte status = reader.readByte();
+        byte kind = reader.readByte();
+        int requestId = reader.readInt();
+        Object result;
+        switch (kind) {
+            case RESULT_INT:
+                result = reader.readInt();
+                break;
+            case RESULT_TEXT: {
+                byte[] text = new byte[reader.readInt()];
+                reader.readBytes(text);
+                result = new String(text, StandardCharsets.UTF_8);
+                break;
+            }
+            case RESULT_COMPONENTS: {
+                int columns = reader.readInt();
+                int count = reader.readInt();
+                List<HashSet<Index>> components = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    int size = reader.readInt();
+                    HashSet<Index> component = new HashSet<>();
+                    for (int j = 0; j < size; j++)
+                        component.add(indexOf(reader.readInt(), columns));
+                    components.add(component);
+                }
+                result = components;
+                break;
+            }
+            case RESULT_PATHS:
+                result = readPaths(reader);
+                break;
+            case RESULT_COMPACT_PATHS:
+                result = readCompactPaths(reader);
+                break;
+            case RESULT_BATCH: {
+                int count = reader.readInt();
+                List<List<List<Index>>> answers = new ArrayList<>(count);
+                for (int i = 0; i < count; i++)
+                    answers.add(reader.readByte() == RESULT_COMPACT_PATHS ? readCompactPaths(reader) : readPaths(reader));
+                result = answers;
+                break;
+            }
+            default:
+                reader.skip(frameEnd - reader.getPosition()); // an unknown result - and so is where its metadata starts
+                return new Response(requestId, status, null);
+        }
+        SearchStats searchStats = null;
+        if (frameEnd - reader.getPosition() >= SEARCH_STATS_SIZE && reader.readByte() == METADATA_SEARCH_STATS)
+            searchStats = new SearchStats(reader.readLong(), reader.readLong(), reader.readLong(), reader.readLong(), reader.readLong());
+        reader.skip(frameEnd - reader.getPosition());
+        return new Response(requestId, status, result, searchStats);
+    }
+
+    private static List<List<Index>> readPaths(Reader reader) throws IOException {
+        int columns = reader.readInt();
+        int count = reader.readInt();
+        List<List<Index>> paths = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int size = reader.readInt();
+            List<Index> path = new ArrayList<>(size);
+            for (int j = 0; j < size; j++)
+                path.add(indexOf(reader.readInt(), columns));
+            paths.add(path);
+        }
+        return paths;
+    }
+
+    private static CompactPaths readCompactPaths(Reader reader) throws IOException {
+        int columns = reader.readInt();
+        int count = reader.readInt();
+        byte[] encoded = new byte[reader.readInt()];
+        reader.readBytes(encoded);
+        return new CompactPaths(columns, count, encoded);
+    }
+
+    /**
+     * @param cell an Index or a Node<Index>, may be null
+     */
+    static int cellId(Object cell, int columns) {
+        if (cell instanceof Node)
+            cell = ((Node<?>) cell).getData();
+        if (cell == null)
+            return -1;
+        Index index = (Index) cell;
+        return index.getRow() * columns + index.getColumn();
+    }
+
+    static Index indexOf(int cellId, int columns) {
+        return cellId < 0 ? null : new Index(cellId / columns, cellId % columns);
+    }
+
+    /**
+     * A decoded response frame
+     */
+    public static class Response {
+        private final int requestId;
+        private final byte status;
+        private final Object result;
+        private final SearchStats searchStats;
+
+        public Response(int requestId, byte status, Object result) {
+            this(requestId, status, result, null);
+        }
+
+        public Response(int requestId, byte status, Object result, SearchStats searchStats) {
+            this.requestId = requestId;
+            this.status = status;
+            this.result = result;
+            this.searchStats = searchStats;
+        }
+
+        public int getRequestId() {
+            return requestId;
+        }
+
+        public byte getStatus() {
+            return status;
+        }
+
+        public Object getResult() {
+            return result;
+        }
+
+        /**
+         * @return the counters of the search, null if the request didn't ask for them
+         */
+        public SearchStats getSearchStats() {
+            return searchStats;
+        }
+    }
+
+    /**
+     * Buffered little-endian reader - fills a 64KB buffer from the stream and decodes the numbers from it,
+     * arrays of ints are copied in bulk through an IntBuffer view
+     */
+    public static class Reader {
+        private final InputStream in;
+        private final ReadableByteChannel channel; // null - bulk reads go through the stream
+        private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        private long position; // bytes consumed since the reader was created
+
+        public Reader(InputStream in) {
+            this(in, null);
+        }
+
+        /**
+         * @param in the stream of the connection
+         * @param channel the channel of the same connection - readFully reads large payloads through it, straight into their buffer
+         */
+        public Reader(InputStream in, ReadableByteChannel channel) {
+            this.in = in;
+            this.channel = channel;
+            buffer.limit(0);
+        }
+
+        /**
+         * require: makes sure that at least n bytes (n <= 64KB) are in the buffer
+         */
+        private void require(int n) throws IOException {
+            if (buffer.remaining() >= n)
+                return;
+            buffer.compact();
+            while (buffer.position() < n) {
+                int read = in.read(buffer.array(), buffer.position(), buffer.capacity() - buffer.position());
+                if (read < 0)
+                    throw new EOFException("The other side closed the connection");
+                buffer.position(buffer.position() + read);
+            }
+            buffer.flip();
+        }
+
+        public byte readByte() throws IOException {
+            require(1);
+            position++;
+            return buffer.get();
+        }
+
+        public int readInt() throws IOException {
+            require(4);
+            position += 4;
+            return buffer.getInt();
+        }
+
+        public long readLong() throws IOException {
+            require(8);
+            position += 8;
+            return buffer.getLong();
+        }
+
+        public void readInts(int[] destination, int offset, int length) throws IOException {
+            while (length > 0) {
+                require(4);
+                int count = Math.min(length, buffer.remaining() / 4);
+                buffer.asIntBuffer().get(destination, offset, count);
+                buffer.position(buffer.position() + count * 4);
+                position += count * 4L;
+                offset += count;
+                length -= count;
+            }
+        }
+
+        public void readBytes(byte[] destination) throws IOException {
+            int offset = 0;
+            while (offset < destination.length) {
+                require(1);
+                int count = Math.min(destination.length - offset, buffer.remaining());
+                buffer.get(destination, offset, count);
+                position += count;
+                offset += count;
+            }
+        }
+
+        /**
+         * readFully: fills the destination buffer - first with the bytes that are already buffered,
+         * then directly from the channel (or through the stream if there is no channel)
+         */
+        public void readFully(ByteBuffer destination) throws IOException {
+            int buffered = Math.min(buffer.remaining(), destination.remaining());
+            ByteBuffer head = buffer.slice();
+            head.limit(buffered);
+            destination.put(head);
+            buffer.position(buffer.position() + buffered);
+            position += buffered;
+            while (destination.hasRemaining()) {
+                int read;
+                if (channel != null) {
+                    read = channel.read(destination);
+                } else {
+                    read = in.read(buffer.array(), 0, Math.min(buffer.capacity(), destination.remaining()));
+                    if (read > 0)
+                        destination.put(buffer.array(), 0, read);
+                }
+                if (read < 0)
+                    throw new EOFException("The other side closed the connection");
+                position += read;
+            }
+        }
+
+        public void skip(long count) throws IOException {
+            while (count > 0) {
+                require(1);
+                int skipped = (int) Math.min(count, buffer.remaining());
+                buffer.position(buffer.position() + skipped);
+                position += skipped;
+                count -= skipped;
+            }
+        }
+
+        public long getPosition() {
+            return position;
+        }
+    }
+
+    /**
+     * Buffered little-endian writer - encodes into a 64KB buffer and writes it to the stream when it is full or on flush()
+     */
+    public static class Writer {
+        private final OutputStream out;
+        private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+
+        public Writer(OutputStream out) {
+            this.out = out;
+        }
+
+        private void ensure(int n) throws IOException {
+            if (buffer.remaining() < n)
+                drain();
+        }
+
+        private void drain() throws IOException {
+            out.write(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+
+        public void writeByte(int value) throws IOException {
+            ensure(1);
+            buffer.put((byte) value);
+        }
+
+        public void writeInt(int value) throws IOException {
+            ensure(4);
+            buffer.putInt(value);
+        }
+
+        public void writeLong(long value) throws IOException {
+            ensure(8);
+            buffer.putLong(value);
+        }
+
+        public void writeInts(int[] source, int offset, int length) throws IOException {
+            while (length > 0) {
+                ensure(4);
+                int count = Math.min(length, buffer.remaining() / 4);
+                buffer.asIntBuffer().put(source, offset, count);
+                buffer.position(buffer.position() + count * 4);
+                offset += count;
+                length -= count;
+            }
+        }
+
+        public void writeBytes(byte[] source) throws IOException {
+            int offset = 0;
+            while (offset < source.length) {
+                ensure(1);
+                int count = Math.min(source.length - offset, buffer.remaining());
+                buffer.put(source, offset, count);
+                offset += count;
+            }
+        }
+
+        public void flush() throws IOException {
+            drain();
+            out.flush();
+        }
+    }
+}
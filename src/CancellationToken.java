@@ -0,0 +1,110 @@
+/**
+ * This class represents the cancellation state of a single client request.
+ * A request is cancelled when its deadline has passed, or when someone calls cancel() (for example when the client closed the socket).
+ *
+ * The token never stops a thread by itself - the search algorithms check it cooperatively in their main loops,
+ * stop expanding, clear their queues and return the results they found so far.
+ */
+public class CancellationToken {
+
+    /**
+     * A token without a deadline that can never be cancelled - used when the caller didn't ask for cancellation
+     */
+    public static final CancellationToken NONE = new CancellationToken(false, Long.MAX_VALUE);
+
+    private final boolean cancellable;
+    /**
+     * Based on System.nanoTime(), Long.MAX_VALUE means "no deadline" - volatile, start() sets the deadline of a token of
+     * withTimeoutOnStart on the compute thread
+     */
+    private volatile long deadlineNanos;
+    private long startTimeoutNanos; // the timeout of a token of withTimeoutOnStart, 0 for the others
+    /**
+     * volatile - cancel() is called by another thread (the connection watcher) than the one that runs the search
+     */
+    private volatile boolean cancelled;
+    private volatile boolean timedOut;
+
+    private CancellationToken(boolean cancellable, long deadlineNanos) {
+        this.cancellable = cancellable;
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    /**
+     * @return a token without a deadline that can be cancelled explicitly
+     */
+    public static CancellationToken create() {
+        return new CancellationToken(true, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param timeoutMillis the time the request may run, a value <= 0 means no deadline
+     * @return a token that cancels itself after timeoutMillis
+     */
+    public static CancellationToken withTimeout(long timeoutMillis) {
+        if (timeoutMillis <= 0)
+            return create();
+        return new CancellationToken(true, System.nanoTime() + timeoutMillis * 1_000_000L);
+    }
+
+    /**
+     * @param timeoutMillis the time the request may compute, a value <= 0 means no deadline
+     * @return a token that cancels itself timeoutMillis after start() - the time the request waits for a compute thread
+     *         doesn't count (BatchRunner queues many requests at once)
+     */
+    public static CancellationToken withTimeoutOnStart(long timeoutMillis) {
+        CancellationToken token = create();
+        if (timeoutMillis > 0)
+            token.startTimeoutNanos = timeoutMillis * 1_000_000L;
+        return token;
+    }
+
+    /**
+     * start: called when the computation of the request starts - starts the deadline of a token of withTimeoutOnStart.
+     * Only the first call counts (a batch starts a task per source), and the other tokens ignore it
+     */
+    public void start() {
+        if (startTimeoutNanos == 0 || deadlineNanos != Long.MAX_VALUE)
+            return;
+        synchronized (this) {
+            if (deadlineNanos == Long.MAX_VALUE)
+                deadlineNanos = System.nanoTime() + startTimeoutNanos;
+        }
+    }
+
+    public void cancel() {
+        if (cancellable)
+            cancelled = true;
+    }
+
+    /**
+     * isCancelled: checks the cancel flag and the deadline.
+     * This method is called from the hot loops of the searches, so it only reads a volatile flag and the clock
+     * @return true if the work of the request should stop
+     */
+    public boolean isCancelled() {
+        if (cancelled)
+            return true;
+        if (deadlineNanos != Long.MAX_VALUE && System.nanoTime() - deadlineNanos >= 0) {
+            timedOut = true;
+            cancelled = true;
+        }
+        return cancelled;
+    }
+
+    /**
+     * @return the milliseconds until the deadline (0 if it has passed), Long.MAX_VALUE if the token has no deadline
+     */
+    public long remainingMillis() {
+        if (deadlineNanos == Long.MAX_VALUE)
+            return Long.MAX_VALUE;
+        return Math.max(0, (deadlineNanos - System.nanoTime()) / 1_000_000L);
+    }
+
+    /**
+     * @return true if the request was cancelled because its deadline has passed
+     */
+    public boolean isTimedOut() {
+        return isCancelled() && timedOut;
+    }
+}
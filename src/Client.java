@@ -1,6 +1,4 @@
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.util.*;
 import java.util.stream.Collectors;
@@ -9,6 +7,10 @@ import java.util.stream.Collectors;
  * This class send messages and tasks to the server by the client.
  * There are 4 tasks that the client can choose - each task is on 2D matrix
  * all the tasks wrapped by switch-case
+ * Run with "--binary" to speak the compact binary protocol instead of Java object serialization,
+ * and with "--compact" to receive the paths of tasks 2 and 4 delta-encoded with shared prefixes ("--compact=delta" - without sharing).
+ * Run with "--stream" (or "--stream=chunk size") to print the components and paths of tasks 1, 2 and 4 as soon as the server finds them.
+ * Run with "--search-stats" to print the counters of the search of every task (nodes expanded, paths enqueued...).
  */
 
 public class Client {
@@ -37,14 +39,44 @@ public class Client {
     private static void printOptionToClient() {
         System.out.println("Please choose one task: (all the tasks work on matrix)");
         System.out.println("1--> Find all SCCs [first task]");
+        System.out.println("2--> Find all shortest paths from source to destination, the server chooses 2.1 or 2.2 [second task]");
         System.out.println("2.1--> Find all shortest paths from source to destination [second task]");
         System.out.println("2.2--> *Parallel* Find all shortest paths from source to destination [second task]");
         System.out.println("3--> Find number of battleships [third task]");
+        System.out.println("4--> Find all lightest paths from source to destination, the server chooses 4.1 or 4.2 [fourth task]");
         System.out.println("4.1--> Find all lightest paths from source to destination [fourth task]");
         System.out.println("4.2--> *Parallel* Find all lightest paths from source to destination [fourth task]");
+        System.out.println("stats--> Show the metrics of the server");
         System.out.println("stop--> Exit the program");
     }
 
+    /**
+     * @return the chunk size of "--stream=N", DEFAULT_CHUNK_SIZE for "--stream", 0 if the answers are not streamed
+     */
+    private static int streamChunkSize(List<String> options) {
+        for (String option : options) {
+            if (option.equals("--stream"))
+                return DEFAULT_CHUNK_SIZE;
+            if (option.startsWith("--stream="))
+                return Integer.parseInt(option.substring("--stream=".length()));
+        }
+        return 0;
+    }
+
+    private static final int DEFAULT_CHUNK_SIZE = 64;
+
+    /**
+     * streamRequest: requests a streamed answer and prints every chunk when it arrives
+     */
+    private static void streamRequest(ClientProtocol protocol, String task, int[][] matrix, Index src, Index dest, int chunkSize) throws IOException, ClassNotFoundException {
+        int[] received = {0};
+        boolean complete = protocol.requestStream(task, matrix, src, dest, chunkSize, chunk -> {
+            received[0] += chunk.size();
+            System.out.println("From server: " + chunk);
+        });
+        System.out.println("From server: " + received[0] + " results" + (complete ? "" : " - the server ran out of time, the answer is partial"));
+    }
+
     public static void main(String[] args) throws IOException, ClassNotFoundException ,ClassCastException{
 
         Scanner scanner = new Scanner(System.in); //for the client inputs
@@ -55,9 +87,15 @@ public class Client {
         Socket socket =new Socket("127.0.0.1",8010);
         System.out.println("client: Created Socket");
 
-        //warp InputStream & OutputStream in order to send/receive meaningful data
-        ObjectOutputStream toServer=new ObjectOutputStream(socket.getOutputStream());
-        ObjectInputStream fromServer=new ObjectInputStream(socket.getInputStream());
+        // "--binary" - speak the compact binary protocol instead of Java object serialization
+        List<String> options = Arrays.asList(args);
+        boolean binary = options.contains("--binary");
+        ClientProtocol protocol = binary ? new BinaryClientProtocol(socket) : new ObjectClientProtocol(socket);
+        if (options.contains("--compact") || options.contains("--compact=delta"))
+            protocol.setCompactPaths(true, options.contains("--compact"));
+        int chunkSize = streamChunkSize(options);
+        if (options.contains("--search-stats"))
+            protocol.setSearchStats(true);
 
         int[][] source1 = {
                 {1, 0, 0},
@@ -192,111 +230,90 @@ public class Client {
             switch(result){
                 case "1": {
                     System.out.println("From client: Task 1 is running...");
-                    toServer.writeObject("1"); //inputStream from client to server- chosen task
-                    toServer.writeObject(source1); //inputStream from client to server- matrix
+                    if (chunkSize > 0) {
+                        streamRequest(protocol, "1", source1, null, null, chunkSize);
+                        System.out.println("From client: Task 1 finished\n");
+                        scanner.nextLine();
+                        break;
+                    }
                     //server transfers data to client.
-                    List<HashSet<Index>> listOfSCCs = new ArrayList<>((List<HashSet<Index>>) fromServer.readObject()) {
-                    };
+                    List<HashSet<Index>> listOfSCCs = new ArrayList<>((List<HashSet<Index>>) protocol.request("1", source1, null, null));
                     System.out.println("From server: Strongly connected components are: " + listOfSCCs);
                     System.out.println("From client: Task 1 finished\n");
                     scanner.nextLine();
                     break;
                 }
 
-                case "2.1": {
-                    System.out.println("From client: Task 2.1 is running...");
-                    toServer.writeObject("2.1");
-                    toServer.writeObject(source2);
-                    Matrix matrix = new Matrix(source2);
-                    System.out.println("Source node:");
-                    Index startIndex = indexRequest(matrix); //input
-                    toServer.writeObject(startIndex);
-                    System.out.println("Destination node:");
-                    Index endIndex= indexRequest(matrix); //input
-                    toServer.writeObject(endIndex);
-                    List<List<Index>> minPaths = new ArrayList<>((List<List<Index>>) fromServer.readObject());
-                    System.out.println("From server: Shortest paths from source " + startIndex + " to destination " + endIndex + " are:\n" + minPaths);
-                    System.out.println("From client: Task 2.1 finished\n");
-                    scanner.nextLine();
-                    break;
-                }
-
+                case "2":
+                case "2.1":
                 case "2.2": {
-                    System.out.println("From client: Task 2.2 is running...");
-                    toServer.writeObject("2.2");
-                    toServer.writeObject(source2);
+                    System.out.println("From client: Task " + result + " is running...");
                     Matrix matrix = new Matrix(source2);
                     System.out.println("Source node:");
                     Index startIndex = indexRequest(matrix); //input
-                    toServer.writeObject(startIndex);
                     System.out.println("Destination node:");
                     Index endIndex= indexRequest(matrix); //input
-                    toServer.writeObject(endIndex);
-                    List<List<Index>> minPaths = new ArrayList<>((List<List<Index>>) fromServer.readObject());
+                    if (chunkSize > 0) {
+                        streamRequest(protocol, result, source2, startIndex, endIndex, chunkSize);
+                        System.out.println("From client: Task " + result + " finished\n");
+                        scanner.nextLine();
+                        break;
+                    }
+                    // not copied - compact paths are decoded only when they are printed
+                    List<List<Index>> minPaths = (List<List<Index>>) protocol.request(result, source2, startIndex, endIndex);
                     System.out.println("From server: Shortest paths from source " + startIndex + " to destination " + endIndex + " are:\n" + minPaths);
-                    System.out.println("From client: Task 2.2 finished\n");
+                    System.out.println("From client: Task " + result + " finished\n");
                     scanner.nextLine();
                     break;
                 }
 
                 case "3": {
                     System.out.println("From client: Task 3 is running...");
-                    toServer.writeObject("3");
-                    toServer.writeObject(source3);//the matrix that we send
-                    int sizeS = (int) fromServer.readObject();
+                    int sizeS = (int) protocol.request("3", source3, null, null);//the matrix that we send
                     System.out.println("From Server: Number of battleships is: " + sizeS);
                     System.out.println("From client: Task 3 finished\n");
                     scanner.nextLine();
                     break;
                 }
 
-                case "4.1": {
-                    System.out.println("From client: Task 4.1 is running...");
-                    toServer.writeObject("4.1");
-                    toServer.writeObject(source4); //inputStream from client to server- matrix
+                case "4":
+                case "4.1":
+                case "4.2": {
+                    System.out.println("From client: Task " + result + " is running...");
                     Matrix matrix= new Matrix(source4);
                     System.out.println("Source node:");
                     Index startIndex = indexRequest(matrix); //input
-                    toServer.writeObject(startIndex);
                     System.out.println("Destination node:");
                     Index endIndex= indexRequest(matrix); //input
-                    toServer.writeObject(endIndex);
-                    List<List<Index>> minWeightList = new ArrayList<>((List<List<Index>>) fromServer.readObject());
+                    if (chunkSize > 0) {
+                        streamRequest(protocol, result, source4, startIndex, endIndex, chunkSize);
+                        System.out.println("From client: Task " + result + " finished\n");
+                        scanner.nextLine();
+                        break;
+                    }
+                    List<List<Index>> minWeightList = (List<List<Index>>) protocol.request(result, source4, startIndex, endIndex);
                     System.out.println("From server: Lightest paths from source " + startIndex + " to destination " + endIndex + " are:\n" + minWeightList);
-                    System.out.println("From client: Task 4.1 finished\n");
+                    System.out.println("From client: Task " + result + " finished\n");
                     scanner.nextLine();
                     break;
                 }
 
-                case "4.2": {
-                    System.out.println("From client: Task 4.2 is running...");
-                    toServer.writeObject("4.2");
-                    toServer.writeObject(source4); //inputStream from client to server- matrix
-                    Matrix matrix= new Matrix(source4);
-                    System.out.println("Source node:");
-                    Index startIndex = indexRequest(matrix); //input
-                    toServer.writeObject(startIndex);
-                    System.out.println("Destination node:");
-                    Index endIndex= indexRequest(matrix); //input
-                    toServer.writeObject(endIndex);
-                    LinkedList<List<Index>> minWeightList = new LinkedList<>((LinkedList<List<Index>>) fromServer.readObject());
-                    System.out.println("From server: Lightest paths from source " + startIndex + " to destination " + endIndex + " are:\n" + minWeightList);
-                    System.out.println("From client: Task 4.2 finished\n");
+                case "stats": {
+                    System.out.println("From server: " + protocol.requestStats() + "\n");
                     scanner.nextLine();
                     break;
                 }
 
                 case "stop": {
                     flag = true;
-                    toServer.writeObject("stop");
-                    fromServer.close();
-                    toServer.close();
-                    socket.close();
+                    protocol.close(); // sends "stop" and closes the socket
                     System.out.println("Client: Closed operational socket");
                     break;
                 }
 
             }
+            if (!flag && protocol.getSearchStats() != null)
+                System.out.println("From server: search stats - " + protocol.getSearchStats() + "\n");
         }
     }
 }
@@ -0,0 +1,235 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class wraps the operational socket of a single client.
+ *
+ * While the server computes a task it doesn't read from the socket, so it can't know that the client has gone away.
+ * watch() registers a cancellation token that is cancelled as soon as the client closes the connection:
+ * a shared watchdog thread "peeks" one byte from the socket with a very short timeout -
+ *  - read returns -1: the client closed the connection, the token is cancelled.
+ *  - read returns a byte: the client already sent its next request, the byte is kept and returned by the next read.
+ *  - timeout: the client is still connected and waiting for the answer.
+ */
+public class ClientConnection {
+
+    private static final long PROBE_INTERVAL_MILLIS = 100;
+    private static final AtomicLong connectionIds = new AtomicLong();
+
+    /**
+     * One daemon thread serves the watches of all connections - each probe takes at most one millisecond
+     */
+    private static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "connection-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final long id;
+    private final Socket socket;
+    private final InputStream socketInput;
+    private final OutputStream socketOutput;
+    private final InputStream inputStream;
+    private final ReadableByteChannel channel; // null - the socket was not opened by a SocketChannel
+
+    /**
+     * The lock is held by every read, so the watchdog never peeks while the handler itself reads from the socket
+     */
+    private final ReentrantLock readLock = new ReentrantLock();
+    private int peekedByte = -1; // guarded by readLock
+    private boolean peerClosed;  // guarded by readLock
+
+    public ClientConnection(Socket socket) throws IOException {
+        this.id = connectionIds.incrementAndGet();
+        this.socket = socket;
+        this.socketInput = socket.getInputStream();
+        this.socketOutput = socket.getOutputStream();
+        this.inputStream = new PeekAwareInputStream();
+        this.channel = socket.getChannel() == null ? null : new PeekAwareChannel(socket.getChannel());
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public Socket getSocket() {
+        return socket;
+    }
+
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    public OutputStream getOutputStream() {
+        return socketOutput;
+    }
+
+    /**
+     * getChannel: the same data as getInputStream(), read straight into a ByteBuffer (a direct buffer is filled by the kernel,
+     * without the intermediate byte[] of the stream). Reads of the stream and of the channel may be mixed - neither buffers.
+     * @return the channel of the socket, or null if the socket was not accepted by a ServerSocketChannel
+     */
+    public ReadableByteChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * watch: cancels the token when the client closes the connection.
+     * @param token the token of the request that is being computed
+     * @return a Runnable that stops watching - it must be called before the handler reads from the connection again
+     */
+    public Runnable watch(CancellationToken token) {
+        ScheduledFuture<?> probe = watchdog.scheduleWithFixedDelay(() -> {
+            if (isPeerClosed())
+                token.cancel();
+        }, PROBE_INTERVAL_MILLIS, PROBE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        return () -> probe.cancel(false);
+    }
+
+    /**
+     * isPeerClosed: peeks one byte from the socket without blocking the caller for more than a millisecond.
+     * If the handler is currently reading, the connection is alive from our point of view - the handler will see the end of stream itself.
+     * @return true if the client closed the connection
+     */
+    public boolean isPeerClosed() {
+        if (!readLock.tryLock())
+            return false;
+        try {
+            if (peerClosed || peekedByte >= 0)
+                return peerClosed;
+            if (socketInput.available() > 0)
+                return false;
+            int oldTimeout = socket.getSoTimeout();
+            socket.setSoTimeout(1);
+            try {
+                int peeked = socketInput.read();
+                if (peeked < 0)
+                    peerClosed = true;
+                else
+                    peekedByte = peeked;
+            } catch (SocketTimeoutException ignored) {
+                // nothing to read, the client is waiting for our answer
+            } finally {
+                socket.setSoTimeout(oldTimeout);
+            }
+        } catch (IOException ioException) {
+            peerClosed = true;
+        } finally {
+            readLock.unlock();
+        }
+        return peerClosed;
+    }
+
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    /**
+     * The input stream that the handler reads from - returns the byte that the watchdog peeked before the rest of the socket data
+     */
+    private class PeekAwareInputStream extends InputStream {
+
+        @Override
+        public int read() throws IOException {
+            readLock.lock();
+            try {
+                if (peekedByte >= 0) {
+                    int peeked = peekedByte;
+                    peekedByte = -1;
+                    return peeked;
+                }
+                if (peerClosed)
+                    return -1;
+                return socketInput.read();
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0)
+                return 0;
+            readLock.lock();
+            try {
+                if (peekedByte >= 0) {
+                    buffer[offset] = (byte) peekedByte;
+                    peekedByte = -1;
+                    return 1;
+                }
+                if (peerClosed)
+                    return -1;
+                return socketInput.read(buffer, offset, length);
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public int available() throws IOException {
+            readLock.lock();
+            try {
+                return (peekedByte >= 0 ? 1 : 0) + socketInput.available();
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            socketInput.close();
+        }
+    }
+
+    /**
+     * The channel that the handler reads bulk data from - like PeekAwareInputStream, returns the peeked byte first
+     */
+    private class PeekAwareChannel implements ReadableByteChannel {
+        private final SocketChannel socketChannel;
+
+        PeekAwareChannel(SocketChannel socketChannel) {
+            this.socketChannel = socketChannel;
+        }
+
+        @Override
+        public int read(ByteBuffer destination) throws IOException {
+            if (!destination.hasRemaining())
+                return 0;
+            readLock.lock();
+            try {
+                if (peekedByte >= 0) {
+                    destination.put((byte) peekedByte);
+                    peekedByte = -1;
+                    return 1;
+                }
+                if (peerClosed)
+                    return -1;
+                return socketChannel.read(destination);
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return socketChannel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socketChannel.close();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * This interface defines how the client sends a task to the server and receives its answer.
+ * ObjectClientProtocol uses Java object serialization, BinaryClientProtocol the compact BinaryProtocol.
+ */
+public interface ClientProtocol extends Closeable {
+
+    /**
+     * request: sends a task and waits for its answer
+     * @param task the task id ("1", "2.1", ...)
+     * @param matrix the matrix of the task
+     * @param src source index - only for tasks 2 and 4, otherwise null
+     * @param dest destination index - only for tasks 2 and 4, otherwise null
+     * @return the answer - List<HashSet<Index>> (task 1), Integer (task 3), List<List<Index>> (tasks 2 and 4)
+     */
+    public abstract Object request(String task, int[][] matrix, Index src, Index dest) throws IOException, ClassNotFoundException;
+
+    /**
+     * requestBatch: task 2 or 4 for many (source, destination) pairs on the same matrix, in a single request
+     * @param task "2" or "4"
+     * @param pairs the (source, destination) pairs - pairs[i][0] is the source and pairs[i][1] the destination
+     * @return for every pair (in the same order) - all its shortest/lightest paths
+     */
+    public abstract List<List<List<Index>>> requestBatch(String task, int[][] matrix, Index[][] pairs) throws IOException, ClassNotFoundException;
+
+    /**
+     * requestStream: sends a task (1, 2 or 4) and receives its answer in chunks, as soon as the server finds them
+     * @param chunkSize the number of components/paths in a chunk
+     * @param onChunk receives every chunk - a list of components (task 1) or of paths (tasks 2 and 4)
+     * @return true if the answer is complete, false if the server ran out of time (the chunks hold what it found until then)
+     */
+    public abstract boolean requestStream(String task, int[][] matrix, Index src, Index dest, int chunkSize, Consumer<List<?>> onChunk) throws IOException, ClassNotFoundException;
+
+    /**
+     * requestStats: the metrics of the server (requests, latencies, queue depth...) - see ServerMetrics
+     * @return the metrics as JSON
+     */
+    public abstract String requestStats() throws IOException, ClassNotFoundException;
+
+    /**
+     * setCompactPaths: asks the server to send the paths of tasks 2 and 4 as CompactPaths (decoded lazily on the client)
+     * @param compactPaths true - CompactPaths, false - a list of lists of indexes
+     * @param sharedPrefixes every path stores only the part that differs from the previous path
+     */
+    public abstract void setCompactPaths(boolean compactPaths, boolean sharedPrefixes) throws IOException;
+
+    /**
+     * setSearchStats: asks the server to send the counters of the search (nodes expanded, paths enqueued...) with every answer
+     */
+    public abstract void setSearchStats(boolean searchStats) throws IOException;
+
+    /**
+     * getSearchStats: the counters of the search of the last answer
+     * @return the counters, null if they were not asked for (or the last answer was not of a task)
+     */
+    public abstract SearchStats getSearchStats();
+}
@@ -0,0 +1,237 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * This class is a compact, read-only encoding of the paths that tasks 2 and 4 return.
+ *
+ * As a List<List<Index>> every cell of every path is a separate object (and a separate serialized object on the wire).
+ * But two consecutive cells of a path are always neighbors in the matrix, so a path is fully described by its first cell
+ * and one direction per step - there are only 8 directions, so a step takes 3 bits instead of a whole Index.
+ * Besides, all the shortest (or lightest) paths between two cells usually share long prefixes, and the searches return
+ * them one after the other, so with sharePrefixes a path only stores the number of cells it shares with the previous path
+ * and the rest of its steps - the same as walking down a prefix trie of the paths.
+ *
+ * Every path is a record of the encoded bytes:
+ *  shared (varint)   - the number of first cells that are equal to the previous path, 0 - the path is stored in full
+ *  start+1 (varint)  - only if shared is 0: the cell id (row * columns + column) of the first cell, 0 - an empty path
+ *  steps (varint)    - the number of the following cells
+ *  directions        - 3 bits per step, packed from the lowest bit of the first byte
+ * Every RESTART_INTERVAL-th record is stored in full, so get(i) decodes at most RESTART_INTERVAL records.
+ * The paths are decoded lazily - only when they are read from the list.
+ */
+public class CompactPaths extends AbstractList<List<Index>> implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    static final int RESTART_INTERVAL = 16;
+
+    /**
+     * The directions in the same order as Matrix.getNeighbors: below, right, above, left and the 4 diagonals
+     */
+    private static final int[] ROW_DELTA = {1, 0, -1, 0, 1, -1, 1, -1};
+    private static final int[] COLUMN_DELTA = {0, 1, 0, -1, 1, -1, -1, 1};
+
+    private final int columns;
+    private final int count;
+    private final byte[] encoded;
+
+    private transient int[] restartOffsets; // the offset of the records 0, RESTART_INTERVAL, 2*RESTART_INTERVAL...
+    // the last decoded path - reading the paths in order decodes every record only once
+    private transient int cachedIndex = -1;
+    private transient int cachedNextOffset;
+    private transient int[] cachedCells = new int[0];
+    private transient int cachedLength;
+
+    public CompactPaths(int columns, int count, byte[] encoded) {
+        this.columns = columns;
+        this.count = count;
+        this.encoded = encoded;
+    }
+
+    /**
+     * encode: encodes the paths of a search
+     * @param paths the paths - their cells are Index or Node<Index>
+     * @param columns the number of columns of the matrix
+     * @param sharePrefixes store only the part of a path that differs from the previous path
+     * @return the encoded paths, or null if two consecutive cells of a path are not neighbors (the paths can't be delta-encoded)
+     */
+    public static CompactPaths encode(Collection<? extends Collection<?>> paths, int columns, boolean sharePrefixes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int[] previous = new int[0];
+        int previousLength = 0;
+        int index = 0;
+        for (Collection<?> path : paths) {
+            int[] cells = new int[path.size()];
+            int length = 0;
+            for (Object cell : path)
+                cells[length++] = BinaryProtocol.cellId(cell, columns);
+            int shared = 0;
+            if (sharePrefixes && index % RESTART_INTERVAL != 0)
+                while (shared < length && shared < previousLength && cells[shared] == previous[shared])
+                    shared++;
+            writeVarint(out, shared);
+            int from = shared;
+            if (shared == 0) {
+                writeVarint(out, length == 0 ? 0 : cells[0] + 1);
+                from = Math.min(1, length);
+            }
+            writeVarint(out, length - from);
+            int bits = 0, bitCount = 0;
+            for (int i = from; i < length; i++) {
+                int direction = directionOf(cells[i - 1], cells[i], columns);
+                if (direction < 0)
+                    return null;
+                bits |= direction << bitCount;
+                bitCount += 3;
+                if (bitCount >= 8) {
+                    out.write(bits & 0xFF);
+                    bits >>>= 8;
+                    bitCount -= 8;
+                }
+            }
+            if (bitCount > 0)
+                out.write(bits & 0xFF);
+            previous = cells;
+            previousLength = length;
+            index++;
+        }
+        return new CompactPaths(columns, index, out.toByteArray());
+    }
+
+    /**
+     * @return the direction code of the step between two cells, -1 if they are not neighbors
+     */
+    private static int directionOf(int from, int to, int columns) {
+        int rowDelta = to / columns - from / columns;
+        int columnDelta = to % columns - from % columns;
+        for (int direction = 0; direction < ROW_DELTA.length; direction++)
+            if (ROW_DELTA[direction] == rowDelta && COLUMN_DELTA[direction] == columnDelta)
+                return direction;
+        return -1;
+    }
+
+    @Override
+    public synchronized List<Index> get(int index) {
+        if (index < 0 || index >= count)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+        if (restartOffsets == null)
+            restartOffsets = findRestartOffsets();
+        int restart = index / RESTART_INTERVAL * RESTART_INTERVAL;
+        if (cachedIndex < restart || cachedIndex > index) {
+            // the previous paths we need aren't decoded - start from the closest full record
+            cachedIndex = restart - 1;
+            cachedNextOffset = restartOffsets[restart / RESTART_INTERVAL];
+            cachedLength = 0;
+        }
+        while (cachedIndex < index)
+            decodeNext();
+        List<Index> path = new ArrayList<>(cachedLength);
+        for (int i = 0; i < cachedLength; i++)
+            path.add(BinaryProtocol.indexOf(cachedCells[i], columns));
+        return Collections.unmodifiableList(path);
+    }
+
+    /**
+     * decodeNext: decodes the record after the cached path on top of it
+     */
+    private void decodeNext() {
+        int[] position = {cachedNextOffset};
+        int shared = readVarint(position);
+        int length = shared;
+        if (shared == 0) {
+            int start = readVarint(position) - 1;
+            if (start >= 0) {
+                ensureCapacity(1);
+                cachedCells[0] = start;
+                length = 1;
+            }
+        }
+        int steps = readVarint(position);
+        ensureCapacity(length + steps);
+        int offset = position[0];
+        long bits = 0;
+        int bitCount = 0;
+        for (int i = 0; i < steps; i++) {
+            if (bitCount < 3) {
+                bits |= (long) (encoded[offset++] & 0xFF) << bitCount;
+                bitCount += 8;
+            }
+            int direction = (int) (bits & 7);
+            bits >>>= 3;
+            bitCount -= 3;
+            int previous = cachedCells[length - 1];
+            cachedCells[length++] = previous + ROW_DELTA[direction] * columns + COLUMN_DELTA[direction];
+        }
+        cachedLength = length;
+        cachedNextOffset = offset;
+        cachedIndex++;
+    }
+
+    private void ensureCapacity(int length) {
+        if (cachedCells.length < length)
+            cachedCells = Arrays.copyOf(cachedCells, Math.max(length, cachedCells.length * 2));
+    }
+
+    /**
+     * findRestartOffsets: walks over the records without decoding their directions
+     */
+    private int[] findRestartOffsets() {
+        int[] offsets = new int[(count + RESTART_INTERVAL - 1) / RESTART_INTERVAL];
+        int[] position = {0};
+        for (int i = 0; i < count; i++) {
+            if (i % RESTART_INTERVAL == 0)
+                offsets[i / RESTART_INTERVAL] = position[0];
+            if (readVarint(position) == 0)
+                readVarint(position);
+            int steps = readVarint(position);
+            position[0] += (steps * 3 + 7) / 8;
+        }
+        return offsets;
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    /**
+     * @return the encoded records (not a copy - don't change it)
+     */
+    public byte[] getEncoded() {
+        return encoded;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * @param position the offset to read from - advanced past the varint
+     */
+    private int readVarint(int[] position) {
+        int value = 0, shift = 0;
+        byte b;
+        do {
+            b = encoded[position[0]++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    /**
+     * The transient decoding state starts empty after deserialization as well
+     */
+    private Object readResolve() {
+        return new CompactPaths(columns, count, encoded);
+    }
+}
@@ -0,0 +1,281 @@
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class labels the components of the '1' cells of a matrix (cells that touch, diagonals included - the moves of task 2),
+ * so the reachability of a (source, destination) pair is known before any path is searched.
+ *
+ * Without it, task 2 on a pair that has no path explores the whole component of the source, enumerating its paths,
+ * only to find out that the destination isn't there. The index is built in a single pass over the cells (a BFS per component)
+ * and answers in O(1):
+ *  - pathComponent(src, dest): NO_PATH - the search can't find anything, otherwise the component every path goes through
+ *  - sizeOf / the bounding box of a component: the part of the matrix the search really walks - the cost estimates use it
+ *    instead of the size of the whole matrix
+ * The index depends only on which cells are '1', so it is kept in a Cache by that pattern and reused by all the requests
+ * on the same matrix (task 2 on many pairs usually sends the same matrix again and again).
+ * A matrix of the MatrixStore is saved with its index, and the labels are read straight from the mapping of its file.
+ */
+public class ComponentIndex {
+
+    /**
+     * pathComponent: there is no path between the source and the destination
+     */
+    public static final int NO_PATH = -1;
+    /**
+     * pathComponent: the search must run as it is (the source is the destination, or out of the matrix)
+     */
+    public static final int UNRESTRICTED = 0;
+
+    private static final int[] ROW_DELTA = {1, 0, -1, 0, 1, -1, 1, -1};
+    private static final int[] COLUMN_DELTA = {0, 1, 0, -1, 1, -1, -1, 1};
+
+    private final int rows, columns;
+    private final IntBuffer labels;  // the component of every cell (row * columns + column), 0 - not a '1' cell
+    private int components;
+    private int[] sizes = new int[16];   // by label - the number of cells of the component
+    private int[] boxes = new int[64];   // by label - minRow, minColumn, maxRow, maxColumn
+
+    private ComponentIndex(int rows, int columns, long[] ones) {
+        this.rows = rows;
+        this.columns = columns;
+        int[] labels = new int[rows * columns];
+        this.labels = IntBuffer.wrap(labels);
+        int[] queue = new int[Math.max(1, rows * columns)];
+        for (int cell = 0; cell < labels.length; cell++) {
+            if (labels[cell] != 0 || !isSet(ones, cell))
+                continue;
+            int label = newComponent();
+            labels[cell] = label;
+            int head = 0, tail = 0;
+            queue[tail++] = cell;
+            while (head < tail) {
+                int current = queue[head++];
+                int row = current / columns, column = current % columns;
+                grow(label, row, column);
+                for (int direction = 0; direction < ROW_DELTA.length; direction++) {
+                    int neighborRow = row + ROW_DELTA[direction], neighborColumn = column + COLUMN_DELTA[direction];
+                    if (neighborRow < 0 || neighborColumn < 0 || neighborRow >= rows || neighborColumn >= columns)
+                        continue;
+                    int neighbor = neighborRow * columns + neighborColumn;
+                    if (labels[neighbor] == 0 && isSet(ones, neighbor)) {
+                        labels[neighbor] = label;
+                        queue[tail++] = neighbor;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * An index that was saved before (see MatrixStore) - nothing is computed
+     * @param labels the label of every cell, e.g. a view over a mapped file
+     * @param sizes the number of cells of every component, by label (index 0 is unused)
+     * @param boxes minRow, minColumn, maxRow, maxColumn of every component, by label
+     */
+    ComponentIndex(int rows, int columns, IntBuffer labels, int components, int[] sizes, int[] boxes) {
+        this.rows = rows;
+        this.columns = columns;
+        this.labels = labels;
+        this.components = components;
+        this.sizes = sizes;
+        this.boxes = boxes;
+    }
+
+    /**
+     * build: labels the components of a matrix
+     */
+    public static ComponentIndex build(Matrix matrix) {
+        return new ComponentIndex(matrix.getRows(), matrix.getColumns(), onesOf(matrix));
+    }
+
+    /**
+     * @return the '1' cells of the matrix as a bitmap, cell (row, column) is bit row * columns + column
+     */
+    static long[] onesOf(Matrix matrix) {
+        return matrix.bitmapOf(1);
+    }
+
+    private static boolean isSet(long[] ones, int cell) {
+        return (ones[cell >>> 6] & (1L << cell)) != 0;
+    }
+
+    private int newComponent() {
+        int label = ++components;
+        if (label >= sizes.length) {
+            sizes = Arrays.copyOf(sizes, sizes.length * 2);
+            boxes = Arrays.copyOf(boxes, boxes.length * 2);
+        }
+        boxes[label * 4] = Integer.MAX_VALUE;
+        boxes[label * 4 + 1] = Integer.MAX_VALUE;
+        boxes[label * 4 + 2] = -1;
+        boxes[label * 4 + 3] = -1;
+        return label;
+    }
+
+    private void grow(int label, int row, int column) {
+        sizes[label]++;
+        int box = label * 4;
+        boxes[box] = Math.min(boxes[box], row);
+        boxes[box + 1] = Math.min(boxes[box + 1], column);
+        boxes[box + 2] = Math.max(boxes[box + 2], row);
+        boxes[box + 3] = Math.max(boxes[box + 3], column);
+    }
+
+    /**
+     * @return the component of a cell, 0 - not a '1' cell (or out of the matrix)
+     */
+    public int labelOf(int row, int column) {
+        if (row < 0 || column < 0 || row >= rows || column >= columns)
+            return 0;
+        return labels.get(row * columns + column);
+    }
+
+    /**
+     * pathComponent: the component the paths of task 2 from src to dest go through.
+     * The search starts at the source whatever its value, and continues only through '1' cells - so the destination
+     * must be a '1' cell, and the source must be in its component or (if the source isn't a '1' cell) touch it.
+     * @return the label of the component, NO_PATH, or UNRESTRICTED if the search has to run as usual
+     */
+    public int pathComponent(Index src, Index dest) {
+        if (src.equals(dest) || labelOf(src.row, src.column) == 0 && !insideOf(src))
+            return UNRESTRICTED;
+        int component = labelOf(dest.row, dest.column);
+        if (component == 0)
+            return NO_PATH;
+        if (labelOf(src.row, src.column) == component)
+            return component;
+        if (labelOf(src.row, src.column) != 0) // a '1' cell of another component
+            return NO_PATH;
+        for (int direction = 0; direction < ROW_DELTA.length; direction++)
+            if (labelOf(src.row + ROW_DELTA[direction], src.column + COLUMN_DELTA[direction]) == component)
+                return component;
+        return NO_PATH;
+    }
+
+    private boolean insideOf(Index index) {
+        return index.row >= 0 && index.column >= 0 && index.row < rows && index.column < columns;
+    }
+
+    public int getComponents() {
+        return components;
+    }
+
+    /**
+     * The arrays of the index, for MatrixStore to save
+     */
+    IntBuffer labels() {
+        return labels.duplicate();
+    }
+
+    int[] sizes() {
+        return Arrays.copyOf(sizes, components + 1);
+    }
+
+    int[] boxes() {
+        return Arrays.copyOf(boxes, (components + 1) * 4);
+    }
+
+    /**
+     * @return the number of cells of a component
+     */
+    public int sizeOf(int component) {
+        return sizes[component];
+    }
+
+    /**
+     * @return the number of cells of the bounding box of a component - the part of the matrix its searches walk
+     */
+    public long boxCellsOf(int component) {
+        int box = component * 4;
+        return (long) (boxes[box + 2] - boxes[box] + 1) * (boxes[box + 3] - boxes[box + 1] + 1);
+    }
+
+    /**
+     * @return the bounding box of a component - {minRow, minColumn, maxRow, maxColumn}
+     */
+    public int[] boxOf(int component) {
+        return Arrays.copyOfRange(boxes, component * 4, component * 4 + 4);
+    }
+
+    /**
+     * This class keeps the indexes of the latest matrices, by their '1' cells (least recently used first out).
+     * Looking a matrix up reads its cells once to build the key - cheaper than labeling them, and the key is compared
+     * in full, so two matrices with the same hash never share an index.
+     */
+    public static class Cache {
+
+        private static final class Key {
+            final int rows, columns;
+            final long[] ones;
+            final int hash;
+
+            Key(int rows, int columns, long[] ones) {
+                this.rows = rows;
+                this.columns = columns;
+                this.ones = ones;
+                this.hash = 31 * (31 * rows + columns) + Arrays.hashCode(ones);
+            }
+
+            @Override
+            public int hashCode() {
+                return hash;
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                if (this == o) return true;
+                if (!(o instanceof Key)) return false;
+                Key key = (Key) o;
+                return rows == key.rows && columns == key.columns && hash == key.hash && Arrays.equals(ones, key.ones);
+            }
+        }
+
+        private final long maxCells;
+        private long cachedCells;  // guarded by this
+        private final LinkedHashMap<Key, ComponentIndex> indexes = new LinkedHashMap<>(16, 0.75f, true);
+
+        /**
+         * @param maxCells the total size of the cached indexes (in cells - 4 bytes each), a bigger index is never cached
+         */
+        public Cache(long maxCells) {
+            this.maxCells = maxCells;
+        }
+
+        /**
+         * get: the index of the matrix - from the cache, or built now and cached
+         * @param metrics where the hit or the miss is recorded (the "componentIndex" cache)
+         */
+        public ComponentIndex get(Matrix matrix, ServerMetrics metrics) {
+            Key key = new Key(matrix.getRows(), matrix.getColumns(), onesOf(matrix));
+            synchronized (this) {
+                ComponentIndex index = indexes.get(key);
+                if (index != null) {
+                    metrics.recordCache("componentIndex", true);
+                    return index;
+                }
+            }
+            metrics.recordCache("componentIndex", false);
+            // built outside the lock - two requests with the same new matrix may both build it, the second one is dropped
+            ComponentIndex index = new ComponentIndex(key.rows, key.columns, key.ones);
+            if (index.labels.capacity() <= maxCells) {
+                synchronized (this) {
+                    if (indexes.putIfAbsent(key, index) == null) {
+                        cachedCells += index.labels.capacity();
+                        evict();
+                    }
+                }
+            }
+            return index;
+        }
+
+        private void evict() {
+            for (Iterator<Map.Entry<Key, ComponentIndex>> eldest = indexes.entrySet().iterator(); cachedCells > maxCells && eldest.hasNext(); ) {
+                cachedCells -= eldest.next().getValue().labels.capacity();
+                eldest.remove();
+            }
+        }
+    }
+}
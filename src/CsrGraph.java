@@ -0,0 +1,238 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.Collection;
+
+/**
+ * This class is a directed graph in compressed sparse row form - a Traversable for graphs that are not a matrix
+ * (road networks, computer networks...), so the same searches (ThreadLocalBFS, ThreadLocalBellmanFord, ThreadLocalDFSVisit...)
+ * run on them.
+ *
+ * The out-edges of node v are targets[offsets[v]] .. targets[offsets[v + 1] - 1] - two int arrays and no object per edge,
+ * so a graph of 100M edges takes about 400MB. The weights are optional and belong to the nodes, like the cells of a matrix:
+ * the weight of a path is the sum of the weights of its nodes (1 each when the graph has no weights).
+ * Every edge can be walked - getReachableNodes and getNeighbors are the same.
+ *
+ * A graph is loaded from a binary edge list (little-endian), read through a memory mapping of the file:
+ *  magic "MXG1" (int), nodes (int), edges (long), flags (int) - FLAG_WEIGHTS: the weights of the nodes follow the edges
+ *  edges * (from (int), to (int))
+ *  nodes * weight (int) - only with FLAG_WEIGHTS
+ * The edges may come in any order - load() counts the out-degrees in one pass over the mapping and places the targets in a second.
+ *
+ * The arrays are shared by all the requests on the graph - withEnds gives every request its own view with its own source
+ * and destination, so a loaded graph is never changed.
+ */
+public class CsrGraph implements Traversable<Integer> {
+
+    public static final int MAGIC = 0x3147584D; // "MXG1" in little-endian
+    public static final int FLAG_WEIGHTS = 1;
+    static final int HEADER_SIZE = 20;
+
+    /**
+     * The file is mapped in windows of this size - a single MappedByteBuffer can't be larger than 2GB
+     */
+    private static final long MAPPING_WINDOW = 1L << 30;
+
+    private final int[] offsets;
+    private final int[] targets;
+    private final int[] weights;     // null - every node weighs 1
+    private final int start, end;    // -1 - not set
+
+    private CsrGraph(int[] offsets, int[] targets, int[] weights, int start, int end) {
+        this.offsets = offsets;
+        this.targets = targets;
+        this.weights = weights;
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * @param offsets nodes + 1 offsets into targets - the out-edges of node v are targets[offsets[v]] .. targets[offsets[v + 1] - 1]
+     * @param weights the weights of the nodes, null - every node weighs 1
+     */
+    public CsrGraph(int[] offsets, int[] targets, int[] weights) {
+        this(offsets, targets, weights, -1, -1);
+    }
+
+    /**
+     * withEnds: a view of the graph with a source and a destination - the arrays are shared, nothing is copied
+     * @param start the source node (getOrigin)
+     * @param end the destination node (getDestination), -1 - none
+     */
+    public CsrGraph withEnds(int start, int end) {
+        return new CsrGraph(offsets, targets, weights, start, end);
+    }
+
+    /**
+     * load: reads a binary edge list (see the class comment) through a memory mapping of the file
+     */
+    public static CsrGraph load(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), HEADER_SIZE));
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC)
+                throw new IOException(file + " is not a graph edge list");
+            int nodes = header.getInt();
+            long edges = header.getLong();
+            int flags = header.getInt();
+            long expectedSize = HEADER_SIZE + edges * 8 + ((flags & FLAG_WEIGHTS) != 0 ? (long) nodes * 4 : 0);
+            if (nodes < 0 || edges < 0 || edges > Integer.MAX_VALUE - 8 || channel.size() < expectedSize)
+                throw new IOException(file + " holds a broken graph: " + nodes + " nodes, " + edges + " edges, " + channel.size() + " bytes");
+
+            // pass 1: the out-degree of every node, in offsets[v + 1]
+            int[] offsets = new int[nodes + 1];
+            forEachEdge(channel, edges, (from, to) -> {
+                if (from < 0 || from >= nodes || to < 0 || to >= nodes)
+                    throw new IOException("The edge " + from + " -> " + to + " is out of the " + nodes + " nodes");
+                offsets[from + 1]++;
+            });
+            for (int v = 0; v < nodes; v++)
+                offsets[v + 1] += offsets[v];
+            // pass 2: every target at the next free place of its source
+            int[] targets = new int[(int) edges];
+            int[] next = offsets.clone();
+            forEachEdge(channel, edges, (from, to) -> targets[next[from]++] = to);
+
+            int[] weights = null;
+            if ((flags & FLAG_WEIGHTS) != 0) {
+                weights = new int[nodes];
+                long position = HEADER_SIZE + edges * 8;
+                for (int v = 0; v < nodes; ) {
+                    int count = (int) Math.min(nodes - v, MAPPING_WINDOW / 4);
+                    channel.map(FileChannel.MapMode.READ_ONLY, position, (long) count * 4).order(ByteOrder.LITTLE_ENDIAN)
+                            .asIntBuffer().get(weights, v, count);
+                    v += count;
+                    position += (long) count * 4;
+                }
+            }
+            return new CsrGraph(offsets, targets, weights);
+        }
+    }
+
+    private interface EdgeVisitor {
+        void visit(int from, int to) throws IOException;
+    }
+
+    private static void forEachEdge(FileChannel channel, long edges, EdgeVisitor visitor) throws IOException {
+        long position = HEADER_SIZE;
+        for (long edge = 0; edge < edges; ) {
+            long count = Math.min(edges - edge, MAPPING_WINDOW / 8);
+            IntBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, count * 8).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            for (long i = 0; i < count; i++)
+                visitor.visit(window.get(), window.get());
+            edge += count;
+            position += count * 8;
+        }
+    }
+
+    /**
+     * write: writes a binary edge list that load() reads
+     * @param from the source node of every edge
+     * @param to the target node of every edge
+     * @param weights the weights of the nodes, null - no weights
+     */
+    public static void write(OutputStream out, int nodes, int[] from, int[] to, int[] weights) throws IOException {
+        if (from.length != to.length)
+            throw new IllegalArgumentException("Every edge needs a source and a target");
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+        data.writeInt(Integer.reverseBytes(MAGIC));
+        data.writeInt(Integer.reverseBytes(nodes));
+        data.writeLong(Long.reverseBytes(from.length));
+        data.writeInt(Integer.reverseBytes(weights != null ? FLAG_WEIGHTS : 0));
+        for (int i = 0; i < from.length; i++) {
+            data.writeInt(Integer.reverseBytes(from[i]));
+            data.writeInt(Integer.reverseBytes(to[i]));
+        }
+        if (weights != null)
+            for (int weight : weights)
+                data.writeInt(Integer.reverseBytes(weight));
+        data.flush();
+    }
+
+    public static void write(Path file, int nodes, int[] from, int[] to, int[] weights) throws IOException {
+        try (OutputStream out = Files.newOutputStream(file)) {
+            write(out, nodes, from, to, weights);
+        }
+    }
+
+    public int getNodes() {
+        return offsets.length - 1;
+    }
+
+    public int getEdges() {
+        return targets.length;
+    }
+
+    public boolean hasWeights() {
+        return weights != null;
+    }
+
+    public boolean containsNode(int node) {
+        return node >= 0 && node < getNodes();
+    }
+
+    @Override
+    public Node<Integer> getOrigin() {
+        if (start < 0) throw new NullPointerException("Start node is not initialized");
+        return new Node<>(start);
+    }
+
+    @Override
+    public Node<Integer> getDestination() {
+        if (end < 0) throw new NullPointerException("End node is not initialized");
+        return new Node<>(end);
+    }
+
+    /**
+     * @return the targets of the out-edges of the node - a view over the targets array, the Nodes are created while it is read
+     */
+    @Override
+    public Collection<Node<Integer>> getReachableNodes(Node<Integer> someNode) {
+        int node = someNode.getData(), first = offsets[node], degree = offsets[node + 1] - first;
+        return new AbstractList<Node<Integer>>() {
+            @Override
+            public Node<Integer> get(int i) {
+                return new Node<>(targets[first + i], someNode);
+            }
+
+            @Override
+            public int size() {
+                return degree;
+            }
+        };
+    }
+
+    @Override
+    public Collection<Node<Integer>> getNeighbors(Node<Integer> someNode) {
+        return getReachableNodes(someNode);
+    }
+
+    @Override
+    public int getSize() {
+        return getNodes();
+    }
+
+    @Override
+    public int getValue(Node<Integer> someNode) {
+        return getValueN(someNode.getData());
+    }
+
+    @Override
+    public int getValueN(Integer someNode) {
+        return weights == null ? 1 : weights[someNode];
+    }
+
+    @Override
+    public String toString() {
+        return getNodes() + " nodes, " + getEdges() + " edges" + (weights != null ? ", weighted" : "");
+    }
+}
@@ -0,0 +1,421 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.*;
+
+/**
+ * This class keeps the components of the '1' cells of a stored matrix (cells that touch, diagonals included - the components
+ * of task 1) and its number of battleships (task 3) up to date while cells of the matrix are changed, a few at a time.
+ *
+ * Without it, a client that changes a few cells sends the whole matrix again, and the server traverses all of it again.
+ * Here a change costs what it touches:
+ *  - a cell becomes '1': it is a new component, joined (union-find, by size, with path halving) with the components of
+ *    its '1' neighbors - O(8) unions
+ *  - a '1' cell becomes something else: only its own component can split - its cells are labeled again by a BFS that walks
+ *    that component alone, O(size of the component)
+ * The cells of every component are a circular list through next[] - joining two components swaps two links, and the cells of
+ * a component are walked without looking at the rest of the matrix.
+ * Every component knows its size and its bounding box, so it is a battleship (task 3: at least two cells, and no '0' in its
+ * bounding box - its box is full exactly when its size is the area of the box) without reading the matrix, and the number of
+ * battleships is updated with every union and split. That holds for a matrix of '0' and '1' cells - task 3 only looks for '0'
+ * cells in the box, so a cell of another value fills it too: while the matrix has such cells, the count checks the boxes of
+ * the components instead (their area, still without a traversal).
+ * Task 1 reuses the HashSet of every component that didn't change since the previous query - only the changed ones are built.
+ *
+ * The cells are kept in a buffer of little-endian ints, so view() is a Matrix over them without a copy. Tasks 2 and 4 need
+ * cells that don't change under their search - snapshot() copies them (once per version) with a ComponentIndex of the labels.
+ * All the methods are synchronized - an update and a query never see each other half done.
+ */
+public class DynamicComponents {
+
+    private static final int[] ROW_DELTA = {1, 0, -1, 0, 1, -1, 1, -1};
+    private static final int[] COLUMN_DELTA = {0, 1, 0, -1, 1, -1, -1, 1};
+    private static final int NOT_ONE = -1;   // parent[] of a cell that is not '1'
+    private static final int RELABEL = -2;   // parent[] of a cell of a component that is being labeled again
+    /**
+     * The sources whose lightest weights (task 4) are kept and repaired by the updates - the least recently queried one is dropped
+     */
+    static final int MAX_LIGHTEST_PATHS = 16;
+
+    /**
+     * A component - the root of its cells in the union-find
+     */
+    private static final class Component {
+        int size;
+        int minRow, minColumn, maxRow, maxColumn;
+        HashSet<Index> cells; // the answer of task 1 for this component, null - not built since the last change
+
+        Component(int row, int column) {
+            size = 1;
+            minRow = maxRow = row;
+            minColumn = maxColumn = column;
+        }
+
+        boolean isBattleship() {
+            return size > 1 && size == (maxRow - minRow + 1) * (maxColumn - minColumn + 1);
+        }
+    }
+
+    private final int rows, columns;
+    private final ByteBuffer cellBytes;
+    private final IntBuffer cells;
+    private final int[] parent;   // the union-find - the root of a component is its own parent
+    private final int[] next;     // the next cell of the same component (circular)
+    private final Map<Integer, Component> components = new HashMap<>(); // by root
+    private int battleships;
+    private int otherValues;       // the cells that are neither '0' nor '1'
+    private int negativeValues;    // the cells with a negative weight - task 4 can't use Dijkstra then
+    private long version;          // the number of updates that changed a cell
+    private List<HashSet<Index>> sortedComponents; // the answer of task 1, null - not built since the last change
+    private Matrix snapshot;
+    private long snapshotVersion = -1;
+    private final LinkedHashMap<Integer, DynamicLightestPaths> lightestPaths = new LinkedHashMap<>(MAX_LIGHTEST_PATHS * 2, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, DynamicLightestPaths> eldest) {
+            return size() > MAX_LIGHTEST_PATHS;
+        }
+    };
+
+    /**
+     * Labels the components of a matrix - a single pass over its cells (each '1' cell is joined with the neighbors before it)
+     */
+    public DynamicComponents(Matrix matrix) {
+        rows = matrix.getRows();
+        columns = matrix.getColumns();
+        int total = rows * columns;
+        cellBytes = ByteBuffer.allocate(total * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        cells = cellBytes.asIntBuffer();
+        parent = new int[total];
+        next = new int[total];
+        Arrays.fill(parent, NOT_ONE);
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < columns; j++) {
+                int value = matrix.contains(i, j) ? matrix.getValue(i, j) : 0;
+                cells.put(i * columns + j, value);
+                if (value != 0 && value != 1)
+                    otherValues++;
+                if (value < 0)
+                    negativeValues++;
+                if (value != 1)
+                    continue;
+                int cell = i * columns + j;
+                newComponent(cell);
+                // left, up-left, up, up-right - the neighbors that were already seen
+                for (int direction : new int[]{3, 5, 2, 7})
+                    joinIfOne(cell, i + ROW_DELTA[direction], j + COLUMN_DELTA[direction]);
+            }
+        }
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    public synchronized int getComponents() {
+        return components.size();
+    }
+
+    /**
+     * @return the number of battleships - task 3
+     */
+    public synchronized int getBattleships() {
+        if (otherValues == 0)
+            return battleships;
+        int count = 0;
+        for (Component component : components.values())
+            if (component.size > 1 && hasNoZero(component))
+                count++;
+        return count;
+    }
+
+    private boolean hasNoZero(Component component) {
+        for (int i = component.minRow; i <= component.maxRow; i++)
+            for (int j = component.minColumn; j <= component.maxColumn; j++)
+                if (cells.get(i * columns + j) == 0)
+                    return false;
+        return true;
+    }
+
+    /**
+     * check: the validation of update, without changing anything - so MatrixStore logs only the changes that can be applied
+     * @throws IllegalArgumentException if a change is not a cell of the matrix
+     */
+    public void check(int[][] changes) {
+        for (int[] change : changes)
+            if (change == null || change.length != 3 || change[0] < 0 || change[1] < 0 || change[0] >= rows || change[1] >= columns)
+                throw new IllegalArgumentException("A change is {row, column, value} of a cell of the " + rows + "x" + columns + " matrix: "
+                        + Arrays.toString(change));
+    }
+
+    /**
+     * update: changes cells of the matrix
+     * @param changes {row, column, value} for every cell - applied in order
+     * @return the number of cells whose value changed
+     * @throws IllegalArgumentException if a change is not a cell of the matrix - nothing is changed then
+     */
+    public synchronized int update(int[][] changes) {
+        check(changes);
+        int changed = 0;
+        for (int[] change : changes) {
+            int cell = change[0] * columns + change[1], before = cells.get(cell), after = change[2];
+            if (before == after)
+                continue;
+            cells.put(cell, after);
+            changed++;
+            otherValues += (after != 0 && after != 1 ? 1 : 0) - (before != 0 && before != 1 ? 1 : 0);
+            negativeValues += (after < 0 ? 1 : 0) - (before < 0 ? 1 : 0);
+            if (after == 1)
+                addOne(cell);
+            else if (before == 1)
+                removeOne(cell);
+            if (negativeValues > 0)
+                lightestPaths.clear(); // they can't be repaired with a negative weight
+            for (DynamicLightestPaths paths : lightestPaths.values())
+                paths.cellChanged(cell, before);
+        }
+        if (changed > 0) {
+            version++;
+            sortedComponents = null;
+        }
+        return changed;
+    }
+
+    /**
+     * lightestPaths: task 4 on the current cells - the lightest weights from the source are computed at its first query, and
+     * repaired by the updates after it (for the last MAX_LIGHTEST_PATHS sources), so the next queries only walk the paths
+     * @return all the lightest paths from the source to the destination, null if a cell has a negative weight (or an index is
+     * not a cell of the matrix) - the caller searches the snapshot then
+     */
+    public synchronized List<List<Index>> lightestPaths(Index src, Index dest, CancellationToken token) {
+        if (negativeValues > 0 || !contains(src) || !contains(dest))
+            return null;
+        int source = src.row * columns + src.column;
+        DynamicLightestPaths paths = lightestPaths.get(source);
+        if (paths == null) {
+            paths = new DynamicLightestPaths(rows, columns, cells, src);
+            lightestPaths.put(source, paths);
+        }
+        return paths.pathsTo(dest, token);
+    }
+
+    private boolean contains(Index index) {
+        return index != null && index.row >= 0 && index.column >= 0 && index.row < rows && index.column < columns;
+    }
+
+    /**
+     * @return the components - the answer of task 1, sorted by their size
+     */
+    public synchronized List<HashSet<Index>> getComponentSets() {
+        if (sortedComponents == null) {
+            List<Component> sorted = new ArrayList<>(components.size());
+            for (Map.Entry<Integer, Component> entry : components.entrySet()) {
+                Component component = entry.getValue();
+                if (component.cells == null)
+                    component.cells = cellsOf(entry.getKey(), component.size);
+                sorted.add(component);
+            }
+            sorted.sort(Comparator.comparingInt(component -> component.size));
+            sortedComponents = new ArrayList<>(sorted.size());
+            for (Component component : sorted)
+                sortedComponents.add(component.cells);
+        }
+        return new ArrayList<>(sortedComponents);
+    }
+
+    /**
+     * view: the matrix over the current cells - nothing is copied, the view changes with the updates
+     */
+    public Matrix view() {
+        return new Matrix(rows, columns, cellBytes.duplicate().order(ByteOrder.LITTLE_ENDIAN));
+    }
+
+    /**
+     * snapshot: a copy of the current cells that never changes, with its ComponentIndex - copied again only after an update
+     */
+    public synchronized Matrix snapshot() {
+        if (snapshotVersion != version) {
+            ByteBuffer copy = ByteBuffer.allocateDirect(cellBytes.capacity()).order(ByteOrder.LITTLE_ENDIAN);
+            copy.put(cellBytes.duplicate()).flip();
+            Matrix matrix = new Matrix(rows, columns, copy);
+            matrix.setComponentIndex(componentIndex());
+            snapshot = matrix;
+            snapshotVersion = version;
+        }
+        return snapshot;
+    }
+
+    /**
+     * componentIndex: the components as a ComponentIndex - labels 1, 2, ... in the order of their first cell
+     */
+    private ComponentIndex componentIndex() {
+        int[] labels = new int[parent.length];
+        Map<Integer, Integer> labelOfRoot = new HashMap<>();
+        int[] sizes = new int[components.size() + 1], boxes = new int[(components.size() + 1) * 4];
+        for (int cell = 0; cell < parent.length; cell++) {
+            if (parent[cell] == NOT_ONE)
+                continue;
+            int root = find(cell);
+            Integer label = labelOfRoot.get(root);
+            if (label == null) {
+                label = labelOfRoot.size() + 1;
+                labelOfRoot.put(root, label);
+                Component component = components.get(root);
+                sizes[label] = component.size;
+                boxes[label * 4] = component.minRow;
+                boxes[label * 4 + 1] = component.minColumn;
+                boxes[label * 4 + 2] = component.maxRow;
+                boxes[label * 4 + 3] = component.maxColumn;
+            }
+            labels[cell] = label;
+        }
+        return new ComponentIndex(rows, columns, IntBuffer.wrap(labels), components.size(), sizes, boxes);
+    }
+
+    private void addOne(int cell) {
+        newComponent(cell);
+        int row = cell / columns, column = cell % columns;
+        for (int direction = 0; direction < ROW_DELTA.length; direction++)
+            joinIfOne(cell, row + ROW_DELTA[direction], column + COLUMN_DELTA[direction]);
+    }
+
+    /**
+     * removeOne: the cell is not '1' anymore - the rest of its component is labeled again, it may fall apart
+     */
+    private void removeOne(int cell) {
+        int root = find(cell);
+        Component component = components.remove(root);
+        if (component.isBattleship())
+            battleships--;
+        int[] members = new int[component.size];
+        int count = 0;
+        int member = root;
+        do {
+            members[count++] = member;
+            parent[member] = RELABEL;
+            member = next[member];
+        } while (member != root);
+        parent[cell] = NOT_ONE;
+        int[] queue = new int[component.size];
+        for (int start : members) {
+            if (parent[start] != RELABEL)
+                continue;
+            newComponent(start);
+            int head = 0, tail = 0;
+            queue[tail++] = start;
+            while (head < tail) {
+                int current = queue[head++];
+                int row = current / columns, column = current % columns;
+                for (int direction = 0; direction < ROW_DELTA.length; direction++) {
+                    int neighborRow = row + ROW_DELTA[direction], neighborColumn = column + COLUMN_DELTA[direction];
+                    if (neighborRow < 0 || neighborColumn < 0 || neighborRow >= rows || neighborColumn >= columns)
+                        continue;
+                    int neighbor = neighborRow * columns + neighborColumn;
+                    if (parent[neighbor] == RELABEL) {
+                        attach(start, neighbor);
+                        queue[tail++] = neighbor;
+                    }
+                }
+            }
+            if (components.get(start).isBattleship())
+                battleships++;
+        }
+    }
+
+    /**
+     * newComponent: the cell alone - a new component
+     */
+    private void newComponent(int cell) {
+        parent[cell] = cell;
+        next[cell] = cell;
+        Component component = new Component(cell / columns, cell % columns);
+        components.put(cell, component);
+        if (component.isBattleship())
+            battleships++;
+    }
+
+    /**
+     * attach: adds a cell to the component of the root while it is labeled (the battleships are counted when it is complete)
+     */
+    private void attach(int root, int cell) {
+        parent[cell] = root;
+        next[cell] = next[root];
+        next[root] = cell;
+        grow(components.get(root), cell);
+    }
+
+    private void joinIfOne(int cell, int row, int column) {
+        if (row < 0 || column < 0 || row >= rows || column >= columns)
+            return;
+        int neighbor = row * columns + column;
+        if (parent[neighbor] >= 0)
+            union(cell, neighbor);
+    }
+
+    private void union(int a, int b) {
+        int rootA = find(a), rootB = find(b);
+        if (rootA == rootB)
+            return;
+        Component componentA = components.get(rootA), componentB = components.get(rootB);
+        if (componentA.size < componentB.size) {
+            int root = rootA;
+            rootA = rootB;
+            rootB = root;
+            Component component = componentA;
+            componentA = componentB;
+            componentB = component;
+        }
+        if (componentA.isBattleship())
+            battleships--;
+        if (componentB.isBattleship())
+            battleships--;
+        parent[rootB] = rootA;
+        int link = next[rootA]; // splice the two circular lists
+        next[rootA] = next[rootB];
+        next[rootB] = link;
+        componentA.size += componentB.size;
+        componentA.minRow = Math.min(componentA.minRow, componentB.minRow);
+        componentA.minColumn = Math.min(componentA.minColumn, componentB.minColumn);
+        componentA.maxRow = Math.max(componentA.maxRow, componentB.maxRow);
+        componentA.maxColumn = Math.max(componentA.maxColumn, componentB.maxColumn);
+        componentA.cells = null;
+        components.remove(rootB);
+        if (componentA.isBattleship())
+            battleships++;
+    }
+
+    private void grow(Component component, int cell) {
+        int row = cell / columns, column = cell % columns;
+        component.size++;
+        component.minRow = Math.min(component.minRow, row);
+        component.minColumn = Math.min(component.minColumn, column);
+        component.maxRow = Math.max(component.maxRow, row);
+        component.maxColumn = Math.max(component.maxColumn, column);
+        component.cells = null;
+    }
+
+    private int find(int cell) {
+        while (parent[cell] != cell) {
+            parent[cell] = parent[parent[cell]]; // path halving
+            cell = parent[cell];
+        }
+        return cell;
+    }
+
+    private HashSet<Index> cellsOf(int root, int size) {
+        HashSet<Index> set = new HashSet<>(size * 2);
+        int member = root;
+        do {
+            set.add(new Index(member / columns, member % columns));
+            member = next[member];
+        } while (member != root);
+        return set;
+    }
+}
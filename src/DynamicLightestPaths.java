@@ -0,0 +1,259 @@
+import java.nio.IntBuffer;
+import java.util.*;
+
+/**
+ * This class keeps the lightest weights of task 4 from one source of a stored matrix, and repairs them when cells of the
+ * matrix change - the next queries from the source are answered without a new search.
+ *
+ * The weight of a path is the sum of its cells (the source included), and a path goes through all the neighbors of a cell.
+ * Only the lightest weight of every cell is kept (dist[]): a neighbor p is a predecessor of a cell v on its lightest paths
+ * exactly when dist[p] + weight(v) == dist[v], so the predecessors are read from dist[] when the paths are walked, and
+ * they are never out of date.
+ *
+ * A change of weight(c) changes the weight of every path into c, and the repair follows Ramalingam and Reps:
+ *  - a decrease: c may get lighter - if it does, a Dijkstra search that starts at c and continues only through the cells
+ *    that get lighter too
+ *  - an increase: (1) the affected cells - c, and in the order of their old weights, every cell all of whose predecessors
+ *    are affected (a cell with another lightest path keeps its weight). A cell of weight 0 may have a predecessor of the same
+ *    weight that wasn't decided yet, so it is affected as soon as one of its predecessors is - a few more cells, still right.
+ *    (2) a Dijkstra search over the affected cells alone, seeded by their neighbors that kept their weights
+ * Both touch only the cells whose weights change (and their neighbors) - not the whole matrix. Dijkstra needs weights that
+ * are not negative, so the owner (DynamicComponents) drops the weights once a cell becomes negative.
+ */
+public class DynamicLightestPaths {
+
+    private static final long UNREACHED = Long.MAX_VALUE;
+    private static final int[] ROW_DELTA = {1, 0, -1, 0, 1, -1, 1, -1};
+    private static final int[] COLUMN_DELTA = {0, 1, 0, -1, 1, -1, -1, 1};
+
+    private final int rows, columns, source;
+    private final IntBuffer cells;   // the live cells of the matrix - changed by the owner before it calls cellChanged
+    private final long[] dist;
+
+    /**
+     * Computes the lightest weights from the source - a Dijkstra search over the whole matrix
+     * @param cells the cells of the matrix, cell (row, column) is at row * columns + column
+     */
+    public DynamicLightestPaths(int rows, int columns, IntBuffer cells, Index source) {
+        this.rows = rows;
+        this.columns = columns;
+        this.cells = cells;
+        this.source = source.row * columns + source.column;
+        dist = new long[rows * columns];
+        Arrays.fill(dist, UNREACHED);
+        dist[this.source] = weight(this.source);
+        PriorityQueue<long[]> queue = new PriorityQueue<>(Comparator.comparingLong(entry -> entry[0]));
+        queue.add(new long[]{dist[this.source], this.source});
+        relax(queue);
+    }
+
+    public Index getSource() {
+        return new Index(source / columns, source % columns);
+    }
+
+    /**
+     * @return the weight of the lightest paths to the cell, -1 if it can't be reached
+     */
+    public long lightestWeight(Index cell) {
+        long weight = dist[cell.row * columns + cell.column];
+        return weight == UNREACHED ? -1 : weight;
+    }
+
+    /**
+     * cellChanged: repairs the weights after the weight of a cell changed from before to its current value
+     */
+    public void cellChanged(int cell, int before) {
+        int after = weight(cell);
+        if (after < before)
+            decreased(cell);
+        else if (after > before)
+            increased(cell);
+    }
+
+    private void decreased(int cell) {
+        long candidate = seed(cell, null);
+        if (candidate >= dist[cell])
+            return;
+        dist[cell] = candidate;
+        PriorityQueue<long[]> queue = new PriorityQueue<>(Comparator.comparingLong(entry -> entry[0]));
+        queue.add(new long[]{candidate, cell});
+        relax(queue);
+    }
+
+    private void increased(int cell) {
+        if (dist[cell] == UNREACHED)
+            return;
+        // (1) the affected cells, in the order of their old weights
+        Set<Integer> affected = new HashSet<>();
+        affected.add(cell);
+        PriorityQueue<long[]> candidates = new PriorityQueue<>(Comparator.comparingLong(entry -> entry[0]));
+        addSuccessors(cell, candidates);
+        Set<Integer> decided = new HashSet<>();
+        while (!candidates.isEmpty()) {
+            int candidate = (int) candidates.poll()[1];
+            if (candidate == cell || !decided.add(candidate))
+                continue;
+            if (isAffected(candidate, affected)) {
+                affected.add(candidate);
+                addSuccessors(candidate, candidates);
+            }
+        }
+        // (2) their weights again - seeded by the neighbors that kept their weights
+        for (int a : affected)
+            dist[a] = UNREACHED;
+        PriorityQueue<long[]> queue = new PriorityQueue<>(Comparator.comparingLong(entry -> entry[0]));
+        for (int a : affected) {
+            long seed = seed(a, affected);
+            if (seed != UNREACHED) {
+                dist[a] = seed;
+                queue.add(new long[]{seed, a});
+            }
+        }
+        relax(queue);
+    }
+
+    /**
+     * isAffected: has the cell lost all its lightest paths - every predecessor of it is affected
+     */
+    private boolean isAffected(int cell, Set<Integer> affected) {
+        int row = cell / columns, column = cell % columns;
+        boolean zeroWeight = weight(cell) == 0;
+        for (int direction = 0; direction < ROW_DELTA.length; direction++) {
+            int neighbor = neighbor(row, column, direction);
+            if (neighbor < 0 || !isPredecessor(neighbor, cell))
+                continue;
+            boolean predecessorAffected = affected.contains(neighbor);
+            if (zeroWeight && predecessorAffected)
+                return true;
+            if (!zeroWeight && !predecessorAffected)
+                return false;
+        }
+        return !zeroWeight;
+    }
+
+    private void addSuccessors(int cell, PriorityQueue<long[]> candidates) {
+        int row = cell / columns, column = cell % columns;
+        for (int direction = 0; direction < ROW_DELTA.length; direction++) {
+            int neighbor = neighbor(row, column, direction);
+            if (neighbor >= 0 && neighbor != source && isPredecessor(cell, neighbor))
+                candidates.add(new long[]{dist[neighbor], neighbor});
+        }
+    }
+
+    /**
+     * seed: the lightest weight of the cell through its neighbors (outside of the excluded cells) - its own weight for the source
+     */
+    private long seed(int cell, Set<Integer> excluded) {
+        if (cell == source)
+            return weight(cell);
+        int row = cell / columns, column = cell % columns;
+        long best = UNREACHED;
+        for (int direction = 0; direction < ROW_DELTA.length; direction++) {
+            int neighbor = neighbor(row, column, direction);
+            if (neighbor >= 0 && dist[neighbor] != UNREACHED && (excluded == null || !excluded.contains(neighbor)))
+                best = Math.min(best, dist[neighbor] + weight(cell));
+        }
+        return best;
+    }
+
+    /**
+     * relax: Dijkstra from the cells of the queue - a cell is improved (and queued) when a neighbor gives it a lighter weight
+     */
+    private void relax(PriorityQueue<long[]> queue) {
+        while (!queue.isEmpty()) {
+            long[] polled = queue.poll();
+            int cell = (int) polled[1];
+            if (polled[0] > dist[cell])
+                continue; // a lighter weight of this cell was handled already
+            int row = cell / columns, column = cell % columns;
+            for (int direction = 0; direction < ROW_DELTA.length; direction++) {
+                int neighbor = neighbor(row, column, direction);
+                if (neighbor < 0 || neighbor == source)
+                    continue;
+                long weight = polled[0] + weight(neighbor);
+                if (weight < dist[neighbor]) {
+                    dist[neighbor] = weight;
+                    queue.add(new long[]{weight, neighbor});
+                }
+            }
+        }
+    }
+
+    /**
+     * pathsTo: all the lightest paths from the source to a destination - a walk back over the predecessors
+     * @return the paths, empty if the destination can't be reached (or the walk was cancelled)
+     */
+    public List<List<Index>> pathsTo(Index dest, CancellationToken token) {
+        List<List<Index>> paths = new ArrayList<>();
+        int destination = dest.row * columns + dest.column;
+        if (dist[destination] == UNREACHED)
+            return paths;
+        // depth-first walk back from the destination - the path is kept reversed while it is built
+        ArrayList<Integer> reversedPath = new ArrayList<>();
+        Set<Integer> onPath = new HashSet<>();
+        Deque<int[]> predecessorsOfPath = new ArrayDeque<>(); // the predecessors of every cell of the path, and the next one to try
+        reversedPath.add(destination);
+        onPath.add(destination);
+        predecessorsOfPath.push(predecessorsOf(destination));
+        while (!predecessorsOfPath.isEmpty()) {
+            if (token.isCancelled())
+                break;
+            int last = reversedPath.get(reversedPath.size() - 1);
+            if (last == source) {
+                List<Index> path = new ArrayList<>(reversedPath.size());
+                for (int i = reversedPath.size() - 1; i >= 0; i--)
+                    path.add(new Index(reversedPath.get(i) / columns, reversedPath.get(i) % columns));
+                paths.add(path);
+            }
+            int[] next = predecessorsOfPath.peek();
+            if (last == source || next[0] == next.length) { // backtrack
+                predecessorsOfPath.pop();
+                onPath.remove(reversedPath.remove(reversedPath.size() - 1));
+                continue;
+            }
+            int predecessor = next[next[0]++];
+            // zero weight cells may close a cycle of predecessors - a path never visits a cell twice
+            if (onPath.add(predecessor)) {
+                reversedPath.add(predecessor);
+                predecessorsOfPath.push(predecessorsOf(predecessor));
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * @return {1, the predecessors of the cell...} - the first place is the cursor of the walk
+     */
+    private int[] predecessorsOf(int cell) {
+        int[] predecessors = new int[ROW_DELTA.length + 1];
+        int count = 1;
+        if (cell != source) {
+            int row = cell / columns, column = cell % columns;
+            for (int direction = 0; direction < ROW_DELTA.length; direction++) {
+                int neighbor = neighbor(row, column, direction);
+                if (neighbor >= 0 && isPredecessor(neighbor, cell))
+                    predecessors[count++] = neighbor;
+            }
+        }
+        predecessors[0] = 1;
+        return Arrays.copyOf(predecessors, count);
+    }
+
+    private boolean isPredecessor(int predecessor, int cell) {
+        return dist[predecessor] != UNREACHED && dist[cell] != UNREACHED && dist[predecessor] + weight(cell) == dist[cell];
+    }
+
+    /**
+     * @return the cell in the direction, -1 if it is out of the matrix
+     */
+    private int neighbor(int row, int column, int direction) {
+        int neighborRow = row + ROW_DELTA[direction], neighborColumn = column + COLUMN_DELTA[direction];
+        if (neighborRow < 0 || neighborColumn < 0 || neighborRow >= rows || neighborColumn >= columns)
+            return -1;
+        return neighborRow * columns + neighborColumn;
+    }
+
+    private int weight(int cell) {
+        return cells.get(cell);
+    }
+}
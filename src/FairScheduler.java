@@ -0,0 +1,196 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class is the compute pool of the server, with a weighted fair queue in front of it.
+ *
+ * Without it one client that floods the server with expensive tasks (e.g. task 4 on big matrices) starves
+ * the cheap tasks of everyone else. Every task gets an estimated cost (number of cells * complexity of the task),
+ * and we use Weighted Fair Queueing between the client connections:
+ *  - start tag  = max(virtual time, finish tag of the previous task of the same client)
+ *  - finish tag = start tag + cost / weight of the client
+ * The pool always runs the waiting task with the smallest finish tag, and the virtual time advances to the start tag
+ * of the task that was dispatched. A small task gets a small finish tag so it overtakes the queued big ones,
+ * while a client with many big tasks still gets its share, because the tags of the other clients keep growing too.
+ */
+public class FairScheduler {
+
+    /**
+     * The state that the queue keeps for every client connection
+     */
+    private static class ClientState {
+        double weight = 1.0;
+        double lastFinishTag;
+    }
+
+    /**
+     * A task waiting in the queue - PriorityBlockingQueue orders the tasks by their finish tag,
+     * ties are broken by the arrival order
+     */
+    private static class FairTask<V> extends FutureTask<V> implements Comparable<FairTask<?>> {
+        private final double finishTag;
+        private final double startTag;
+        private final long sequence;
+        private final CompletableFuture<V> completion; // null - nobody waits for a callback (submit)
+
+        FairTask(Callable<V> callable, double startTag, double finishTag, long sequence, CompletableFuture<V> completion) {
+            super(callable);
+            this.startTag = startTag;
+            this.finishTag = finishTag;
+            this.sequence = sequence;
+            this.completion = completion;
+        }
+
+        /**
+         * Called by FutureTask when the task completed, failed or was cancelled - passes the outcome to the CompletableFuture
+         */
+        @Override
+        protected void done() {
+            if (completion == null)
+                return;
+            try {
+                completion.complete(get());
+            } catch (ExecutionException executionException) {
+                completion.completeExceptionally(executionException.getCause());
+            } catch (CancellationException | InterruptedException exception) {
+                completion.cancel(false);
+            }
+        }
+
+        @Override
+        public int compareTo(FairTask<?> other) {
+            int byTag = Double.compare(finishTag, other.finishTag);
+            return byTag != 0 ? byTag : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private final ThreadPoolExecutor computePool;
+    private final Map<Long, ClientState> clients = new HashMap<>(); // guarded by this
+    private double virtualTime;                                     // guarded by this
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * true while the current thread runs a task of a FairScheduler
+     */
+    private static final ThreadLocal<Boolean> computing = ThreadLocal.withInitial(() -> false);
+
+    /**
+     * @param threads number of compute threads - core pool size equals max pool size because the queue is unbounded
+     */
+    public FairScheduler(int threads) {
+        this.computePool = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "compute");
+            thread.setDaemon(true);
+            return thread;
+        }) {
+            @Override
+            protected void beforeExecute(Thread thread, Runnable runnable) {
+                dispatched((FairTask<?>) runnable);
+                computing.set(true);
+            }
+
+            @Override
+            protected void afterExecute(Runnable runnable, Throwable throwable) {
+                computing.set(false);
+            }
+        };
+    }
+
+    public FairScheduler() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * estimateCost: the complexity of each task class, multiplied by the size of the matrix.
+     * Counting components (1, 3) is linear, the path searches (2, 4) enumerate paths and are much more expensive,
+     * task 4 more than task 2 because it walks through every cell and not only through the '1' cells.
+     * @param task the task id the client sent
+     * @param cells rows * columns of the matrix
+     * @return the estimated cost in "cell visits"
+     */
+    public static long estimateCost(String task, long cells) {
+        long complexity;
+        if (task.startsWith("4"))
+            complexity = 8;
+        else if (task.startsWith("2"))
+            complexity = 4;
+        else
+            complexity = 1;
+        return Math.max(1, cells) * complexity;
+    }
+
+    /**
+     * submit: queues a task of a client
+     * @param clientId the client connection the task belongs to
+     * @param cost the estimated cost of the task (see estimateCost)
+     * @param work the computation
+     * @return Future of the result
+     */
+    public <V> Future<V> submit(long clientId, long cost, Callable<V> work) {
+        return enqueue(clientId, cost, work, null);
+    }
+
+    /**
+     * submitAsync: queues a task of a client without a thread that waits for it
+     * @return CompletableFuture that is completed by the compute thread when the task finishes
+     */
+    public <V> CompletableFuture<V> submitAsync(long clientId, long cost, Callable<V> work) {
+        CompletableFuture<V> completion = new CompletableFuture<>();
+        enqueue(clientId, cost, work, completion);
+        return completion;
+    }
+
+    /**
+     * isComputeThread: a task that runs on the compute pool must not submit another task and wait for it -
+     * if every compute thread did that, nobody would be left to run the tasks they wait for
+     * @return true if the current thread runs a task of a FairScheduler
+     */
+    public static boolean isComputeThread() {
+        return computing.get();
+    }
+
+    private <V> FairTask<V> enqueue(long clientId, long cost, Callable<V> work, CompletableFuture<V> completion) {
+        FairTask<V> task;
+        synchronized (this) {
+            ClientState client = clients.computeIfAbsent(clientId, id -> new ClientState());
+            double startTag = Math.max(virtualTime, client.lastFinishTag);
+            double finishTag = startTag + cost / client.weight;
+            client.lastFinishTag = finishTag;
+            task = new FairTask<>(work, startTag, finishTag, sequence.incrementAndGet(), completion);
+        }
+        computePool.execute(task);
+        return task;
+    }
+
+    /**
+     * setWeight: a client with weight 2 gets twice the share of the pool of a client with weight 1
+     */
+    public synchronized void setWeight(long clientId, double weight) {
+        if (weight <= 0)
+            throw new IllegalArgumentException("Weight must be positive");
+        clients.computeIfAbsent(clientId, id -> new ClientState()).weight = weight;
+    }
+
+    /**
+     * forget: called when the client disconnects, so the queue doesn't keep its state forever
+     */
+    public synchronized void forget(long clientId) {
+        clients.remove(clientId);
+    }
+
+    private synchronized void dispatched(FairTask<?> task) {
+        if (task.startTag > virtualTime)
+            virtualTime = task.startTag;
+    }
+
+    public ThreadPoolExecutor getComputePool() {
+        return computePool;
+    }
+
+    public void shutdown() {
+        computePool.shutdown();
+    }
+}
@@ -0,0 +1,320 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class is the queue of the partial paths of the exhaustive searches (ThreadLocalBFS, ParallelBFS, ThreadLocalBellmanFord,
+ * ParallelBellmanFord) - a FIFO queue of PathCells that keeps a bounded number of them on the heap.
+ *
+ * The number of partial paths grows exponentially with the size of the matrix, and a LinkedList of them ran out of memory on
+ * medium grids - the OutOfMemoryError killed the worker thread, and with it the requests of every client. Here the paths are
+ * kept in segments of SEGMENT_PATHS paths:
+ *
+ *        poll <- [head] <- [spilled] [spilled] ... <- [sealed] [sealed] ... <- [tail] <- offer
+ *                          (files, oldest first)       (in memory)
+ *
+ * offer adds to the tail, and a full tail is sealed. When all the queues of the JVM together hold more paths on the heap than
+ * the budget allows, the queue that is adding writes its oldest sealed segments to files in the temporary directory, and poll
+ * reads them back (sequentially, a whole segment at a time) when the head reaches them. So a huge enumeration gets slower -
+ * disk speed instead of memory speed - instead of crashing the server.
+ *
+ * A segment file is compact: consecutive paths of a BFS usually continue the same path, so every path is written as the number of
+ * nodes it shares with the path before it, followed by its other nodes (each one with its weight, a zigzag varint):
+ *  path: shared (varint), new nodes (varint), new nodes * (node, weight)      node: row, column (varints) or an int node (varint)
+ * The paths that are read back share their common prefixes again, like the PathCells that were written.
+ * Only the nodes of a matrix (Index) and of a graph (Integer) can be written - a queue of other nodes never spills.
+ *
+ * Settings (system properties):
+ *  - matrix.frontier.budget: the heap budget of all the queues, in MB (about BYTES_PER_PATH bytes per queued path),
+ *                            by default an eighth of the maximum heap
+ *  - matrix.frontier.dir:    the directory of the segment files, the temporary directory of the JVM by default
+ */
+public class FrontierQueue<T> {
+
+    public static final String BUDGET_PROPERTY = "matrix.frontier.budget";
+    public static final String DIRECTORY_PROPERTY = "matrix.frontier.dir";
+
+    /**
+     * The paths of a segment - the unit that is spilled and read back
+     */
+    static final int SEGMENT_PATHS = 8192;
+    /**
+     * The heap of a queued path - its slot in the segment, its last PathCell, the Node and its data (the prefix is shared)
+     */
+    static final int BYTES_PER_PATH = 96;
+
+    private static final long MAX_PATHS_IN_MEMORY = Math.max(SEGMENT_PATHS * 4L,
+            Long.getLong(BUDGET_PROPERTY, Runtime.getRuntime().maxMemory() / 8 >> 20) * (1 << 20) / BYTES_PER_PATH);
+    private static final Path DIRECTORY = Paths.get(System.getProperty(DIRECTORY_PROPERTY, System.getProperty("java.io.tmpdir")));
+
+    /**
+     * The paths that all the queues hold on the heap
+     */
+    private static final AtomicLong pathsInMemory = new AtomicLong();
+
+    /**
+     * Writes and reads the data of a node
+     */
+    private interface NodeCodec<T> {
+        void write(DataOutputStream out, T data) throws IOException;
+
+        T read(DataInputStream in) throws IOException;
+    }
+
+    private static final NodeCodec<Index> INDEX_CODEC = new NodeCodec<Index>() {
+        @Override
+        public void write(DataOutputStream out, Index data) throws IOException {
+            writeVarint(out, data.row);
+            writeVarint(out, data.column);
+        }
+
+        @Override
+        public Index read(DataInputStream in) throws IOException {
+            return new Index(readVarint(in), readVarint(in));
+        }
+    };
+
+    private static final NodeCodec<Integer> INTEGER_CODEC = new NodeCodec<Integer>() {
+        @Override
+        public void write(DataOutputStream out, Integer data) throws IOException {
+            writeVarint(out, data);
+        }
+
+        @Override
+        public Integer read(DataInputStream in) throws IOException {
+            return readVarint(in);
+        }
+    };
+
+    private ArrayDeque<PathCell<T>> head = new ArrayDeque<>();
+    private final ArrayDeque<Path> spilled = new ArrayDeque<>();
+    private final ArrayDeque<ArrayDeque<PathCell<T>>> sealed = new ArrayDeque<>();
+    private ArrayDeque<PathCell<T>> tail = new ArrayDeque<>();
+    private int size;
+    private long inMemory;             // the paths of this queue on the heap - head, sealed and tail
+    private NodeCodec<T> codec;         // null - not known yet (no spill so far)
+    private boolean spillable = true;   // false - the nodes can't be written
+    private long spilledSegments, spilledBytes;
+
+    public boolean add(PathCell<T> path) {
+        return offer(path);
+    }
+
+    public boolean offer(PathCell<T> path) {
+        tail.addLast(path);
+        size++;
+        inMemory++;
+        if (tail.size() >= SEGMENT_PATHS) {
+            sealed.addLast(tail);
+            tail = new ArrayDeque<>();
+        }
+        if (pathsInMemory.incrementAndGet() > MAX_PATHS_IN_MEMORY && spillable)
+            spillOldest();
+        return true;
+    }
+
+    /**
+     * poll: the oldest path - a spilled segment is read back when the head reaches it
+     * @return null if the queue is empty
+     */
+    public PathCell<T> poll() {
+        if (head.isEmpty() && !nextHead())
+            return null;
+        size--;
+        inMemory--;
+        pathsInMemory.decrementAndGet();
+        return head.pollFirst();
+    }
+
+    /**
+     * nextHead: the next segment becomes the head - the oldest spilled one, or the oldest in memory
+     * @return false if the queue is empty
+     */
+    private boolean nextHead() {
+        if (!spilled.isEmpty()) {
+            Path file = spilled.pollFirst();
+            head = read(file);
+            inMemory += head.size();
+            pathsInMemory.addAndGet(head.size());
+        } else if (!sealed.isEmpty())
+            head = sealed.pollFirst();
+        else if (!tail.isEmpty()) {
+            head = tail;
+            tail = new ArrayDeque<>();
+        } else
+            return false;
+        return true;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * clear: drops all the paths and deletes the segment files
+     */
+    public void clear() {
+        for (Path file : spilled)
+            delete(file);
+        spilled.clear();
+        sealed.clear();
+        head = new ArrayDeque<>();
+        tail = new ArrayDeque<>();
+        pathsInMemory.addAndGet(-inMemory);
+        inMemory = 0;
+        size = 0;
+        if (spilledSegments > 0)
+            ServerLog.info("The frontier of a search spilled to disk", "segments", spilledSegments, "bytes", spilledBytes);
+        spilledSegments = 0;
+        spilledBytes = 0;
+    }
+
+    /**
+     * @return the paths that all the queues hold on the heap
+     */
+    public static long getPathsInMemory() {
+        return pathsInMemory.get();
+    }
+
+    /**
+     * spillOldest: writes the oldest sealed segments of this queue to files, until all the queues are within the budget
+     * (or this queue has nothing left to spill). If a file can't be written, the segment stays in memory.
+     */
+    private void spillOldest() {
+        while (!sealed.isEmpty() && pathsInMemory.get() > MAX_PATHS_IN_MEMORY) {
+            ArrayDeque<PathCell<T>> segment = sealed.peekFirst();
+            if (codec == null && (codec = codecOf(segment.peekFirst())) == null) {
+                spillable = false;
+                return;
+            }
+            Path file;
+            try {
+                file = write(segment);
+            } catch (IOException ioException) {
+                ServerLog.warn("A segment of the frontier can't be spilled - it stays in memory", "directory", DIRECTORY, "reason", String.valueOf(ioException));
+                spillable = false;
+                return;
+            }
+            sealed.pollFirst();
+            spilled.addLast(file);
+            inMemory -= segment.size();
+            pathsInMemory.addAndGet(-segment.size());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> NodeCodec<T> codecOf(PathCell<T> path) {
+        Object data = path.getNode().getData();
+        if (data instanceof Index)
+            return (NodeCodec<T>) INDEX_CODEC;
+        if (data instanceof Integer)
+            return (NodeCodec<T>) INTEGER_CODEC;
+        return null;
+    }
+
+    private Path write(ArrayDeque<PathCell<T>> segment) throws IOException {
+        Files.createDirectories(DIRECTORY);
+        Path file = Files.createTempFile(DIRECTORY, "frontier", ".segment");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16))) {
+            writeVarint(out, segment.size());
+            List<PathCell<T>> previous = new ArrayList<>(), cells = new ArrayList<>();
+            for (PathCell<T> path : segment) {
+                cells.clear();
+                for (PathCell<T> cell = path; cell != null; cell = cell.getParent())
+                    cells.add(cell);
+                // cells is the path backwards - the cells it shares with the previous path are the same objects
+                int length = cells.size(), shared = 0;
+                while (shared < length && shared < previous.size() && previous.get(shared) == cells.get(length - 1 - shared))
+                    shared++;
+                writeVarint(out, shared);
+                writeVarint(out, length - shared);
+                for (int i = length - 1 - shared; i >= 0; i--) {
+                    PathCell<T> cell = cells.get(i);
+                    codec.write(out, cell.getNode().getData());
+                    int weight = cell.getParent() == null ? cell.weight() : cell.weight() - cell.getParent().weight();
+                    writeVarint(out, (weight << 1) ^ (weight >> 31));
+                }
+                previous.subList(shared, previous.size()).clear();
+                for (int i = length - 1 - shared; i >= 0; i--)
+                    previous.add(cells.get(i));
+            }
+        } catch (IOException ioException) {
+            delete(file);
+            throw ioException;
+        }
+        spilledSegments++;
+        spilledBytes += Files.size(file);
+        return file;
+    }
+
+    /**
+     * read: a spilled segment, that is deleted once it is read - the paths share their prefixes like the ones that were written
+     */
+    private ArrayDeque<PathCell<T>> read(Path file) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            int paths = readVarint(in);
+            ArrayDeque<PathCell<T>> segment = new ArrayDeque<>(paths);
+            List<PathCell<T>> previous = new ArrayList<>();
+            for (int p = 0; p < paths; p++) {
+                int shared = readVarint(in), added = readVarint(in);
+                previous.subList(shared, previous.size()).clear();
+                PathCell<T> path = shared == 0 ? null : previous.get(shared - 1);
+                for (int i = 0; i < added; i++) {
+                    Node<T> node = new Node<>(codec.read(in));
+                    int zigzag = readVarint(in), weight = (zigzag >>> 1) ^ -(zigzag & 1);
+                    path = path == null ? PathCell.start(node, weight) : path.extend(node, weight);
+                    previous.add(path);
+                }
+                segment.addLast(path);
+            }
+            return segment;
+        } catch (IOException ioException) {
+            // the paths of the file are lost - the search can't go on without them
+            throw new UncheckedIOException("A spilled segment of the frontier can't be read: " + file, ioException);
+        } finally {
+            delete(file);
+        }
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ioException) {
+            ServerLog.warn("A spilled segment of the frontier can't be deleted", "file", file, "reason", String.valueOf(ioException));
+        }
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new EOFException("A broken varint");
+    }
+}
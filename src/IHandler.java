@@ -8,4 +8,13 @@ import java.io.OutputStream;
  */
 public interface IHandler {
     public abstract void handle(InputStream fromClient, OutputStream toClient) throws IOException, ClassNotFoundException;
+
+    /**
+     * The server calls this method for every client.
+     * Handlers that want to know when the client has gone away (e.g. to cancel a long computation) override it,
+     * the default implementation only uses the streams of the connection.
+     */
+    default void handle(ClientConnection connection) throws IOException, ClassNotFoundException {
+        handle(connection.getInputStream(), connection.getOutputStream());
+    }
 }
@@ -0,0 +1,11 @@
+/**
+ * This interface defines a traversable graph whose source and destination are set by their indexes - a matrix.
+ * Graphs that are not a matrix (CsrGraph) have nodes and not indexes, they are only Traversable.
+ */
+public interface IndexedTraversable<T> extends Traversable<T> {
+
+    public void setStartIndex(Index index);
+
+    public void setEndIndex(Index index);
+
+}
@@ -0,0 +1,105 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class counts latencies in logarithmic buckets, so the percentiles of millions of requests take a few KB.
+ *
+ * Every power of two is split into SUB_BUCKETS linear buckets: values below SUB_BUCKETS have a bucket each,
+ * and a bigger value v with 2^e <= v < 2^(e+1) falls into one of the SUB_BUCKETS buckets of width 2^(e - SUB_BUCKET_BITS).
+ * So a percentile is reported with a relative error below 1 / SUB_BUCKETS (about 3%), whatever the range of the values -
+ * the same idea as HdrHistogram. The count, the sum and the maximum are exact.
+ * Recording takes no lock (atomic counters), so many threads can record into the same histogram at a few nanoseconds each -
+ * a percentile read while others record may miss the latest values, which is fine for statistics.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * record: counts one latency
+     * @param value the latency (any unit, e.g. nanoseconds), negative values are counted as 0
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        counts.incrementAndGet(bucketOf(value));
+        count.increment();
+        sum.add(value);
+        if (value > max.get())
+            max.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * add: adds all the latencies of another histogram to this one
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long bucketCount = other.counts.get(i);
+            if (bucketCount != 0)
+                counts.addAndGet(i, bucketCount);
+        }
+        count.add(other.count.sum());
+        sum.add(other.sum.sum());
+        max.accumulateAndGet(other.max.get(), Math::max);
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int mantissa = (int) (value >>> shift); // between SUB_BUCKETS and 2 * SUB_BUCKETS - 1
+        return (shift + 1) * SUB_BUCKETS + mantissa - SUB_BUCKETS;
+    }
+
+    /**
+     * @return the highest value that falls into a bucket
+     */
+    private static long highestValueOf(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        long mantissa = bucket % SUB_BUCKETS + SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    /**
+     * getValueAtPercentile: the latency that percentile percent of the latencies don't exceed
+     * @param percentile between 0 and 100, e.g. 99.9
+     */
+    public long getValueAtPercentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++)
+            total += snapshot[bucket] = counts.get(bucket);
+        if (total == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += snapshot[bucket];
+            if (seen >= rank)
+                return Math.min(highestValueOf(bucket), max.get());
+        }
+        return max.get();
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long values = count.sum();
+        return values == 0 ? 0 : (double) sum.sum() / values;
+    }
+}
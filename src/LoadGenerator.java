@@ -0,0 +1,323 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class measures what a running server sustains: it drives TcpServer + MatrixIHandler over the network with
+ * a mix of tasks and matrix sizes, and reports the throughput and the latency percentiles of every task.
+ *
+ * Two ways to generate the load:
+ *  - closed loop (default): "concurrency" virtual users, each one sends its next request when the previous answer arrived.
+ *    This measures the best throughput, but a slow answer also delays the requests that would have come after it.
+ *  - open loop ("--rate=R"): R requests per second are sent on a fixed schedule, whatever the answers do.
+ *    The latency of a request is measured from the time it was scheduled to be sent, not from the time it was sent -
+ *    when the server (or the generator) falls behind, the waiting time is part of the latency (no "coordinated omission").
+ * The requests go through MatrixClient, so a few connections carry any number of requests in flight.
+ * The matrices are generated once from a fixed seed, so two runs (e.g. two builds) send the same requests.
+ * The first "warmup" seconds are not measured (JIT compilation, connection setup).
+ *
+ * The results are printed and written as JSON (out.json) and CSV (out.csv), latencies in microseconds.
+ * Usage: java LoadGenerator [--host=127.0.0.1] [--port=8010] [--connections=4] [--concurrency=16] [--rate=0]
+ *        [--duration=10] [--warmup=2] [--deadline=1000] [--mix=1:1,2:1,3:1,4:1] [--sizes=8,16] [--seed=42] [--out=load-results]
+ */
+public class LoadGenerator {
+
+    private static final int MATRICES_PER_SIZE = 8;
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    private String host = "127.0.0.1";
+    private int port = 8010;
+    private int connections = 4;
+    private int concurrency = 16;
+    private double rate;                      // requests per second, 0 - closed loop
+    private double durationSeconds = 10;
+    private double warmupSeconds = 2;
+    private long deadlineMillis = 1000;
+    private final LinkedHashMap<String, Integer> mix = new LinkedHashMap<>(); // task -> weight
+    private int[] sizes = {8, 16};
+    private long seed = 42;
+    private String out = "load-results";
+
+    /**
+     * A single request of the workload
+     */
+    private static class Query {
+        final String task;
+        final int[][] matrix;
+        final Index src, dest;
+
+        Query(String task, int[][] matrix, Index src, Index dest) {
+            this.task = task;
+            this.matrix = matrix;
+            this.src = src;
+            this.dest = dest;
+        }
+    }
+
+    /**
+     * The measurements of one task - updated by the reader threads of the client
+     */
+    private static class TaskStats {
+        final LatencyHistogram latencies = new LatencyHistogram(); // nanoseconds, successful requests only
+        final AtomicLong timeouts = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+    }
+
+    private final Map<String, TaskStats> stats = new ConcurrentHashMap<>();
+    private final Map<String, int[][][]> matrices = new HashMap<>(); // task + "x" + size -> the matrices
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private long measureFrom, measureUntil; // System.nanoTime() of the measured window
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        generator.parse(args);
+        generator.run();
+        generator.report();
+    }
+
+    private void parse(String[] args) {
+        String mixOption = "1:1,2:1,3:1,4:1";
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0)
+                throw new IllegalArgumentException("Unknown argument " + arg + " - expected --name=value");
+            String name = arg.substring(2, equals), value = arg.substring(equals + 1);
+            switch (name) {
+                case "host": host = value; break;
+                case "port": port = Integer.parseInt(value); break;
+                case "connections": connections = Integer.parseInt(value); break;
+                case "concurrency": concurrency = Integer.parseInt(value); break;
+                case "rate": rate = Double.parseDouble(value); break;
+                case "duration": durationSeconds = Double.parseDouble(value); break;
+                case "warmup": warmupSeconds = Double.parseDouble(value); break;
+                case "deadline": deadlineMillis = Long.parseLong(value); break;
+                case "mix": mixOption = value; break;
+                case "sizes": sizes = Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).toArray(); break;
+                case "seed": seed = Long.parseLong(value); break;
+                case "out": out = value; break;
+                default: throw new IllegalArgumentException("Unknown argument " + arg);
+            }
+        }
+        for (String entry : mixOption.split(",")) {
+            int colon = entry.lastIndexOf(':');
+            String task = colon < 0 ? entry : entry.substring(0, colon);
+            if (task.equals("stop") || task.equals("stats"))
+                throw new IllegalArgumentException("Unknown task " + task + " in --mix");
+            BinaryProtocol.opcodeOf(task); // throws for an unknown task
+            mix.put(task, colon < 0 ? 1 : Integer.parseInt(entry.substring(colon + 1)));
+            stats.put(task, new TaskStats());
+        }
+    }
+
+    /**
+     * generateMatrices: MATRICES_PER_SIZE matrices of every (task, size) -
+     * tasks 1, 2 and 3 get 0/1 matrices (task 2 denser, so the corners are usually connected), task 4 weights 1 to 9
+     */
+    private void generateMatrices() {
+        Random random = new Random(seed);
+        for (String task : mix.keySet()) {
+            for (int size : sizes) {
+                int[][][] samples = new int[MATRICES_PER_SIZE][][];
+                for (int k = 0; k < MATRICES_PER_SIZE; k++) {
+                    int[][] matrix = new int[size][size];
+                    for (int[] row : matrix)
+                        for (int j = 0; j < size; j++)
+                            row[j] = task.startsWith("4") ? 1 + random.nextInt(9)
+                                    : random.nextDouble() < (task.startsWith("2") ? 0.6 : 0.3) ? 1 : 0;
+                    if (task.startsWith("2")) {
+                        matrix[0][0] = 1;
+                        matrix[size - 1][size - 1] = 1;
+                    }
+                    samples[k] = matrix;
+                }
+                matrices.put(task + "x" + size, samples);
+            }
+        }
+    }
+
+    /**
+     * nextQuery: a random request of the mix (the weights of the tasks, every size equally likely)
+     */
+    private Query nextQuery(Random random) {
+        int total = mix.values().stream().mapToInt(Integer::intValue).sum();
+        int pick = random.nextInt(total);
+        String task = null;
+        for (Map.Entry<String, Integer> entry : mix.entrySet()) {
+            task = entry.getKey();
+            pick -= entry.getValue();
+            if (pick < 0)
+                break;
+        }
+        int size = sizes[random.nextInt(sizes.length)];
+        int[][] matrix = matrices.get(task + "x" + size)[random.nextInt(MATRICES_PER_SIZE)];
+        boolean paths = task.startsWith("2") || task.startsWith("4");
+        return new Query(task, matrix, paths ? new Index(0, 0) : null, paths ? new Index(size - 1, size - 1) : null);
+    }
+
+    private void run() throws InterruptedException {
+        generateMatrices();
+        System.out.println("Load: " + (rate > 0 ? "open loop, " + rate + " requests/s" : "closed loop, " + concurrency + " users")
+                + " over " + connections + " connections to " + host + ":" + port + ", mix " + mix + ", sizes " + Arrays.toString(sizes));
+        try (MatrixClient client = new MatrixClient(host, port, connections)) {
+            client.setDeadlineMillis(deadlineMillis);
+            client.setMaxAttempts(1); // a failed request is counted, not hidden by a retry
+            long start = System.nanoTime();
+            measureFrom = start + (long) (warmupSeconds * 1e9);
+            measureUntil = measureFrom + (long) (durationSeconds * 1e9);
+            if (rate > 0)
+                runOpenLoop(client, start);
+            else
+                runClosedLoop(client);
+            // the last answers - they may take up to the deadline
+            while (outstanding.get() > 0)
+                Thread.sleep(10);
+        }
+    }
+
+    /**
+     * runOpenLoop: the calling thread sends request k at start + k / rate, even if earlier requests haven't been answered
+     */
+    private void runOpenLoop(MatrixClient client, long start) {
+        Random random = new Random(seed + 1);
+        double intervalNanos = 1e9 / rate;
+        for (long k = 0; ; k++) {
+            long intended = start + (long) (k * intervalNanos);
+            if (intended >= measureUntil)
+                break;
+            long wait = intended - System.nanoTime();
+            if (wait > 0)
+                LockSupport.parkNanos(wait);
+            send(client, nextQuery(random), intended, null);
+        }
+    }
+
+    /**
+     * runClosedLoop: every user sends its next request from the answer of the previous one.
+     * The next requests are sent by a single issuer thread - the reader threads of the client only complete answers.
+     */
+    private void runClosedLoop(MatrixClient client) throws InterruptedException {
+        ExecutorService issuer = Executors.newSingleThreadExecutor();
+        Random random = new Random(seed + 1); // used only by the issuer thread
+        Runnable[] nextRequest = new Runnable[1];
+        nextRequest[0] = () -> {
+            if (System.nanoTime() < measureUntil)
+                send(client, nextQuery(random), System.nanoTime(), () -> issuer.execute(nextRequest[0]));
+        };
+        for (int user = 0; user < concurrency; user++)
+            issuer.execute(nextRequest[0]);
+        Thread.sleep(Math.max(0, (measureUntil - System.nanoTime()) / 1_000_000));
+        issuer.shutdown();
+        issuer.awaitTermination(deadlineMillis + 1000, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * send: sends a request, and records its latency from the intended send time when the answer arrives
+     * @param then runs after the answer was recorded, may be null
+     */
+    private void send(MatrixClient client, Query query, long intended, Runnable then) {
+        outstanding.incrementAndGet();
+        client.submit(query.task, query.matrix, query.src, query.dest).whenComplete((result, failure) -> {
+            long latency = System.nanoTime() - intended;
+            if (intended >= measureFrom) {
+                TaskStats taskStats = stats.get(query.task);
+                Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+                if (cause == null)
+                    taskStats.latencies.record(latency);
+                else if (cause instanceof TimeoutException)
+                    taskStats.timeouts.incrementAndGet();
+                else
+                    taskStats.errors.incrementAndGet();
+            }
+            outstanding.decrementAndGet();
+            if (then != null) {
+                try {
+                    then.run();
+                } catch (RejectedExecutionException stopped) {
+                    // the run is over
+                }
+            }
+        });
+    }
+
+    private void report() throws IOException {
+        Map<String, TaskStats> rows = new LinkedHashMap<>(stats);
+        TaskStats all = new TaskStats();
+        for (TaskStats taskStats : stats.values()) {
+            all.latencies.add(taskStats.latencies);
+            all.timeouts.addAndGet(taskStats.timeouts.get());
+            all.errors.addAndGet(taskStats.errors.get());
+        }
+        rows.put("all", all);
+
+        System.out.printf("%-6s %9s %8s %6s %10s %10s %10s %10s %10s%n", "task", "ok", "timeout", "error", "req/s", "p50 us", "p99 us", "p99.9 us", "max us");
+        for (Map.Entry<String, TaskStats> row : rows.entrySet()) {
+            LatencyHistogram latencies = row.getValue().latencies;
+            System.out.printf("%-6s %9d %8d %6d %10.1f %10d %10d %10d %10d%n", row.getKey(), latencies.getCount(),
+                    row.getValue().timeouts.get(), row.getValue().errors.get(), latencies.getCount() / durationSeconds,
+                    micros(latencies.getValueAtPercentile(50)), micros(latencies.getValueAtPercentile(99)),
+                    micros(latencies.getValueAtPercentile(99.9)), micros(latencies.getMax()));
+        }
+
+        Path csv = Paths.get(out + ".csv");
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(csv))) {
+            writer.println("task,ok,timeouts,errors,throughput_per_s,mean_us,p50_us,p90_us,p99_us,p99.9_us,max_us");
+            for (Map.Entry<String, TaskStats> row : rows.entrySet()) {
+                LatencyHistogram latencies = row.getValue().latencies;
+                StringBuilder line = new StringBuilder(row.getKey()).append(',').append(latencies.getCount())
+                        .append(',').append(row.getValue().timeouts.get()).append(',').append(row.getValue().errors.get())
+                        .append(',').append(String.format(Locale.ROOT, "%.2f", latencies.getCount() / durationSeconds))
+                        .append(',').append(micros((long) latencies.getMean()));
+                for (double percentile : PERCENTILES)
+                    line.append(',').append(micros(latencies.getValueAtPercentile(percentile)));
+                writer.println(line.append(',').append(micros(latencies.getMax())));
+            }
+        }
+
+        Path json = Paths.get(out + ".json");
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(json))) {
+            writer.println("{");
+            writer.println("  \"config\": {\"mode\": \"" + (rate > 0 ? "open" : "closed") + "\", \"rate\": " + rate
+                    + ", \"concurrency\": " + concurrency + ", \"connections\": " + connections
+                    + ", \"durationSeconds\": " + durationSeconds + ", \"warmupSeconds\": " + warmupSeconds
+                    + ", \"deadlineMillis\": " + deadlineMillis + ", \"seed\": " + seed
+                    + ", \"sizes\": " + Arrays.toString(sizes) + ", \"mix\": {" + joinMix() + "}},");
+            writer.println("  \"tasks\": {");
+            Iterator<Map.Entry<String, TaskStats>> iterator = rows.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, TaskStats> row = iterator.next();
+                LatencyHistogram latencies = row.getValue().latencies;
+                StringBuilder line = new StringBuilder("    \"").append(row.getKey()).append("\": {")
+                        .append("\"ok\": ").append(latencies.getCount())
+                        .append(", \"timeouts\": ").append(row.getValue().timeouts.get())
+                        .append(", \"errors\": ").append(row.getValue().errors.get())
+                        .append(", \"throughputPerSecond\": ").append(String.format(Locale.ROOT, "%.2f", latencies.getCount() / durationSeconds))
+                        .append(", \"meanMicros\": ").append(micros((long) latencies.getMean()));
+                for (double percentile : PERCENTILES)
+                    line.append(", \"p").append(String.valueOf(percentile).replace(".0", "")).append("Micros\": ")
+                            .append(micros(latencies.getValueAtPercentile(percentile)));
+                line.append(", \"maxMicros\": ").append(micros(latencies.getMax())).append('}');
+                writer.println(line.append(iterator.hasNext() ? "," : ""));
+            }
+            writer.println("  }");
+            writer.println("}");
+        }
+        System.out.println("Results written to " + csv + " and " + json);
+    }
+
+    private String joinMix() {
+        StringJoiner joiner = new StringJoiner(", ");
+        mix.forEach((task, weight) -> joiner.add("\"" + task + "\": " + weight));
+        return joiner.toString();
+    }
+
+    private static long micros(long nanos) {
+        return nanos / 1000;
+    }
+}
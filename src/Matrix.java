@@ -1,9 +1,16 @@
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.util.*;
 import java.util.stream.Collectors;
 
 /**
  * This class represents a Matrix Entity and functions that use a 2D array (primitiveMatrix)
+ *
+ * A matrix that the server receives in the binary protocol is not copied into a 2D array -
+ * its cells stay in the (direct) ByteBuffer that the socket channel read them into, row after row, as little-endian ints.
+ * All the accessors work on both kinds of storage.
  */
 
 /**
@@ -11,15 +18,81 @@ import java.util.stream.Collectors;
  * Classes that do not implement Serializable interface will not have any of their state serialized or deserialized.
  */
 public class Matrix implements Serializable {
-    int[][] primitiveMatrix;
+    int[][] primitiveMatrix; // null when the matrix is backed by a buffer
+    /**
+     * The cells of a buffer-backed matrix - a view over the ByteBuffer, cell (row, column) is at row * columns + column.
+     * IntBuffer isn't Serializable, so a buffer-backed matrix is serialized as a 2D array (see writeReplace)
+     */
+    private transient IntBuffer cells;
+    private final int rows, columns;
+    /**
+     * The component labels that were saved with a matrix of the MatrixStore - null for the matrices of the requests
+     */
+    private transient ComponentIndex componentIndex;
 
     public Matrix(int[][] oArray){
-        List<int[]> list = new ArrayList<>();
-        for (int[] row : oArray) {
-            int[] clone = row.clone();
-            list.add(clone);
-        }
-        primitiveMatrix = list.toArray(new int[0][]);
+        primitiveMatrix = new int[oArray.length][];
+        for (int i = 0; i < oArray.length; i++)
+            primitiveMatrix[i] = oArray[i].clone();
+        rows = primitiveMatrix.length;
+        columns = rows == 0 ? 0 : primitiveMatrix[0].length;
+    }
+
+    /**
+     * A matrix over cells that are already in a buffer - nothing is copied
+     * @param rows number of rows
+     * @param columns number of columns
+     * @param littleEndianCells rows * columns little-endian ints from the position of the buffer
+     */
+    public Matrix(int rows, int columns, ByteBuffer littleEndianCells){
+        if ((long) rows * columns * Integer.BYTES > littleEndianCells.remaining())
+            throw new IllegalArgumentException("The buffer holds less than " + rows + "x" + columns + " cells");
+        this.rows = rows;
+        this.columns = columns;
+        this.cells = littleEndianCells.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    }
+
+    /**
+     * wrap: a matrix over the given array - unlike the constructor, the rows are not cloned.
+     * Used for arrays that nobody else holds (e.g. an array that was just deserialized)
+     */
+    public static Matrix wrap(int[][] primitiveMatrix){
+        return new Matrix(primitiveMatrix, true);
+    }
+
+    private Matrix(int[][] primitiveMatrix, boolean wrapped){
+        this.primitiveMatrix = primitiveMatrix;
+        this.rows = primitiveMatrix.length;
+        this.columns = rows == 0 ? 0 : primitiveMatrix[0].length;
+    }
+
+    private Object writeReplace(){
+        return cells == null ? this : wrap(getPrimitiveMatrix());
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    public ComponentIndex getComponentIndex() {
+        return componentIndex;
+    }
+
+    public void setComponentIndex(ComponentIndex componentIndex) {
+        this.componentIndex = componentIndex;
+    }
+
+    /**
+     * contains: checks that a cell is inside the matrix (the rows of a 2D array may have different lengths)
+     */
+    public boolean contains(int row, int column){
+        if (row < 0 || column < 0 || row >= rows)
+            return false;
+        return cells != null ? column < columns : column < primitiveMatrix[row].length;
     }
 
     /**
@@ -32,8 +105,8 @@ public class Matrix implements Serializable {
     @Override
     public String toString(){
         StringBuilder stringBuilder = new StringBuilder();
-        for (int[] row : primitiveMatrix) {
-            stringBuilder.append(Arrays.toString(row));
+        for (int i = 0; i < rows; i++) {
+            stringBuilder.append(Arrays.toString(getRow(i)));
             stringBuilder.append("\n");
         }
         return stringBuilder.toString();
@@ -45,61 +118,102 @@ public class Matrix implements Serializable {
      * @return list (Collection) of all neighbors of specific index
      */
     public Collection<Index> getNeighbors(final Index index){
-        Collection<Index> list = new ArrayList<>();
-        int extracted = -1;
-        try{ //below
-            extracted = primitiveMatrix[index.row+1][index.column];
-            list.add(new Index(index.row+1,index.column));
-        }catch (ArrayIndexOutOfBoundsException ignored){}
-        try{ //right
-            extracted = primitiveMatrix[index.row][index.column+1];
-            list.add(new Index(index.row,index.column+1));
-        }catch (ArrayIndexOutOfBoundsException ignored){}
-        try{ //above
-            extracted = primitiveMatrix[index.row-1][index.column];
-            list.add(new Index(index.row-1,index.column));
-        }catch (ArrayIndexOutOfBoundsException ignored){}
-        try{ //left
-            extracted = primitiveMatrix[index.row][index.column-1];
-            list.add(new Index(index.row,index.column-1));
-        }catch (ArrayIndexOutOfBoundsException ignored){}
+        Collection<Index> list = new ArrayList<>(8);
+        int row = index.row, column = index.column;
+        //the order of the neighbors decides the order of the paths in the answers - keep it
+        addIfInside(list, row + 1, column);     //below
+        addIfInside(list, row, column + 1);     //right
+        addIfInside(list, row - 1, column);     //above
+        addIfInside(list, row, column - 1);     //left
 
         //diagonals - 4 cases :
-        try{
-            //up-right
-            extracted = primitiveMatrix[index.row+1][index.column+1];
-            list.add(new Index(index.row+1,index.column+1));
-        }catch (ArrayIndexOutOfBoundsException ignored){}
-        try{
-            //up-left
-            extracted = primitiveMatrix[index.row-1][index.column-1];
-            list.add(new Index(index.row-1,index.column-1));
-        }catch (ArrayIndexOutOfBoundsException ignored){}
-        try{
-            //down-left
-            extracted = primitiveMatrix[index.row+1][index.column-1];
-            list.add(new Index(index.row+1,index.column-1));
-        }catch (ArrayIndexOutOfBoundsException ignored){}
-        try{
-            //down-right
-            extracted = primitiveMatrix[index.row-1][index.column+1];
-            list.add(new Index(index.row-1,index.column+1));
-        }catch (ArrayIndexOutOfBoundsException ignored){}
+        addIfInside(list, row + 1, column + 1); //up-right
+        addIfInside(list, row - 1, column - 1); //up-left
+        addIfInside(list, row + 1, column - 1); //down-left
+        addIfInside(list, row - 1, column + 1); //down-right
         return list;
     }
 
+    private void addIfInside(Collection<Index> list, int row, int column){
+        if (contains(row, column))
+            list.add(new Index(row, column));
+    }
+
     public int getValue(final Index index){
-        return primitiveMatrix[index.row][index.column];
+        return getValue(index.row, index.column);
+    }
+
+    public int getValue(int row, int column){
+        if (cells != null) {
+            if (!contains(row, column))
+                throw new ArrayIndexOutOfBoundsException("Index (" + row + "," + column + ") is out of the matrix");
+            return cells.get(row * columns + column);
+        }
+        return primitiveMatrix[row][column];
+    }
+
+    /**
+     * tile: a copy of a rectangle of the matrix - a tile of a sharded matrix (see ShardCoordinator)
+     * @return the cells of rows minRow.. minRow + tileRows - 1 and columns minColumn.. minColumn + tileColumns - 1
+     */
+    public int[][] tile(int minRow, int minColumn, int tileRows, int tileColumns){
+        int[][] tile = new int[tileRows][tileColumns];
+        for (int i = 0; i < tileRows; i++) {
+            if (cells != null)
+                cells.get((minRow + i) * columns + minColumn, tile[i], 0, tileColumns);
+            else
+                System.arraycopy(primitiveMatrix[minRow + i], minColumn, tile[i], 0, tileColumns);
+        }
+        return tile;
+    }
+
+    /**
+     * @return a copy of a row for a buffer-backed matrix, the row itself otherwise
+     */
+    private int[] getRow(int row){
+        if (cells == null)
+            return primitiveMatrix[row];
+        int[] copy = new int[columns];
+        cells.get(row * columns, copy);
+        return copy;
     }
 
     public void printMatrix(){
-        for (int[] row : primitiveMatrix) {
-            String s = Arrays.toString(row);
+        for (int i = 0; i < rows; i++) {
+            String s = Arrays.toString(getRow(i));
             System.out.println(s);
         }
     }
 
+    /**
+     * summary: a short description of the matrix for the log, instead of all its cells -
+     * the dimensions, the density (the share of non-zero cells) and a hash of the cells (equal matrices have equal hashes)
+     */
+    public String summary(){
+        MatrixKernels kernels = MatrixKernels.get();
+        long nonZero = 0;
+        int hash = 1;
+        int[] scratch = scratchRow();
+        for (int i = 0; i < rows; i++) {
+            int[] row = rowCells(i, scratch);
+            int length = rowLength(i);
+            nonZero += length - kernels.count(row, 0, length, 0);
+            hash = kernels.hash(hash, row, 0, length);
+        }
+        double density = rows * columns == 0 ? 0 : (double) nonZero / ((long) rows * columns);
+        return String.format(Locale.ROOT, "%dx%d density=%.2f hash=%08x", rows, columns, density, hash);
+    }
+
+    /**
+     * A buffer-backed matrix has no 2D array - the first call copies its cells into one
+     */
     public final int[][] getPrimitiveMatrix() {
+        if (primitiveMatrix == null) {
+            int[][] copy = new int[rows][];
+            for (int i = 0; i < rows; i++)
+                copy[i] = getRow(i);
+            primitiveMatrix = copy;
+        }
         return primitiveMatrix;
     }
 
@@ -108,16 +222,89 @@ public class Matrix implements Serializable {
      * @return list of all the indexes with value = '1'
      */
     public List<Index> findAllOnes() {
+        MatrixKernels kernels = MatrixKernels.get();
         List<Index> listAllOnes = new ArrayList<>();
-        Index index;
-        for (int i = 0; i < this.primitiveMatrix.length; i++) {
-            for (int j = 0; j < this.primitiveMatrix[i].length; j++) {
-                if (primitiveMatrix[i][j] == 1) {
-                    index = new Index(i, j);
-                    listAllOnes.add(index);
-                }
-            }
+        int[] scratch = scratchRow(), places = new int[columns];
+        for (int i = 0; i < rows; i++) {
+            int rowLength = rowLength(i);
+            if (places.length < rowLength)
+                places = new int[rowLength];
+            int found = kernels.indexesOf(rowCells(i, scratch), 0, rowLength, 1, places);
+            for (int k = 0; k < found; k++)
+                listAllOnes.add(new Index(i, places[k]));
         }
         return listAllOnes;
     }
+
+    /**
+     * count: the number of cells that are equal to the value
+     */
+    public long count(int value) {
+        MatrixKernels kernels = MatrixKernels.get();
+        long count = 0;
+        int[] scratch = scratchRow();
+        for (int i = 0; i < rows; i++)
+            count += kernels.count(rowCells(i, scratch), 0, rowLength(i), value);
+        return count;
+    }
+
+    /**
+     * hasNegativeValues: does the matrix have a negative weight - task 4 can't use Dijkstra on it
+     */
+    public boolean hasNegativeValues() {
+        MatrixKernels kernels = MatrixKernels.get();
+        int[] scratch = scratchRow();
+        for (int i = 0; i < rows; i++)
+            if (kernels.containsLessThan(rowCells(i, scratch), 0, rowLength(i), 0))
+                return true;
+        return false;
+    }
+
+    /**
+     * isFilled: has the rectangle no '0' cell - the shape of a battleship
+     * @return false if a cell of the rectangle is '0' (or out of the matrix)
+     */
+    public boolean isFilled(int minRow, int minColumn, int maxRow, int maxColumn) {
+        MatrixKernels kernels = MatrixKernels.get();
+        int[] scratch = scratchRow();
+        for (int i = minRow; i <= maxRow; i++) {
+            if (!contains(i, minColumn) || !contains(i, maxColumn))
+                return false;
+            if (kernels.contains(rowCells(i, scratch), minColumn, maxColumn + 1, 0))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * bitmapOf: the cells that are equal to the value as a bitmap - cell (row, column) is bit row * columns + column
+     * (bit cell % 64 of long cell / 64). The cells of a longer row of a 2D array that are beyond columns are left out.
+     */
+    public long[] bitmapOf(int value) {
+        MatrixKernels kernels = MatrixKernels.get();
+        long[] bits = new long[(int) (((long) rows * columns + 63) >>> 6)];
+        int[] scratch = scratchRow();
+        for (int i = 0; i < rows; i++)
+            kernels.setBitsOf(rowCells(i, scratch), 0, Math.min(rowLength(i), columns), value, bits, (long) i * columns);
+        return bits;
+    }
+
+    /**
+     * The scans read a matrix row by row (see MatrixKernels) - a row of a 2D array is read as it is,
+     * a row of a buffer is copied into the scratch array first (a bulk copy, much cheaper than a get per cell)
+     */
+    private int[] scratchRow() {
+        return cells != null ? new int[columns] : null;
+    }
+
+    private int[] rowCells(int row, int[] scratch) {
+        if (cells == null)
+            return primitiveMatrix[row];
+        cells.get(row * columns, scratch);
+        return scratch;
+    }
+
+    private int rowLength(int row) {
+        return cells != null ? columns : primitiveMatrix[row].length;
+    }
 }
@@ -0,0 +1,338 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class is an asynchronous client library of the server, for services that send many tasks at the same time.
+ *
+ * Every task returns a CompletableFuture right away - no thread waits for the answer:
+ *  - The client keeps a small pool of persistent connections that speak the BinaryProtocol, and spreads the requests between them.
+ *  - A connection multiplexes many requests: each one gets its own request id, is written to the socket, and stays
+ *    pending until the single reader thread of the connection reads the answer with the same id and completes its future.
+ *    The server computes the requests of a connection concurrently, so the answers may arrive in any order.
+ *  - Reconnects are transparent: when a connection breaks, its pending requests are sent again (all the tasks are pure
+ *    computations, so sending them twice is safe) on the next connection after a short backoff, and the broken connection
+ *    is opened again the next time it is chosen. A request fails only after maxAttempts tries.
+ * The futures are completed by the reader threads - heavy work in their callbacks should use the "Async" methods of CompletableFuture.
+ */
+public class MatrixClient implements Closeable {
+
+    public static final int DEFAULT_CONNECTIONS = 4;
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    private static final long RETRY_BACKOFF_MILLIS = 100;
+
+    /**
+     * One daemon thread schedules the retries of all the clients
+     */
+    private static final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "matrix-client-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * A request that waits for its answer - kept so it can be sent again if its connection breaks
+     */
+    private static class PendingRequest {
+        final MatrixRequest request;
+        final CompletableFuture<Object> future = new CompletableFuture<>();
+        int attempts;
+
+        PendingRequest(MatrixRequest request) {
+            this.request = request;
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final Connection[] connections;
+    private final AtomicInteger nextConnection = new AtomicInteger();
+    private volatile boolean closed;
+    private volatile int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private volatile long deadlineMillis;
+    private volatile boolean compactPaths, sharedPrefixes;
+
+    public MatrixClient(String host, int port, int connections) {
+        if (connections <= 0)
+            throw new IllegalArgumentException("A client needs at least one connection");
+        this.host = host;
+        this.port = port;
+        this.connections = new Connection[connections];
+        for (int i = 0; i < connections; i++)
+            this.connections[i] = new Connection();
+    }
+
+    public MatrixClient(String host, int port) {
+        this(host, port, DEFAULT_CONNECTIONS);
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * setDeadlineMillis: the time the server may spend on every following task, 0 - no deadline.
+     * A task that misses its deadline fails with a TimeoutException.
+     */
+    public void setDeadlineMillis(long deadlineMillis) {
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    /**
+     * setCompactPaths: receive the paths of tasks 2 and 4 as CompactPaths (see BinaryProtocol.FLAG_COMPACT_PATHS)
+     */
+    public void setCompactPaths(boolean compactPaths, boolean sharedPrefixes) {
+        this.compactPaths = compactPaths;
+        this.sharedPrefixes = sharedPrefixes;
+    }
+
+    /**
+     * findSCCs: task 1 - all the connected components of '1' cells
+     */
+    public CompletableFuture<List<HashSet<Index>>> findSCCs(int[][] matrix) {
+        return submit("1", matrix, null, null).thenApply(MatrixClient::answerAs);
+    }
+
+    /**
+     * findShortestPaths: task 2 - all the shortest paths from source to destination (the server chooses 2.1 or 2.2)
+     */
+    public CompletableFuture<List<List<Index>>> findShortestPaths(int[][] matrix, Index src, Index dest) {
+        return submit("2", matrix, src, dest).thenApply(MatrixClient::answerAs);
+    }
+
+    /**
+     * countBattleships: task 3 - the number of valid battleships
+     */
+    public CompletableFuture<Integer> countBattleships(int[][] matrix) {
+        return submit("3", matrix, null, null).thenApply(result -> (Integer) result);
+    }
+
+    /**
+     * findLightestPaths: task 4 - all the lightest paths from source to destination (the server chooses 4.1 or 4.2)
+     */
+    public CompletableFuture<List<List<Index>>> findLightestPaths(int[][] matrix, Index src, Index dest) {
+        return submit("4", matrix, src, dest).thenApply(MatrixClient::answerAs);
+    }
+
+    /**
+     * findShortestPaths: task 2 for many (source, destination) pairs of the same matrix, in a single request
+     * @return for every pair (in the same order) - all its shortest paths
+     */
+    public CompletableFuture<List<List<List<Index>>>> findShortestPaths(int[][] matrix, Index[][] pairs) {
+        return submitBatch("2", matrix, pairs);
+    }
+
+    /**
+     * findLightestPaths: task 4 for many (source, destination) pairs of the same matrix, in a single request
+     * @return for every pair (in the same order) - all its lightest paths
+     */
+    public CompletableFuture<List<List<List<Index>>>> findLightestPaths(int[][] matrix, Index[][] pairs) {
+        return submitBatch("4", matrix, pairs);
+    }
+
+    /**
+     * stats: the metrics of the server as JSON (see ServerMetrics)
+     */
+    public CompletableFuture<String> stats() {
+        return send(new MatrixRequest("stats")).thenApply(result -> (String) result);
+    }
+
+    /**
+     * answerAs: the answer of a task as the type its method returns - BinaryProtocol decodes every answer to the type of its task
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T answerAs(Object result) {
+        return (T) result;
+    }
+
+    private CompletableFuture<List<List<List<Index>>>> submitBatch(String task, int[][] matrix, Index[][] pairs) {
+        MatrixRequest request = new MatrixRequest(task, Matrix.wrap(matrix), null, null);
+        request.setPairs(pairs);
+        return send(request).thenApply(MatrixClient::answerAs);
+    }
+
+    /**
+     * submit: any task of the server, e.g. "2.2" to choose the parallel implementation yourself
+     * @param task the task id ("1", "2", "2.1", ...)
+     * @param src source index - only for tasks 2 and 4, otherwise null
+     * @param dest destination index - only for tasks 2 and 4, otherwise null
+     * @return the answer - the same types as ClientProtocol.request
+     */
+    public CompletableFuture<Object> submit(String task, int[][] matrix, Index src, Index dest) {
+        return send(new MatrixRequest(task, Matrix.wrap(matrix), src, dest));
+    }
+
+    private CompletableFuture<Object> send(MatrixRequest request) {
+        request.setDeadlineMillis(deadlineMillis);
+        request.setCompactPaths(compactPaths);
+        request.setSharedPrefixes(sharedPrefixes);
+        PendingRequest pending = new PendingRequest(request);
+        dispatch(pending);
+        return pending.future;
+    }
+
+    /**
+     * dispatch: sends the request on the next connection of the pool (round robin)
+     */
+    private void dispatch(PendingRequest pending) {
+        if (closed) {
+            pending.future.completeExceptionally(new IOException("The client is closed"));
+            return;
+        }
+        pending.attempts++;
+        Connection connection = connections[Math.floorMod(nextConnection.getAndIncrement(), connections.length)];
+        try {
+            connection.send(pending);
+        } catch (IOException ioException) {
+            retry(pending, ioException);
+        } catch (IllegalArgumentException illegalArgumentException) {
+            pending.future.completeExceptionally(illegalArgumentException); // sending it again would fail the same way
+        }
+    }
+
+    /**
+     * retry: sends a request whose connection broke again, after a backoff that grows with every attempt
+     */
+    private void retry(PendingRequest pending, IOException cause) {
+        if (closed || pending.attempts >= maxAttempts) {
+            pending.future.completeExceptionally(cause);
+            return;
+        }
+        retryScheduler.schedule(() -> dispatch(pending), RETRY_BACKOFF_MILLIS * pending.attempts, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * close: closes all the connections - the requests that still wait for an answer fail
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Connection connection : connections)
+            connection.close();
+    }
+
+    /**
+     * A single persistent connection - opened when it is first used, and opened again after it broke
+     */
+    private class Connection {
+        private Socket socket;                   // guarded by this, null - not connected
+        private BinaryProtocol.Writer writer;    // guarded by this
+        private final Map<Integer, PendingRequest> pending = new ConcurrentHashMap<>();
+        private int nextRequestId;               // guarded by this
+
+        /**
+         * send: writes a request - the caller thread writes it, and the reader thread completes it later
+         */
+        synchronized void send(PendingRequest pendingRequest) throws IOException {
+            if (socket == null)
+                open();
+            int requestId = ++nextRequestId;
+            pendingRequest.request.setRequestId(requestId);
+            pending.put(requestId, pendingRequest);
+            try {
+                BinaryProtocol.writeRequest(writer, pendingRequest.request);
+                writer.flush();
+            } catch (IOException ioException) {
+                pending.remove(requestId);
+                broken(socket, ioException);
+                throw ioException;
+            } catch (IllegalArgumentException illegalArgumentException) {
+                // too big for a frame - nothing was written, the connection is fine
+                pending.remove(requestId);
+                throw illegalArgumentException;
+            }
+        }
+
+        private void open() throws IOException {
+            Socket newSocket = new Socket(host, port);
+            newSocket.setTcpNoDelay(true);
+            BinaryProtocol.Writer newWriter = new BinaryProtocol.Writer(newSocket.getOutputStream());
+            BinaryProtocol.Reader reader = new BinaryProtocol.Reader(newSocket.getInputStream());
+            try {
+                BinaryProtocol.writeHandshake(newWriter);
+                int version = BinaryProtocol.readHandshake(reader);
+                if (version != BinaryProtocol.VERSION)
+                    throw new IOException("The server speaks version " + version + " of the binary protocol");
+            } catch (IOException ioException) {
+                newSocket.close();
+                throw ioException;
+            }
+            socket = newSocket;
+            writer = newWriter;
+            Thread readerThread = new Thread(() -> readAnswers(newSocket, reader), "matrix-client-reader");
+            readerThread.setDaemon(true);
+            readerThread.start();
+        }
+
+        /**
+         * readAnswers: the loop of the reader thread of a socket - completes the pending request of every answer
+         */
+        private void readAnswers(Socket readSocket, BinaryProtocol.Reader reader) {
+            try {
+                while (true) {
+                    BinaryProtocol.Response response = BinaryProtocol.readResponse(reader);
+                    PendingRequest pendingRequest = pending.remove(response.getRequestId());
+                    if (pendingRequest == null)
+                        continue; // not ours anymore (e.g. a streamed chunk - this client doesn't stream)
+                    switch (response.getStatus()) {
+                        case BinaryProtocol.STATUS_OK:
+                            pendingRequest.future.complete(response.getResult());
+                            break;
+                        case BinaryProtocol.STATUS_TIMEOUT:
+                            pendingRequest.future.completeExceptionally(new TimeoutException(
+                                    pendingRequest.request + " missed its deadline of " + pendingRequest.request.getDeadlineMillis() + " ms"));
+                            break;
+                        default:
+                            // the server failed the task itself - sending it again would fail the same way
+                            pendingRequest.future.completeExceptionally(new IOException("The server failed the task: " + response.getResult()));
+                    }
+                }
+            } catch (IOException ioException) {
+                broken(readSocket, ioException);
+            }
+        }
+
+        /**
+         * broken: closes a socket that failed, and sends its pending requests again.
+         * The requests are retried after the lock is released - a retry may send on another connection,
+         * and two connections that break together must not wait for each other's lock.
+         */
+        private void broken(Socket brokenSocket, IOException cause) {
+            List<PendingRequest> orphans;
+            synchronized (this) {
+                if (socket != brokenSocket)
+                    return; // an old socket - its requests were already handled
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // the socket is broken anyway
+                }
+                socket = null;
+                writer = null;
+                orphans = new ArrayList<>(pending.values());
+                pending.clear();
+            }
+            for (PendingRequest orphan : orphans)
+                retry(orphan, cause);
+        }
+
+        void close() {
+            Socket closedSocket;
+            synchronized (this) {
+                closedSocket = socket;
+                if (closedSocket == null)
+                    return;
+                try {
+                    BinaryProtocol.writeRequest(writer, new MatrixRequest("stop"));
+                    writer.flush();
+                } catch (IOException ignored) {
+                    // the connection is closed anyway
+                }
+            }
+            broken(closedSocket, new IOException("The client is closed"));
+        }
+    }
+}
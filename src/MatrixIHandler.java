@@ -1,15 +1,74 @@
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
 
 /**
  * This class implements IHandler interface.
  * This class handles with matrix related tasks.
  * In this class we use the 'adapter' design pattern
+ *
+ * A single handler serves all the clients of the server, so everything that belongs to a single request
+ * (the matrix, the source and destination indexes) is kept in local variables and not in data members.
+ * The handler threads only read the requests and write the answers - the computations run on the FairScheduler,
+ * so a client that floods the server with expensive tasks can't starve the others.
+ * Every request is recorded in the ServerMetrics of the handler - the "stats" command of both protocols returns them,
+ * and emits the flight recorder events of ServerEvents - so a JFR recording can tell which request was running when.
+ * The handler logs through ServerLog - a summary of every matrix (dimensions, density, hash) and not its cells,
+ * queued for the log thread, so logging costs the request almost nothing.
  */
 
 public class MatrixIHandler implements IHandler {
-    private Matrix matrix;
-    private Index startIndex, endIndex;
+    /**
+     * The number of requests of a single binary connection that may be computed at the same time
+     */
+    public static final int MAX_IN_FLIGHT = 64;
+    /**
+     * The total size of the cached component indexes, in cells (4 bytes each)
+     */
+    public static final long COMPONENT_INDEX_CACHE_CELLS = 1 << 22;
+    /**
+     * The directory of the graph edge lists (see CsrGraph) - the uploaded graphs are kept there, and a graph that is
+     * already there is loaded the first time it is asked for
+     */
+    public static final String GRAPH_DIRECTORY_PROPERTY = "matrix.graph.dir";
+    /**
+     * The largest edge list the "upload" command stores, in bytes (default 1 GiB) - a bigger upload is read and dropped
+     */
+    public static final String GRAPH_MAX_BYTES_PROPERTY = "matrix.graph.max.bytes";
+
+    /**
+     * Sends a single chunk of a streamed answer - each protocol writes it in its own way
+     */
+    private interface ChunkWriter {
+        void write(Object chunk) throws IOException;
+    }
+
+    private final FairScheduler scheduler;
+    private final AlgorithmSelector algorithmSelector;
+    private final ServerMetrics metrics = new ServerMetrics();
+    /**
+     * The component labels of the latest matrices of task 2 - an unreachable destination is answered without a search
+     */
+    private final ComponentIndex.Cache componentIndexes = new ComponentIndex.Cache(COMPONENT_INDEX_CACHE_CELLS);
+    /**
+     * The graphs that were loaded, by name - the searches of the "graph" command run on them
+     */
+    private final Map<String, CsrGraph> graphs = new ConcurrentHashMap<>();
+    private final Path graphDirectory = Paths.get(System.getProperty(GRAPH_DIRECTORY_PROPERTY, "graphs"));
+    private final long maxGraphBytes = Long.getLong(GRAPH_MAX_BYTES_PROPERTY, 1L << 30);
+    /**
+     * The named matrices of the "store" command - on the local disk with their component labels, so they survive restarts
+     */
+    private final MatrixStore matrixStore = MatrixStore.fromEnvironment();
+    /**
+     * The worker servers that label the tiles of the big matrices of tasks 1 and 3 - null if no workers are configured
+     */
+    private final ShardCoordinator shardCoordinator = ShardCoordinator.fromEnvironment();
     /**
      * By using volatile we are asking to save this boolean in RAM and not in a local thread.
      * Using volatile is a way of making class thread safe.
@@ -18,148 +77,1214 @@ public class MatrixIHandler implements IHandler {
      */
     private volatile boolean doWork = true;
 
+    public MatrixIHandler(FairScheduler scheduler, AlgorithmSelector algorithmSelector) {
+        this.scheduler = scheduler;
+        this.algorithmSelector = algorithmSelector;
+        metrics.setComputePool(scheduler.getComputePool());
+        metrics.startDumpsFromEnvironment();
+    }
+
+    public MatrixIHandler() {
+        this(new FairScheduler(), AlgorithmSelector.fromEnvironment());
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
     private void resetMembers() {
-        this.matrix = null;
-        this.startIndex = null;
-        this.endIndex = null;
         this.doWork = true;
     }
 
 
     @Override
     public void handle(InputStream fromClient, OutputStream toClient) throws IOException, ClassNotFoundException {
+        handle(fromClient, toClient, null);
+    }
+
+    /**
+     * The server gives us the connection itself, so a task whose client closed the socket is cancelled instead of running for nothing
+     */
+    @Override
+    public void handle(ClientConnection connection) throws IOException, ClassNotFoundException {
+        try {
+            handle(connection.getInputStream(), connection.getOutputStream(), connection);
+        } finally {
+            scheduler.forget(connection.getId());
+        }
+    }
+
+    /**
+     * The server speaks two protocols - Java object serialization and the compact BinaryProtocol.
+     * The first byte of the connection tells them apart: an ObjectOutputStream starts with 0xACED, a binary client with "MXB".
+     * @param connection the client connection - used to cancel the running task when the client disconnects, may be null
+     */
+    private void handle(InputStream fromClient, OutputStream toClient, ClientConnection connection) throws IOException, ClassNotFoundException {
+        PushbackInputStream pushbackInputStream = new PushbackInputStream(fromClient, 1);
+        int firstByte = pushbackInputStream.read();
+        if (firstByte < 0) // the client closed the connection without sending anything
+            return;
+        pushbackInputStream.unread(firstByte);
+        // in case we want to reuse the requestHandler of the same user
+        this.resetMembers();
+        // the fair queue shares the compute pool between the connections
+        long clientId = connection != null ? connection.getId() : -Thread.currentThread().getId();
+        metrics.connectionOpened();
+        try {
+            if (firstByte == BinaryProtocol.MAGIC[0])
+                handleBinaryProtocol(pushbackInputStream, toClient, connection, clientId);
+            else
+                handleObjectProtocol(pushbackInputStream, toClient, connection, clientId);
+        } finally {
+            metrics.connectionClosed();
+        }
+    }
+
+    /**
+     * The object protocol - the task id as a String, followed by its input objects, and the answer as a single object.
+     * Every task may be preceded by a "deadline" command with the number of milliseconds the task may run.
+     * When a task has a deadline, the answer is followed by a status string:
+     * "OK" - the answer is complete, "TIMEOUT" - the deadline passed and the answer holds only what was found until then.
+     * The "compact" command, followed by an Integer with the flags of BinaryProtocol (FLAG_COMPACT_PATHS, FLAG_SHARED_PREFIXES),
+     * changes how the paths of tasks 2 and 4 are sent for the rest of the connection - as CompactPaths instead of a List of Lists.
+     * The "stream" command, followed by an Integer chunk size, streams the answer of the next task (1, 2 or 4):
+     * a List with up to chunk size components/paths is sent as soon as they are found, and the status string ends the answer.
+     * The "batch" command is followed by the task ("2" or "4"), the matrix and an Index[][] of (source, destination) pairs,
+     * and is answered with a List of the paths of every pair.
+     * The "stats" command is answered with a String - the metrics of the server as JSON.
+     * The "searchstats" command, followed by a Boolean, sends the counters of the search (a SearchStats) after every answer
+     * of the rest of the connection - after its status string, if it has one.
+     * The "store" command is followed by a name and a matrix (int[][]) - the server keeps the matrix on its disk (MatrixStore)
+     * and answers with a String, "OK" and its size or "ERROR" and the reason. From then on (also after a restart of the server)
+     * every task may send the name (a String) instead of its matrix.
+     * The "update" command is followed by the name of a stored matrix and its changed cells (int[][] of {row, column, value}) -
+     * tasks 1 and 3 on the name follow the change without a traversal (DynamicComponents), and task 4 (auto) on the name repairs
+     * the lightest weights of its source (DynamicLightestPaths) instead of searching again. It is answered with a String,
+     * "OK" with the new numbers of components and battleships, or "ERROR" and the reason.
+     * The "tile" command is followed by a task ("1" or "3") and a tile of a sharded matrix (int[][]) - this server is a worker
+     * of a ShardCoordinator. It is answered with the TileSummary of the tile, or an "ERROR" String.
+     * The "upload" command is followed by a graph name and the bytes of its edge list (see CsrGraph) in byte[] chunks,
+     * an empty chunk ends them. It is answered with a String - "OK" and the size of the graph, or "ERROR" and the reason.
+     * The "graph" command is followed by a graph name, the task ("1", "2", "2.1", "2.2", "4", "4.1", "4.2") and the Integer
+     * source and destination nodes (the destination is ignored by task 1). It is answered with the nodes reachable from the source
+     * (task 1, a HashSet of Integers) or the shortest/lightest paths (a List of Lists of Integers), an "ERROR" String if the graph
+     * or the nodes don't exist, and the status string if the task had a deadline.
+     */
+    private void handleObjectProtocol(InputStream fromClient, OutputStream toClient, ClientConnection connection, long clientId) throws IOException, ClassNotFoundException {
         /*
         Send data as bytes.
         Read data as bytes then transform to meaningful data
         ObjectInputStream and ObjectOutputStream can read and write both primitives and objects
+        Both are buffered - without a buffer every small block of the serialized objects is a separate read/write on the socket
          */
-        ObjectInputStream objectInputStream = new ObjectInputStream(fromClient);
-        ObjectOutputStream objectOutputStream = new ObjectOutputStream(toClient);
-        // in case we want to reuse the requestHandler of the same user
-        this.resetMembers();
+        ObjectInputStream objectInputStream = new ObjectInputStream(new BufferedInputStream(fromClient));
+        ObjectOutputStream objectOutputStream = new ObjectOutputStream(new BufferedOutputStream(toClient));
+        objectOutputStream.flush(); // the stream header - the client's ObjectInputStream waits for it
         boolean doWork = true;
+        Long deadlineMillis = null; // the deadline of the next task, null - no deadline
+        int pathFlags = 0;          // the path encoding the client asked for with "compact"
+        int chunkSize = 0;          // the chunk size of the next task, 0 - the answer is sent whole
+        boolean searchStats = false; // the client asked for the counters of the searches with "searchstats"
         // handle client's tasks
         while(doWork){
+            String task = objectInputStream.readObject().toString();
+            if (task.equals("stop"))
+                break;
+            if (task.equals("deadline")) {
+                deadlineMillis = ((Number) objectInputStream.readObject()).longValue();
+                continue;
+            }
+            if (task.equals("stream")) {
+                chunkSize = ((Number) objectInputStream.readObject()).intValue();
+                continue;
+            }
+            if (task.equals("compact")) {
+                pathFlags = ((Number) objectInputStream.readObject()).intValue();
+                continue;
+            }
+            if (task.equals("searchstats")) {
+                searchStats = (Boolean) objectInputStream.readObject();
+                continue;
+            }
+            if (task.equals("stats")) {
+                objectOutputStream.writeObject(metrics.toJson());
+                objectOutputStream.flush();
+                continue;
+            }
+            if (task.equals("store")) {
+                objectOutputStream.writeObject(storeMatrix((String) objectInputStream.readObject(), (int[][]) objectInputStream.readObject()));
+                objectOutputStream.flush();
+                continue;
+            }
+            if (task.equals("update")) {
+                objectOutputStream.writeObject(updateMatrix((String) objectInputStream.readObject(), (int[][]) objectInputStream.readObject()));
+                objectOutputStream.flush();
+                continue;
+            }
+            if (task.equals("tile")) {
+                String tileTask = (String) objectInputStream.readObject();
+                objectOutputStream.writeObject(labelTile(tileTask, (int[][]) objectInputStream.readObject(), clientId));
+                objectOutputStream.flush();
+                // forget the summaries that were already sent - a coordinator sends many tiles on the same connection
+                objectOutputStream.reset();
+                continue;
+            }
+            if (task.equals("upload")) {
+                objectOutputStream.writeObject(uploadGraph(objectInputStream));
+                objectOutputStream.flush();
+                continue;
+            }
+            if (task.equals("graph")) {
+                String name = (String) objectInputStream.readObject();
+                String graphTask = (String) objectInputStream.readObject();
+                Integer src = (Integer) objectInputStream.readObject();
+                Integer dest = (Integer) objectInputStream.readObject();
+                CancellationToken token = deadlineMillis == null ? CancellationToken.create() : CancellationToken.withTimeout(deadlineMillis);
+                Runnable stopWatching = connection == null ? () -> {} : connection.watch(token);
+                Object answer;
+                try {
+                    answer = searchGraph(name, graphTask, src, dest, token, clientId);
+                } finally {
+                    stopWatching.run();
+                }
+                objectOutputStream.writeObject(answer);
+                if (deadlineMillis != null)
+                    objectOutputStream.writeObject(token.isTimedOut() ? "TIMEOUT" : "OK");
+                objectOutputStream.flush();
+                deadlineMillis = null;
+                continue;
+            }
+            CancellationToken token = deadlineMillis == null ? CancellationToken.create() : CancellationToken.withTimeout(deadlineMillis);
+            long deserializeStart = System.nanoTime();
+            ServerEvents.MatrixDecoded decoded = new ServerEvents.MatrixDecoded();
+            decoded.begin();
+            MatrixRequest request = readObjectRequest(task, objectInputStream);
+            if (request == null) // not a known task
+                continue;
+            ServerEvents.matrixDecoded(decoded, request, clientId);
+            String key = metricsKey(request);
+            metrics.recordPhase(key, ServerMetrics.Phase.DESERIALIZE, System.nanoTime() - deserializeStart);
+            BinaryProtocol.setFlags(request, pathFlags);
+            request.setSearchStatsRequested(searchStats);
+            request.setChunkSize(chunkSize);
+            chunkSize = 0;
+            Runnable stopWatching = connection == null ? () -> {} : connection.watch(token);
+            Object result = null;
+            boolean streamed = isStreamed(request);
+            metrics.requestStarted();
+            try {
+                if (streamed) {
+                    stream(request, token, clientId, chunk -> {
+                        objectOutputStream.writeObject(chunk);
+                        objectOutputStream.flush();
+                        // forget the chunks that were already sent - otherwise the stream keeps a reference to every object it wrote
+                        objectOutputStream.reset();
+                    });
+                } else
+                    result = await(task, submit(request, token, clientId));
+            } catch (IOException | RuntimeException exception) {
+                metrics.recordRequest(key, cellsOf(request), ServerMetrics.Outcome.ERROR);
+                throw exception;
+            } finally {
+                stopWatching.run();
+                metrics.requestEnded();
+            }
+            if (token.isCancelled() && !token.isTimedOut()) {
+                // the client closed the connection - nobody is waiting for the answer
+                metrics.recordRequest(key, cellsOf(request), ServerMetrics.Outcome.CANCELLED);
+                ServerLog.info("Task cancelled - the client disconnected", "task", task, "connection", clientId);
+                break;
+            }
+            long serializeStart = System.nanoTime();
+            ServerEvents.ReplyWritten written = new ServerEvents.ReplyWritten();
+            written.begin();
+            if (streamed)
+                objectOutputStream.writeObject(token.isTimedOut() ? "TIMEOUT" : "OK"); // the end of the stream
+            else {
+                objectOutputStream.writeObject(result);
+                if (deadlineMillis != null)
+                    objectOutputStream.writeObject(token.isTimedOut() ? "TIMEOUT" : "OK");
+            }
+            if (request.getSearchStats() != null)
+                objectOutputStream.writeObject(request.getSearchStats());
+            objectOutputStream.flush();
+            ServerEvents.replyWritten(written, request, clientId, token.isTimedOut() ? "TIMEOUT" : "OK", result);
+            metrics.recordPhase(key, ServerMetrics.Phase.SERIALIZE, System.nanoTime() - serializeStart);
+            metrics.recordRequest(key, cellsOf(request), token.isTimedOut() ? ServerMetrics.Outcome.TIMEOUT : ServerMetrics.Outcome.OK);
+            deadlineMillis = null;
+        }
+    }
+
+    /**
+     * The binary protocol - see BinaryProtocol for the frames.
+     * Every response carries a status (OK, TIMEOUT, ERROR), a failed request is answered with an ERROR frame
+     * and the connection stays open.
+     *
+     * The requests of a connection run concurrently (multiplexing): this thread only reads the requests and queues them
+     * on the fair scheduler, and the compute thread that finishes a request writes its answer - the answers carry the
+     * request id, so they may arrive in any order. At most MAX_IN_FLIGHT requests of a connection run at the same time,
+     * after that this thread stops reading and the client is slowed down by TCP.
+     * Streamed requests are still served by this thread, one at a time - it is the thread that sends their chunks.
+     */
+    private void handleBinaryProtocol(InputStream fromClient, OutputStream toClient, ClientConnection connection, long clientId) throws IOException {
+        // the matrix cells are read through the channel of the socket, straight into the buffer of the Matrix
+        BinaryProtocol.Reader reader = new BinaryProtocol.Reader(fromClient, connection == null ? null : connection.getChannel());
+        BinaryProtocol.Writer writer = new BinaryProtocol.Writer(toClient);
+        BinaryProtocol.readHandshake(reader);
+        BinaryProtocol.writeHandshake(writer);
+        Set<CancellationToken> inFlight = ConcurrentHashMap.newKeySet();
+        Semaphore inFlightPermits = new Semaphore(MAX_IN_FLIGHT);
+        try {
+            while (true) {
+                MatrixRequest request;
+                try {
+                    request = BinaryProtocol.readRequest(reader, clientId);
+                } catch (IOException | RuntimeException exception) {
+                    // the client has gone away (or sent a frame we can't read) - nobody waits for the answers of its requests
+                    for (CancellationToken token : inFlight)
+                        token.cancel();
+                    throw exception;
+                }
+                if ("stop".equals(request.getTask()))
+                    break;
+                if ("stats".equals(request.getTask())) {
+                    respond(writer, request, clientId, BinaryProtocol.STATUS_OK, metrics.toJson());
+                    continue;
+                }
+                if (request.getIngestNanos() > 0) {
+                    long bytes = (long) request.getRows() * request.getColumns() * Integer.BYTES;
+                    long ingestNanos = request.getIngestNanos();
+                    ServerLog.request("Matrix ingested", "bytes", bytes, "GBps", ServerLog.lazy(() -> String.format(Locale.ROOT, "%.3f", (double) bytes / ingestNanos)));
+                }
+                if (request.getDecodeError() != null) {
+                    respond(writer, request, clientId, BinaryProtocol.STATUS_ERROR, request.getDecodeError());
+                    continue;
+                }
+                if (request.getTask() == null || request.getMatrix() == null) {
+                    respond(writer, request, clientId, BinaryProtocol.STATUS_ERROR, "Unknown or empty request");
+                    continue;
+                }
+                String key = metricsKey(request);
+                metrics.recordPhase(key, ServerMetrics.Phase.DESERIALIZE, request.getDeserializeNanos());
+                CancellationToken token = CancellationToken.withTimeout(request.getDeadlineMillis());
+                if (isStreamed(request)) {
+                    if (!streamBinary(request, token, clientId, writer, connection))
+                        break;
+                    continue;
+                }
+                inFlightPermits.acquireUninterruptibly();
+                inFlight.add(token);
+                metrics.requestStarted();
+                submit(request, token, clientId).whenComplete((result, failure) -> {
+                    ServerMetrics.Outcome outcome = token.isTimedOut() ? ServerMetrics.Outcome.TIMEOUT : ServerMetrics.Outcome.OK;
+                    try {
+                        if (token.isCancelled() && !token.isTimedOut()) {
+                            outcome = ServerMetrics.Outcome.CANCELLED;
+                            ServerLog.info("Request cancelled - the client disconnected", "task", request.getTask(), "request", request.getRequestId(), "connection", clientId);
+                            return;
+                        }
+                        long serializeStart = System.nanoTime();
+                        if (failure != null) {
+                            outcome = ServerMetrics.Outcome.ERROR;
+                            Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+                            ServerLog.error("Request failed", "task", request.getTask(), "request", request.getRequestId(), "connection", clientId,
+                                    "reason", String.valueOf(cause));
+                            respond(writer, request, clientId, BinaryProtocol.STATUS_ERROR, String.valueOf(cause));
+                        } else
+                            respond(writer, request, clientId, token.isTimedOut() ? BinaryProtocol.STATUS_TIMEOUT : BinaryProtocol.STATUS_OK, result);
+                        metrics.recordPhase(key, ServerMetrics.Phase.SERIALIZE, System.nanoTime() - serializeStart);
+                    } catch (IOException ioException) {
+                        ServerLog.warn("The answer can't be sent", "task", request.getTask(), "request", request.getRequestId(), "connection", clientId,
+                                "reason", String.valueOf(ioException));
+                    } finally {
+                        metrics.recordRequest(key, cellsOf(request), outcome);
+                        metrics.requestEnded();
+                        inFlight.remove(token);
+                        inFlightPermits.release();
+                    }
+                });
+            }
+        } finally {
+            // the socket is closed when we return - wait for the answers that are still computed
+            inFlightPermits.acquireUninterruptibly(MAX_IN_FLIGHT);
+        }
+    }
+
+    /**
+     * streamBinary: serves a streamed request of the binary protocol on the connection thread
+     * @return false if the client disconnected in the middle
+     */
+    private boolean streamBinary(MatrixRequest request, CancellationToken token, long clientId, BinaryProtocol.Writer writer, ClientConnection connection) throws IOException {
+        Runnable stopWatching = connection == null ? () -> {} : connection.watch(token);
+        Object result;
+        byte status;
+        String key = metricsKey(request);
+        metrics.requestStarted();
+        try {
+            int requestId = request.getRequestId(), columns = request.getColumns();
+            result = (int) stream(request, token, clientId, chunk -> {
+                synchronized (writer) {
+                    BinaryProtocol.writeResponse(writer, requestId, BinaryProtocol.STATUS_CHUNK, chunk, columns);
+                    writer.flush();
+                }
+            });
+            status = token.isTimedOut() ? BinaryProtocol.STATUS_TIMEOUT : BinaryProtocol.STATUS_OK;
+        } catch (RuntimeException runtimeException) {
+            ServerLog.error("Streamed request failed", "task", request.getTask(), "request", request.getRequestId(), "connection", clientId,
+                    "reason", String.valueOf(runtimeException));
+            result = String.valueOf(runtimeException);
+            status = BinaryProtocol.STATUS_ERROR;
+        } finally {
+            stopWatching.run();
+            metrics.requestEnded();
+        }
+        if (token.isCancelled() && !token.isTimedOut()) {
+            // the client closed the connection - nobody is waiting for the answer
+            metrics.recordRequest(key, cellsOf(request), ServerMetrics.Outcome.CANCELLED);
+            ServerLog.info("Request cancelled - the client disconnected", "task", request.getTask(), "request", request.getRequestId(), "connection", clientId);
+            return false;
+        }
+        long serializeStart = System.nanoTime();
+        respond(writer, request, clientId, status, result);
+        metrics.recordPhase(key, ServerMetrics.Phase.SERIALIZE, System.nanoTime() - serializeStart);
+        metrics.recordRequest(key, cellsOf(request), status == BinaryProtocol.STATUS_OK ? ServerMetrics.Outcome.OK
+                : status == BinaryProtocol.STATUS_TIMEOUT ? ServerMetrics.Outcome.TIMEOUT : ServerMetrics.Outcome.ERROR);
+        return true;
+    }
+
+    /**
+     * respond: writes the answer of a request - the writer is shared by all the requests of the connection
+     */
+    private static void respond(BinaryProtocol.Writer writer, MatrixRequest request, long clientId, byte status, Object result) throws IOException {
+        ServerEvents.ReplyWritten written = new ServerEvents.ReplyWritten();
+        written.begin(); // waiting for the writer is a part of sending the answer
+        synchronized (writer) {
+            if (request.getPairs() != null && status != BinaryProtocol.STATUS_ERROR)
+                BinaryProtocol.writeBatchResponse(writer, request.getRequestId(), status, (List<?>) result, request.getColumns(), request.getSearchStats());
+            else
+                BinaryProtocol.writeResponse(writer, request.getRequestId(), status, result, request.getColumns(), request.getSearchStats());
+            writer.flush();
+        }
+        ServerEvents.replyWritten(written, request, clientId, statusName(status), result);
+    }
+
+    private static String statusName(byte status) {
+        switch (status) {
+            case BinaryProtocol.STATUS_OK: return "OK";
+            case BinaryProtocol.STATUS_TIMEOUT: return "TIMEOUT";
+            case BinaryProtocol.STATUS_CHUNK: return "CHUNK";
+            default: return "ERROR";
+        }
+    }
+
+    /**
+     * computeAsync: computes a request that didn't come from a connection (BatchRunner) - on the same fair scheduler and
+     * compute pool as the requests of the clients, with the same algorithms and answers
+     * @param clientId the share of the fair queue the request belongs to
+     * @return the answer - completed by the compute thread that finishes the request
+     */
+    public CompletableFuture<Object> computeAsync(MatrixRequest request, CancellationToken token, long clientId) {
+        return submit(request, token, clientId);
+    }
+
+    /**
+     * submit: queues the computation of a request on the fair scheduler, without waiting for it
+     * @return the answer to send - completed by the compute thread that finishes the request
+     */
+    private CompletableFuture<Object> submit(MatrixRequest request, CancellationToken token, long clientId) {
+        if (request.isSearchStatsRequested())
+            request.setSearchStats(new SearchStats());
+        // a batch is split into a task per source by executeBatch, every other request is a single task
+        if (request.getPairs() != null)
+            return executeBatch(request, token, clientId).thenApply(result -> encodePaths(request, result));
+        if (isSharded(request))
+            return executeSharded(request, token, clientId);
+        long cost = FairScheduler.estimateCost(request.getTask(), cellsOf(request));
+        return scheduler.submitAsync(clientId, cost, metrics.timed(metricsKey(request),
+                ServerEvents.traced(request, clientId, 0, measured(request, () -> {
+                    token.start();
+                    return encodePaths(request, execute(request, token, clientId));
+                }))));
+    }
+
+    /**
+     * @return true if the request is task 1 or 3 of a matrix for the workers of the ShardCoordinator
+     */
+    private boolean isSharded(MatrixRequest request) {
+        String task = request.getTask();
+        return shardCoordinator != null && (task.equals("1") || task.equals("3")) && request.getComponents() == null
+                && shardCoordinator.shouldShard(request.getMatrix());
+    }
+
+    /**
+     * executeSharded: tasks 1 and 3 of a matrix for the workers - the workers label its tiles on the connection threads of the
+     * ShardCoordinator, and only the merge of their summaries is queued on the fair scheduler. A compute thread never waits
+     * for a worker - a server that is a worker of itself labels its own tiles on its compute threads meanwhile.
+     * @return the answer - completed by the compute thread of the merge
+     */
+    private CompletableFuture<Object> executeSharded(MatrixRequest request, CancellationToken token, long clientId) {
+        String task = request.getTask();
+        Matrix matrix = request.getMatrix();
+        ServerLog.request("Task " + task + " is sharded", "matrix", ServerLog.lazy(matrix::summary));
+        token.start();
+        // the merge of task 1 builds the cells of every component - as much as labeling the matrix here
+        long cost = FairScheduler.estimateCost(task, cellsOf(request));
+        return shardCoordinator.labelAsync(matrix, task, token).thenCompose(tiles -> scheduler.submitAsync(clientId, cost,
+                metrics.timed(metricsKey(request), ServerEvents.traced(request, clientId, 0, () -> {
+                    Object answer;
+                    if (task.equals("1")) {
+                        List<HashSet<Index>> components = shardCoordinator.components(matrix, tiles);
+                        ServerLog.request("Task 1 finished", "components", components.size());
+                        answer = components;
+                    } else {
+                        int battleships = shardCoordinator.battleships(matrix, tiles);
+                        ServerLog.request("Task 3 finished", "battleships", battleships);
+                        answer = battleships;
+                    }
+                    return answer;
+                }))));
+    }
+
+    /**
+     * measured: counts the bytes the computation of a request allocates, if the request asked for the counters of its search
+     */
+    private static <V> Callable<V> measured(MatrixRequest request, Callable<V> work) {
+        return request.getSearchStats() == null ? work : request.getSearchStats().measured(work);
+    }
+
+    /**
+     * @return the counters the search of a request should count into - a throwaway one if the client didn't ask for them
+     */
+    private static SearchStats searchStatsOf(MatrixRequest request) {
+        return request.getSearchStats() != null ? request.getSearchStats() : new SearchStats();
+    }
+
+    /**
+     * labelTile: the "tile" command - labels the components of a tile of a sharded matrix on the fair scheduler
+     * @return the TileSummary of the tile, or "ERROR" and the reason
+     */
+    private Object labelTile(String task, int[][] tile, long clientId) throws IOException {
+        if (!task.equals("1") && !task.equals("3"))
+            return "ERROR: a tile is labeled for task 1 or 3, not " + task;
+        if (tile == null || tile.length == 0 || tile[0].length == 0)
+            return "ERROR: an empty tile";
+        Matrix matrix = Matrix.wrap(tile);
+        String key = "tile " + task;
+        metrics.requestStarted();
+        try {
+            TileSummary summary = compute(clientId, task, matrix, () -> TileSummary.of(matrix, task.equals("1")));
+            metrics.recordRequest(key, (long) matrix.getRows() * matrix.getColumns(), ServerMetrics.Outcome.OK);
+            ServerLog.request("Tile labeled", "task", task, "tile", ServerLog.lazy(matrix::summary), "components", summary.getComponents());
+            return summary;
+        } catch (IOException | RuntimeException exception) {
+            metrics.recordRequest(key, (long) matrix.getRows() * matrix.getColumns(), ServerMetrics.Outcome.ERROR);
+            throw exception;
+        } finally {
+            metrics.requestEnded();
+        }
+    }
+
+    /**
+     * uploadGraph: reads the edge list of the "upload" command into the graph directory, and loads it.
+     * The chunks are written to a temporary file first - the graph is replaced only when the new one was loaded successfully.
+     * An edge list larger than maxGraphBytes isn't stored: the rest of its chunks are read (the next command follows them)
+     * and dropped, and the temporary file is deleted.
+     * @return "OK" and the size of the graph, or "ERROR" and the reason
+     */
+    private String uploadGraph(ObjectInputStream objectInputStream) throws IOException, ClassNotFoundException {
+        String name = (String) objectInputStream.readObject();
+        boolean validName = isGraphName(name);
+        Path upload = null;
+        if (validName) {
+            Files.createDirectories(graphDirectory);
+            upload = Files.createTempFile(graphDirectory, name, ".upload");
+        }
+        // the chunks are read even when the name is refused - the next command follows them
+        long size = 0;
+        try (OutputStream out = upload != null ? new BufferedOutputStream(Files.newOutputStream(upload)) : OutputStream.nullOutputStream()) {
+            for (byte[] chunk = (byte[]) objectInputStream.readObject(); chunk.length > 0; chunk = (byte[]) objectInputStream.readObject()) {
+                size += chunk.length;
+                if (size <= maxGraphBytes)
+                    out.write(chunk);
+            }
+        }
+        if (!validName)
+            return "ERROR: a graph name is 1-64 letters, digits, '_', '.' or '-'";
+        if (size > maxGraphBytes) {
+            Files.deleteIfExists(upload);
+            ServerLog.warn("Graph upload refused", "name", name, "bytes", size, "max", maxGraphBytes);
+            return "ERROR: the edge list has " + size + " bytes, the limit is " + maxGraphBytes;
+        }
+        try {
+            CsrGraph graph = CsrGraph.load(upload);
+            Files.move(upload, graphFile(name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            graphs.put(name, graph);
+            ServerLog.info("Graph uploaded", "name", name, "graph", graph);
+            return "OK: " + graph;
+        } catch (IOException ioException) {
+            Files.deleteIfExists(upload);
+            ServerLog.warn("Graph upload failed", "name", name, "reason", ioException.getMessage());
+            return "ERROR: " + ioException.getMessage();
+        }
+    }
+
+    /**
+     * @return true if the name can be a file name in the graph directory (and nothing outside of it)
+     */
+    private static boolean isGraphName(String name) {
+        return name != null && name.matches("[A-Za-z0-9_.-]{1,64}") && !name.startsWith(".");
+    }
+
+    private Path graphFile(String name) {
+        return graphDirectory.resolve(name + ".graph");
+    }
+
+    /**
+     * graph: a loaded graph, or the graph of the graph directory (loaded now), null if there is no such graph.
+     * The file is loaded outside of the map - a large graph takes a while, and a compute of the map would block the other
+     * names of its bin meanwhile. Two requests may load the same graph at once, the first one to finish is kept.
+     */
+    private CsrGraph graph(String name) {
+        if (!isGraphName(name))
+            return null;
+        CsrGraph graph = graphs.get(name);
+        if (graph != null)
+            return graph;
+        Path file = graphFile(name);
+        if (!Files.isRegularFile(file))
+            return null;
+        try {
+            graph = CsrGraph.load(file);
+        } catch (IOException ioException) {
+            ServerLog.warn("Graph can't be loaded", "name", name, "file", file, "reason", String.valueOf(ioException));
+            return null;
+        }
+        CsrGraph loaded = graphs.putIfAbsent(name, graph);
+        if (loaded != null)
+            return loaded; // loaded by another request, or uploaded, meanwhile
+        ServerLog.info("Graph loaded", "name", name, "graph", graph);
+        return graph;
+    }
+
+    /**
+     * searchGraph: runs a task of the "graph" command on the fair scheduler - the same searches as on a matrix,
+     * on a CsrGraph. 2.1/2.2/4.1/4.2 enumerate the paths like on a matrix - on a large graph there are far too many of them,
+     * so auto mode ("2" or "4") uses a SingleSourceSearch (a BFS/Dijkstra that keeps the predecessors of every node) instead,
+     * which is linear in the size of the graph.
+     * @return the answer, or an "ERROR" String if the graph, the task or the nodes don't exist
+     */
+    private Object searchGraph(String name, String task, Integer src, Integer dest, CancellationToken token, long clientId) throws IOException {
+        CsrGraph loaded = graph(name);
+        if (loaded == null)
+            return "ERROR: no graph named " + name;
+        if (src == null || !loaded.containsNode(src) || !task.equals("1") && (dest == null || !loaded.containsNode(dest)))
+            return "ERROR: the graph has nodes 0.." + (loaded.getNodes() - 1);
+        CsrGraph graph = loaded.withEnds(src, task.equals("1") ? -1 : dest);
+        Callable<Object> search;
+        switch (task) {
+            case "1": {
+                ThreadLocalDFSVisit<Integer> threadLocalDFSVisit = new ThreadLocalDFSVisit<>();
+                threadLocalDFSVisit.setCancellationToken(token);
+                search = () -> new HashSet<>(threadLocalDFSVisit.traverse(graph));
+                break;
+            }
+            case "2":
+                search = () -> toNodePaths(SingleSourceSearch.shortestPaths(graph, graph.getOrigin(), token).pathsTo(graph.getDestination()));
+                break;
+            case "2.1": {
+                ThreadLocalBFS<Integer> threadLocalBFS = new ThreadLocalBFS<>();
+                threadLocalBFS.setCancellationToken(token);
+                search = () -> toNodePaths(threadLocalBFS.findShortestPathsBFS(graph, graph.getOrigin(), graph.getDestination()));
+                break;
+            }
+            case "2.2": {
+                ParallelBFS<Integer> parallelBFS = new ParallelBFS<>();
+                parallelBFS.setCancellationToken(token);
+                search = () -> toNodePaths(parallelBFS.findShortestPathsParallelBFS(graph, graph.getOrigin(), graph.getDestination()));
+                break;
+            }
+            case "4":
+                search = () -> {
+                    SingleSourceSearch<Integer> lightest = SingleSourceSearch.lightestPaths(graph, graph.getOrigin(), token);
+                    if (lightest != null)
+                        return toNodePaths(lightest.pathsTo(graph.getDestination()));
+                    ThreadLocalBellmanFord<Integer> threadLocalBellmanFord = new ThreadLocalBellmanFord<>(); // negative weights
+                    threadLocalBellmanFord.setCancellationToken(token);
+                    return toNodePaths(threadLocalBellmanFord.findLightestPathsBellmanFord(graph, graph.getOrigin(), graph.getDestination()));
+                };
+                break;
+            case "4.1": {
+                ThreadLocalBellmanFord<Integer> threadLocalBellmanFord = new ThreadLocalBellmanFord<>();
+                threadLocalBellmanFord.setCancellationToken(token);
+                search = () -> toNodePaths(threadLocalBellmanFord.findLightestPathsBellmanFord(graph, graph.getOrigin(), graph.getDestination()));
+                break;
+            }
+            case "4.2": {
+                ParallelBellmanFord<Integer> parallelBellmanFord = new ParallelBellmanFord<>();
+                parallelBellmanFord.setCancellationToken(token);
+                search = () -> toNodePaths(parallelBellmanFord.findLightestPathsParallelBellmanFord(graph, graph.getOrigin(), graph.getDestination()));
+                break;
+            }
+            default:
+                return "ERROR: unknown graph task " + task;
+        }
+        ServerLog.request("Graph task " + task + " is running", "graph", name, "size", graph, "source", src, "destination", dest);
+        String key = "graph " + task;
+        metrics.requestStarted();
+        try {
+            Object answer = compute(clientId, task, graph.getEdges(), metrics.timed(key, search));
+            metrics.recordRequest(key, graph.getEdges(), token.isTimedOut() ? ServerMetrics.Outcome.TIMEOUT : ServerMetrics.Outcome.OK);
+            ServerLog.request("Graph task " + task + " finished", "results", ServerEvents.sizeOf(answer));
+            return answer;
+        } catch (IOException | RuntimeException exception) {
+            metrics.recordRequest(key, graph.getEdges(), ServerMetrics.Outcome.ERROR);
+            throw exception;
+        } finally {
+            metrics.requestEnded();
+        }
+    }
+
+    /**
+     * @return the paths with their node ids - a Node keeps a reference to its parent, we don't want to send those
+     */
+    private static List<List<Integer>> toNodePaths(List<List<Node<Integer>>> paths) {
+        List<List<Integer>> nodePaths = new ArrayList<>(paths.size());
+        for (List<Node<Integer>> path : paths) {
+            List<Integer> nodePath = new ArrayList<>(path.size());
+            for (Node<Integer> node : path)
+                nodePath.add(node.getData());
+            nodePaths.add(nodePath);
+        }
+        return nodePaths;
+    }
+
+    /**
+     * @return the name of the request in the metrics - its task, "batch 2"/"batch 4" for a batch
+     */
+    private static String metricsKey(MatrixRequest request) {
+        return request.getPairs() != null ? "batch " + request.getTask() : request.getTask();
+    }
+
+    private static long cellsOf(MatrixRequest request) {
+        return (long) request.getRows() * request.getColumns();
+    }
+
+    /**
+     * readObjectRequest: reads the input objects of a task in the object protocol
+     * @param task the task the client chose
+     * @param objectInputStream the stream of the client
+     * @return the request, or null if the task is unknown
+     */
+    private MatrixRequest readObjectRequest(String task, ObjectInputStream objectInputStream) throws IOException, ClassNotFoundException {
+        switch (task) {
+            case "1":
+            case "3": {
+                Object matrix = objectInputStream.readObject();
+                if (!(matrix instanceof String))
+                    return new MatrixRequest(task, Matrix.wrap((int[][]) matrix), null, null);
+                // a stored matrix - its components are kept up to date by its updates, nothing is traversed
+                DynamicComponents components = matrixStore.components((String) matrix);
+                if (components == null)
+                    throw new IOException("No stored matrix named " + matrix);
+                MatrixRequest request = new MatrixRequest(task, components.view(), null, null);
+                request.setComponents(components);
+                return request;
+            }
+            case "batch": {
+                String pathTask = objectInputStream.readObject().toString();
+                MatrixRequest request = new MatrixRequest(pathTask, readMatrix(objectInputStream), null, null);
+                request.setPairs((Index[][]) objectInputStream.readObject());
+                return request;
+            }
+            case "2":
+            case "2.1":
+            case "2.2":
+            case "4":
+            case "4.1":
+            case "4.2": {
+                Object matrix = objectInputStream.readObject();
+                Index src, dest;
+                src=(Index)objectInputStream.readObject();
+                dest=(Index)objectInputStream.readObject();
+                MatrixRequest request = new MatrixRequest(task, toMatrix(matrix), src, dest);
+                if (task.equals("4") && matrix instanceof String) // a stored matrix - its lightest weights are repaired by its updates
+                    request.setComponents(matrixStore.components((String) matrix));
+                return request;
+            }
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * readMatrix: reads the matrix of a task - an int[][], or the name of a matrix of the MatrixStore
+     */
+    private Matrix readMatrix(ObjectInputStream objectInputStream) throws IOException, ClassNotFoundException {
+        return toMatrix(objectInputStream.readObject());
+    }
+
+    /**
+     * toMatrix: the matrix of a task - an int[][] as it is, or a name that is looked up in the MatrixStore
+     */
+    private Matrix toMatrix(Object matrix) throws IOException {
+        if (matrix instanceof String) {
+            Matrix stored = matrixStore.get((String) matrix);
+            if (stored == null)
+                throw new IOException("No stored matrix named " + matrix);
+            return stored;
+        }
+        // the array was just deserialized and nobody else holds it - no need to clone its rows
+        return Matrix.wrap((int[][]) matrix);
+    }
+
+    /**
+     * storeMatrix: the "store" command - saves a named matrix with its component labels
+     * @return "OK" and the size of the matrix, or "ERROR" and the reason
+     */
+    private String storeMatrix(String name, int[][] primitiveMatrix) {
+        if (!MatrixStore.isName(name))
+            return "ERROR: a matrix name is 1-64 letters, digits, '_', '.' or '-'";
+        try {
+            Matrix stored = matrixStore.save(name, Matrix.wrap(primitiveMatrix));
+            ServerLog.info("Matrix stored", "name", name, "matrix", ServerLog.lazy(stored::summary),
+                    "components", stored.getComponentIndex().getComponents());
+            return "OK: " + stored.getRows() + "x" + stored.getColumns() + ", " + stored.getComponentIndex().getComponents() + " components";
+        } catch (IOException | RuntimeException exception) {
+            ServerLog.warn("Storing a matrix failed", "name", name, "reason", exception.getMessage());
+            return "ERROR: " + exception.getMessage();
+        }
+    }
+
+    /**
+     * updateMatrix: the "update" command - changes cells of a stored matrix, its components follow the change
+     * @param changes {row, column, value} for every cell
+     * @return "OK" with the number of changed cells, components and battleships, or "ERROR" and the reason
+     */
+    private String updateMatrix(String name, int[][] changes) {
+        try {
+            DynamicComponents components = matrixStore.update(name, changes);
+            if (components == null)
+                return "ERROR: no stored matrix named " + name;
+            ServerLog.request("Matrix updated", "name", name, "cells", changes.length, "version", components.getVersion());
+            return "OK: version " + components.getVersion() + ", " + components.getComponents() + " components, "
+                    + components.getBattleships() + " battleships";
+        } catch (IOException | RuntimeException exception) {
+            ServerLog.warn("Updating a matrix failed", "name", name, "reason", exception.getMessage());
+            return "ERROR: " + exception.getMessage();
+        }
+    }
+
+    /**
+     * componentIndexOf: the ComponentIndex of a matrix - the one that was stored with it, or the one of the cache
+     */
+    private ComponentIndex componentIndexOf(Matrix matrix) {
+        if (matrix.getComponentIndex() != null) {
+            metrics.recordCache("componentIndex", true);
+            return matrix.getComponentIndex();
+        }
+        return componentIndexes.get(matrix, metrics);
+    }
+
+    /**
+     * execute: computes the answer of a single request, whichever protocol it came from
+     * @param request the request of the client
+     * @param token the cancellation token of this task
+     * @param clientId the client connection the task belongs to
+     * @return the answer for the client
+     */
+    private Object execute(MatrixRequest request, CancellationToken token, long clientId) throws IOException {
+        String task = request.getTask();
+        Matrix matrix = request.getMatrix();
           //We use switch-case in order to get commands from client (each task has a case).
 
-            switch (objectInputStream.readObject().toString()){
+            switch (task){
 
                 case "1":{ //Find all strongly connected components
-                    //we convert 2D array to primitive matrix
-                    int[][] primitiveMatrix = (int[][])objectInputStream.readObject();
-                    System.out.println("Task 1 - Find all strongly connected components is running...\nServer: Got 2d array from client");
+                    ServerLog.request("Task 1 - Find all strongly connected components is running", "matrix", ServerLog.lazy(matrix::summary));
                     List<HashSet<Index>> listOFSCCs;
                     //calling method will find the SCCs
                     ThreadLocalDFSVisit threadLocalDFSVisit=new ThreadLocalDFSVisit();
-                    listOFSCCs=threadLocalDFSVisit.findSCCs(primitiveMatrix);
-                    //transfers to client the answer
-                    objectOutputStream.writeObject(listOFSCCs);
-                    System.out.println("Task 1 finished\n");
-                    break;
+                    threadLocalDFSVisit.setCancellationToken(token);
+                    threadLocalDFSVisit.setSearchStats(searchStatsOf(request));
+                    // a matrix for the workers of the ShardCoordinator doesn't get here - see executeSharded
+                    if (request.getComponents() != null) // a stored matrix - only the components that changed are built
+                        listOFSCCs = compute(clientId, task, request.getComponents().getComponents(), request.getComponents()::getComponentSets);
+                    else
+                        listOFSCCs=compute(clientId, task, matrix, () -> threadLocalDFSVisit.findSCCs(matrix));
+                    ServerLog.request("Task 1 finished", "components", listOFSCCs.size());
+                    return listOFSCCs;
                 }
 
-                case "2.1": { //Find all shortest paths from source to destination
-                    int[][] primitiveMatrix = (int[][]) objectInputStream.readObject();
-                    System.out.println("Task 2.1 - Find all shortest paths from source to destination is running...\nServer: Got 2d array from client");
-                    this.matrix=new Matrix(primitiveMatrix);
-                    matrix.printMatrix();
-                    Index src, dest;
-                    src=(Index)objectInputStream.readObject();
-                    System.out.println("From client - source index is: "+ src);
-                    dest=(Index)objectInputStream.readObject();
-                    System.out.println("From client - destination index is: "+ dest);
-                    TraversableMatrix traversable21 = new TraversableMatrix(this.matrix);
-                    traversable21.setStartIndex(src);
-                    traversable21.setEndIndex(dest);
-                    ThreadLocalBFS threadLocalBFS = new ThreadLocalBFS();
-                    List<List<Index>> minPaths;
-                    minPaths = threadLocalBFS.findShortestPathsBFS(traversable21,traversable21.getOrigin(),traversable21.getDestination());
-                    objectOutputStream.writeObject(minPaths);
-                    System.out.println("Task 2.1 finished\n");
-                    break;
+                case "3":{ //Find number of battleships
+                    ServerLog.request("Task 3 - Find number of battleships is running", "matrix", ServerLog.lazy(matrix::summary));
+                    ThreadLocalDFSVisit<Index> threadLocalDFSVisit = new ThreadLocalDFSVisit<>();
+                    threadLocalDFSVisit.setCancellationToken(token);
+                    threadLocalDFSVisit.setSearchStats(searchStatsOf(request));
+                    int size = request.getComponents() != null ? request.getComponents().getBattleships()
+                            : compute(clientId, task, matrix, () -> {
+                        List<HashSet<Index>> listOFHashsets=threadLocalDFSVisit.findSCCs(matrix);//list of SCC
+                        return threadLocalDFSVisit.battleshipCheck(listOFHashsets, matrix);
+                    });
+                    ServerLog.request("Task 3 finished", "battleships", size);
+                    return size;
                 }
 
-                case "2.2": { //*Parallel* Find all shortest paths from source to destination
-                    int[][] primitiveMatrix = (int[][]) objectInputStream.readObject();
-                    System.out.println("Task 2.2 - Parallel - Find all shortest paths from source to destination is running...\nServer: Got 2d array from client");
-                    this.matrix=new Matrix(primitiveMatrix);
-                    matrix.printMatrix();
-                    Index src, dest;
-                    src=(Index)objectInputStream.readObject();
-                    System.out.println("From client - source index is: "+ src);
-                    dest=(Index)objectInputStream.readObject();
-                    System.out.println("From client - destination index is: "+ dest);
-                    TraversableMatrix traversable22 = new TraversableMatrix(this.matrix);
-                    traversable22.setStartIndex(src);
-                    traversable22.setEndIndex(dest);
-                    ParallelBFS parallelBFS = new ParallelBFS();
-                    List<List<Index>> minPaths;
-                    minPaths = parallelBFS.findShortestPathsParallelBFS(traversable22,traversable22.getOrigin(),traversable22.getDestination());
-                    objectOutputStream.writeObject(minPaths);
-                    System.out.println("Task 2.2 finished\n");
-                    break;
-                }
+                default: //Tasks 2 and 4 - find all shortest/lightest paths from source to destination
+                    if (request.getComponents() != null) { // task 4 on a stored matrix - its lightest weights are kept up to date
+                        DynamicComponents components = request.getComponents();
+                        Index src = request.getSource(), dest = request.getDestination();
+                        ServerLog.request("Task 4 - Find all lightest paths from source to destination is running on the kept weights",
+                                "matrix", ServerLog.lazy(matrix::summary), "source", src, "destination", dest);
+                        List<List<Index>> paths = compute(clientId, task, matrix, () -> components.lightestPaths(src, dest, token));
+                        if (paths != null) {
+                            ServerLog.request("Task 4 finished", "paths", paths.size());
+                            return paths;
+                        }
+                        // negative weights - Dijkstra can't keep them, the matrix is searched as usual
+                    }
+                    return findPaths(task, matrix, request.getSource(), request.getDestination(), token, clientId, searchStatsOf(request));
+            }
+    }
 
-                case "3":{ //Find number of battleships
+    /**
+     * encodePaths: turns the paths of tasks 2 and 4 into CompactPaths if the client asked for it
+     * @param request the request of the client
+     * @param result the answer of the request
+     * @return the answer to send
+     */
+    private Object encodePaths(MatrixRequest request, Object result) {
+        if (!request.isCompactPaths() || !(request.getTask().startsWith("2") || request.getTask().startsWith("4")))
+            return result;
+        if (request.getPairs() == null) {
+            @SuppressWarnings("unchecked") // the paths of task 2 or 4
+            List<List<Index>> paths = (List<List<Index>>) result;
+            return encodePaths(paths, request.getColumns(), request.isSharedPrefixes());
+        }
+        @SuppressWarnings("unchecked") // a batch - the paths of every pair
+        List<List<List<Index>>> pairAnswers = (List<List<List<Index>>>) result;
+        List<Object> answers = new ArrayList<>(); // every pair is encoded on its own
+        for (List<List<Index>> answer : pairAnswers)
+            answers.add(encodePaths(answer, request.getColumns(), request.isSharedPrefixes()));
+        return answers;
+    }
 
-                    int[][] primitiveMatrix = (int[][]) objectInputStream.readObject();//the matrix that we send(now we read)
-                    System.out.println("Task 3 - Find number of battleships is running...\nServer: Got 2d array from client");
-                    List<HashSet<Index>> listOFHashsets;
-                    ThreadLocalDFSVisit<Index> threadLocalDFSVisit = new ThreadLocalDFSVisit<>();
-                    listOFHashsets=threadLocalDFSVisit.findSCCs(primitiveMatrix);//list of SCC
-                    int size = threadLocalDFSVisit.battleshipCheck(listOFHashsets, primitiveMatrix);
-                    objectOutputStream.writeObject(size);
-                    System.out.println("Task 3 finished\n");
-                    break;
-                }
+    private static Object encodePaths(List<List<Index>> paths, int columns, boolean sharedPrefixes) {
+        CompactPaths compactPaths = CompactPaths.encode(paths, columns, sharedPrefixes);
+        if (compactPaths == null) // not a chain of neighbors - can't happen with the searches of the server, but keep the answer correct
+            return paths;
+        long cells = 0;
+        for (List<Index> path : paths)
+            cells += path.size();
+        ServerLog.debug("Paths encoded", "paths", paths.size(), "cells", cells, "bytes", compactPaths.getEncoded().length);
+        return compactPaths;
+    }
 
-                case "4.1":{ //Find all lightest paths from source to destination
-                    int[][] primitiveMatrix = (int[][])objectInputStream.readObject();
-                    System.out.println("Task 4.1 - Find all lightest paths from source to destination is running...\nServer: Got 2d array from client");
-                    this.matrix=new Matrix(primitiveMatrix);
-                    matrix.printMatrix();
-                    Index src, dest;
-                    src=(Index)objectInputStream.readObject();
-                    System.out.println("From client - source index is: "+ src);
-                    dest=(Index)objectInputStream.readObject();
-                    System.out.println("From client - destination index is: "+ dest);
-                    TraversableMatrix traversable41 = new TraversableMatrix(this.matrix);
-                    traversable41.setStartIndex(src);
-                    traversable41.setEndIndex(dest);
-                    ThreadLocalBellmanFord threadLocalBellmanFord = new ThreadLocalBellmanFord();
-                    List<List<Index>> minWeightList;
-                    minWeightList = threadLocalBellmanFord.findLightestPathsBellmanFord(traversable41, traversable41.getOrigin(), traversable41.getDestination());
-                    objectOutputStream.writeObject(minWeightList);
-                    System.out.println("Task 4.1 finished\n");
-                    break;
+    /**
+     * executeBatch: computes task 2 or 4 for many (source, destination) pairs on the same matrix.
+     * The pairs are grouped by their source and every group is a single SingleSourceSearch - the groups run in parallel
+     * on the fair scheduler (each one is a separate task of the client), and the answers are collected in the order of the pairs.
+     * Matrices with negative weights can't use Dijkstra, so task 4 on them falls back to a ThreadLocalBellmanFord search per pair.
+     * @param request the batch request - its task is "2" or "4" (or one of their variants - they give the same answer)
+     * @param token the cancellation token of this task
+     * @param clientId the client connection the task belongs to
+     * @return for every pair - all its shortest/lightest paths (completed when the last group finishes)
+     */
+    private CompletableFuture<List<List<List<Index>>>> executeBatch(MatrixRequest request, CancellationToken token, long clientId) {
+        String task = request.getTask();
+        boolean lightest = task.startsWith("4");
+        Index[][] pairs = request.getPairs();
+        Map<Index, List<Integer>> pairsBySource = new LinkedHashMap<>();
+        for (int i = 0; i < pairs.length; i++)
+            pairsBySource.computeIfAbsent(pairs[i][0], source -> new ArrayList<>()).add(i);
+        ServerLog.request("Batch is running", "task", task, "pairs", pairs.length, "sources", pairsBySource.size(), "matrix", ServerLog.lazy(request.getMatrix()::summary));
+        Matrix matrix = request.getMatrix();
+        long cost = FairScheduler.estimateCost(task, (long) matrix.getRows() * matrix.getColumns());
+        // a single scan of the cells - so no group starts a Dijkstra search only to find a negative weight in the middle of it
+        boolean negativeWeights = lightest && matrix.hasNegativeValues();
+        List<Callable<Map<Integer, List<List<Index>>>>> groups = new ArrayList<>();
+        // every group counts into its own SearchStats - they are added up when all the groups finished
+        List<SearchStats> groupStats = new ArrayList<>();
+        for (Map.Entry<Index, List<Integer>> group : pairsBySource.entrySet()) {
+            SearchStats searchStats = new SearchStats();
+            groupStats.add(searchStats);
+            groups.add(ServerEvents.traced(request, clientId, group.getValue().size(), searchStats.measured(() -> {
+                token.start(); // the first group starts the deadline of a token of withTimeoutOnStart
+                TraversableMatrix traversable = new TraversableMatrix(matrix);
+                traversable.setStartIndex(group.getKey());
+                Node<Index> source = traversable.getOrigin();
+                SingleSourceSearch<Index> search = negativeWeights ? null : lightest ? SingleSourceSearch.lightestPaths(traversable, source, token)
+                        : SingleSourceSearch.shortestPaths(traversable, source, token);
+                Map<Integer, List<List<Index>>> answers = new HashMap<>();
+                for (int pair : group.getValue()) {
+                    List<List<Node<Index>>> paths;
+                    if (search != null)
+                        paths = search.pathsTo(new Node<>(pairs[pair][1]));
+                    else { // negative weights
+                        ThreadLocalBellmanFord<Index> threadLocalBellmanFord = new ThreadLocalBellmanFord<>();
+                        threadLocalBellmanFord.setCancellationToken(token);
+                        threadLocalBellmanFord.setSearchStats(searchStats);
+                        paths = threadLocalBellmanFord.findLightestPathsBellmanFord(traversable, source, new Node<>(pairs[pair][1]));
+                    }
+                    answers.put(pair, toIndexPaths(paths));
                 }
+                if (search != null)
+                    searchStats.add(search.getSearchStats());
+                return answers;
+            })));
+        }
+        List<CompletableFuture<Map<Integer, List<List<Index>>>>> futures = new ArrayList<>();
+        for (Callable<Map<Integer, List<List<Index>>>> group : groups)
+            futures.add(scheduler.submitAsync(clientId, cost, metrics.timed(metricsKey(request), group)));
+        // no thread waits for the groups - the compute thread that finishes the last group collects the answers
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(allDone -> {
+            List<List<List<Index>>> answers = new ArrayList<>(Collections.nCopies(pairs.length, Collections.emptyList()));
+            for (CompletableFuture<Map<Integer, List<List<Index>>>> group : futures)
+                for (Map.Entry<Integer, List<List<Index>>> answer : group.join().entrySet())
+                    answers.set(answer.getKey(), answer.getValue());
+            if (request.getSearchStats() != null)
+                for (SearchStats searchStats : groupStats)
+                    request.getSearchStats().add(searchStats);
+            ServerLog.request("Batch finished", "task", task, "pairs", pairs.length);
+            return answers;
+        });
+    }
 
-                case "4.2":{ //Find all lightest paths from source to destination
-                    int[][] primitiveMatrix = (int[][])objectInputStream.readObject();
-                    System.out.println("Task 4.2 - Parallel - Find all lightest paths from source to destination is running...\nServer: Got 2d array from client");
-                    this.matrix=new Matrix(primitiveMatrix);
-                    matrix.printMatrix();
-                    Index src, dest;
-                    src=(Index)objectInputStream.readObject();
-                    System.out.println("From client - source index is: "+ src);
-                    dest=(Index)objectInputStream.readObject();
-                    System.out.println("From client - destination index is: "+ dest);
-                    TraversableMatrix traversable42 = new TraversableMatrix(this.matrix);
-                    traversable42.setStartIndex(src);
-                    traversable42.setEndIndex(dest);
-                    ParallelBellmanFord parallelBellmanFord = new ParallelBellmanFord();
-                    LinkedList<List<Index>> minWeightList;
-                    minWeightList = parallelBellmanFord.findLightestPathsParallelBellmanFord(traversable42, traversable42.getOrigin(), traversable42.getDestination());
-                    objectOutputStream.writeObject(minWeightList);
-                    System.out.println("Task 4.2 finished\n");
-                    break;
-                }
+    /**
+     * @return the paths with their indexes - a Node keeps a reference to its parent, we don't want to send those
+     */
+    private static List<List<Index>> toIndexPaths(List<List<Node<Index>>> paths) {
+        List<List<Index>> indexPaths = new ArrayList<>(paths.size());
+        for (List<Node<Index>> path : paths) {
+            List<Index> indexPath = new ArrayList<>(path.size());
+            for (Node<Index> node : path)
+                indexPath.add(node.getData());
+            indexPaths.add(indexPath);
+        }
+        return indexPaths;
+    }
 
-                case "stop":{
-                    doWork = false;
-                    break;
-                }
+    /**
+     * findPaths: computes tasks 2 and 4 - all the shortest paths (2.x) or all the lightest paths (4.x) from source to destination.
+     * In "auto" mode (task "2" or "4") the AlgorithmSelector chooses the sequential or the parallel implementation by the cost of the request.
+     * Task 2 first looks the pair up in the ComponentIndex of the matrix: a pair in different components is answered right away,
+     * and the search of any other pair walks only the component of the destination, and is estimated by the size of that component.
+     * @param task the task the client chose
+     * @param matrix the matrix of the request
+     * @param src source index
+     * @param dest destination index
+     * @param token the cancellation token of this task
+     * @param clientId the client connection the task belongs to
+     * @param searchStats the counters of the search
+     * @return all the shortest/lightest paths
+     */
+    private List<List<Index>> findPaths(String task, Matrix matrix, Index src, Index dest, CancellationToken token, long clientId, SearchStats searchStats) throws IOException {
+        ComponentIndex componentIndex = null;
+        int component = ComponentIndex.UNRESTRICTED;
+        if (task.startsWith("2")) {
+            componentIndex = componentIndexOf(matrix);
+            component = componentIndex.pathComponent(src, dest);
+            if (component == ComponentIndex.NO_PATH) {
+                ServerLog.request("No path exists between the source and the destination", "source", src, "destination", dest,
+                        "components", componentIndex.getComponents());
+                return new ArrayList<>();
             }
         }
+        if (task.equals("2") || task.equals("4")) {
+            String chosen = component > 0 ? algorithmSelector.select(componentIndex, component) : algorithmSelector.select(task, matrix);
+            ServerLog.request("Auto mode chose an implementation", "task", task, "chosen", chosen);
+            task = chosen;
+        }
+        ServerLog.request("Task " + task + " - " + describePathTask(task) + " is running", "matrix", ServerLog.lazy(matrix::summary),
+                "source", src, "destination", dest);
+        ServerLog.debug("Matrix cells", "task", task, "cells", ServerLog.lazy(matrix::toString));
+        TraversableMatrix traversable = new TraversableMatrix(matrix);
+        traversable.setStartIndex(src);
+        traversable.setEndIndex(dest);
+        if (component > 0)
+            traversable.restrictTo(componentIndex, component);
+        Callable<List<List<Index>>> search;
+        switch (task) {
+            case "2.1": {
+                ThreadLocalBFS threadLocalBFS = new ThreadLocalBFS();
+                threadLocalBFS.setCancellationToken(token);
+                threadLocalBFS.setSearchStats(searchStats);
+                search = () -> threadLocalBFS.findShortestPathsBFS(traversable,traversable.getOrigin(),traversable.getDestination());
+                break;
+            }
+            case "2.2": {
+                ParallelBFS parallelBFS = new ParallelBFS();
+                parallelBFS.setCancellationToken(token);
+                parallelBFS.setSearchStats(searchStats);
+                search = () -> parallelBFS.findShortestPathsParallelBFS(traversable,traversable.getOrigin(),traversable.getDestination());
+                break;
+            }
+            case "4.1": {
+                ThreadLocalBellmanFord threadLocalBellmanFord = new ThreadLocalBellmanFord();
+                threadLocalBellmanFord.setCancellationToken(token);
+                threadLocalBellmanFord.setSearchStats(searchStats);
+                search = () -> threadLocalBellmanFord.findLightestPathsBellmanFord(traversable, traversable.getOrigin(), traversable.getDestination());
+                break;
+            }
+            default: {
+                ParallelBellmanFord parallelBellmanFord = new ParallelBellmanFord();
+                parallelBellmanFord.setCancellationToken(token);
+                parallelBellmanFord.setSearchStats(searchStats);
+                search = () -> parallelBellmanFord.findLightestPathsParallelBellmanFord(traversable, traversable.getOrigin(), traversable.getDestination());
+            }
+        }
+        long cells = component > 0 ? componentIndex.boxCellsOf(component) : (long) matrix.getRows() * matrix.getColumns();
+        List<List<Index>> paths = compute(clientId, task, cells, search);
+        ServerLog.request("Task " + task + " finished", "paths", paths.size());
+        return paths;
+    }
+
+    private static String describePathTask(String task) {
+        switch (task) {
+            case "2.1": return "Find all shortest paths from source to destination";
+            case "2.2": return "Parallel - Find all shortest paths from source to destination";
+            case "4.1": return "Find all lightest paths from source to destination";
+            default:    return "Parallel - Find all lightest paths from source to destination";
+        }
+    }
+
+    /**
+     * @return true if the client asked to stream the answer and the task produces its results one by one (tasks 1, 2 and 4)
+     */
+    private static boolean isStreamed(MatrixRequest request) {
+        return request.getChunkSize() > 0 && !request.getTask().equals("3");
+    }
+
+    /**
+     * stream: computes a streamed request - the search runs on the fair scheduler and hands every result to a ResultStream,
+     * and this (connection) thread sends the chunks of the stream while the search goes on.
+     * @param request the request of the client
+     * @param token the cancellation token of this task
+     * @param clientId the client connection the task belongs to
+     * @param chunkWriter sends a chunk to the client
+     * @return the number of results that were sent
+     */
+    private long stream(MatrixRequest request, CancellationToken token, long clientId, ChunkWriter chunkWriter) throws IOException {
+        String task = request.getTask();
+        ServerLog.request("Task " + task + " is streamed", "chunkSize", request.getChunkSize(), "matrix", ServerLog.lazy(request.getMatrix()::summary));
+        ResultStream<Object> results = new ResultStream<>(request.getChunkSize(), token);
+        long cells = (long) request.getRows() * request.getColumns();
+        if (request.isSearchStatsRequested())
+            request.setSearchStats(new SearchStats());
+        Future<Void> search = scheduler.submit(clientId, FairScheduler.estimateCost(task, cells), metrics.timed(metricsKey(request), ServerEvents.traced(request, clientId, 0, measured(request, () -> {
+            try {
+                produce(request, token, results::add);
+            } finally {
+                results.finish();
+            }
+            return null;
+        }))));
+        long sent = 0;
+        try {
+            for (List<Object> chunk = results.nextChunk(); chunk != null; chunk = results.nextChunk()) {
+                chunkWriter.write(encodePaths(request, chunk));
+                sent += chunk.size();
+            }
+        } catch (IOException ioException) {
+            token.cancel(); // nobody reads the answer anymore - stop the search
+            throw ioException;
+        }
+        await(task, search);
+        ServerLog.request("Task " + task + " finished", "streamed", sent);
+        return sent;
+    }
+
+    /**
+     * produce: runs the streaming variant of a search - the sequential implementations, because the parallel ones
+     * find all the paths before they filter them, so they have nothing to send until the end.
+     * @param onResult receives the components (task 1) or the paths (tasks 2 and 4) one by one
+     */
+    private void produce(MatrixRequest request, CancellationToken token, Consumer<Object> onResult) {
+        String task = request.getTask();
+        Matrix matrix = request.getMatrix();
+        if (task.equals("1") && request.getComponents() != null) {
+            for (HashSet<Index> component : request.getComponents().getComponentSets())
+                onResult.accept(component);
+            return;
+        }
+        if (task.equals("1")) {
+            ThreadLocalDFSVisit<Index> threadLocalDFSVisit = new ThreadLocalDFSVisit<>();
+            threadLocalDFSVisit.setCancellationToken(token);
+            threadLocalDFSVisit.setSearchStats(searchStatsOf(request));
+            threadLocalDFSVisit.findSCCs(matrix, onResult::accept);
+            return;
+        }
+        TraversableMatrix traversable = new TraversableMatrix(matrix);
+        traversable.setStartIndex(request.getSource());
+        traversable.setEndIndex(request.getDestination());
+        if (task.startsWith("2")) {
+            ComponentIndex componentIndex = componentIndexOf(matrix);
+            int component = componentIndex.pathComponent(request.getSource(), request.getDestination());
+            if (component == ComponentIndex.NO_PATH)
+                return;
+            if (component > 0)
+                traversable.restrictTo(componentIndex, component);
+            ThreadLocalBFS<Index> threadLocalBFS = new ThreadLocalBFS<>();
+            threadLocalBFS.setCancellationToken(token);
+            threadLocalBFS.setSearchStats(searchStatsOf(request));
+            threadLocalBFS.findShortestPathsBFS(traversable, traversable.getOrigin(), traversable.getDestination(), onResult::accept);
+        } else {
+            ThreadLocalBellmanFord<Index> threadLocalBellmanFord = new ThreadLocalBellmanFord<>();
+            threadLocalBellmanFord.setCancellationToken(token);
+            threadLocalBellmanFord.setSearchStats(searchStatsOf(request));
+            threadLocalBellmanFord.findLightestPathsBellmanFord(traversable, traversable.getOrigin(), traversable.getDestination(), onResult::accept);
+        }
+    }
+
+    /**
+     * compute: runs the computation of a task on the fair scheduler and waits for its answer.
+     * @param clientId the client connection the task belongs to
+     * @param task the task id - the scheduler estimates the cost of the task by it and by the size of the matrix
+     * @param matrix the matrix of the task
+     * @param work the computation
+     * @return the answer of the computation
+     */
+    private <V> V compute(long clientId, String task, Matrix matrix, Callable<V> work) throws IOException {
+        return compute(clientId, task, (long) matrix.getRows() * matrix.getColumns(), work);
+    }
+
+    /**
+     * @param cells the part of the matrix the computation walks (rows * columns, or less if it is known to stay in a part of it)
+     */
+    private <V> V compute(long clientId, String task, long cells, Callable<V> work) throws IOException {
+        if (FairScheduler.isComputeThread()) // a multiplexed request - it already waited for its turn in the fair queue
+            return runInline(work);
+        return await(task, scheduler.submit(clientId, FairScheduler.estimateCost(task, cells), work));
+    }
+
+    private static <V> V runInline(Callable<V> work) throws IOException {
+        try {
+            return work.call();
+        } catch (RuntimeException | IOException exception) {
+            throw exception;
+        } catch (Exception exception) {
+            throw new IOException(exception);
+        }
+    }
+
+    /**
+     * await: waits for a computation that was submitted to the fair scheduler
+     * @return the answer of the computation
+     */
+    private static <V> V await(String task, Future<V> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException interruptedException) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for task " + task);
+        } catch (ExecutionException executionException) {
+            // rethrow the failure of the computation as if it happened in this thread
+            Throwable cause = executionException.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IOException(cause);
+        }
     }
 }
@@ -0,0 +1,133 @@
+/**
+ * This class is the layer of the element-wise scans over the cells of a matrix - the loops that read every cell and do
+ * almost nothing with it: the '1' cells (findAllOnes), the '0' cells of a rectangle (battleshipCheck), the negative weights
+ * (task 4), the hash of Matrix.summary() and the bitmap of the '1' cells (ComponentIndex, MatrixStore).
+ *
+ * Every kernel works on a run of ints - a row of the matrix - so it is written once for both kinds of Matrix storage.
+ * There are two implementations:
+ *  - the scalar one (this class): a plain loop per kernel, it runs everywhere
+ *  - VectorMatrixKernels (the "vector" module, vector/vector.iml): the same kernels with the Vector API (jdk.incubator.vector) -
+ *    a compare of 8 or 16 cells at a time (AVX2 / AVX-512) into a mask, that is counted, tested or copied into the bitmap.
+ *    The module is incubating in Java 17, so it must be added to the JVM: java --add-modules jdk.incubator.vector
+ * get() picks the vector kernels when they can be loaded (the class is on the classpath and the module was added), and the
+ * scalar ones otherwise - the results are the same, only the speed differs.
+ *
+ * Settings (system property):
+ *  - matrix.kernels: auto (default) - vector if possible, scalar - always the scalar kernels, vector - fails if it isn't possible
+ */
+public class MatrixKernels {
+
+    public static final String KERNELS_PROPERTY = "matrix.kernels";
+    private static final String VECTOR_KERNELS = "VectorMatrixKernels";
+
+    private static final MatrixKernels SCALAR = new MatrixKernels();
+    private static final MatrixKernels INSTANCE = load(System.getProperty(KERNELS_PROPERTY, "auto"));
+
+    protected MatrixKernels() {
+    }
+
+    /**
+     * @return the kernels of this JVM (see matrix.kernels)
+     */
+    public static MatrixKernels get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return the scalar kernels - e.g. for comparing them with get() in a benchmark
+     */
+    public static MatrixKernels scalar() {
+        return SCALAR;
+    }
+
+    private static MatrixKernels load(String kernels) {
+        if (kernels.equals("scalar"))
+            return SCALAR;
+        try {
+            return (MatrixKernels) Class.forName(VECTOR_KERNELS).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError notAvailable) {
+            // the vector module isn't on the classpath, or jdk.incubator.vector wasn't added to the JVM
+            if (kernels.equals("vector"))
+                throw new IllegalStateException("The vector kernels are not available - run with --add-modules jdk.incubator.vector", notAvailable);
+            return SCALAR;
+        }
+    }
+
+    /**
+     * @return the name of the kernels, with the number of cells they handle at a time
+     */
+    public String getName() {
+        return "scalar";
+    }
+
+    /**
+     * count: the number of cells from..to-1 that are equal to the value
+     */
+    public int count(int[] cells, int from, int to, int value) {
+        int count = 0;
+        for (int i = from; i < to; i++)
+            if (cells[i] == value)
+                count++;
+        return count;
+    }
+
+    /**
+     * indexesOf: writes the places of the cells from..to-1 that are equal to the value, in order
+     * @param indexes at least to - from places
+     * @return the number of places that were written
+     */
+    public int indexesOf(int[] cells, int from, int to, int value, int[] indexes) {
+        int found = 0;
+        for (int i = from; i < to; i++)
+            if (cells[i] == value)
+                indexes[found++] = i;
+        return found;
+    }
+
+    /**
+     * contains: is one of the cells from..to-1 equal to the value
+     */
+    public boolean contains(int[] cells, int from, int to, int value) {
+        for (int i = from; i < to; i++)
+            if (cells[i] == value)
+                return true;
+        return false;
+    }
+
+    /**
+     * containsLessThan: is one of the cells from..to-1 less than the bound (e.g. 0 - a negative weight)
+     */
+    public boolean containsLessThan(int[] cells, int from, int to, int bound) {
+        for (int i = from; i < to; i++)
+            if (cells[i] < bound)
+                return true;
+        return false;
+    }
+
+    /**
+     * hash: continues a hash with the cells from..to-1 - the hash of Arrays.hashCode, hash = 31 * hash + cell
+     */
+    public int hash(int hash, int[] cells, int from, int to) {
+        for (int i = from; i < to; i++)
+            hash = 31 * hash + cells[i];
+        return hash;
+    }
+
+    /**
+     * setBitsOf: sets a bit of the bitmap for every cell from..to-1 that is equal to the value -
+     * cell from is bit firstBit (bit firstBit % 64 of long firstBit / 64), the next cell the next bit and so on
+     */
+    public void setBitsOf(int[] cells, int from, int to, int value, long[] bits, long firstBit) {
+        for (int i = from; i < to; i++) {
+            if (cells[i] == value) {
+                long bit = firstBit + i - from;
+                bits[(int) (bit >>> 6)] |= 1L << bit;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+}
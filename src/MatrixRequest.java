@@ -0,0 +1,171 @@
+/**
+ * This class represents a single request of a client - the task, its matrix and its indexes.
+ * Both protocols of the server (Java objects and binary) decode their requests into this class,
+ * so MatrixIHandler executes them the same way.
+ */
+public class MatrixRequest {
+
+    private final String task;
+    private int requestId;
+    private long deadlineMillis; // 0 - the request has no deadline
+    private Matrix matrix;
+    private Index source, destination;
+    private long ingestNanos; // the time it took to read the matrix cells from the connection
+    private long deserializeNanos; // the time it took to decode the whole request
+    private boolean compactPaths;   // answer tasks 2 and 4 with CompactPaths
+    private boolean sharedPrefixes; // and let the compact paths share their prefixes
+    private int chunkSize;          // 0 - the answer is sent whole, otherwise it is streamed in chunks of this many results
+    private Index[][] pairs;        // a batch request - the (source, destination) pairs of task 2 or 4, null - a single request
+    private boolean searchStatsRequested; // send the counters of the search with the answer
+    private SearchStats searchStats;      // the counters of the search of this request, null - nobody asked for them
+    private DynamicComponents components; // tasks 1 and 3 on a stored matrix - its components are already known, null - compute them
+    private String decodeError;           // the frame of the request is malformed - the reason, null - it is well formed
+
+    public MatrixRequest(String task) {
+        this.task = task;
+    }
+
+    public MatrixRequest(String task, Matrix matrix, Index source, Index destination) {
+        this(task);
+        this.matrix = matrix;
+        this.source = source;
+        this.destination = destination;
+    }
+
+    public String getTask() {
+        return task;
+    }
+
+    public int getRequestId() {
+        return requestId;
+    }
+
+    public void setRequestId(int requestId) {
+        this.requestId = requestId;
+    }
+
+    public long getDeadlineMillis() {
+        return deadlineMillis;
+    }
+
+    public void setDeadlineMillis(long deadlineMillis) {
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    public Matrix getMatrix() {
+        return matrix;
+    }
+
+    public void setMatrix(Matrix matrix) {
+        this.matrix = matrix;
+    }
+
+    public Index getSource() {
+        return source;
+    }
+
+    public void setSource(Index source) {
+        this.source = source;
+    }
+
+    public Index getDestination() {
+        return destination;
+    }
+
+    public void setDestination(Index destination) {
+        this.destination = destination;
+    }
+
+    public long getIngestNanos() {
+        return ingestNanos;
+    }
+
+    public void setIngestNanos(long ingestNanos) {
+        this.ingestNanos = ingestNanos;
+    }
+
+    public long getDeserializeNanos() {
+        return deserializeNanos;
+    }
+
+    public void setDeserializeNanos(long deserializeNanos) {
+        this.deserializeNanos = deserializeNanos;
+    }
+
+    public boolean isCompactPaths() {
+        return compactPaths;
+    }
+
+    public void setCompactPaths(boolean compactPaths) {
+        this.compactPaths = compactPaths;
+    }
+
+    public boolean isSharedPrefixes() {
+        return sharedPrefixes;
+    }
+
+    public void setSharedPrefixes(boolean sharedPrefixes) {
+        this.sharedPrefixes = sharedPrefixes;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public Index[][] getPairs() {
+        return pairs;
+    }
+
+    public void setPairs(Index[][] pairs) {
+        this.pairs = pairs;
+    }
+
+    public boolean isSearchStatsRequested() {
+        return searchStatsRequested;
+    }
+
+    public void setSearchStatsRequested(boolean searchStatsRequested) {
+        this.searchStatsRequested = searchStatsRequested;
+    }
+
+    public SearchStats getSearchStats() {
+        return searchStats;
+    }
+
+    public void setSearchStats(SearchStats searchStats) {
+        this.searchStats = searchStats;
+    }
+
+    public DynamicComponents getComponents() {
+        return components;
+    }
+
+    public void setComponents(DynamicComponents components) {
+        this.components = components;
+    }
+
+    public String getDecodeError() {
+        return decodeError;
+    }
+
+    public void setDecodeError(String decodeError) {
+        this.decodeError = decodeError;
+    }
+
+    public int getRows() {
+        return matrix == null ? 0 : matrix.getRows();
+    }
+
+    public int getColumns() {
+        return matrix == null ? 0 : matrix.getColumns();
+    }
+
+    @Override
+    public String toString() {
+        return "Task " + task + " on " + getRows() + "x" + getColumns() + " matrix";
+    }
+}
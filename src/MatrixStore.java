@@ -0,0 +1,416 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32C;
+
+/**
+ * This class keeps named matrices on the local disk, together with everything the server computed from them,
+ * so a restarted server answers them right away instead of waiting for the clients to upload them again.
+ *
+ * Every matrix is a single file (<name>.matrix) that is memory-mapped as it is - nothing is parsed or copied:
+ *  - CELLS:      the cells, row after row, as little-endian ints - the flat layout a buffer-backed Matrix reads
+ *  - ONES:       the '1' cells as a bitmap (little-endian longs, cell row * columns + column is bit cell % 64 of long cell / 64)
+ *  - LABELS:     the component of every cell (ComponentIndex), little-endian ints
+ *  - COMPONENTS: the size of every component, and its bounding box (minRow, minColumn, maxRow, maxColumn), by label
+ * The header (little-endian) is followed by the sections, each one aligned to 8 bytes:
+ *  magic "MXS1" (int), version (int), rows (int), columns (int), components (int), sections (int),
+ *  sections * (offset (long), length (long), CRC32C (int), reserved (int)), CRC32C of all the bytes before it (int)
+ * A file is written to a temporary file and renamed, so a crash never leaves half a matrix behind, and the checksums are
+ * verified when it is opened - a damaged file is refused (and the matrix has to be stored again).
+ *
+ * The store is opened lazily: get(name) maps the file the first time the name is asked for, and keeps the Matrix
+ * (with its ComponentIndex) for the next requests.
+ *
+ * A stored matrix can be changed a few cells at a time (update) - the changes are appended to <name>.updates (row, column,
+ * value - little-endian ints) and then applied to a DynamicComponents of the name, so they cost the size of the change and
+ * not of the matrix. After a restart the log is replayed on the mapped matrix the first time the name is asked for. When the
+ * log grows past matrix.store.compact.bytes (1 MiB by default) it is folded into a new <name>.matrix of the current cells, and
+ * deleted - so the log and its replay stay short. Storing the matrix again (save) replaces both files.
+ */
+public class MatrixStore {
+
+    public static final String DIRECTORY_PROPERTY = "matrix.store.dir";
+    public static final String DEFAULT_DIRECTORY = "matrices";
+    public static final String COMPACT_PROPERTY = "matrix.store.compact.bytes";
+    public static final long DEFAULT_COMPACT_BYTES = 1 << 20;
+
+    static final int MAGIC = 0x3153584D; // "MXS1" in little-endian
+    static final int VERSION = 1;
+    private static final int CELLS = 0, ONES = 1, LABELS = 2, COMPONENTS = 3, SECTIONS = 4;
+    private static final int SECTION_ENTRY_SIZE = 24;
+    private static final int HEADER_SIZE = align(24 + SECTIONS * SECTION_ENTRY_SIZE + 4);
+    private static final String SUFFIX = ".matrix";
+    private static final String UPDATES_SUFFIX = ".updates";
+    private static final int UPDATE_SIZE = 3 * Integer.BYTES;
+
+    private final Path directory;
+    private final Map<String, Matrix> matrices = new ConcurrentHashMap<>();
+    private final Map<String, DynamicComponents> dynamicComponents = new ConcurrentHashMap<>();
+    /**
+     * A lock per name - save, update and delete replace the files of a name, and opening a name reads them, under its lock
+     */
+    private final Map<String, Object> locks = new ConcurrentHashMap<>();
+    /**
+     * The size of a log (in bytes) that is folded into the matrix file of its name
+     */
+    private long compactBytes = DEFAULT_COMPACT_BYTES;
+
+    public MatrixStore(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * fromEnvironment: the store in the directory of the matrix.store.dir system property ("matrices" by default),
+     * that compacts the logs at matrix.store.compact.bytes
+     */
+    public static MatrixStore fromEnvironment() {
+        MatrixStore store = new MatrixStore(Paths.get(System.getProperty(DIRECTORY_PROPERTY, DEFAULT_DIRECTORY)));
+        store.setCompactBytes(Long.getLong(COMPACT_PROPERTY, DEFAULT_COMPACT_BYTES));
+        return store;
+    }
+
+    public void setCompactBytes(long compactBytes) {
+        this.compactBytes = compactBytes;
+    }
+
+    /**
+     * @return true if the name can be a file name in the store directory (and nothing outside of it)
+     */
+    public static boolean isName(String name) {
+        return name != null && name.matches("[A-Za-z0-9_.-]{1,64}") && !name.startsWith(".");
+    }
+
+    /**
+     * save: computes the artifacts of the matrix and writes them with it, replacing a matrix with the same name
+     * @return the stored matrix - backed by the mapping of its file, with its ComponentIndex
+     */
+    public Matrix save(String name, Matrix matrix) throws IOException {
+        if (!isName(name))
+            throw new IllegalArgumentException("A matrix name is 1-64 letters, digits, '_', '.' or '-'");
+        Path temporary = write(name, matrix, ComponentIndex.build(matrix));
+        synchronized (lockOf(name)) {
+            // the log of the old matrix goes first - after a crash between the two, the old matrix is there without its
+            // updates, but the new one never gets the updates of the old one
+            Files.deleteIfExists(updatesOf(name));
+            Files.move(temporary, fileOf(name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            matrices.remove(name);
+            dynamicComponents.remove(name);
+        }
+        return get(name);
+    }
+
+    /**
+     * write: writes the file of a matrix and its artifacts to a temporary file of the store directory
+     * @return the temporary file - the caller renames it to the file of the name
+     */
+    private Path write(String name, Matrix matrix, ComponentIndex componentIndex) throws IOException {
+        int rows = matrix.getRows(), columns = matrix.getColumns();
+        ByteBuffer[] sections = new ByteBuffer[SECTIONS];
+        sections[CELLS] = newSection((long) rows * columns * Integer.BYTES);
+        for (int i = 0; i < rows; i++)
+            for (int j = 0; j < columns; j++)
+                sections[CELLS].putInt(matrix.contains(i, j) ? matrix.getValue(i, j) : 0);
+        long[] ones = ComponentIndex.onesOf(matrix);
+        sections[ONES] = newSection((long) ones.length * Long.BYTES);
+        sections[ONES].asLongBuffer().put(ones);
+        IntBuffer labels = componentIndex.labels();
+        sections[LABELS] = newSection((long) labels.remaining() * Integer.BYTES);
+        sections[LABELS].asIntBuffer().put(labels);
+        int[] sizes = componentIndex.sizes(), boxes = componentIndex.boxes();
+        sections[COMPONENTS] = newSection((long) (sizes.length + boxes.length) * Integer.BYTES);
+        sections[COMPONENTS].asIntBuffer().put(sizes).put(boxes);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(rows).putInt(columns).putInt(componentIndex.getComponents()).putInt(SECTIONS);
+        long offset = HEADER_SIZE;
+        for (ByteBuffer section : sections) {
+            section.clear();
+            header.putLong(offset).putLong(section.capacity()).putInt(checksum(section.duplicate())).putInt(0);
+            offset += align(section.capacity());
+        }
+        header.putInt(checksum(ByteBuffer.wrap(header.array(), 0, header.position())));
+        header.clear();
+
+        Files.createDirectories(directory);
+        Path temporary = Files.createTempFile(directory, name, ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+            writeFully(channel, header, 0);
+            offset = HEADER_SIZE;
+            for (ByteBuffer section : sections) {
+                writeFully(channel, section, offset);
+                offset += align(section.capacity());
+            }
+            channel.force(true);
+        } catch (IOException ioException) {
+            Files.deleteIfExists(temporary);
+            throw ioException;
+        }
+        return temporary;
+    }
+
+    /**
+     * get: a stored matrix - mapped and verified the first time it is asked for.
+     * A matrix that was updated is a snapshot of its current cells (see DynamicComponents.snapshot)
+     * @return the matrix, null if there is no matrix with that name
+     */
+    public Matrix get(String name) throws IOException {
+        if (!isName(name))
+            return null;
+        DynamicComponents updated = dynamicComponents.get(name);
+        if (updated == null && Files.isRegularFile(updatesOf(name)))
+            updated = components(name); // the updates of an earlier run
+        if (updated != null && updated.getVersion() > 0)
+            return updated.snapshot();
+        return mapped(name);
+    }
+
+    /**
+     * components: the components of a stored matrix, kept up to date with its updates - labeled the first time they are
+     * asked for (and the updates of an earlier run are replayed on them)
+     * @return the components, null if there is no matrix with that name
+     */
+    public DynamicComponents components(String name) throws IOException {
+        if (!isName(name))
+            return null;
+        DynamicComponents components = dynamicComponents.get(name);
+        if (components != null)
+            return components;
+        synchronized (lockOf(name)) {
+            components = dynamicComponents.get(name);
+            if (components != null)
+                return components;
+            Matrix stored = mapped(name);
+            if (stored == null)
+                return null;
+            components = new DynamicComponents(stored);
+            replayUpdates(updatesOf(name), components);
+            dynamicComponents.put(name, components);
+            return components;
+        }
+    }
+
+    /**
+     * update: changes cells of a stored matrix - the changes are checked, appended to its log and only then applied, so
+     * the matrix never has a change that its log (and the next run) doesn't
+     * @param changes {row, column, value} for every cell
+     * @return the components of the matrix after the changes, null if there is no matrix with that name
+     * @throws IllegalArgumentException if a change is not a cell of the matrix - nothing is changed then
+     * @throws IOException if the log can't be written - nothing is changed then
+     */
+    public DynamicComponents update(String name, int[][] changes) throws IOException {
+        // under the lock of the name - the log keeps the order in which the changes were applied, and a save of the
+        // name can't replace the matrix between the change and its log
+        synchronized (lockOf(name)) {
+            DynamicComponents components = components(name);
+            if (components == null)
+                return null;
+            components.check(changes);
+            long logBytes = appendUpdates(updatesOf(name), changes);
+            try {
+                components.update(changes);
+            } catch (RuntimeException runtimeException) {
+                // the log has the changes and the components may have a part of them - the next request replays the log
+                dynamicComponents.remove(name);
+                throw runtimeException;
+            }
+            if (logBytes >= compactBytes)
+                compact(name, components);
+            return components;
+        }
+    }
+
+    /**
+     * appendUpdates: appends changes to a log - a write that fails is cut off the log, so it has whole updates only
+     * @return the size of the log
+     */
+    private static long appendUpdates(Path file, int[][] changes) throws IOException {
+        ByteBuffer log = ByteBuffer.allocate(changes.length * UPDATE_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        for (int[] change : changes)
+            log.putInt(change[0]).putInt(change[1]).putInt(change[2]);
+        log.flip();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            long size = channel.size();
+            try {
+                while (log.hasRemaining())
+                    channel.write(log);
+                channel.force(false);
+            } catch (IOException ioException) {
+                channel.truncate(size);
+                throw ioException;
+            }
+            return channel.size();
+        }
+    }
+
+    /**
+     * compact: folds the log of a name into its matrix file - the current cells are written as a new matrix file, that
+     * replaces the old one, and then the log is deleted. A crash between the two replays the log on the new file, which
+     * changes nothing: every change sets a cell to a value, and the new file already has the last value of every cell.
+     * A compaction that fails keeps the log - the update itself is already in it. Called under the lock of the name.
+     */
+    private void compact(String name, DynamicComponents components) {
+        Matrix current = components.snapshot();
+        Path temporary = null;
+        try {
+            temporary = write(name, current, current.getComponentIndex());
+            Files.move(temporary, fileOf(name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            temporary = null;
+            matrices.remove(name);
+            Files.delete(updatesOf(name));
+            ServerLog.info("Stored matrix compacted", "name", name, "version", components.getVersion());
+        } catch (IOException | RuntimeException exception) {
+            ServerLog.warn("The updates of a stored matrix can't be compacted - the log is kept", "name", name,
+                    "reason", String.valueOf(exception));
+            try {
+                if (temporary != null)
+                    Files.deleteIfExists(temporary);
+            } catch (IOException ioException) {
+                ServerLog.warn("A temporary matrix file can't be deleted", "file", temporary, "reason", String.valueOf(ioException));
+            }
+        }
+    }
+
+    /**
+     * replayUpdates: applies the log of a matrix - a change that was cut short by a crash (the end of the file) is ignored
+     */
+    private static void replayUpdates(Path file, DynamicComponents components) throws IOException {
+        if (!Files.isRegularFile(file))
+            return;
+        ByteBuffer log = ByteBuffer.wrap(Files.readAllBytes(file)).order(ByteOrder.LITTLE_ENDIAN);
+        int[][] changes = new int[log.remaining() / UPDATE_SIZE][];
+        for (int i = 0; i < changes.length; i++)
+            changes[i] = new int[]{log.getInt(), log.getInt(), log.getInt()};
+        try {
+            components.update(changes);
+        } catch (IllegalArgumentException illegalArgumentException) {
+            throw new IOException(file + " has changes out of the matrix", illegalArgumentException);
+        }
+    }
+
+    /**
+     * mapped: the matrix of the file of the name, without its updates
+     */
+    private Matrix mapped(String name) throws IOException {
+        Matrix matrix = matrices.get(name);
+        if (matrix != null)
+            return matrix;
+        synchronized (lockOf(name)) {
+            matrix = matrices.get(name);
+            if (matrix != null)
+                return matrix;
+            Path file = fileOf(name);
+            if (!Files.isRegularFile(file))
+                return null;
+            matrix = open(file);
+            matrices.put(name, matrix);
+            return matrix;
+        }
+    }
+
+    /**
+     * delete: removes a stored matrix - the requests that already hold it keep their mapping
+     * @return false if there was no matrix with that name
+     */
+    public boolean delete(String name) throws IOException {
+        if (!isName(name))
+            return false;
+        synchronized (lockOf(name)) {
+            matrices.remove(name);
+            dynamicComponents.remove(name);
+            Files.deleteIfExists(updatesOf(name));
+            return Files.deleteIfExists(fileOf(name));
+        }
+    }
+
+    private Object lockOf(String name) {
+        return locks.computeIfAbsent(name, key -> new Object());
+    }
+
+    private Path fileOf(String name) {
+        return directory.resolve(name + SUFFIX);
+    }
+
+    private Path updatesOf(String name) {
+        return directory.resolve(name + UPDATES_SUFFIX);
+    }
+
+    /**
+     * open: maps a matrix file and checks it - the cells and the labels stay in the mapping
+     */
+    static Matrix open(Path file) throws IOException {
+        MappedByteBuffer mapping;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE)
+                throw new IOException(file + " is not a stored matrix (" + channel.size() + " bytes)");
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        mapping.order(ByteOrder.LITTLE_ENDIAN);
+        int headerEnd = 24 + SECTIONS * SECTION_ENTRY_SIZE;
+        if (mapping.getInt(0) != MAGIC || mapping.getInt(4) != VERSION || mapping.getInt(20) != SECTIONS)
+            throw new IOException(file + " is not a stored matrix of version " + VERSION);
+        if (mapping.getInt(headerEnd) != checksum(slice(mapping, 0, headerEnd)))
+            throw new IOException(file + " has a damaged header");
+        int rows = mapping.getInt(8), columns = mapping.getInt(12), components = mapping.getInt(16);
+        ByteBuffer[] sections = new ByteBuffer[SECTIONS];
+        for (int i = 0; i < SECTIONS; i++) {
+            int entry = 24 + i * SECTION_ENTRY_SIZE;
+            long offset = mapping.getLong(entry), length = mapping.getLong(entry + 8);
+            if (offset < HEADER_SIZE || length < 0 || offset + length > mapping.capacity())
+                throw new IOException(file + " is cut short");
+            sections[i] = slice(mapping, (int) offset, (int) length);
+            if (checksum(sections[i].duplicate()) != mapping.getInt(entry + 16))
+                throw new IOException(file + " has a damaged section " + i);
+        }
+        long cells = (long) rows * columns;
+        if (sections[CELLS].capacity() != cells * Integer.BYTES || sections[LABELS].capacity() != cells * Integer.BYTES
+                || sections[COMPONENTS].capacity() != (long) (components + 1) * 5 * Integer.BYTES)
+            throw new IOException(file + " has sections of the wrong size");
+        Matrix matrix = new Matrix(rows, columns, sections[CELLS]);
+        IntBuffer summary = sections[COMPONENTS].asIntBuffer();
+        int[] sizes = new int[components + 1], boxes = new int[(components + 1) * 4];
+        summary.get(sizes).get(boxes);
+        matrix.setComponentIndex(new ComponentIndex(rows, columns, sections[LABELS].asIntBuffer(), components, sizes, boxes));
+        return matrix;
+    }
+
+    private static ByteBuffer newSection(long bytes) {
+        if (bytes > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("The matrix is too large to be stored");
+        return ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(offset).limit(offset + length);
+        return slice.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static int checksum(ByteBuffer bytes) {
+        CRC32C crc = new CRC32C();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+
+    private static int align(int bytes) {
+        return (bytes + 7) & ~7;
+    }
+
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+}
@@ -0,0 +1,224 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * The client side of the object protocol - every input of a task is sent as a serialized Java object
+ */
+public class ObjectClientProtocol implements ClientProtocol {
+
+    private static final int UPLOAD_CHUNK_SIZE = 1 << 20;
+
+    private final Socket socket;
+    private final ObjectOutputStream toServer;
+    private final ObjectInputStream fromServer;
+    private boolean searchStats;          // the server sends a SearchStats after every answer
+    private SearchStats lastSearchStats;  // the counters of the search of the last answer
+
+    public ObjectClientProtocol(Socket socket) throws IOException {
+        this.socket = socket;
+        //warp InputStream & OutputStream in order to send/receive meaningful data
+        this.toServer = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        this.toServer.flush(); // the stream header - the server waits for it
+        this.fromServer = new ObjectInputStream(new BufferedInputStream(socket.getInputStream()));
+    }
+
+    @Override
+    public Object request(String task, int[][] matrix, Index src, Index dest) throws IOException, ClassNotFoundException {
+        toServer.writeObject(task); //inputStream from client to server- chosen task
+        toServer.writeObject(matrix); //inputStream from client to server- matrix
+        if (src != null) {
+            toServer.writeObject(src);
+            toServer.writeObject(dest);
+        }
+        toServer.flush();
+        //server transfers data to client.
+        Object answer = fromServer.readObject();
+        readSearchStats();
+        return answer;
+    }
+
+    /**
+     * readSearchStats: reads the counters of the search that follow an answer, if the server was asked to send them
+     */
+    private void readSearchStats() throws IOException, ClassNotFoundException {
+        lastSearchStats = searchStats ? (SearchStats) fromServer.readObject() : null;
+    }
+
+    @Override
+    public List<List<List<Index>>> requestBatch(String task, int[][] matrix, Index[][] pairs) throws IOException, ClassNotFoundException {
+        toServer.writeObject("batch");
+        toServer.writeObject(task);
+        toServer.writeObject(matrix);
+        toServer.writeObject(pairs);
+        toServer.flush();
+        @SuppressWarnings("unchecked") // the paths of every pair
+        List<List<List<Index>>> answers = (List<List<List<Index>>>) fromServer.readObject();
+        readSearchStats();
+        return answers;
+    }
+
+    @Override
+    public boolean requestStream(String task, int[][] matrix, Index src, Index dest, int chunkSize, Consumer<List<?>> onChunk) throws IOException, ClassNotFoundException {
+        toServer.writeObject("stream");
+        toServer.writeObject(chunkSize);
+        toServer.writeObject(task);
+        toServer.writeObject(matrix);
+        if (src != null) {
+            toServer.writeObject(src);
+            toServer.writeObject(dest);
+        }
+        toServer.flush();
+        // the chunks are lists, the status string ends the answer
+        Object answer = fromServer.readObject();
+        while (answer instanceof List) {
+            onChunk.accept((List<?>) answer);
+            answer = fromServer.readObject();
+        }
+        readSearchStats();
+        return "OK".equals(answer);
+    }
+
+    @Override
+    public String requestStats() throws IOException, ClassNotFoundException {
+        toServer.writeObject("stats");
+        toServer.flush();
+        lastSearchStats = null;
+        return (String) fromServer.readObject();
+    }
+
+    /**
+     * storeMatrix: asks the server to keep a matrix under the given name (see MatrixStore) - it survives restarts of the server
+     * @return "OK" and the size of the matrix, or "ERROR" and the reason
+     */
+    public String storeMatrix(String name, int[][] matrix) throws IOException, ClassNotFoundException {
+        toServer.writeObject("store");
+        toServer.writeObject(name);
+        toServer.writeObject(matrix);
+        toServer.flush();
+        lastSearchStats = null;
+        return (String) fromServer.readObject();
+    }
+
+    /**
+     * updateMatrix: changes cells of a matrix that the server stored - tasks 1 and 3 on it follow the change without
+     * traversing the whole matrix again
+     * @param changes {row, column, value} for every cell
+     * @return "OK" with the version of the matrix and its numbers of components and battleships, or "ERROR" and the reason
+     */
+    public String updateMatrix(String name, int[][] changes) throws IOException, ClassNotFoundException {
+        toServer.writeObject("update");
+        toServer.writeObject(name);
+        toServer.writeObject(changes);
+        toServer.flush();
+        lastSearchStats = null;
+        return (String) fromServer.readObject();
+    }
+
+    /**
+     * labelTile: a tile of a sharded matrix, for a worker server (see ShardCoordinator)
+     * @param task "1" (the summary has the cells of the components too) or "3"
+     * @return the TileSummary of the tile, or an "ERROR" String
+     */
+    public Object labelTile(String task, int[][] tile) throws IOException, ClassNotFoundException {
+        toServer.writeObject("tile");
+        toServer.writeObject(task);
+        toServer.writeObject(tile);
+        toServer.flush();
+        // the stream would keep every tile it wrote (and the server every tile it read) - forget them
+        toServer.reset();
+        lastSearchStats = null;
+        return fromServer.readObject();
+    }
+
+    /**
+     * request: a task on a matrix that the server stored (see storeMatrix) - only its name is sent
+     */
+    public Object request(String task, String matrixName, Index src, Index dest) throws IOException, ClassNotFoundException {
+        toServer.writeObject(task);
+        toServer.writeObject(matrixName);
+        if (src != null) {
+            toServer.writeObject(src);
+            toServer.writeObject(dest);
+        }
+        toServer.flush();
+        Object answer = fromServer.readObject();
+        readSearchStats();
+        return answer;
+    }
+
+    /**
+     * uploadGraph: sends a graph edge list file (see CsrGraph) to the server, which keeps it under the given name
+     * @return "OK" and the size of the graph, or "ERROR" and the reason
+     */
+    public String uploadGraph(String name, Path edgeList) throws IOException, ClassNotFoundException {
+        toServer.writeObject("upload");
+        toServer.writeObject(name);
+        byte[] chunk = new byte[UPLOAD_CHUNK_SIZE];
+        try (InputStream in = Files.newInputStream(edgeList)) {
+            for (int read = in.readNBytes(chunk, 0, chunk.length); read > 0; read = in.readNBytes(chunk, 0, chunk.length)) {
+                toServer.writeObject(read == chunk.length ? chunk : Arrays.copyOf(chunk, read));
+                // the stream would keep every chunk it wrote (and the server every chunk it read) - forget them
+                toServer.reset();
+            }
+        }
+        toServer.writeObject(new byte[0]);
+        toServer.flush();
+        lastSearchStats = null;
+        return (String) fromServer.readObject();
+    }
+
+    /**
+     * requestGraph: runs a task on a graph of the server (see uploadGraph)
+     * @param task "1" (the nodes reachable from src), "2"/"2.1"/"2.2" (shortest paths), "4"/"4.1"/"4.2" (lightest paths)
+     * @return a HashSet of the nodes (task 1), a List of the paths - Lists of nodes (tasks 2 and 4), or an "ERROR" String
+     */
+    public Object requestGraph(String name, String task, int src, int dest) throws IOException, ClassNotFoundException {
+        toServer.writeObject("graph");
+        toServer.writeObject(name);
+        toServer.writeObject(task);
+        toServer.writeObject(src);
+        toServer.writeObject(dest);
+        toServer.flush();
+        lastSearchStats = null;
+        return fromServer.readObject();
+    }
+
+    @Override
+    public void setCompactPaths(boolean compactPaths, boolean sharedPrefixes) throws IOException {
+        int flags = 0;
+        if (compactPaths)
+            flags |= BinaryProtocol.FLAG_COMPACT_PATHS;
+        if (sharedPrefixes)
+            flags |= BinaryProtocol.FLAG_SHARED_PREFIXES;
+        toServer.writeObject("compact");
+        toServer.writeObject(flags);
+        toServer.flush();
+    }
+
+    @Override
+    public void setSearchStats(boolean searchStats) throws IOException {
+        toServer.writeObject("searchstats");
+        toServer.writeObject(searchStats);
+        toServer.flush();
+        this.searchStats = searchStats;
+    }
+
+    @Override
+    public SearchStats getSearchStats() {
+        return lastSearchStats;
+    }
+
+    @Override
+    public void close() throws IOException {
+        toServer.writeObject("stop");
+        toServer.flush();
+        fromServer.close();
+        toServer.close();
+        socket.close();
+    }
+}
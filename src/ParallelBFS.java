@@ -1,6 +1,5 @@
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -13,40 +12,61 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * (1)find all paths from source to destination - with findPaths method
  * (2)find all shortest paths by loop all over the paths and check size of the path- in findShortestPathsParallelBFS method - parallel
  */
-public class ParallelBFS<T> {
-    final ThreadLocal<LinkedList<List<Node<T>>>> threadLocalQueue = ThreadLocal.withInitial(() -> new LinkedList<List<Node<T>>>());
+public class ParallelBFS<T> extends Search {
+    /**
+     * The partial paths of the search - PathCells, so a path that continues another one shares its nodes instead of copying them
+     * A FrontierQueue - it spills its oldest segments to disk when the paths of all the searches exceed the heap budget
+     */
+    final ThreadLocal<FrontierQueue<T>> threadLocalQueue = ThreadLocal.withInitial(() -> new FrontierQueue<T>());
 
     public ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(5, 10, 1000, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
     protected ReentrantReadWriteLock readWriteLock = new ReentrantReadWriteLock();
-
     /**
      * findAllPaths: The function finds paths from src to dest by ThreadLocal
      * @param someGraph represent a graph
      * @param src represent start index
      * @param dest represent final/ destination index
-     * @return List<List < Node < T>>> - all paths between source to destination
+     * @return List<List < Node < T>>> - all paths between source to destination (the paths found so far if the search was cancelled)
      */
     public List<List<Node<T>>> findAllPaths (Traversable<T> someGraph,Node<T> src, Node<T> dest)
     {
-        ArrayList<Node<T>> path = new ArrayList<>();
         List<List<Node<T>>> allPaths = new ArrayList<>();
-        path.add(src);
-        threadLocalQueue.get().add(path);
-        while(!threadLocalQueue.get().isEmpty()) {
-            path = (ArrayList<Node<T>>) threadLocalQueue.get().poll();
-            Node<T> polled = path.get(path.size()-1);
-            if(polled.equals(dest))
-                allPaths.add(path);
-            Collection<Node<T>> reachableNodes = someGraph.getReachableNodes(polled);
-            for (Node<T> singleReachableNode : reachableNodes) {
-                if (!path.contains(singleReachableNode)) {
-                    ArrayList<Node<T>> newPath = new ArrayList<>(path);
-                    newPath.add(singleReachableNode);
-                    threadLocalQueue.get().add(newPath);
+        for (PathCell<T> path : findAllPathCells(someGraph, src, dest))
+            allPaths.add(path.toList());
+        return allPaths;
+    }
+
+    /**
+     * findAllPathCells: the search of findAllPaths - the paths stay PathCells, so only the shortest ones have to become lists
+     */
+    List<PathCell<T>> findAllPathCells(Traversable<T> someGraph, Node<T> src, Node<T> dest)
+    {
+        PathCell<T> path = PathCell.start(src);
+        List<PathCell<T>> allPaths = new ArrayList<>();
+        try {
+            threadLocalQueue.get().add(path);
+            searchStats.enqueued(1);
+            while(!threadLocalQueue.get().isEmpty()) {
+                if (cancellationToken.isCancelled())
+                    break;
+                path = threadLocalQueue.get().poll();
+                Node<T> polled = path.getNode();
+                if(polled.equals(dest))
+                    allPaths.add(path);
+                searchStats.expanded();
+                Collection<Node<T>> reachableNodes = someGraph.getReachableNodes(polled);
+                for (Node<T> singleReachableNode : reachableNodes) {
+                    if (!path.contains(singleReachableNode)) {
+                        threadLocalQueue.get().add(path.extend(singleReachableNode));
+                        searchStats.enqueued(threadLocalQueue.get().size());
+                    }
                 }
             }
+            searchStats.discarded(threadLocalQueue.get().size());
+        } finally {
+            // also when the search failed - the paths it left count against the budget of FrontierQueue until they are cleared
+            threadLocalQueue.get().clear();
         }
-        threadLocalQueue.get().clear();
             return allPaths;
     }
     /**
@@ -68,14 +88,16 @@ public class ParallelBFS<T> {
         AtomicInteger sizeOfMinPath = new AtomicInteger();
         AtomicInteger sizeOfPath = new AtomicInteger();
         sizeOfMinPath.set(Integer.MAX_VALUE);
-        List<Future<List<Node<T>>>> futureList = new ArrayList<>();
-        List<List<Node<T>>> allPaths = findAllPaths(someGraph,src,dest);
+        List<Future<PathCell<T>>> futureList = new ArrayList<>();
+        List<PathCell<T>> allPaths = findAllPathCells(someGraph,src,dest);
         List<List<Node<T>>> minPaths = new ArrayList<>();
-        for (List<Node<T>> list: allPaths)
+        for (PathCell<T> list: allPaths)
         {
-            Callable<List<Node<T>>> callable = () -> {
+            if (cancellationToken.isCancelled())
+                break;
+            Callable<PathCell<T>> callable = () -> {
                 readWriteLock.writeLock().lock();
-                sizeOfPath.set(list.size());
+                sizeOfPath.set(list.length());
                 if(sizeOfPath.get()<=sizeOfMinPath.get()) {
                     sizeOfMinPath.set(sizeOfPath.get());
                     readWriteLock.writeLock().unlock();
@@ -86,22 +108,31 @@ public class ParallelBFS<T> {
                     return null;
                 }
             };
-            Future<List<Node<T>>> futurePath =threadPoolExecutor.submit(callable);
+            Future<PathCell<T>> futurePath =threadPoolExecutor.submit(callable);
             futureList.add(futurePath);
         }
-        for (Future<List<Node<T>>> futurePath:futureList) {
+        for (Future<PathCell<T>> futurePath:futureList) {
             try {
+                if (cancellationToken.isCancelled())
+                    futurePath.cancel(false);
                 if (futurePath.get()!=null)
-                    minPaths.add(futurePath.get());
+                    minPaths.add(futurePath.get().toList()); // only the paths of the answer become lists
+                else
+                    searchStats.discarded(); // longer than a path that was checked before it
+            } catch (CancellationException ignored) {
+                // the request was cancelled - the path was never checked
             } catch (ExecutionException e) {
                 e.printStackTrace();
             } catch (InterruptedException e) {
                 e.printStackTrace();
             }
         }
-        this.threadPoolExecutor.shutdown();
-        if (minPaths.isEmpty())
-            System.out.println("No path exist between the source "+src+" and the destination "+dest);
+        if (cancellationToken.isCancelled())
+            this.threadPoolExecutor.shutdownNow();
+        else
+            this.threadPoolExecutor.shutdown();
+        if (minPaths.isEmpty() && !cancellationToken.isCancelled())
+            ServerLog.request("No path exists between the source and the destination", "source", src, "destination", dest);
         return minPaths;
     }
 }
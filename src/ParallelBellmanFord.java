@@ -9,50 +9,72 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * We need to find all the lightest paths between 2 nodes(from source to destination)
  * How?
  * (1)find all paths from source to destination - with findPaths method
- * (2)find the weight of each path - with SumPathWeight method
+ * (2)find the weight of each path - every PathCell adds the weight of its node to the weight of the path it continues
  * (3)find all lightest paths by loop all over the paths and check the min weight - in findLightestPathsParallelBellmanFord method - parallel
  */
-public class ParallelBellmanFord<T> {
+public class ParallelBellmanFord<T> extends Search {
 
-    final ThreadLocal<Queue<List<Node<T>>>> threadLocalQueue = ThreadLocal.withInitial(() -> new LinkedList<>());
+    /**
+     * The partial paths of the search - PathCells, so a path that continues another one shares its nodes instead of copying them,
+     * and knows its weight without summing its nodes again
+     * A FrontierQueue - it spills its oldest segments to disk when the paths of all the searches exceed the heap budget
+     */
+    final ThreadLocal<FrontierQueue<T>> threadLocalQueue = ThreadLocal.withInitial(() -> new FrontierQueue<T>());
 
     public ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(5,
             10, 1000, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
     protected ReentrantReadWriteLock readWriteLock = new ReentrantReadWriteLock();
-
     /**
      * findPaths: The function finds paths from src to dest by ThreadLocal
      * @param someGraph represent a graph
      * @param src represent start index
      * @param dest represent final/ destination index
-     * @return LinkedList<List < Node < T>>> - all paths between source to destination
+     * @return LinkedList<List < Node < T>>> - all paths between source to destination (the paths found so far if the search was cancelled)
      */
 
     public LinkedList<List<Node<T>>> findPaths(Traversable<T> someGraph, Node<T> src, Node<T> dest) {
+        LinkedList<List<Node<T>>> listPaths = new LinkedList<>();
+        for (PathCell<T> path : findPathCells(someGraph, src, dest))
+            listPaths.add(path.toList());
+        return listPaths;
+    }
 
-        List<Node<T>> path = new ArrayList<>(); //this list will hold a singlePath
-        LinkedList<List<Node<T>>> listPaths = new LinkedList<>(); //this list will hold all paths between source to destination
-        path.add(src);  //each path will start with the source node
-        threadLocalQueue.get().offer(path); //add path to threadLocal (at first it holds the source node)
-        while (!threadLocalQueue.get().isEmpty()) {
-            path = threadLocalQueue.get().poll(); //take the first path in the queue
-            Node<T> last = path.get(path.size() - 1); //get the last node in the path
-            // If last vertex is the desired destination
-            // then add the path to lists of paths (because we want to reach the destination...)
-            if (last.equals(dest)) {
-                listPaths.add(path);
-            }
-            Collection<Node<T>> neighborsIndices = someGraph.getNeighbors(last); //get all neighbors of the last node
-            for (Node<T> neighbor : neighborsIndices) {
-                if (!path.contains(neighbor)) { // if the current path doesn't contain the neighbor
-                    List<Node<T>> newPath = new ArrayList<>(path); // here we create a new path on the basis of the old path (current path)
-                    newPath.add(neighbor);
-                    threadLocalQueue.get().offer(newPath); //add path to threadLocal
+    /**
+     * findPathCells: the search of findPaths - the paths stay PathCells (with their weights), so only the lightest ones have to become lists
+     */
+    LinkedList<PathCell<T>> findPathCells(Traversable<T> someGraph, Node<T> src, Node<T> dest) {
+
+        PathCell<T> path = PathCell.start(src, someGraph.getValueN(src.getData())); //each path will start with the source node
+        LinkedList<PathCell<T>> listPaths = new LinkedList<>(); //this list will hold all paths between source to destination
+        try {
+            threadLocalQueue.get().offer(path); //add path to threadLocal (at first it holds the source node)
+            searchStats.enqueued(1);
+            while (!threadLocalQueue.get().isEmpty()) {
+                if (cancellationToken.isCancelled())
+                    break;
+                path = threadLocalQueue.get().poll(); //take the first path in the queue
+                Node<T> last = path.getNode(); //get the last node in the path
+                // If last vertex is the desired destination
+                // then add the path to lists of paths (because we want to reach the destination...)
+                if (last.equals(dest)) {
+                    listPaths.add(path);
                 }
+                searchStats.expanded();
+                Collection<Node<T>> neighborsIndices = someGraph.getNeighbors(last); //get all neighbors of the last node
+                for (Node<T> neighbor : neighborsIndices) {
+                    if (!path.contains(neighbor)) { // if the current path doesn't contain the neighbor
+                        // the new path continues the current one - it shares its cells, and adds the weight of the neighbor to its weight
+                        threadLocalQueue.get().offer(path.extend(neighbor, someGraph.getValueN(neighbor.getData())));
+                        searchStats.enqueued(threadLocalQueue.get().size());
+                    }
 
+                }
             }
+            searchStats.discarded(threadLocalQueue.get().size());
+        } finally {
+            // a failed search (e.g. a spilled segment that can't be read) must not leave its paths and files behind
+            threadLocalQueue.get().clear();
         }
-        threadLocalQueue.get().clear();
         return listPaths; //all the paths between source to destination
     }
 
@@ -96,17 +118,19 @@ public class ParallelBellmanFord<T> {
 
         currMinWeight.set(Integer.MAX_VALUE); //Integer.MAX_VALUE=2147483647 - set the max value for the weight
 
-        LinkedList<List<Node<T>>> listPaths = findPaths(someGraph, src, dest); //will hold all paths between source to destination
+        LinkedList<PathCell<T>> listPaths = findPathCells(someGraph, src, dest); //will hold all paths between source to destination
         LinkedList<List<Node<T>>> listMinTotalWeight = new LinkedList<>(); //will hold all lightest paths between source to destination
 
-        LinkedList<Future<List<Node<T>>>> futureList = new LinkedList<>(); //Future list ,submit value later
-        LinkedList<List<Node<T>>> listMinTotalWeightFuture = new LinkedList<>(); //will hold all lightest future paths between source to destination
+        LinkedList<Future<PathCell<T>>> futureList = new LinkedList<>(); //Future list ,submit value later
+        LinkedList<PathCell<T>> listMinTotalWeightFuture = new LinkedList<>(); //will hold all lightest future paths between source to destination
 
-        for (List<Node<T>> list : listPaths) { //pass all over the lists to find the min weight
+        for (PathCell<T> list : listPaths) { //pass all over the lists to find the min weight
+            if (cancellationToken.isCancelled())
+                break;
             //callable returns a value
-            Callable<List<Node<T>>> callable = () -> {
+            Callable<PathCell<T>> callable = () -> {
                 readWriteLock.writeLock().lock();
-                weightOfPath.set(sumPathWeight(someGraph, list)); //check weight of current path
+                weightOfPath.set(list.weight()); //check weight of current path
                 if (weightOfPath.get() <= currMinWeight.get()) {
                     //that's mean we need to update values of currMinWeight & totalMinSUm because we found a lighter path
                     //here we are using double-check locking to make sure the lock operates as expected.
@@ -124,33 +148,38 @@ public class ParallelBellmanFord<T> {
                 }
 
             };
-            Future<List<Node<T>>> futurePath = threadPoolExecutor.submit(callable); //submit value in Future thread
+            Future<PathCell<T>> futurePath = threadPoolExecutor.submit(callable); //submit value in Future thread
             futureList.add(futurePath); //add the future path to future list
         }
 
-        for (Future<List<Node<T>>> futureP : futureList) {
+        for (Future<PathCell<T>> futureP : futureList) {
 
             try {
+                if (cancellationToken.isCancelled())
+                    futureP.cancel(false);
                 if (futureP.get() != null)
                     listMinTotalWeightFuture.add(futureP.get()); //add future path to future list just if the path is not null
+                else
+                    searchStats.discarded(); // heavier than a path that was weighed before it
+            } catch (CancellationException ignored) {
+                // the request was cancelled - the path was never weighed
             } catch (InterruptedException | ExecutionException e) {
                 e.printStackTrace();
             }
 
 
         }
-        int currentWeight = 0; //reset currentWeight variable for next calculate on future list
-        for (List<Node<T>> currentList : listMinTotalWeightFuture) {
-            for (Node<T> nodeT : currentList) {
-                currentWeight = currentWeight + someGraph.getValueN(nodeT.getData());
-            }
+        for (PathCell<T> currentList : listMinTotalWeightFuture) {
             //we have already found the smallest weight, so we only need to check if the weight equals to the smallest one.
-            if (currentWeight == totalMinWeight.get()) {
-                listMinTotalWeight.add(currentList);
-            }
-            currentWeight = 0; //reset currentWeight variable for next iteration in the loop
+            if (currentList.weight() == totalMinWeight.get()) {
+                listMinTotalWeight.add(currentList.toList()); // only the paths of the answer become lists
+            } else
+                searchStats.discarded(); // it was the lightest until a lighter one was weighed
         }
-        this.threadPoolExecutor.shutdown();
+        if (cancellationToken.isCancelled())
+            this.threadPoolExecutor.shutdownNow();
+        else
+            this.threadPoolExecutor.shutdown();
         return listMinTotalWeight;
     }
 }
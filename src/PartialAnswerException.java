@@ -0,0 +1,24 @@
+import java.io.IOException;
+
+/**
+ * This exception tells the caller of a ClientProtocol that the server ran out of time (the deadline of the task passed)
+ * and the answer holds only what was found until then - the partial answer is kept, so the caller may still use it.
+ */
+public class PartialAnswerException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient Object partialAnswer;
+
+    public PartialAnswerException(String message, Object partialAnswer) {
+        super(message);
+        this.partialAnswer = partialAnswer;
+    }
+
+    /**
+     * @return what the server found before the deadline - the same type as a complete answer of the task
+     */
+    public Object getPartialAnswer() {
+        return partialAnswer;
+    }
+}
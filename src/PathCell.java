@@ -0,0 +1,115 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class is a partial path of the path searches (ThreadLocalBFS, ParallelBFS, ThreadLocalBellmanFord, ParallelBellmanFord):
+ * its last node and a link to the path without it - the same idea as the parent of a Node, but immutable.
+ *
+ * The searches used to copy the whole path (new ArrayList<>(path)) for every neighbor they tried, and to look for the
+ * neighbor in it with path.contains - both O(length of the path), on every step. A cell is instead shared by all the
+ * paths that continue it, so extending a path costs one small object whatever its length:
+ *
+ *                src <- a <- b <- c        (the path src, a, b, c)
+ *                           ^
+ *                           +--- d         (the path src, a, b, d shares src, a, b)
+ *
+ * Every cell also keeps:
+ *  - length and weight: the number of nodes and the sum of their weights (0 for the BFS searches) - no walk to measure a path
+ *  - nodeBits: a 64 bit hash of the nodes of the path (one bit per node, chosen by its hash code, ORed along the chain) -
+ *    contains() walks the chain only when the bit of the node is set, so a node that is not on the path is usually rejected
+ *    in a single AND. On long paths most of the bits are set and the walk is needed more often - it still allocates nothing.
+ * A list of the nodes (toList) is built only for the paths that are a part of the answer.
+ */
+public final class PathCell<T> {
+
+    private final Node<T> node;
+    private final PathCell<T> parent;
+    private final int length;
+    private final int weight;
+    private final long nodeBits;
+
+    private PathCell(Node<T> node, PathCell<T> parent, int weight) {
+        this.node = node;
+        this.parent = parent;
+        this.length = parent == null ? 1 : parent.length + 1;
+        this.weight = parent == null ? weight : parent.weight + weight;
+        this.nodeBits = (parent == null ? 0 : parent.nodeBits) | bitOf(node);
+    }
+
+    /**
+     * start: the path of the source alone
+     * @param weight the weight of the source (0 - the path is measured by its length only)
+     */
+    public static <T> PathCell<T> start(Node<T> src, int weight) {
+        return new PathCell<>(src, null, weight);
+    }
+
+    public static <T> PathCell<T> start(Node<T> src) {
+        return start(src, 0);
+    }
+
+    /**
+     * extend: this path followed by the node - this path is not changed, it is shared by the new one
+     * @param weight the weight of the node
+     */
+    public PathCell<T> extend(Node<T> next, int weight) {
+        return new PathCell<>(next, this, weight);
+    }
+
+    public PathCell<T> extend(Node<T> next) {
+        return extend(next, 0);
+    }
+
+    /**
+     * contains: is the node on the path - the simple path check of the searches
+     */
+    public boolean contains(Node<T> someNode) {
+        if ((nodeBits & bitOf(someNode)) == 0)
+            return false;
+        for (PathCell<T> cell = this; cell != null; cell = cell.parent)
+            if (cell.node.equals(someNode))
+                return true;
+        return false;
+    }
+
+    /**
+     * toList: the nodes of the path, from the source to the last node
+     */
+    public List<Node<T>> toList() {
+        ArrayList<Node<T>> path = new ArrayList<>(length);
+        for (PathCell<T> cell = this; cell != null; cell = cell.parent)
+            path.add(cell.node);
+        Collections.reverse(path);
+        return path;
+    }
+
+    /**
+     * @return the last node of the path
+     */
+    public Node<T> getNode() {
+        return node;
+    }
+
+    public PathCell<T> getParent() {
+        return parent;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public int weight() {
+        return weight;
+    }
+
+    private static long bitOf(Node<?> someNode) {
+        // the hash codes of near cells differ only in their low bits - the multiplication spreads them before the top 6 bits are taken
+        return 1L << ((someNode.hashCode() * 0x9E3779B9) >>> 26);
+    }
+
+    @Override
+    public String toString() {
+        return toList().toString();
+    }
+}
@@ -0,0 +1,93 @@
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class passes the results of a streaming task from the compute thread that finds them to the connection thread that sends them.
+ *
+ * The compute thread adds the results one by one, they are grouped into chunks of chunkSize results, and the chunks wait
+ * in a bounded queue. When the client reads slower than the search produces, the socket buffer fills up, the connection thread
+ * blocks on the write, the queue fills up and the compute thread blocks on add() - so the server never holds more than
+ * (MAX_WAITING_CHUNKS + 2) * chunkSize results of a request (flow control).
+ * While it is blocked, the compute thread still notices the cancellation token (deadline or disconnected client).
+ */
+public class ResultStream<E> {
+
+    public static final int MAX_WAITING_CHUNKS = 4;
+
+    private static final long OFFER_TIMEOUT_MILLIS = 50;
+
+    private final int chunkSize;
+    private final CancellationToken token;
+    private final BlockingQueue<List<E>> chunks = new ArrayBlockingQueue<>(MAX_WAITING_CHUNKS);
+    private final List<E> end = new ArrayList<>(0); // marks the end of the stream in the queue - compared by reference
+    private List<E> currentChunk; // used only by the compute thread
+    private boolean finished;
+
+    public ResultStream(int chunkSize, CancellationToken token) {
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("Chunk size must be positive");
+        this.chunkSize = chunkSize;
+        this.token = token;
+        this.currentChunk = new ArrayList<>(chunkSize);
+    }
+
+    /**
+     * add: called by the compute thread for every result - blocks while the queue is full
+     */
+    public void add(E result) {
+        currentChunk.add(result);
+        if (currentChunk.size() >= chunkSize) {
+            put(currentChunk);
+            currentChunk = new ArrayList<>(chunkSize);
+        }
+    }
+
+    /**
+     * finish: called by the compute thread after the last result (also when the computation failed) - sends the last chunk
+     */
+    public void finish() {
+        if (finished)
+            return;
+        finished = true;
+        if (!currentChunk.isEmpty())
+            put(currentChunk);
+        currentChunk = null;
+        put(end);
+    }
+
+    /**
+     * put: waits for room in the queue. A cancelled request drops its chunks -
+     * but the end of the stream is always delivered, or the connection thread would wait for it forever
+     */
+    private void put(List<E> chunk) {
+        try {
+            while (!chunks.offer(chunk, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (token.isCancelled() && chunk != end)
+                    return;
+                if (token.isCancelled())
+                    chunks.clear(); // nobody sends the chunks of a cancelled request anymore, make room for the end
+            }
+        } catch (InterruptedException interruptedException) {
+            Thread.currentThread().interrupt();
+            token.cancel();
+        }
+    }
+
+    /**
+     * nextChunk: called by the connection thread - waits for the next chunk
+     * @return the next chunk, null at the end of the stream
+     */
+    public List<E> nextChunk() throws InterruptedIOException {
+        try {
+            List<E> chunk = chunks.take();
+            return chunk == end ? null : chunk;
+        } catch (InterruptedException interruptedException) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the next chunk");
+        }
+    }
+}
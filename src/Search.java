@@ -0,0 +1,31 @@
+/**
+ * This class is the base of the search algorithms (ThreadLocalBFS, ParallelBFS, ThreadLocalBellmanFord, ParallelBellmanFord
+ * and ThreadLocalDFSVisit) - the state every search shares with the handler that runs it:
+ *  - the cancellation token, checked in the main loops of the search
+ *  - the counters of the search, sent to the client when the request asks for them
+ */
+public abstract class Search {
+
+    /**
+     * The search stops (and returns what it found so far - paths or components) when the token is cancelled - by a deadline
+     * or by the client disconnecting
+     */
+    protected CancellationToken cancellationToken = CancellationToken.NONE;
+
+    /**
+     * The counters of the search (nodes expanded, paths enqueued...) - see SearchStats
+     */
+    protected SearchStats searchStats = new SearchStats();
+
+    public void setCancellationToken(CancellationToken cancellationToken) {
+        this.cancellationToken = cancellationToken;
+    }
+
+    public void setSearchStats(SearchStats searchStats) {
+        this.searchStats = searchStats;
+    }
+
+    public SearchStats getSearchStats() {
+        return searchStats;
+    }
+}
@@ -0,0 +1,129 @@
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Callable;
+
+/**
+ * This class counts the work of a single search - what the algorithm did to find its answer:
+ *  - nodesExpanded: the nodes (or partial paths) that were taken from the queue/stack and whose neighbors were checked
+ *  - pathsEnqueued: the partial paths (or nodes) that were added to the queue/stack
+ *  - peakQueueLength: the longest the queue/stack has been - the memory of the search grows with it
+ *  - pathsDiscarded: the paths that were dropped without becoming a part of the answer - longer or heavier than the best,
+ *    filtered out by the parallel filters, or left in the queue when the search ended
+ *  - bytesAllocated: the bytes the compute thread of the request allocated while it ran (-1 if the JVM can't tell),
+ *    the pool threads of the parallel implementations (2.2, 4.2, task 1) are not counted
+ *
+ * Every algorithm counts into its own SearchStats with plain long fields - no atomics and no locks, because a search
+ * belongs to a single thread (the parallel filters and traversals update it under the write lock they already take).
+ * So the counters cost a few increments per node and they are always on; the server sends them to the client
+ * only when the request asks for them (BinaryProtocol.FLAG_SEARCH_STATS, the "searchstats" command of the object protocol).
+ */
+public class SearchStats implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private long nodesExpanded;
+    private long pathsEnqueued;
+    private long peakQueueLength;
+    private long pathsDiscarded;
+    private long bytesAllocated;
+
+    public SearchStats() {
+    }
+
+    public SearchStats(long nodesExpanded, long pathsEnqueued, long peakQueueLength, long pathsDiscarded, long bytesAllocated) {
+        this.nodesExpanded = nodesExpanded;
+        this.pathsEnqueued = pathsEnqueued;
+        this.peakQueueLength = peakQueueLength;
+        this.pathsDiscarded = pathsDiscarded;
+        this.bytesAllocated = bytesAllocated;
+    }
+
+    public void expanded() {
+        nodesExpanded++;
+    }
+
+    /**
+     * enqueued: a path was added to the queue
+     * @param queueLength the length of the queue after it was added
+     */
+    public void enqueued(long queueLength) {
+        pathsEnqueued++;
+        if (queueLength > peakQueueLength)
+            peakQueueLength = queueLength;
+    }
+
+    public void discarded() {
+        pathsDiscarded++;
+    }
+
+    public void discarded(long paths) {
+        pathsDiscarded += paths;
+    }
+
+    /**
+     * add: adds the counters of another search to this one - e.g. of the groups of a batch, after they finished
+     */
+    public void add(SearchStats other) {
+        nodesExpanded += other.nodesExpanded;
+        pathsEnqueued += other.pathsEnqueued;
+        peakQueueLength = Math.max(peakQueueLength, other.peakQueueLength);
+        pathsDiscarded += other.pathsDiscarded;
+        bytesAllocated = bytesAllocated < 0 || other.bytesAllocated < 0 ? -1 : bytesAllocated + other.bytesAllocated;
+    }
+
+    /**
+     * measured: wraps a computation so the bytes its thread allocates while it runs are added to bytesAllocated
+     */
+    public <V> Callable<V> measured(Callable<V> work) {
+        return () -> {
+            long before = allocatedBytes();
+            try {
+                return work.call();
+            } finally {
+                long after = allocatedBytes();
+                if (before < 0 || after < 0 || bytesAllocated < 0)
+                    bytesAllocated = -1;
+                else
+                    bytesAllocated += after - before;
+            }
+        };
+    }
+
+    /**
+     * @return the bytes the current thread allocated since it started, -1 if the JVM doesn't count them
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean))
+            return -1;
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        return allocations.isThreadAllocatedMemorySupported() && allocations.isThreadAllocatedMemoryEnabled()
+                ? allocations.getThreadAllocatedBytes(Thread.currentThread().getId()) : -1;
+    }
+
+    public long getNodesExpanded() {
+        return nodesExpanded;
+    }
+
+    public long getPathsEnqueued() {
+        return pathsEnqueued;
+    }
+
+    public long getPeakQueueLength() {
+        return peakQueueLength;
+    }
+
+    public long getPathsDiscarded() {
+        return pathsDiscarded;
+    }
+
+    public long getBytesAllocated() {
+        return bytesAllocated;
+    }
+
+    @Override
+    public String toString() {
+        return "nodes expanded: " + nodesExpanded + ", paths enqueued: " + pathsEnqueued + ", peak queue length: " + peakQueueLength
+                + ", paths discarded: " + pathsDiscarded + ", bytes allocated: " + bytesAllocated;
+    }
+}
@@ -0,0 +1,269 @@
+import jdk.jfr.*;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * This class defines the Java Flight Recorder events of the server, so a recording shows what every request did and when.
+ *
+ * ServerMetrics tells how long the requests of a task take, but not why - a recording does (GC pauses, lock contention,
+ * allocations, CPU samples), as long as its samples can be put next to the requests. These events mark the life of
+ * a connection and of a request, with the task, the matrix size and the result size:
+ *  - TcpServer:      ConnectionAccepted, ConnectionQueued (waits for a connection thread), ConnectionDequeued (the wait itself)
+ *  - MatrixIHandler: MatrixDecoded (reading the request), TaskStarted (a compute thread took it - with the time it was queued),
+ *                    ComputeFinished (the computation itself), ReplyWritten (encoding and sending the answer)
+ * The duration events run on the thread that did the work, so JMC shows the GC and the locks of that thread during them.
+ *
+ * An event costs almost nothing when no recording is running - commit() only checks a flag - so they are always emitted:
+ *
+ *                java -XX:StartFlightRecording=filename=server.jfr,settings=profile TcpServer
+ *                jfr print --categories "Matrix Server" server.jfr
+ */
+public class ServerEvents {
+
+    private static final String CATEGORY = "Matrix Server";
+
+    @Name("matrix.ConnectionAccepted")
+    @Label("Connection Accepted")
+    @Category({CATEGORY, "Connection"})
+    @StackTrace(false)
+    public static class ConnectionAccepted extends Event {
+        @Label("Remote Address")
+        String remoteAddress;
+    }
+
+    @Name("matrix.ConnectionQueued")
+    @Label("Connection Queued")
+    @Description("An accepted connection waits for a connection thread")
+    @Category({CATEGORY, "Connection"})
+    @StackTrace(false)
+    public static class ConnectionQueued extends Event {
+        @Label("Remote Address")
+        String remoteAddress;
+        @Label("Queued Connections")
+        @Description("The connections that were already waiting for a connection thread")
+        int queuedConnections;
+        @Label("Busy Connection Threads")
+        int activeThreads;
+    }
+
+    @Name("matrix.ConnectionDequeued")
+    @Label("Connection Dequeued")
+    @Description("The time an accepted connection waited for a connection thread")
+    @Category({CATEGORY, "Connection"})
+    @StackTrace(false)
+    public static class ConnectionDequeued extends Event {
+        @Label("Remote Address")
+        String remoteAddress;
+    }
+
+    @Name("matrix.MatrixDecoded")
+    @Label("Matrix Decoded")
+    @Description("Reading and decoding a request, its matrix included")
+    @Category({CATEGORY, "Request"})
+    @StackTrace(false)
+    public static class MatrixDecoded extends Event {
+        @Label("Connection Id")
+        long connectionId;
+        @Label("Request Id")
+        int requestId;
+        @Label("Task")
+        String task;
+        @Label("Rows")
+        int rows;
+        @Label("Columns")
+        int columns;
+        @Label("Matrix Size")
+        @DataAmount
+        long matrixBytes;
+    }
+
+    @Name("matrix.TaskStarted")
+    @Label("Task Started")
+    @Description("A compute thread took a request from the fair queue")
+    @Category({CATEGORY, "Request"})
+    @StackTrace(false)
+    public static class TaskStarted extends Event {
+        @Label("Connection Id")
+        long connectionId;
+        @Label("Request Id")
+        int requestId;
+        @Label("Task")
+        String task;
+        @Label("Rows")
+        int rows;
+        @Label("Columns")
+        int columns;
+        @Label("Pairs")
+        @Description("The (source, destination) pairs of a batch group, 0 - not a batch")
+        int pairs;
+        @Label("Queue Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long queueNanos;
+    }
+
+    @Name("matrix.ComputeFinished")
+    @Label("Compute Finished")
+    @Description("The computation of a request on its compute thread")
+    @Category({CATEGORY, "Request"})
+    @StackTrace(false)
+    public static class ComputeFinished extends Event {
+        @Label("Connection Id")
+        long connectionId;
+        @Label("Request Id")
+        int requestId;
+        @Label("Task")
+        String task;
+        @Label("Rows")
+        int rows;
+        @Label("Columns")
+        int columns;
+        @Label("Result Size")
+        @Description("The number of components/paths/pairs of the answer, the value of task 3")
+        long resultSize;
+        @Label("Failed")
+        boolean failed;
+    }
+
+    @Name("matrix.ReplyWritten")
+    @Label("Reply Written")
+    @Description("Encoding and sending the answer of a request")
+    @Category({CATEGORY, "Request"})
+    @StackTrace(false)
+    public static class ReplyWritten extends Event {
+        @Label("Connection Id")
+        long connectionId;
+        @Label("Request Id")
+        int requestId;
+        @Label("Task")
+        String task;
+        @Label("Status")
+        String status;
+        @Label("Result Size")
+        long resultSize;
+    }
+
+    /**
+     * connectionQueued: emits ConnectionAccepted and ConnectionQueued for a connection that is about to wait for a connection thread
+     * @param connectionThreads the pool of the connection threads
+     * @return the ConnectionDequeued event of the connection - the connection thread commits it with dequeued()
+     */
+    public static ConnectionDequeued connectionQueued(String remoteAddress, ThreadPoolExecutor connectionThreads) {
+        ConnectionAccepted accepted = new ConnectionAccepted();
+        if (accepted.shouldCommit()) {
+            accepted.remoteAddress = remoteAddress;
+            accepted.commit();
+        }
+        ConnectionQueued queued = new ConnectionQueued();
+        if (queued.shouldCommit()) {
+            queued.remoteAddress = remoteAddress;
+            queued.queuedConnections = connectionThreads.getQueue().size();
+            queued.activeThreads = connectionThreads.getActiveCount();
+            queued.commit();
+        }
+        ConnectionDequeued dequeued = new ConnectionDequeued();
+        dequeued.remoteAddress = remoteAddress;
+        dequeued.begin();
+        return dequeued;
+    }
+
+    /**
+     * dequeued: a connection thread took the connection
+     */
+    public static void dequeued(ConnectionDequeued dequeued) {
+        dequeued.commit();
+    }
+
+    /**
+     * matrixDecoded: fills the request fields of a MatrixDecoded event that began before the request was read, and commits it
+     */
+    public static void matrixDecoded(MatrixDecoded event, MatrixRequest request, long connectionId) {
+        if (!event.shouldCommit())
+            return;
+        event.connectionId = connectionId;
+        event.requestId = request.getRequestId();
+        event.task = request.getTask();
+        event.rows = request.getRows();
+        event.columns = request.getColumns();
+        event.matrixBytes = (long) request.getRows() * request.getColumns() * Integer.BYTES;
+        event.commit();
+    }
+
+    /**
+     * traced: wraps a computation that is about to be queued - emits TaskStarted when a compute thread takes it,
+     * and ComputeFinished when it ends
+     * @param pairs the pairs of a batch group, 0 - not a batch
+     */
+    public static <V> Callable<V> traced(MatrixRequest request, long connectionId, int pairs, Callable<V> work) {
+        long queued = System.nanoTime();
+        return () -> {
+            TaskStarted started = new TaskStarted();
+            if (started.shouldCommit()) {
+                started.connectionId = connectionId;
+                started.requestId = request.getRequestId();
+                started.task = request.getTask();
+                started.rows = request.getRows();
+                started.columns = request.getColumns();
+                started.pairs = pairs;
+                started.queueNanos = System.nanoTime() - queued;
+                started.commit();
+            }
+            ComputeFinished finished = new ComputeFinished();
+            finished.begin();
+            V result = null;
+            try {
+                result = work.call();
+                return result;
+            } catch (Exception | Error failure) {
+                finished.failed = true;
+                throw failure;
+            } finally {
+                finished.end();
+                if (finished.shouldCommit()) {
+                    finished.connectionId = connectionId;
+                    finished.requestId = request.getRequestId();
+                    finished.task = request.getTask();
+                    finished.rows = request.getRows();
+                    finished.columns = request.getColumns();
+                    finished.resultSize = sizeOf(result);
+                    finished.commit();
+                }
+            }
+        };
+    }
+
+    /**
+     * replyWritten: fills a ReplyWritten event that began before the answer was encoded, and commits it
+     */
+    public static void replyWritten(ReplyWritten event, MatrixRequest request, long connectionId, String status, Object result) {
+        if (!event.shouldCommit())
+            return;
+        event.connectionId = connectionId;
+        event.requestId = request.getRequestId();
+        event.task = request.getTask();
+        event.status = status;
+        event.resultSize = sizeOf(result);
+        event.commit();
+    }
+
+    /**
+     * @return the size of an answer - the number of its components/paths/pairs, the value of an Integer, the length of a String
+     */
+    static long sizeOf(Object result) {
+        if (result instanceof Integer)
+            return (Integer) result;
+        if (result instanceof Long)
+            return (Long) result;
+        if (result instanceof CompactPaths)
+            return ((CompactPaths) result).size();
+        if (result instanceof Collection)
+            return ((Collection<?>) result).size();
+        if (result instanceof Map) // the answers of a batch group, by pair
+            return ((Map<?, ?>) result).size();
+        if (result instanceof String)
+            return ((String) result).length();
+        return 0;
+    }
+}
@@ -0,0 +1,269 @@
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * This class is the log of the server - structured messages with levels, written by a background thread.
+ *
+ * System.out.println formats and writes on the thread that calls it, under the lock of the stream - with many requests,
+ * the compute threads wait for each other and for the console. Here a message costs a few field writes:
+ *  - log(...) claims a slot of a lock-free ring buffer (a compare-and-set on the tail), stores the message, its fields
+ *    and the thread name, and publishes the slot - the request thread never formats, never writes and never blocks.
+ *    When the ring is full the message is dropped (and counted) - the log never slows the server down.
+ *  - the "server-log" daemon thread drains the ring, formats the messages and writes them in a single print.
+ * A message is a text and key/value fields: log(INFO, "Task finished", "task", "2", "paths", 3) is written as
+ *                2026-10-19 12:00:00.123 INFO  [compute] Task finished task=2 paths=3
+ * A field value that is a Supplier is evaluated only on the log thread - expensive descriptions (e.g. Matrix.summary())
+ * cost the request nothing.
+ *
+ * Settings (system properties):
+ *  - matrix.log.level:  DEBUG, INFO (default), WARN, ERROR or OFF
+ *  - matrix.log.sample: the share of the request messages (request(...)) that are logged, 1.0 (default) - all of them,
+ *                       0.01 - one in a hundred. Warnings and errors are never sampled.
+ *  - matrix.log.buffer: the number of slots of the ring (rounded up to a power of two), 8192 by default
+ */
+public class ServerLog {
+
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    public static final String LEVEL_PROPERTY = "matrix.log.level";
+    public static final String SAMPLE_PROPERTY = "matrix.log.sample";
+    public static final String BUFFER_PROPERTY = "matrix.log.buffer";
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    /**
+     * A slot of the ring. sequence tells who owns it (the algorithm of Dmitry Vyukov's bounded queue):
+     * sequence == position - free for the producer of that position, sequence == position + 1 - published for the consumer
+     */
+    private static final class Slot {
+        volatile long sequence;
+        long timeMillis;
+        Level level;
+        String thread;
+        String message;
+        Object[] fields;
+    }
+
+    private static volatile Level level = Level.valueOf(System.getProperty(LEVEL_PROPERTY, "INFO").toUpperCase());
+    private static volatile double sampleRate = Double.parseDouble(System.getProperty(SAMPLE_PROPERTY, "1.0"));
+
+    private static final Slot[] ring;
+    private static final int mask;
+    private static final AtomicLong tail = new AtomicLong(); // the next position to claim
+    private static long head;                               // the next position to drain - only the log thread uses it
+    private static final LongAdder dropped = new LongAdder();
+    private static volatile long drained;                    // the positions that were written - for flush()
+    private static final Thread writer;
+
+    static {
+        int capacity = Integer.highestOneBit(Math.max(2, Integer.getInteger(BUFFER_PROPERTY, 8192)) * 2 - 1);
+        ring = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            ring[i] = new Slot();
+            ring[i].sequence = i;
+        }
+        mask = capacity - 1;
+        writer = new Thread(ServerLog::drainForever, "server-log");
+        writer.setDaemon(true);
+        writer.start();
+        // the messages that are still in the ring when the JVM exits are written too
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> flush(1000), "server-log-flush"));
+    }
+
+    private ServerLog() {
+    }
+
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    public static Level getLevel() {
+        return level;
+    }
+
+    public static void setSampleRate(double rate) {
+        sampleRate = rate;
+    }
+
+    public static boolean isEnabled(Level messageLevel) {
+        return messageLevel.compareTo(level) >= 0 && messageLevel != Level.OFF;
+    }
+
+    public static void debug(String message, Object... fields) {
+        log(Level.DEBUG, message, fields);
+    }
+
+    public static void info(String message, Object... fields) {
+        log(Level.INFO, message, fields);
+    }
+
+    public static void warn(String message, Object... fields) {
+        log(Level.WARN, message, fields);
+    }
+
+    public static void error(String message, Object... fields) {
+        log(Level.ERROR, message, fields);
+    }
+
+    /**
+     * request: an INFO message about a single request - sampled by matrix.log.sample, so busy servers log only a share of them
+     */
+    public static void request(String message, Object... fields) {
+        if (!isEnabled(Level.INFO))
+            return;
+        double rate = sampleRate;
+        if (rate < 1.0 && ThreadLocalRandom.current().nextDouble() >= rate)
+            return;
+        log(Level.INFO, message, fields);
+    }
+
+    /**
+     * log: queues a message for the log thread
+     * @param fields key/value pairs - fields[0] is the name of fields[1] and so on, a Supplier value is evaluated by the log thread
+     */
+    public static void log(Level messageLevel, String message, Object... fields) {
+        if (!isEnabled(messageLevel))
+            return;
+        long position = tail.get();
+        Slot slot;
+        while (true) {
+            slot = ring[(int) (position & mask)];
+            long difference = slot.sequence - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1))
+                    break;
+                position = tail.get();
+            } else if (difference < 0) { // the ring is full - the log thread is behind
+                dropped.increment();
+                return;
+            } else
+                position = tail.get(); // another thread claimed this position
+        }
+        slot.timeMillis = System.currentTimeMillis();
+        slot.level = messageLevel;
+        slot.thread = Thread.currentThread().getName();
+        slot.message = message;
+        slot.fields = fields;
+        slot.sequence = position + 1; // publish - the volatile write makes the fields above visible to the log thread
+    }
+
+    /**
+     * @return the number of messages that were dropped because the ring was full
+     */
+    public static long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * flush: waits until the messages that were queued before the call are written
+     * @return false if they were not written in time
+     */
+    public static boolean flush(long timeoutMillis) {
+        long target = tail.get();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (drained < target) {
+            if (System.nanoTime() > deadline)
+                return false;
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        return true;
+    }
+
+    private static void drainForever() {
+        StringBuilder batch = new StringBuilder();
+        long reportedDrops = 0;
+        while (true) {
+            try {
+                while (drainOne(batch)) {
+                    if (batch.length() > (1 << 16))
+                        write(batch);
+                }
+                long drops = dropped.sum();
+                if (drops != reportedDrops) {
+                    batch.append(TIME_FORMAT.format(Instant.now())).append(" WARN  [server-log] ")
+                            .append(drops - reportedDrops).append(" messages were dropped - the log is behind\n");
+                    reportedDrops = drops;
+                }
+                write(batch);
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            } catch (RuntimeException runtimeException) {
+                // a field that failed to format must not stop the log
+                runtimeException.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * drainOne: formats the next published message into the batch
+     * @return false if the ring is empty
+     */
+    private static boolean drainOne(StringBuilder batch) {
+        Slot slot = ring[(int) (head & mask)];
+        if (slot.sequence != head + 1)
+            return false;
+        long timeMillis = slot.timeMillis;
+        Level messageLevel = slot.level;
+        String thread = slot.thread, message = slot.message;
+        Object[] fields = slot.fields;
+        slot.message = null; // don't keep the fields (e.g. a matrix) alive
+        slot.fields = null;
+        slot.sequence = head + ring.length; // free for the producer of the next round
+        head++;
+        format(batch, timeMillis, messageLevel, thread, message, fields);
+        return true;
+    }
+
+    private static void format(StringBuilder batch, long timeMillis, Level messageLevel, String thread, String message, Object[] fields) {
+        batch.append(TIME_FORMAT.format(Instant.ofEpochMilli(timeMillis))).append(' ')
+                .append(String.format("%-5s", messageLevel)).append(" [").append(thread).append("] ").append(message);
+        StringBuilder blocks = null; // the multi-line values are written under the line
+        for (int i = 0; i + 1 < fields.length; i += 2) {
+            Object value = fields[i + 1];
+            if (value instanceof Supplier)
+                value = ((Supplier<?>) value).get();
+            String text = String.valueOf(value);
+            batch.append(' ').append(fields[i]).append('=');
+            if (text.indexOf('\n') >= 0) {
+                batch.append("(below)");
+                if (blocks == null)
+                    blocks = new StringBuilder();
+                blocks.append(text);
+                if (!text.endsWith("\n"))
+                    blocks.append('\n');
+            } else if (text.indexOf(' ') >= 0)
+                batch.append('"').append(text).append('"');
+            else
+                batch.append(text);
+        }
+        batch.append('\n');
+        if (blocks != null)
+            batch.append(blocks);
+    }
+
+    /**
+     * lazy: marks a field value that the log thread computes - ServerLog.info("...", "matrix", ServerLog.lazy(matrix::summary))
+     */
+    public static Supplier<?> lazy(Supplier<?> value) {
+        return value;
+    }
+
+    private static void write(StringBuilder batch) {
+        if (batch.length() > 0) {
+            System.out.print(batch);
+            System.out.flush();
+            batch.setLength(0);
+        }
+        drained = head;
+    }
+}
@@ -0,0 +1,269 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class collects the metrics of the server - what it serves, how fast, and how busy it is.
+ *
+ * For every task (the task id the client sent, "batch 2"/"batch 4" for batches):
+ *  - the number of requests and how they ended: OK, ERROR (the task failed), TIMEOUT (missed its deadline),
+ *    CANCELLED (the client disconnected)
+ *  - a latency histogram for every phase of a request (see Phase) and a histogram of the matrix sizes (cells)
+ * Besides, the open connections, the requests in flight, the compute pool (active threads and queued tasks)
+ * and the hit rate of every cache of the server.
+ *
+ * Recording is cheap enough for every request - LongAdder counters and lock-free histograms, a few nanoTime() calls
+ * per request, no locks and no allocations on the way - while a request takes tens of microseconds at least.
+ * The metrics are read with the "stats" command of both protocols (JSON), and can be dumped periodically:
+ * every "matrix.stats.interval" seconds as text to the log (ServerLog), and as JSON to the "matrix.stats.file" file.
+ */
+public class ServerMetrics {
+
+    public static final String DUMP_INTERVAL_PROPERTY = "matrix.stats.interval";
+    public static final String DUMP_FILE_PROPERTY = "matrix.stats.file";
+
+    /**
+     * The phases of a request
+     */
+    public enum Phase {
+        DESERIALIZE, // decoding the request from the connection (matrix included)
+        QUEUE,       // waiting in the fair queue for a compute thread
+        COMPUTE,     // running the algorithm
+        SERIALIZE    // encoding and sending the answer
+    }
+
+    public enum Outcome {
+        OK, ERROR, TIMEOUT, CANCELLED
+    }
+
+    /**
+     * The metrics of a single task
+     */
+    private static class TaskMetrics {
+        final LongAdder[] outcomes = new LongAdder[Outcome.values().length];
+        final LatencyHistogram[] phases = new LatencyHistogram[Phase.values().length];
+        final LatencyHistogram cells = new LatencyHistogram();
+
+        TaskMetrics() {
+            for (int i = 0; i < outcomes.length; i++)
+                outcomes[i] = new LongAdder();
+            for (int i = 0; i < phases.length; i++)
+                phases[i] = new LatencyHistogram();
+        }
+
+        long requests() {
+            long requests = 0;
+            for (LongAdder outcome : outcomes)
+                requests += outcome.sum();
+            return requests;
+        }
+    }
+
+    private static class CacheMetrics {
+        final LongAdder hits = new LongAdder();
+        final LongAdder misses = new LongAdder();
+    }
+
+    private final Map<String, TaskMetrics> tasks = new ConcurrentSkipListMap<>(); // sorted - for the reports
+    private final Map<String, CacheMetrics> caches = new ConcurrentSkipListMap<>();
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final long startNanos = System.nanoTime();
+    private volatile ThreadPoolExecutor computePool;
+    private ScheduledExecutorService dumper;
+
+    private TaskMetrics task(String task) {
+        TaskMetrics metrics = tasks.get(task);
+        return metrics != null ? metrics : tasks.computeIfAbsent(task, key -> new TaskMetrics());
+    }
+
+    /**
+     * recordPhase: the time a request of a task spent in a phase
+     */
+    public void recordPhase(String task, Phase phase, long nanos) {
+        task(task).phases[phase.ordinal()].record(nanos);
+    }
+
+    /**
+     * recordRequest: a request that ended
+     * @param cells the size of its matrix (rows * columns)
+     */
+    public void recordRequest(String task, long cells, Outcome outcome) {
+        TaskMetrics metrics = task(task);
+        metrics.outcomes[outcome.ordinal()].increment();
+        metrics.cells.record(cells);
+    }
+
+    /**
+     * recordCache: a lookup in a cache of the server
+     */
+    public void recordCache(String cache, boolean hit) {
+        CacheMetrics metrics = caches.computeIfAbsent(cache, key -> new CacheMetrics());
+        (hit ? metrics.hits : metrics.misses).increment();
+    }
+
+    public void connectionOpened() {
+        openConnections.incrementAndGet();
+    }
+
+    public void connectionClosed() {
+        openConnections.decrementAndGet();
+    }
+
+    public void requestStarted() {
+        inFlight.incrementAndGet();
+    }
+
+    public void requestEnded() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * setComputePool: the pool whose active threads and queued tasks are reported
+     */
+    public void setComputePool(ThreadPoolExecutor computePool) {
+        this.computePool = computePool;
+    }
+
+    /**
+     * timed: wraps a computation that is about to be queued - records the time it waited in the queue and the time it ran
+     */
+    public <V> Callable<V> timed(String task, Callable<V> work) {
+        long queued = System.nanoTime();
+        return () -> {
+            long started = System.nanoTime();
+            recordPhase(task, Phase.QUEUE, started - queued);
+            try {
+                return work.call();
+            } finally {
+                recordPhase(task, Phase.COMPUTE, System.nanoTime() - started);
+            }
+        };
+    }
+
+    /**
+     * toJson: all the metrics, latencies in microseconds
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{");
+        json.append("\"uptimeSeconds\": ").append(String.format(Locale.ROOT, "%.1f", (System.nanoTime() - startNanos) / 1e9));
+        json.append(", \"connections\": ").append(openConnections.get());
+        json.append(", \"inFlight\": ").append(inFlight.get());
+        ThreadPoolExecutor pool = computePool;
+        if (pool != null)
+            json.append(", \"computePool\": {\"threads\": ").append(pool.getPoolSize())
+                    .append(", \"active\": ").append(pool.getActiveCount())
+                    .append(", \"queued\": ").append(pool.getQueue().size())
+                    .append(", \"completed\": ").append(pool.getCompletedTaskCount()).append('}');
+        json.append(", \"tasks\": {");
+        String separator = "";
+        for (Map.Entry<String, TaskMetrics> entry : tasks.entrySet()) {
+            TaskMetrics metrics = entry.getValue();
+            json.append(separator).append('"').append(entry.getKey()).append("\": {\"requests\": ").append(metrics.requests());
+            for (Outcome outcome : Outcome.values())
+                json.append(", \"").append(outcome.name().toLowerCase()).append("\": ").append(metrics.outcomes[outcome.ordinal()].sum());
+            json.append(", \"cells\": {\"p50\": ").append(metrics.cells.getValueAtPercentile(50))
+                    .append(", \"p99\": ").append(metrics.cells.getValueAtPercentile(99))
+                    .append(", \"max\": ").append(metrics.cells.getMax()).append('}');
+            for (Phase phase : Phase.values()) {
+                LatencyHistogram latencies = metrics.phases[phase.ordinal()];
+                json.append(", \"").append(phase.name().toLowerCase()).append("\": {\"count\": ").append(latencies.getCount())
+                        .append(", \"meanMicros\": ").append((long) latencies.getMean() / 1000)
+                        .append(", \"p50Micros\": ").append(latencies.getValueAtPercentile(50) / 1000)
+                        .append(", \"p99Micros\": ").append(latencies.getValueAtPercentile(99) / 1000)
+                        .append(", \"p99.9Micros\": ").append(latencies.getValueAtPercentile(99.9) / 1000)
+                        .append(", \"maxMicros\": ").append(latencies.getMax() / 1000).append('}');
+            }
+            json.append('}');
+            separator = ", ";
+        }
+        json.append("}, \"caches\": {");
+        separator = "";
+        for (Map.Entry<String, CacheMetrics> entry : caches.entrySet()) {
+            long hits = entry.getValue().hits.sum(), misses = entry.getValue().misses.sum();
+            json.append(separator).append('"').append(entry.getKey()).append("\": {\"hits\": ").append(hits)
+                    .append(", \"misses\": ").append(misses)
+                    .append(", \"hitRate\": ").append(String.format(Locale.ROOT, "%.3f", hits + misses == 0 ? 0.0 : (double) hits / (hits + misses)))
+                    .append('}');
+            separator = ", ";
+        }
+        return json.append("}}").toString();
+    }
+
+    /**
+     * toText: a short table of the metrics for the console - p50/p99 of every phase in microseconds
+     */
+    public String toText() {
+        StringBuilder text = new StringBuilder();
+        text.append(String.format("Server stats - uptime %.1f s, %d connections, %d requests in flight",
+                (System.nanoTime() - startNanos) / 1e9, openConnections.get(), inFlight.get()));
+        ThreadPoolExecutor pool = computePool;
+        if (pool != null)
+            text.append(String.format(", compute pool: %d active, %d queued", pool.getActiveCount(), pool.getQueue().size()));
+        text.append(String.format("%n%-8s %8s %6s %8s %9s %15s %15s %15s %15s %10s%n", "task", "requests", "errors", "timeouts",
+                "cancelled", "deserialize us", "queue us", "compute us", "serialize us", "cells p50"));
+        for (Map.Entry<String, TaskMetrics> entry : tasks.entrySet()) {
+            TaskMetrics metrics = entry.getValue();
+            text.append(String.format("%-8s %8d %6d %8d %9d", entry.getKey(), metrics.requests(),
+                    metrics.outcomes[Outcome.ERROR.ordinal()].sum(), metrics.outcomes[Outcome.TIMEOUT.ordinal()].sum(),
+                    metrics.outcomes[Outcome.CANCELLED.ordinal()].sum()));
+            for (LatencyHistogram latencies : metrics.phases)
+                text.append(String.format(" %15s", latencies.getValueAtPercentile(50) / 1000 + "/" + latencies.getValueAtPercentile(99) / 1000));
+            text.append(String.format(" %10d%n", metrics.cells.getValueAtPercentile(50)));
+        }
+        for (Map.Entry<String, CacheMetrics> entry : caches.entrySet()) {
+            long hits = entry.getValue().hits.sum(), misses = entry.getValue().misses.sum();
+            text.append(String.format("cache %s: %d hits, %d misses (%.1f%%)%n", entry.getKey(), hits, misses,
+                    hits + misses == 0 ? 0.0 : 100.0 * hits / (hits + misses)));
+        }
+        return text.toString();
+    }
+
+    /**
+     * startDumps: dumps the metrics every intervalSeconds - the text to the log, and the JSON to jsonFile (if not null)
+     */
+    public synchronized void startDumps(long intervalSeconds, Path jsonFile) {
+        if (dumper != null || intervalSeconds <= 0)
+            return;
+        dumper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumper.scheduleAtFixedRate(() -> {
+            ServerLog.info("Server stats", "table", toText());
+            if (jsonFile == null)
+                return;
+            try {
+                // written aside and moved, so a reader never sees half a file
+                Path temporary = jsonFile.resolveSibling(jsonFile.getFileName() + ".tmp");
+                Files.write(temporary, toJson().getBytes(StandardCharsets.UTF_8));
+                Files.move(temporary, jsonFile, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException ioException) {
+                ServerLog.warn("The stats can't be written", "file", jsonFile, "reason", String.valueOf(ioException));
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * startDumpsFromEnvironment: starts the periodic dumps if the "matrix.stats.interval" system property is set
+     */
+    public void startDumpsFromEnvironment() {
+        long intervalSeconds = Long.getLong(DUMP_INTERVAL_PROPERTY, 0);
+        String file = System.getProperty(DUMP_FILE_PROPERTY);
+        startDumps(intervalSeconds, file == null ? null : Paths.get(file));
+    }
+
+    public synchronized void stopDumps() {
+        if (dumper != null)
+            dumper.shutdownNow();
+        dumper = null;
+    }
+}
@@ -0,0 +1,446 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class computes tasks 1 and 3 of a matrix that is too big for one server, with the help of worker servers - other
+ * TcpServer processes (on this machine or others) that label a part of the matrix each.
+ *
+ * The matrix is split into tiles of tileSize x tileSize cells. Every worker gets connectionsPerWorker connections, and every
+ * connection takes the next tile that wasn't sent yet ("tile" command of the object protocol), so a fast worker labels more
+ * tiles than a slow one. A worker labels the components of its tile and answers with a TileSummary - the labels of the border
+ * of the tile and the size and bounding box of every component (and for task 1 the cells of the components) - so task 3
+ * sends the tiles but receives only their borders. The coordinator then merges the summaries:
+ *  - a union-find over the components of all the tiles - two components of neighboring tiles (diagonals included) are the
+ *    same component exactly when two of their border cells touch: the last column of a tile against the first column of
+ *    the tile to its right (the rows r-1, r, r+1), the last row against the first row of the tile below, and the corners
+ *    against the tiles below on the diagonals
+ *  - the size and the bounding box of every merged component are the sums and the unions of its parts
+ *  - task 3: a component of two cells or more is a battleship when its box has no '0' cell (see battleshipCheck). In a tile
+ *    of '0' and '1' cells only, that is exactly when its size is the area of its box (the cells of a full box are all '1',
+ *    so they are all connected to it) - only a box over a tile with other values reads the matrix (Matrix.isFilled)
+ *  - task 1: the cells of every merged component, sorted by size like ThreadLocalDFSVisit.findSCCs
+ * A worker that fails gives its tile back, and the other connections (or the next round of connections) label it - the task
+ * fails only when a round labels nothing.
+ * The server labels on the connection threads of the coordinator (labelAsync) and merges on its compute pool - a compute
+ * thread never waits for a worker, so a coordinator that is a worker of itself labels its own tiles on the free compute threads.
+ *
+ * Settings (system properties) of the coordinator mode of the server (see fromEnvironment):
+ *  - matrix.shard.workers:    the workers, host:port,host:port,... - no workers, no coordinator mode
+ *  - matrix.shard.tile:       the side of a tile, in cells (1024 by default)
+ *  - matrix.shard.min.cells:  tasks 1 and 3 on smaller matrices are computed by the server itself (1048576 by default)
+ *  - matrix.shard.connections: the connections to every worker (2 by default - one tile is sent while the other is labeled)
+ *  - matrix.shard.timeout:    the longest a worker may take to accept a connection or to answer a tile, in ms (60000 by
+ *                             default) - a worker that hangs gives its tile back like a worker that fails. The deadline of
+ *                             the request bounds it too, and a cancelled request closes its connections to the workers.
+ */
+public class ShardCoordinator {
+
+    public static final String WORKERS_PROPERTY = "matrix.shard.workers";
+    public static final String TILE_PROPERTY = "matrix.shard.tile";
+    public static final String MIN_CELLS_PROPERTY = "matrix.shard.min.cells";
+    public static final String CONNECTIONS_PROPERTY = "matrix.shard.connections";
+    public static final String TIMEOUT_PROPERTY = "matrix.shard.timeout";
+
+    /**
+     * How often the coordinator checks the token of the request while the workers label the tiles
+     */
+    private static final long CANCEL_CHECK_MILLIS = 100;
+
+    private final List<InetSocketAddress> workers;
+    private final int tileSize;
+    private final long minCells;
+    private final int connectionsPerWorker;
+    private long timeoutMillis = 60_000;
+    private final ExecutorService connectionThreads = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "shard-connection");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The tiles of a matrix - the answers of the workers are kept by the index of the tile (row by row)
+     */
+    static final class Tiles {
+        final int tileRows, tileColumns;
+        final TileSummary[] summaries;
+        final AtomicInteger next = new AtomicInteger();
+        final ConcurrentLinkedQueue<Integer> returned = new ConcurrentLinkedQueue<>(); // the tiles of failed connections
+
+        Tiles(int tileRows, int tileColumns) {
+            this.tileRows = tileRows;
+            this.tileColumns = tileColumns;
+            summaries = new TileSummary[tileRows * tileColumns];
+        }
+
+        /**
+         * @return the next tile to label, -1 if every tile was taken
+         */
+        int take() {
+            Integer tile = returned.poll();
+            if (tile != null)
+                return tile;
+            int taken = next.getAndIncrement();
+            return taken < summaries.length ? taken : -1;
+        }
+    }
+
+    public ShardCoordinator(List<InetSocketAddress> workers, int tileSize, long minCells, int connectionsPerWorker) {
+        if (workers.isEmpty())
+            throw new IllegalArgumentException("A coordinator needs at least one worker");
+        if (tileSize < 1 || connectionsPerWorker < 1)
+            throw new IllegalArgumentException("The tile size and the connections per worker are at least 1");
+        this.workers = new ArrayList<>(workers);
+        this.tileSize = tileSize;
+        this.minCells = minCells;
+        this.connectionsPerWorker = connectionsPerWorker;
+    }
+
+    /**
+     * fromEnvironment: the coordinator of the matrix.shard.* system properties
+     * @return null if no workers are configured - the server computes everything itself
+     */
+    public static ShardCoordinator fromEnvironment() {
+        String property = System.getProperty(WORKERS_PROPERTY, "").trim();
+        if (property.isEmpty())
+            return null;
+        ShardCoordinator coordinator = new ShardCoordinator(parseWorkers(property), Integer.getInteger(TILE_PROPERTY, 1024),
+                Long.getLong(MIN_CELLS_PROPERTY, 1 << 20), Integer.getInteger(CONNECTIONS_PROPERTY, 2));
+        coordinator.setTimeoutMillis(Long.getLong(TIMEOUT_PROPERTY, coordinator.timeoutMillis));
+        return coordinator;
+    }
+
+    /**
+     * @param workers host:port,host:port,... (a worker without a host is on this machine)
+     */
+    public static List<InetSocketAddress> parseWorkers(String workers) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String worker : workers.split(",")) {
+            worker = worker.trim();
+            int colon = worker.lastIndexOf(':');
+            String host = colon <= 0 ? "127.0.0.1" : worker.substring(0, colon);
+            addresses.add(new InetSocketAddress(host, Integer.parseInt(worker.substring(colon + 1))));
+        }
+        return addresses;
+    }
+
+    /**
+     * setTimeoutMillis: the longest a worker may take to accept a connection or to answer a tile
+     */
+    public void setTimeoutMillis(long timeoutMillis) {
+        if (timeoutMillis < 1)
+            throw new IllegalArgumentException("The timeout is at least 1 ms");
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public List<InetSocketAddress> getWorkers() {
+        return Collections.unmodifiableList(workers);
+    }
+
+    /**
+     * @return true if tasks 1 and 3 on the matrix are worth sharding - it is at least matrix.shard.min.cells
+     */
+    public boolean shouldShard(Matrix matrix) {
+        return (long) matrix.getRows() * matrix.getColumns() >= minCells;
+    }
+
+    /**
+     * labelAsync: labels the tiles of the matrix on a connection thread - nothing of the caller waits for the workers
+     * @param task "1" (the summaries carry the cells of the components) or "3"
+     * @return the labeled tiles, for components or battleships - completed with the IOException of label if they couldn't be labeled
+     */
+    public CompletableFuture<Tiles> labelAsync(Matrix matrix, String task, CancellationToken token) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return label(matrix, task, token);
+            } catch (IOException ioException) {
+                throw new CompletionException(ioException);
+            }
+        }, connectionThreads);
+    }
+
+    /**
+     * components: task 1 - all the components of the '1' cells, sorted by their size. The calling thread waits for the workers
+     */
+    public List<HashSet<Index>> components(Matrix matrix, CancellationToken token) throws IOException {
+        return components(matrix, label(matrix, "1", token));
+    }
+
+    /**
+     * components: task 1 - merges the tiles of labelAsync(matrix, "1", token)
+     */
+    public List<HashSet<Index>> components(Matrix matrix, Tiles tiles) {
+        Merge merge = new Merge(matrix, tiles);
+        List<HashSet<Index>> sets = merge.cellsOfComponents();
+        List<HashSet<Index>> components = new ArrayList<>(merge.components);
+        for (HashSet<Index> set : sets)
+            if (set != null)
+                components.add(set);
+        components.sort(Comparator.comparingInt(HashSet::size));
+        return components;
+    }
+
+    /**
+     * battleships: task 3 - the number of battleships. The calling thread waits for the workers
+     */
+    public int battleships(Matrix matrix, CancellationToken token) throws IOException {
+        return battleships(matrix, label(matrix, "3", token));
+    }
+
+    /**
+     * battleships: task 3 - merges the tiles of labelAsync(matrix, "3", token)
+     */
+    public int battleships(Matrix matrix, Tiles tiles) {
+        return new Merge(matrix, tiles).battleships();
+    }
+
+    /**
+     * label: sends every tile of the matrix to the workers, and waits for all their summaries
+     * @throws IOException if the tiles couldn't be labeled - every connection failed, or the token was cancelled
+     */
+    private Tiles label(Matrix matrix, String task, CancellationToken token) throws IOException {
+        Tiles tiles = new Tiles((matrix.getRows() + tileSize - 1) / tileSize, (matrix.getColumns() + tileSize - 1) / tileSize);
+        ServerLog.request("Sharding a matrix", "task", task, "matrix", ServerLog.lazy(matrix::summary), "tiles", tiles.summaries.length,
+                "workers", workers.size());
+        AtomicInteger labeled = new AtomicInteger();
+        Set<Socket> sockets = ConcurrentHashMap.newKeySet(); // the open connections - closed when the token is cancelled
+        // a round connects to every worker again - the tiles of the connections that failed are labeled by the next round
+        for (int before = -1; labeled.get() < tiles.summaries.length; ) {
+            if (labeled.get() == before)
+                throw new IOException("The workers labeled " + labeled.get() + " of " + tiles.summaries.length + " tiles - all the connections failed");
+            before = labeled.get();
+            List<Future<?>> connections = new ArrayList<>();
+            for (InetSocketAddress worker : workers)
+                for (int c = 0; c < connectionsPerWorker; c++)
+                    connections.add(connectionThreads.submit(() -> labelTiles(worker, matrix, task, tiles, labeled, token, sockets)));
+            for (Future<?> connection : connections) {
+                while (true) {
+                    try {
+                        connection.get(CANCEL_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+                        break;
+                    } catch (TimeoutException stillLabeling) {
+                        // a connection blocked in a read returns only when its socket is closed
+                        if (token.isCancelled())
+                            closeAll(sockets);
+                    } catch (InterruptedException interruptedException) {
+                        token.cancel();
+                        closeAll(sockets);
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while the workers label the tiles");
+                    } catch (ExecutionException executionException) {
+                        // labelTiles handles the failures of its worker - only an Error gets here
+                        ServerLog.warn("A connection to a worker failed", "task", task, "reason", String.valueOf(executionException.getCause()));
+                        break;
+                    }
+                }
+            }
+            if (token.isCancelled())
+                throw new IOException("The sharded task was cancelled");
+        }
+        return tiles;
+    }
+
+    /**
+     * labelTiles: a connection to a worker - sends the next tile until there are no more. If the worker fails, the tile is
+     * given back to the other connections.
+     */
+    private void labelTiles(InetSocketAddress worker, Matrix matrix, String task, Tiles tiles, AtomicInteger labeled, CancellationToken token,
+                            Set<Socket> sockets) {
+        int tile = -1;
+        Socket socket = new Socket();
+        sockets.add(socket);
+        try (socket) {
+            socket.connect(worker, timeoutOf(token));
+            socket.setSoTimeout(timeoutOf(token));
+            ObjectClientProtocol protocol = new ObjectClientProtocol(socket);
+            for (tile = tiles.take(); tile >= 0 && !token.isCancelled(); tile = tiles.take()) {
+                socket.setSoTimeout(timeoutOf(token));
+                int row = tile / tiles.tileColumns * tileSize, column = tile % tiles.tileColumns * tileSize;
+                int[][] cells = matrix.tile(row, column, Math.min(tileSize, matrix.getRows() - row), Math.min(tileSize, matrix.getColumns() - column));
+                Object answer = protocol.labelTile(task, cells);
+                if (!(answer instanceof TileSummary))
+                    throw new IOException("Worker " + worker + " answered " + answer);
+                tiles.summaries[tile] = (TileSummary) answer;
+                labeled.incrementAndGet();
+            }
+            tile = -1;
+            protocol.close();
+        } catch (IOException | ClassNotFoundException | RuntimeException exception) {
+            if (!token.isCancelled()) // a cancelled request closed the socket itself
+                ServerLog.warn("A worker failed - its tile goes to the other workers", "worker", worker, "reason", String.valueOf(exception));
+            if (tile >= 0)
+                tiles.returned.add(tile);
+        } finally {
+            sockets.remove(socket);
+        }
+    }
+
+    /**
+     * @return the timeout of the next connect or read of a connection - the timeout of a worker, or less if the request
+     *         has a deadline (at least 1 ms - 0 would be no timeout at all)
+     */
+    private int timeoutOf(CancellationToken token) {
+        return (int) Math.max(1, Math.min(Math.min(timeoutMillis, token.remainingMillis()), Integer.MAX_VALUE));
+    }
+
+    private static void closeAll(Set<Socket> sockets) {
+        for (Socket socket : sockets) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // closed anyway
+            }
+        }
+    }
+
+    /**
+     * The merge of the summaries of all the tiles of a matrix
+     */
+    private final class Merge {
+        final Matrix matrix;
+        final Tiles tiles;
+        final int[] base;     // by tile - the global id of its label 0 (its label l is base + l)
+        final int[] parent;   // the union-find over the global ids
+        int components;
+
+        Merge(Matrix matrix, Tiles tiles) {
+            this.matrix = matrix;
+            this.tiles = tiles;
+            base = new int[tiles.summaries.length];
+            int ids = 1;
+            for (int tile = 0; tile < tiles.summaries.length; tile++) {
+                base[tile] = ids - 1;
+                ids += tiles.summaries[tile].getComponents();
+            }
+            parent = new int[ids];
+            for (int id = 0; id < ids; id++)
+                parent[id] = id;
+            components = ids - 1;
+            joinBorders();
+        }
+
+        private void joinBorders() {
+            for (int ti = 0; ti < tiles.tileRows; ti++) {
+                for (int tj = 0; tj < tiles.tileColumns; tj++) {
+                    int tile = ti * tiles.tileColumns + tj;
+                    TileSummary summary = tiles.summaries[tile];
+                    if (tj + 1 < tiles.tileColumns) { // the tile to the right - the same rows
+                        int[] right = summary.getRight(), left = tiles.summaries[tile + 1].getLeft();
+                        for (int r = 0; r < right.length; r++)
+                            if (right[r] != 0)
+                                for (int other = Math.max(0, r - 1); other <= Math.min(left.length - 1, r + 1); other++)
+                                    join(tile, right[r], tile + 1, left[other]);
+                    }
+                    if (ti + 1 < tiles.tileRows) { // the tiles below - the same columns, and the two diagonals
+                        int below = tile + tiles.tileColumns;
+                        int[] bottom = summary.getBottom(), top = tiles.summaries[below].getTop();
+                        for (int c = 0; c < bottom.length; c++)
+                            if (bottom[c] != 0)
+                                for (int other = Math.max(0, c - 1); other <= Math.min(top.length - 1, c + 1); other++)
+                                    join(tile, bottom[c], below, top[other]);
+                        if (tj + 1 < tiles.tileColumns)
+                            join(tile, bottom[bottom.length - 1], below + 1, tiles.summaries[below + 1].getTop()[0]);
+                        if (tj > 0) {
+                            int[] belowLeft = tiles.summaries[below - 1].getTop();
+                            join(tile, bottom[0], below - 1, belowLeft[belowLeft.length - 1]);
+                        }
+                    }
+                }
+            }
+        }
+
+        private void join(int tileA, int labelA, int tileB, int labelB) {
+            if (labelA == 0 || labelB == 0)
+                return;
+            int rootA = find(base[tileA] + labelA), rootB = find(base[tileB] + labelB);
+            if (rootA != rootB) {
+                parent[rootB] = rootA;
+                components--;
+            }
+        }
+
+        private int find(int id) {
+            while (parent[id] != id) {
+                parent[id] = parent[parent[id]]; // path halving
+                id = parent[id];
+            }
+            return id;
+        }
+
+        /**
+         * @return the number of battleships - task 3
+         */
+        int battleships() {
+            long[] sizes = new long[parent.length];
+            int[] boxes = new int[parent.length * 4];
+            Arrays.fill(boxes, -1);
+            for (int tile = 0; tile < tiles.summaries.length; tile++) {
+                TileSummary summary = tiles.summaries[tile];
+                int row = tile / tiles.tileColumns * tileSize, column = tile % tiles.tileColumns * tileSize;
+                for (int label = 1; label <= summary.getComponents(); label++) {
+                    int root = find(base[tile] + label), box = root * 4;
+                    int[] part = summary.boxOf(label);
+                    sizes[root] += summary.sizeOf(label);
+                    if (boxes[box] < 0) {
+                        boxes[box] = row + part[0];
+                        boxes[box + 1] = column + part[1];
+                        boxes[box + 2] = row + part[2];
+                        boxes[box + 3] = column + part[3];
+                    } else {
+                        boxes[box] = Math.min(boxes[box], row + part[0]);
+                        boxes[box + 1] = Math.min(boxes[box + 1], column + part[1]);
+                        boxes[box + 2] = Math.max(boxes[box + 2], row + part[2]);
+                        boxes[box + 3] = Math.max(boxes[box + 3], column + part[3]);
+                    }
+                }
+            }
+            int battleships = 0;
+            for (int root = 1; root < parent.length; root++) {
+                if (parent[root] != root || sizes[root] < 2)
+                    continue;
+                int box = root * 4;
+                if (hasOtherValues(boxes[box], boxes[box + 1], boxes[box + 2], boxes[box + 3])
+                        ? matrix.isFilled(boxes[box], boxes[box + 1], boxes[box + 2], boxes[box + 3])
+                        : sizes[root] == (long) (boxes[box + 2] - boxes[box] + 1) * (boxes[box + 3] - boxes[box + 1] + 1))
+                    battleships++;
+            }
+            return battleships;
+        }
+
+        /**
+         * @return true if a tile under the rectangle has cells that are neither '0' nor '1'
+         */
+        private boolean hasOtherValues(int minRow, int minColumn, int maxRow, int maxColumn) {
+            for (int ti = minRow / tileSize; ti <= maxRow / tileSize; ti++)
+                for (int tj = minColumn / tileSize; tj <= maxColumn / tileSize; tj++)
+                    if (tiles.summaries[ti * tiles.tileColumns + tj].hasOtherValues())
+                        return true;
+            return false;
+        }
+
+        /**
+         * @return the cells of every merged component, by the global id of its root (null for the other ids)
+         */
+        List<HashSet<Index>> cellsOfComponents() {
+            List<HashSet<Index>> sets = new ArrayList<>(Collections.nCopies(parent.length, null));
+            for (int tile = 0; tile < tiles.summaries.length; tile++) {
+                TileSummary summary = tiles.summaries[tile];
+                int row = tile / tiles.tileColumns * tileSize, column = tile % tiles.tileColumns * tileSize;
+                int[] cells = summary.getCells();
+                int offset = 0;
+                for (int label = 1; label <= summary.getComponents(); label++) {
+                    int root = find(base[tile] + label);
+                    HashSet<Index> set = sets.get(root);
+                    if (set == null)
+                        sets.set(root, set = new HashSet<>());
+                    for (int end = offset + summary.sizeOf(label); offset < end; offset++)
+                        set.add(new Index(row + cells[offset] / summary.getColumns(), column + cells[offset] % summary.getColumns()));
+                }
+            }
+            return sets;
+        }
+    }
+}
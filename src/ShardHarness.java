@@ -0,0 +1,203 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * This class starts worker servers on this machine and checks and measures a ShardCoordinator with them.
+ *
+ * Every worker is a TcpServer in a process of its own (the same java and classpath as the harness, with --worker-heap),
+ * on the ports base-port, base-port + 1, ... - the harness waits until they accept connections, and stops them at the end.
+ * A grid of '0' and '1' cells is generated once from a fixed seed (random cells of the given density, and rectangles of
+ * '1' cells - battleships - on top of them). Then for every worker count of --counts, the coordinator runs tasks 1 and 3
+ * with the first workers: a warmup run, then the measured iterations, and every answer is compared with DynamicComponents,
+ * which labels the whole grid in this process. A wrong answer stops the harness with an error.
+ * The results (milliseconds per run, cells per second and the speedup over a single worker) are printed and written as
+ * CSV (out.csv). The workers log to shard-worker-<port>.log in the temporary directory.
+ *
+ * Usage: java ShardHarness [--workers=4] [--counts=1,2,4] [--size=4096] [--density=0.3] [--tile=512] [--connections=2]
+ *        [--tasks=3,1] [--iterations=3] [--base-port=8110] [--worker-heap=512m] [--seed=42] [--out=shard-results]
+ */
+public class ShardHarness {
+
+    private int workers = 4;
+    private int[] counts;
+    private int size = 4096;
+    private double density = 0.3;
+    private int tile = 512;
+    private int connections = 2;
+    private List<String> tasks = Arrays.asList("3", "1");
+    private int iterations = 3;
+    private int basePort = 8110;
+    private String workerHeap = "512m";
+    private long seed = 42;
+    private String out = "shard-results";
+
+    private final List<Process> processes = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        ShardHarness harness = new ShardHarness();
+        harness.parse(args);
+        try {
+            harness.startWorkers();
+            harness.run();
+        } finally {
+            harness.stopWorkers();
+        }
+    }
+
+    private void parse(String[] args) {
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0)
+                throw new IllegalArgumentException("Unknown argument " + arg + " - expected --name=value");
+            String name = arg.substring(2, equals), value = arg.substring(equals + 1);
+            switch (name) {
+                case "workers": workers = Integer.parseInt(value); break;
+                case "counts": counts = Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).toArray(); break;
+                case "size": size = Integer.parseInt(value); break;
+                case "density": density = Double.parseDouble(value); break;
+                case "tile": tile = Integer.parseInt(value); break;
+                case "connections": connections = Integer.parseInt(value); break;
+                case "tasks": tasks = Arrays.asList(value.split(",")); break;
+                case "iterations": iterations = Integer.parseInt(value); break;
+                case "base-port": basePort = Integer.parseInt(value); break;
+                case "worker-heap": workerHeap = value; break;
+                case "seed": seed = Long.parseLong(value); break;
+                case "out": out = value; break;
+                default: throw new IllegalArgumentException("Unknown argument " + arg);
+            }
+        }
+        if (counts == null) { // 1, 2, 4 ... and all the workers
+            List<Integer> powers = new ArrayList<>();
+            for (int count = 1; count < workers; count *= 2)
+                powers.add(count);
+            powers.add(workers);
+            counts = powers.stream().mapToInt(Integer::intValue).toArray();
+        }
+        for (int count : counts)
+            if (count < 1 || count > workers)
+                throw new IllegalArgumentException("A worker count is 1.." + workers + ": " + count);
+        for (String task : tasks)
+            if (!task.equals("1") && !task.equals("3"))
+                throw new IllegalArgumentException("Unknown task " + task + " - 1 or 3");
+    }
+
+    /**
+     * startWorkers: a TcpServer process per worker, with the JVM options of the harness that matter to the server
+     * (--add-modules, the matrix.* properties) - returns when all of them accept connections
+     */
+    private void startWorkers() throws IOException, InterruptedException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        List<String> options = new ArrayList<>();
+        for (String option : ManagementFactory.getRuntimeMXBean().getInputArguments())
+            if (option.startsWith("--add-modules") || option.startsWith("-Dmatrix.") && !option.startsWith("-D" + ShardCoordinator.WORKERS_PROPERTY))
+                options.add(option);
+        for (int i = 0; i < workers; i++) {
+            int port = basePort + i;
+            List<String> command = new ArrayList<>(Arrays.asList(java, "-Xmx" + workerHeap));
+            command.addAll(options);
+            command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), "TcpServer", String.valueOf(port), String.valueOf(24 * 3600)));
+            File log = new File(System.getProperty("java.io.tmpdir"), "shard-worker-" + port + ".log");
+            processes.add(new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.to(log)).start());
+        }
+        for (int i = 0; i < workers; i++)
+            awaitPort(basePort + i, processes.get(i));
+        System.out.println("Started " + workers + " workers on ports " + basePort + ".." + (basePort + workers - 1));
+    }
+
+    private static void awaitPort(int port, Process process) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + 30_000_000_000L;
+        while (true) {
+            if (!process.isAlive())
+                throw new IOException("The worker on port " + port + " exited with " + process.exitValue());
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("127.0.0.1", port), 1000);
+                return;
+            } catch (IOException notYet) {
+                if (System.nanoTime() > deadline)
+                    throw new IOException("The worker on port " + port + " didn't start in 30 seconds");
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private void stopWorkers() throws InterruptedException {
+        for (Process process : processes)
+            process.destroy();
+        for (Process process : processes)
+            if (!process.waitFor(5, java.util.concurrent.TimeUnit.SECONDS))
+                process.destroyForcibly();
+    }
+
+    private void run() throws IOException {
+        Matrix matrix = Matrix.wrap(grid());
+        long cells = (long) size * size;
+        // the expected answers - the whole grid labeled in this process
+        long referenceStart = System.nanoTime();
+        DynamicComponents reference = new DynamicComponents(matrix);
+        int expectedBattleships = reference.getBattleships();
+        Set<HashSet<Index>> expectedComponents = tasks.contains("1") ? new HashSet<>(reference.getComponentSets()) : null;
+        System.out.printf(Locale.ROOT, "Grid %dx%d: %d components, %d battleships (labeled in this process in %d ms)%n", size, size,
+                reference.getComponents(), expectedBattleships, (System.nanoTime() - referenceStart) / 1_000_000);
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (int i = 0; i < workers; i++)
+            addresses.add(new InetSocketAddress("127.0.0.1", basePort + i));
+        try (PrintWriter csv = new PrintWriter(Files.newBufferedWriter(Paths.get(out + ".csv")))) {
+            csv.println("task,workers,size,tile,millis,cellsPerSecond,speedup");
+            for (String task : tasks) {
+                double singleWorkerMillis = 0;
+                for (int count : counts) {
+                    ShardCoordinator coordinator = new ShardCoordinator(addresses.subList(0, count), tile, 0, connections);
+                    double millis = 0;
+                    for (int i = 0; i <= iterations; i++) { // the first run is the warmup
+                        long start = System.nanoTime();
+                        if (task.equals("3")) {
+                            int battleships = coordinator.battleships(matrix, CancellationToken.NONE);
+                            if (battleships != expectedBattleships)
+                                throw new IllegalStateException(count + " workers counted " + battleships + " battleships, not " + expectedBattleships);
+                        } else {
+                            List<HashSet<Index>> components = coordinator.components(matrix, CancellationToken.NONE);
+                            if (components.size() != expectedComponents.size() || !expectedComponents.equals(new HashSet<>(components)))
+                                throw new IllegalStateException(count + " workers found " + components.size() + " components, not the expected "
+                                        + expectedComponents.size());
+                        }
+                        if (i > 0)
+                            millis += (System.nanoTime() - start) / 1e6;
+                    }
+                    millis /= Math.max(1, iterations);
+                    if (count == counts[0])
+                        singleWorkerMillis = millis * count; // the speedup is relative to a single worker
+                    double speedup = singleWorkerMillis / millis;
+                    System.out.printf(Locale.ROOT, "task %s, %d workers: %8.1f ms, %6.1f M cells/s, speedup x%.2f - correct%n",
+                            task, count, millis, cells / millis / 1000, speedup);
+                    csv.printf(Locale.ROOT, "%s,%d,%d,%d,%.1f,%.0f,%.3f%n", task, count, size, tile, millis, cells / millis * 1000, speedup);
+                }
+            }
+        }
+    }
+
+    /**
+     * grid: random '1' cells of the density, and a rectangle of '1' cells (with a frame of '0' cells) every few hundred cells
+     */
+    private int[][] grid() {
+        Random random = new Random(seed);
+        int[][] grid = new int[size][size];
+        for (int[] row : grid)
+            for (int j = 0; j < size; j++)
+                row[j] = random.nextDouble() < density ? 1 : 0;
+        for (int ships = (int) ((long) size * size / 400); ships > 0; ships--) {
+            int height = 1 + random.nextInt(4), width = 1 + random.nextInt(4);
+            int row = random.nextInt(Math.max(1, size - height - 1)), column = random.nextInt(Math.max(1, size - width - 1));
+            for (int i = row; i <= Math.min(size - 1, row + height + 1); i++)
+                for (int j = column; j <= Math.min(size - 1, column + width + 1); j++)
+                    grid[i][j] = i > row && j > column && i <= row + height && j <= column + width ? 1 : 0;
+        }
+        return grid;
+    }
+}
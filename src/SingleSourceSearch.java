@@ -0,0 +1,158 @@
+import java.util.*;
+
+/**
+ * This class answers many queries from the same source with a single search.
+ *
+ * ThreadLocalBFS and ThreadLocalBellmanFord enumerate paths from the source until they reach one destination,
+ * so every (source, destination) pair repeats the whole search. Here the search runs once per source and keeps,
+ * for every node it reached, its predecessors on the best paths to it (a DAG of predecessors):
+ *  - shortestPaths: BFS over the reachable nodes - a predecessor is a node one step closer to the source
+ *  - lightestPaths: Dijkstra over the neighbors - a predecessor is a node whose lightest weight plus the weight of the node
+ *    equals the lightest weight of the node (the weight of a path is the sum of its nodes, including the source)
+ * pathsTo(dest) then walks the predecessors back from the destination - every walk is one of the best paths.
+ * Every prefix of a best path is a best path to its last node (when no weight is negative), so no best path is missed.
+ */
+public class SingleSourceSearch<T> {
+
+    private final Node<T> source;
+    private final Map<Node<T>, List<Node<T>>> predecessors = new HashMap<>();
+    /**
+     * The search stops when the token is cancelled - the nodes it didn't reach have no paths
+     */
+    private final CancellationToken cancellationToken;
+    /**
+     * The counters of the search and of the queries that walked its predecessors - see SearchStats
+     */
+    private final SearchStats searchStats = new SearchStats();
+
+    private SingleSourceSearch(Node<T> source, CancellationToken cancellationToken) {
+        this.source = source;
+        this.cancellationToken = cancellationToken;
+        predecessors.put(source, Collections.emptyList());
+    }
+
+    /**
+     * shortestPaths: the single source search of task 2 - the paths go only through reachable nodes (value 1)
+     * @param someGraph represent a graph
+     * @param src represent the source of all the queries
+     * @param token the cancellation token of the request
+     */
+    public static <T> SingleSourceSearch<T> shortestPaths(Traversable<T> someGraph, Node<T> src, CancellationToken token) {
+        SingleSourceSearch<T> search = new SingleSourceSearch<>(src, token);
+        Map<Node<T>, Integer> distances = new HashMap<>();
+        distances.put(src, 0);
+        LinkedList<Node<T>> queue = new LinkedList<>();
+        queue.add(src);
+        search.searchStats.enqueued(1);
+        while (!queue.isEmpty()) {
+            if (token.isCancelled())
+                break;
+            Node<T> polled = queue.poll();
+            int distance = distances.get(polled);
+            search.searchStats.expanded();
+            for (Node<T> reachable : someGraph.getReachableNodes(polled)) {
+                Integer known = distances.get(reachable);
+                if (known == null) {
+                    distances.put(reachable, distance + 1);
+                    search.predecessors.put(reachable, new ArrayList<>(Collections.singletonList(polled)));
+                    queue.add(reachable);
+                    search.searchStats.enqueued(queue.size());
+                } else if (known == distance + 1)
+                    search.predecessors.get(reachable).add(polled);
+            }
+        }
+        return search;
+    }
+
+    /**
+     * lightestPaths: the single source search of task 4 - the paths go through all the neighbors
+     * @param someGraph represent a graph
+     * @param src represent the source of all the queries
+     * @param token the cancellation token of the request
+     * @return the search, null if the graph has a negative weight (Dijkstra can't handle it)
+     */
+    public static <T> SingleSourceSearch<T> lightestPaths(Traversable<T> someGraph, Node<T> src, CancellationToken token) {
+        SingleSourceSearch<T> search = new SingleSourceSearch<>(src, token);
+        Map<Node<T>, Integer> weights = new HashMap<>();
+        int srcWeight = someGraph.getValueN(src.getData());
+        if (srcWeight < 0)
+            return null;
+        weights.put(src, srcWeight);
+        PriorityQueue<Map.Entry<Node<T>, Integer>> queue = new PriorityQueue<>(Map.Entry.comparingByValue());
+        queue.add(new AbstractMap.SimpleEntry<>(src, srcWeight));
+        search.searchStats.enqueued(1);
+        Set<Node<T>> settled = new HashSet<>();
+        while (!queue.isEmpty()) {
+            if (token.isCancelled())
+                break;
+            Map.Entry<Node<T>, Integer> polled = queue.poll();
+            if (!settled.add(polled.getKey())) {
+                search.searchStats.discarded();
+                continue; // a lighter path to this node was already handled
+            }
+            search.searchStats.expanded();
+            for (Node<T> neighbor : someGraph.getNeighbors(polled.getKey())) {
+                int neighborWeight = someGraph.getValueN(neighbor.getData());
+                if (neighborWeight < 0)
+                    return null;
+                int weight = polled.getValue() + neighborWeight;
+                Integer known = weights.get(neighbor);
+                if (known == null || weight < known) {
+                    weights.put(neighbor, weight);
+                    search.predecessors.put(neighbor, new ArrayList<>(Collections.singletonList(polled.getKey())));
+                    queue.add(new AbstractMap.SimpleEntry<>(neighbor, weight));
+                    search.searchStats.enqueued(queue.size());
+                } else if (weight == known && !neighbor.equals(src))
+                    search.predecessors.get(neighbor).add(polled.getKey());
+            }
+        }
+        return search;
+    }
+
+    /**
+     * pathsTo: all the best paths from the source to a destination
+     * @param dest represent the destination of a query
+     * @return all the shortest/lightest paths, from the source to the destination - empty if the destination wasn't reached
+     */
+    public List<List<Node<T>>> pathsTo(Node<T> dest) {
+        List<List<Node<T>>> paths = new ArrayList<>();
+        if (!predecessors.containsKey(dest))
+            return paths;
+        // depth-first walk back from the destination - the path is kept reversed while it is built
+        LinkedList<Node<T>> reversedPath = new LinkedList<>();
+        Set<Node<T>> onPath = new HashSet<>();
+        Deque<Iterator<Node<T>>> predecessorsOfPath = new ArrayDeque<>();
+        reversedPath.add(dest);
+        onPath.add(dest);
+        predecessorsOfPath.push(predecessors.get(dest).iterator());
+        while (!predecessorsOfPath.isEmpty()) {
+            if (cancellationToken.isCancelled())
+                break;
+            Node<T> last = reversedPath.getLast();
+            if (last.equals(source)) {
+                List<Node<T>> path = new ArrayList<>(reversedPath);
+                Collections.reverse(path);
+                paths.add(path);
+            }
+            Iterator<Node<T>> next = predecessorsOfPath.peek();
+            if (last.equals(source) || !next.hasNext()) { // backtrack
+                predecessorsOfPath.pop();
+                onPath.remove(reversedPath.removeLast());
+                continue;
+            }
+            Node<T> predecessor = next.next();
+            // equal weights (zero weight nodes) may close a cycle of predecessors - a path never visits a node twice
+            if (onPath.add(predecessor)) {
+                reversedPath.add(predecessor);
+                predecessorsOfPath.push(predecessors.get(predecessor).iterator());
+                searchStats.enqueued(predecessorsOfPath.size());
+            } else
+                searchStats.discarded();
+        }
+        return paths;
+    }
+
+    public SearchStats getSearchStats() {
+        return searchStats;
+    }
+}
@@ -1,6 +1,7 @@
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -52,11 +53,21 @@ public class TcpServer {
          */
         new Thread(() ->{
 
-            this.threadPool = new ThreadPoolExecutor(3,5,
+            /*
+             the connection threads only read requests and write answers - the computations run on the compute pool
+             of the handler, so we can afford many more connection threads than cores (the queue is unbounded,
+             so the pool never grows beyond its core size)
+             */
+            this.threadPool = new ThreadPoolExecutor(32,64,
                     10, TimeUnit.SECONDS, new LinkedBlockingQueue());
 
             try {
-                ServerSocket serverSocket = new ServerSocket(this.port); // bind
+                /*
+                 the server socket is opened through a channel, so every accepted socket has a SocketChannel too -
+                 the handler can read big payloads (matrices) with the channel, straight into a direct buffer
+                 */
+                ServerSocketChannel serverSocket = ServerSocketChannel.open();
+                serverSocket.bind(new InetSocketAddress(this.port)); // bind
                 /*
                 listen to incoming connection and accept if possible
                 be advised: accept is a blocking call
@@ -66,24 +77,32 @@ public class TcpServer {
                 */
                 while(!stopServer){
 
-                    Socket serverClientConnection = serverSocket.accept();
+                    Socket serverClientConnection = serverSocket.accept().socket();
+                    // the flight recorder events of the connection - see ServerEvents
+                    ServerEvents.ConnectionDequeued dequeued = ServerEvents.connectionQueued(
+                            String.valueOf(serverClientConnection.getRemoteSocketAddress()), threadPool);
                     // define a task and submit to our threadPool
 
                     /*server will handle each client in a separate thread
                        define every client as a Runnable task to execute*/
 
                     Runnable clientHandling = ()->{
-                        System.out.println("Server: Handling a client");
+                        ServerEvents.dequeued(dequeued);
+                        ServerLog.info("Handling a client", "remote", serverClientConnection.getRemoteSocketAddress());
                         try {
-                            requestHandler.handle(serverClientConnection.getInputStream(),
-                                    serverClientConnection.getOutputStream());
-                            // finished handling client, now terminate connection with client
-                            // close all streams
-                            serverClientConnection.getInputStream().close();
-                            serverClientConnection.getOutputStream().close();
-                            serverClientConnection.close(); //
-                        } catch (IOException | ClassNotFoundException ioException) {
-                            ioException.printStackTrace();
+                            // the connection lets the handler know when the client has gone away in the middle of a task
+                            ClientConnection clientConnection = new ClientConnection(serverClientConnection);
+                            requestHandler.handle(clientConnection);
+                        } catch (IOException | ClassNotFoundException | RuntimeException exception) {
+                            exception.printStackTrace();
+                        } finally {
+                            // finished handling client (or it failed), now terminate connection with client
+                            // closing the socket closes both of its streams
+                            try {
+                                serverClientConnection.close();
+                            } catch (IOException ioException) {
+                                ioException.printStackTrace();
+                            }
                         }
                     };
                     threadPool.execute(clientHandling);
@@ -118,21 +137,28 @@ public class TcpServer {
             finally {
                 stopServer = true;
                 readWriteLock.writeLock().unlock();
-                System.out.println("Server shut down successfully");
+                ServerLog.info("Server shut down successfully");
             }
         }
     }
 
+    /**
+     * @param args the port (8010 by default) and the seconds the server runs (100 by default) - so several servers
+     *             (e.g. the workers of a ShardCoordinator) can run on the same machine
+     */
     public static void main(String[] args) {
-        TcpServer webServer = new TcpServer(8010);
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8010;
+        long seconds = args.length > 1 ? Long.parseLong(args[1]) : 100;
+        TcpServer webServer = new TcpServer(port);
         webServer.supportClients(new MatrixIHandler());
+        ServerLog.info("Server started", "port", port, "seconds", seconds);
         //In order for threads to run and the server not close directly
         try {
-            Thread.sleep(100000);
+            Thread.sleep(seconds * 1000);
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
-        System.out.println("Stopping the server");
+        ServerLog.info("Stopping the server");
         webServer.stop();
     }
 
@@ -3,51 +3,78 @@ import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 /**
  * This class implement kind of BFS algorithm.
  * We need to find all the shortest paths between 2 nodes(from source to destination)
  * How?
  * find all shortest paths by loop all over the paths and check size of the path- in findShortestPathsBFS method
  */
-public class ThreadLocalBFS<T> {
-    final ThreadLocal<LinkedList<List<Node<T>>>> threadLocalQueue = ThreadLocal.withInitial(() -> new LinkedList<List<Node<T>>>());
-
+public class ThreadLocalBFS<T> extends Search {
+    /**
+     * The partial paths of the search - PathCells, so a path that continues another one shares its nodes instead of copying them
+     * A FrontierQueue - it spills its oldest segments to disk when the paths of all the searches exceed the heap budget
+     */
+    final ThreadLocal<FrontierQueue<T>> threadLocalQueue = ThreadLocal.withInitial(() -> new FrontierQueue<T>());
     /**
      * findShortestPathsBFS: The function finds all the shortest paths from source to destination
      * @param someGraph represent a graph
      * @param src represent start index
      * @param dest represent final/ destination index
-     * @return List<List < Node < T>>> - all shortest paths between source to destination
+     * @return List<List < Node < T>>> - all shortest paths between source to destination (the paths found so far if the search was cancelled)
      */
     public List<List<Node<T>>> findShortestPathsBFS(Traversable<T> someGraph, Node<T> src, Node<T> dest) {
-        int sizeOfMinPath=Integer.MAX_VALUE;
         List<List<Node<T>>> minPaths = new ArrayList<>();
-        ArrayList<Node<T>> path = new ArrayList<>();
-        path.add(src);
-        threadLocalQueue.get().add(path);
-        while(!threadLocalQueue.get().isEmpty()) {
-            path = (ArrayList<Node<T>>) threadLocalQueue.get().poll();
-            Node<T> polled = path.get(path.size()-1);
-            if(polled.equals(dest))
-                if(sizeOfMinPath<path.size())
+        findShortestPathsBFS(someGraph, src, dest, minPaths::add);
+        return minPaths;
+    }
+
+    /**
+     * findShortestPathsBFS: the same search, but every shortest path is passed to onPath as soon as it is found.
+     * BFS polls the paths by their length, so the first path that reaches the destination is already a shortest one,
+     * and so is every path of the same length after it - no path has to wait for the end of the search.
+     * @param someGraph represent a graph
+     * @param src represent start index
+     * @param dest represent final/ destination index
+     * @param onPath receives the shortest paths one by one
+     */
+    public void findShortestPathsBFS(Traversable<T> someGraph, Node<T> src, Node<T> dest, Consumer<List<Node<T>>> onPath) {
+        int sizeOfMinPath=Integer.MAX_VALUE;
+        boolean found = false;
+        PathCell<T> path = PathCell.start(src);
+        try {
+            threadLocalQueue.get().add(path);
+            searchStats.enqueued(1);
+            while(!threadLocalQueue.get().isEmpty()) {
+                if (cancellationToken.isCancelled())
                     break;
-                else {
-                    sizeOfMinPath = path.size();
-                    minPaths.add(path);
-                }
-            Collection<Node<T>> reachableNodes = someGraph.getReachableNodes(polled);
-            for (Node<T> singleReachableNode : reachableNodes) {
-                if(!path.contains(singleReachableNode)){
-                    ArrayList<Node<T>> newPath = new ArrayList<>(path);
-                    newPath.add(singleReachableNode);
-                    threadLocalQueue.get().add(newPath);
+                path = threadLocalQueue.get().poll();
+                Node<T> polled = path.getNode();
+                if(polled.equals(dest))
+                    if(sizeOfMinPath<path.length()) {
+                        searchStats.discarded();
+                        break;
+                    } else {
+                        sizeOfMinPath = path.length();
+                        found = true;
+                        onPath.accept(path.toList()); // only the paths of the answer become lists
+                    }
+                searchStats.expanded();
+                Collection<Node<T>> reachableNodes = someGraph.getReachableNodes(polled);
+                for (Node<T> singleReachableNode : reachableNodes) {
+                    if(!path.contains(singleReachableNode)){
+                        threadLocalQueue.get().add(path.extend(singleReachableNode));
+                        searchStats.enqueued(threadLocalQueue.get().size());
+                    }
                 }
             }
+            if (!found && !cancellationToken.isCancelled())
+                ServerLog.request("No path exists between the source and the destination", "source", src, "destination", dest);
+            searchStats.discarded(threadLocalQueue.get().size());
+        } finally {
+            //after a cancellation or a failure the queue may still hold many partial paths - clearing it frees them right away
+            threadLocalQueue.get().clear();
         }
-        if (minPaths.isEmpty())
-            System.out.println("No path exist between the source "+src+" and the destination "+dest);
-        threadLocalQueue.get().clear();
-        return minPaths;
 
     }
 }
@@ -3,58 +3,178 @@ import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 
 /**
  * This class implement kind of Bellman-Ford algorithm.
  * We need to find all the lightest paths between 2 nodes(from source to destination)
  * How?
- * (1)find the sum of each path - with SumPathWeight method
+ * (1)find the sum of each path - every PathCell adds the weight of its node to the weight of the path it continues
  * (2)find all lightest paths by loop all over the paths and check the min weight - in findPathsBellmanFord method
  */
-public class ThreadLocalBellmanFord<T>  {
+public class ThreadLocalBellmanFord<T> extends Search {
+
+    /**
+     * The partial paths of the search - PathCells, so a path that continues another one shares its nodes instead of copying them,
+     * and knows its weight without summing its nodes again
+     * A FrontierQueue - it spills its oldest segments to disk when the paths of all the searches exceed the heap budget
+     */
+    final ThreadLocal<FrontierQueue<T>> threadLocalQueue = ThreadLocal.withInitial(() -> new FrontierQueue<T>());
 
-    final ThreadLocal<LinkedList<List<Node<T>>>> threadLocalQueue = ThreadLocal.withInitial(() -> new LinkedList<List<Node<T>>>());
     /**
      * findLightestPathsBellmanFord: The function finds all the lightest paths from source to destination
      * @param someGraph represent a graph
      * @param src represent start index
      * @param dest represent final/ destination index
-     * @return List<List<Node<T>>> - all lightest paths between source to destination
+     * @return List<List<Node<T>>> - all lightest paths between source to destination (the lightest of the paths found so far if the search was cancelled)
      */
 
     public List<List<Node<T>>> findLightestPathsBellmanFord(Traversable<T> someGraph, Node<T> src, Node<T> dest) {
         int weightOfLightestPath=Integer.MAX_VALUE;
-        List<List<Node<T>>> currentLightestPaths = new ArrayList<>();
+        List<PathCell<T>> currentLightestPaths = new ArrayList<>();
+        PathCell<T> path = PathCell.start(src, someGraph.getValueN(src.getData()));
+        try {
+            threadLocalQueue.get().add(path);
+            searchStats.enqueued(1);
+            while(!threadLocalQueue.get().isEmpty()) {
+                if (cancellationToken.isCancelled())
+                    break;
+                path = threadLocalQueue.get().poll();
+                Node<T> polled = path.getNode();
+                if(polled.equals(dest))
+                    if(weightOfLightestPath<path.weight()) {
+                        searchStats.discarded();
+                        continue;}
+                    else {
+                        weightOfLightestPath = path.weight();
+                        currentLightestPaths.add(path);
+                    }
+                searchStats.expanded();
+                Collection<Node<T>> neighbors = someGraph.getNeighbors(polled);
+                for (Node<T> neighbor : neighbors) {
+                    if(!path.contains(neighbor)){
+                        threadLocalQueue.get().add(path.extend(neighbor, someGraph.getValueN(neighbor.getData())));
+                        searchStats.enqueued(threadLocalQueue.get().size());
+                    }
+                }
+            }
+            List<List<Node<T>>> lightestPaths = new ArrayList<>();
+            for (PathCell<T> currentPath : currentLightestPaths)
+            {
+                if (currentPath.weight()==weightOfLightestPath)
+                    lightestPaths.add(currentPath.toList()); // only the paths of the answer become lists
+            }
+            searchStats.discarded(currentLightestPaths.size() - lightestPaths.size() + threadLocalQueue.get().size());
+            return lightestPaths;
+        } finally {
+            //after a cancellation or a failure the queue may still hold many partial paths - clearing it frees them right away
+            threadLocalQueue.get().clear();
+        }
+    }
+
+    /**
+     * findLightestPathsBellmanFord: the streaming variant - every lightest path is passed to onPath as soon as it is found.
+     * The search above knows which paths are the lightest only when it has enumerated all of them, so this one works in two passes:
+     * (1) the lightest weight from the source to every node (Dijkstra - possible as long as no weight is negative)
+     * (2) a depth-first walk that only continues along prefixes which are themselves the lightest path to their last node -
+     *     every prefix of a lightest path is such a prefix, so the walk reaches exactly the lightest paths, and it never keeps them.
+     * A graph with negative weights falls back to the search above and passes its paths at the end.
+     * @param someGraph represent a graph
+     * @param src represent start index
+     * @param dest represent final/ destination index
+     * @param onPath receives the lightest paths one by one
+     */
+    public void findLightestPathsBellmanFord(Traversable<T> someGraph, Node<T> src, Node<T> dest, Consumer<List<Node<T>>> onPath) {
+        Map<Node<T>, Integer> lightestWeights = findLightestWeights(someGraph, src);
+        if (lightestWeights == null) {
+            for (List<Node<T>> lightestPath : findLightestPathsBellmanFord(someGraph, src, dest))
+                onPath.accept(lightestPath);
+            return;
+        }
+        Integer weightOfLightestPath = lightestWeights.get(dest);
+        if (weightOfLightestPath == null || cancellationToken.isCancelled())
+            return;
         ArrayList<Node<T>> path = new ArrayList<>();
+        Set<Node<T>> onPathNodes = new HashSet<>();
+        Deque<Iterator<Node<T>>> neighborsOfPath = new ArrayDeque<>(); // the neighbors left to try from every node of the path
+        List<Integer> prefixWeights = new ArrayList<>();
         path.add(src);
-        threadLocalQueue.get().add(path);
-        while(!threadLocalQueue.get().isEmpty()) {
-            path = (ArrayList<Node<T>>) threadLocalQueue.get().poll();
-            Node<T> polled = path.get(path.size()-1);
-            if(polled.equals(dest))
-                if(weightOfLightestPath<sumPathWeight(someGraph,path)) {
-                    continue;}
-                else {
-                    weightOfLightestPath = sumPathWeight(someGraph,path);
-                    currentLightestPaths.add(path);
-                }
-            Collection<Node<T>> neighbors = someGraph.getNeighbors(polled);
-            for (Node<T> neighbor : neighbors) {
-                if(!path.contains(neighbor)){
-                    ArrayList<Node<T>> newPath = new ArrayList<>(path);
-                    newPath.add(neighbor);
-                    threadLocalQueue.get().add(newPath);
-                }
+        onPathNodes.add(src);
+        prefixWeights.add(someGraph.getValueN(src.getData()));
+        if (src.equals(dest)) {
+            onPath.accept(new ArrayList<>(path));
+            return;
+        }
+        neighborsOfPath.push(someGraph.getNeighbors(src).iterator());
+        searchStats.expanded();
+        while (!neighborsOfPath.isEmpty()) {
+            if (cancellationToken.isCancelled())
+                return;
+            Iterator<Node<T>> neighbors = neighborsOfPath.peek();
+            if (!neighbors.hasNext()) { // backtrack
+                neighborsOfPath.pop();
+                onPathNodes.remove(path.remove(path.size() - 1));
+                prefixWeights.remove(prefixWeights.size() - 1);
+                continue;
             }
+            Node<T> neighbor = neighbors.next();
+            if (onPathNodes.contains(neighbor))
+                continue;
+            int weight = prefixWeights.get(prefixWeights.size() - 1) + someGraph.getValueN(neighbor.getData());
+            if (weight > weightOfLightestPath || !Objects.equals(lightestWeights.get(neighbor), weight)) {
+                searchStats.discarded(); // not a prefix of a lightest path
+                continue;
+            }
+            path.add(neighbor);
+            searchStats.enqueued(path.size());
+            if (neighbor.equals(dest)) {
+                onPath.accept(new ArrayList<>(path));
+                path.remove(path.size() - 1);
+                continue;
+            }
+            onPathNodes.add(neighbor);
+            prefixWeights.add(weight);
+            neighborsOfPath.push(someGraph.getNeighbors(neighbor).iterator());
+            searchStats.expanded();
         }
-        List<List<Node<T>>> lightestPaths = new ArrayList<>();
-        for (List<Node<T>> currentPath : currentLightestPaths)
-        {
-            if (sumPathWeight(someGraph,currentPath)==weightOfLightestPath)
-                lightestPaths.add(currentPath);
+    }
+
+    /**
+     * findLightestWeights: Dijkstra from the source - the weight of a path is the sum of the weights of its nodes, including the source
+     * @return the weight of the lightest path to every reachable node, null if the graph has a negative weight
+     */
+    private Map<Node<T>, Integer> findLightestWeights(Traversable<T> someGraph, Node<T> src) {
+        Map<Node<T>, Integer> lightestWeights = new HashMap<>();
+        PriorityQueue<Map.Entry<Node<T>, Integer>> queue = new PriorityQueue<>(Map.Entry.comparingByValue());
+        int srcWeight = someGraph.getValueN(src.getData());
+        if (srcWeight < 0)
+            return null;
+        lightestWeights.put(src, srcWeight);
+        queue.add(new AbstractMap.SimpleEntry<>(src, srcWeight));
+        searchStats.enqueued(1);
+        while (!queue.isEmpty()) {
+            if (cancellationToken.isCancelled())
+                break;
+            Map.Entry<Node<T>, Integer> polled = queue.poll();
+            if (polled.getValue() > lightestWeights.get(polled.getKey())) {
+                searchStats.discarded();
+                continue; // a lighter path to this node was already handled
+            }
+            searchStats.expanded();
+            for (Node<T> neighbor : someGraph.getNeighbors(polled.getKey())) {
+                int neighborWeight = someGraph.getValueN(neighbor.getData());
+                if (neighborWeight < 0)
+                    return null;
+                int weight = polled.getValue() + neighborWeight;
+                Integer known = lightestWeights.get(neighbor);
+                if (known == null || weight < known) {
+                    lightestWeights.put(neighbor, weight);
+                    queue.add(new AbstractMap.SimpleEntry<>(neighbor, weight));
+                    searchStats.enqueued(queue.size());
+                }
+            }
         }
-        threadLocalQueue.get().clear();
-        return lightestPaths;
+        return lightestWeights;
     }
 
     /**
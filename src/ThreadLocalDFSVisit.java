@@ -1,6 +1,7 @@
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 /**
@@ -9,7 +10,7 @@ import java.util.stream.Collectors;
  *  When we need to make sure that every thread has its own local data structures  - synchronization is not the solution.
  *  using TLS- Thread Local Storage, each thread has his own storage
  */
-public class ThreadLocalDFSVisit<T> {
+public class ThreadLocalDFSVisit<T> extends Search {
 
     //lambda expression
     final ThreadLocal<Stack<Node<T>>> threadLocalStack = ThreadLocal.withInitial(() -> new Stack<Node<T>>());
@@ -35,13 +36,15 @@ public class ThreadLocalDFSVisit<T> {
      * @param listOfIndexes -list of indexes their value is 1 (connected components are indexes with value 1).
      * @return HashSet<HashSet<T>> - all the SCCs in the current graph.
      */
-    public HashSet<HashSet<T>> parallelDFSTraverse(Traversable<T> SomeGraph, List<Index> listOfIndexes){
+    public HashSet<HashSet<T>> parallelDFSTraverse(IndexedTraversable<T> SomeGraph, List<Index> listOfIndexes){
         HashSet<Future<HashSet<T>>> futureListOfScc = new HashSet<>();
         HashSet<HashSet<T>> listIndexScc = new HashSet<>();
         int listSize=listOfIndexes.size();
         for(int i=0; i<listSize; i++) {
             int finalI=i;
             Callable<HashSet<T>> MyCallable = () -> {
+                if (cancellationToken.isCancelled())
+                    return new HashSet<>();
                 readWriteLock.writeLock().lock();
                 SomeGraph.setStartIndex(listOfIndexes.get(finalI));
                 //traverse method warp by callable
@@ -57,31 +60,49 @@ public class ThreadLocalDFSVisit<T> {
                 try {
                     //Future.get() is a blocking call-
                     //it will block until results of computation are available, or the computation was interrupted (cancelled or resulting in exception).
-                    listIndexScc.add(futureScc.get());
+                    if (cancellationToken.isCancelled())
+                        futureScc.cancel(false);
+                    HashSet<T> singleScc = futureScc.get();
+                    if (!singleScc.isEmpty()) // an empty set is a traversal that was cut by a cancellation
+                        listIndexScc.add(singleScc);
+                } catch (CancellationException ignored) {
+                    // the request was cancelled - this component was never traversed
                 } catch (InterruptedException | ExecutionException e) {
                     e.printStackTrace();
                 }
             }
-        this.threadPoolExecutor.shutdown();
+        if (cancellationToken.isCancelled())
+            this.threadPoolExecutor.shutdownNow();
+        else
+            this.threadPoolExecutor.shutdown();
         return listIndexScc;
     }
 
     /**
      * traverse -this function execute DFS method by ThreadLocal
      * @param someGraph represent current Graph
-     * @return List<T> - connected component(path).
+     * @return List<T> - connected component(path), an empty set if the traversal was cancelled before it completed the component.
      */
 
     public Set<T> traverse(Traversable<T> someGraph) {
         threadLocalStack.get().push(someGraph.getOrigin());
+        searchStats.enqueued(1);
         while (!threadLocalStack.get().isEmpty()) {
+            if (cancellationToken.isCancelled()) {
+                searchStats.discarded(threadLocalStack.get().size());
+                threadLocalStack.get().clear();
+                threadLocalSet.get().clear();
+                return new HashSet<>();
+            }
             //pop is for stack, poll is for queue
             Node<T> popped = threadLocalStack.get().pop();
             threadLocalSet.get().add(popped);
+            searchStats.expanded();
             Collection<Node<T>> reachableNodes = someGraph.getReachableNodes(popped);
             for (Node<T> singleReachableNode : reachableNodes) {
                 if (!threadLocalSet.get().contains(singleReachableNode) && !threadLocalStack.get().contains(singleReachableNode)) {
                     threadLocalStack.get().push(singleReachableNode);
+                    searchStats.enqueued(threadLocalStack.get().size());
                 }
             }
         }
@@ -102,12 +123,21 @@ public class ThreadLocalDFSVisit<T> {
      */
 
     public List<HashSet<Index>> findSCCs(int[][] source)
+    {
+        //convert primitive matrix to Matrix
+        return findSCCs(new Matrix(source));
+    }
+
+    /**
+     * findSCCs- this function finds all scc in a Matrix in a sorted way
+     * @param sourceMatrix the matrix - may be backed by an array or by a buffer
+     * @return list of SCCs
+     */
+    public List<HashSet<Index>> findSCCs(Matrix sourceMatrix)
     {
         HashSet<HashSet<Index>> allSCCs;
         List<Index> listOfAllOneNodes;
-        //convert primitive matrix to Matrix
-        Matrix sourceMatrix = new Matrix(source);
-        sourceMatrix.printMatrix();
+        ServerLog.debug("Matrix cells", "cells", ServerLog.lazy(sourceMatrix::toString));
 
         //parallelDFSTraverse need to get traversable<T> , list<HashSet<Index>>> :
         TraversableMatrix myTraversableM = new TraversableMatrix(sourceMatrix); //convert Matrix to TraversableMatrix
@@ -116,6 +146,8 @@ public class ThreadLocalDFSVisit<T> {
         //set the first index - "Initialize start index"
         myTraversableM.setStartIndex(myTraversableM.getStartIndex());
         ThreadLocalDFSVisit<Index> threadLocalDFSVisit = new ThreadLocalDFSVisit<>();
+        threadLocalDFSVisit.setCancellationToken(cancellationToken);
+        threadLocalDFSVisit.setSearchStats(searchStats);
 
         //call to parallelDFSTraverse method
         allSCCs = threadLocalDFSVisit.parallelDFSTraverse(myTraversableM, listOfAllOneNodes);
@@ -124,6 +156,33 @@ public class ThreadLocalDFSVisit<T> {
         return listOfAllSCCS;
 
     }
+    /**
+     * findSCCs - the streaming variant: every component is passed to onComponent as soon as it is traversed,
+     * in the order of their first cell (not sorted by size - that needs all of them).
+     * Every component is traversed once - from its first '1' cell, the other cells of it are marked as covered.
+     * @param sourceMatrix the matrix - may be backed by an array or by a buffer
+     * @param onComponent receives the components one by one
+     */
+    public void findSCCs(Matrix sourceMatrix, Consumer<HashSet<Index>> onComponent)
+    {
+        TraversableMatrix myTraversableM = new TraversableMatrix(sourceMatrix);
+        ThreadLocalDFSVisit<Index> threadLocalDFSVisit = new ThreadLocalDFSVisit<>();
+        threadLocalDFSVisit.setCancellationToken(cancellationToken);
+        threadLocalDFSVisit.setSearchStats(searchStats);
+        BitSet covered = new BitSet(sourceMatrix.getRows() * sourceMatrix.getColumns()); // cell id = row * columns + column
+        for (Index one : sourceMatrix.findAllOnes()) {
+            if (covered.get(one.getRow() * sourceMatrix.getColumns() + one.getColumn()))
+                continue;
+            myTraversableM.setStartIndex(one);
+            HashSet<Index> singleSCC = (HashSet<Index>) threadLocalDFSVisit.traverse(myTraversableM);
+            if (singleSCC.isEmpty()) // the traversal was cancelled
+                return;
+            for (Index index : singleSCC)
+                covered.set(index.getRow() * sourceMatrix.getColumns() + index.getColumn());
+            onComponent.accept(singleSCC);
+        }
+    }
+
     /**
      * battleshipCheck: the function count number of valid battleships:
      *  * 1. Minimum of two "1" vertically.
@@ -136,9 +195,18 @@ public class ThreadLocalDFSVisit<T> {
      * @return int
      */
     public int battleshipCheck(List<HashSet<Index>> hashSetOfSCCS, int[][] clientMatrix) {
+        return battleshipCheck(hashSetOfSCCS, Matrix.wrap(clientMatrix));
+    }
+
+    /**
+     * battleshipCheck: the same check on a Matrix - may be backed by an array or by a buffer
+     * @param hashSetOfSCCS type: HashSet<HashSet<Index>> list of SCC
+     * @param clientMatrix the matrix that we send in the beginning
+     * @return int
+     */
+    public int battleshipCheck(List<HashSet<Index>> hashSetOfSCCS, Matrix clientMatrix) {
         int countBattleships = hashSetOfSCCS.size();// size of the optional battleships
         int minRow = Integer.MAX_VALUE, minCol = Integer.MAX_VALUE, maxRow = Integer.MIN_VALUE, maxCol = Integer.MIN_VALUE;
-        int flag = 0;// that flag will be 1 if some scc isn't a battleship and after that countBattleships--
         for (HashSet<Index> singleSCC : hashSetOfSCCS) {// run on each SCC
             if (singleSCC.size() == 1) { // SCC==1 not a battleship
                 countBattleships--;
@@ -154,19 +222,9 @@ public class ThreadLocalDFSVisit<T> {
                 if (index.column > maxCol)
                     maxCol = index.column;
             }
-            for (int i = minRow; i <= maxRow; i++) {// checking on clientMatrix if we have a battleship
-                for (int j = minCol; j <= maxCol; j++) {
-                    if (clientMatrix[i][j] == 0) {
-                        flag = 1;
-                        break;
-                    }
-                }
-                if(flag==1){
-                    countBattleships--;
-                    break;
-                }
-            }
-            flag = 0;
+            // checking on clientMatrix if we have a battleship - a row of the rectangle at a time (see MatrixKernels)
+            if (!clientMatrix.isFilled(minRow, minCol, maxRow, maxCol))
+                countBattleships--;
             minRow = Integer.MAX_VALUE;
             minCol = Integer.MAX_VALUE;
             maxRow = Integer.MIN_VALUE;
@@ -0,0 +1,138 @@
+import java.io.Serializable;
+
+/**
+ * This class is the answer of a worker for a tile of a sharded matrix (see ShardCoordinator) - the components of the '1'
+ * cells of the tile, labeled by the worker, without the cells of the tile:
+ *  - the label of every cell of the border of the tile (0 - not a '1' cell): the components of two tiles that touch are
+ *    the same component exactly when their border cells touch, so the coordinator joins them by the borders alone
+ *  - the summary of every component: its size and its bounding box (in the coordinates of the tile)
+ *  - whether the tile has cells that are neither '0' nor '1' - task 3 counts them as filled cells (see battleshipCheck)
+ *  - for task 1 only: the cells of every component, as offsets in the tile (row * columns + column), grouped by label
+ * So the answer of task 3 costs the perimeter of the tile and its number of components, not its area.
+ */
+public class TileSummary implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int rows, columns;
+    private final int components;
+    private final int[] sizes;   // by label (index 0 is unused)
+    private final int[] boxes;   // by label - minRow, minColumn, maxRow, maxColumn
+    private final int[] top, bottom, left, right;
+    private final boolean otherValues;
+    private final int[] cells;   // the cells of label 1, then of label 2 ... - null if they were not asked for
+
+    private TileSummary(int rows, int columns, int components, int[] sizes, int[] boxes, int[] top, int[] bottom, int[] left,
+                        int[] right, boolean otherValues, int[] cells) {
+        this.rows = rows;
+        this.columns = columns;
+        this.components = components;
+        this.sizes = sizes;
+        this.boxes = boxes;
+        this.top = top;
+        this.bottom = bottom;
+        this.left = left;
+        this.right = right;
+        this.otherValues = otherValues;
+        this.cells = cells;
+    }
+
+    /**
+     * of: labels the components of a tile (ComponentIndex) and keeps what the coordinator needs
+     * @param withCells true for task 1 - the cells of every component are kept too
+     */
+    public static TileSummary of(Matrix tile, boolean withCells) {
+        int rows = tile.getRows(), columns = tile.getColumns();
+        ComponentIndex index = ComponentIndex.build(tile);
+        int components = index.getComponents();
+        int[] sizes = new int[components + 1], boxes = new int[(components + 1) * 4];
+        for (int label = 1; label <= components; label++) {
+            sizes[label] = index.sizeOf(label);
+            System.arraycopy(index.boxOf(label), 0, boxes, label * 4, 4);
+        }
+        int[] top = new int[columns], bottom = new int[columns], left = new int[rows], right = new int[rows];
+        for (int j = 0; j < columns; j++) {
+            top[j] = index.labelOf(0, j);
+            bottom[j] = index.labelOf(rows - 1, j);
+        }
+        for (int i = 0; i < rows; i++) {
+            left[i] = index.labelOf(i, 0);
+            right[i] = index.labelOf(i, columns - 1);
+        }
+        boolean otherValues = tile.count(0) + tile.count(1) < (long) rows * columns;
+        int[] cells = null;
+        if (withCells) {
+            // the offset of every label in cells - the components one after the other, in the order of their labels
+            int[] next = new int[components + 2];
+            for (int label = 1; label <= components; label++)
+                next[label + 1] = next[label] + sizes[label];
+            cells = new int[next[components + 1]];
+            for (int i = 0; i < rows; i++)
+                for (int j = 0; j < columns; j++) {
+                    int label = index.labelOf(i, j);
+                    if (label != 0)
+                        cells[next[label]++] = i * columns + j;
+                }
+        }
+        return new TileSummary(rows, columns, components, sizes, boxes, top, bottom, left, right, otherValues, cells);
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    public int getComponents() {
+        return components;
+    }
+
+    public int sizeOf(int label) {
+        return sizes[label];
+    }
+
+    /**
+     * @return minRow, minColumn, maxRow, maxColumn of the component, in the coordinates of the tile
+     */
+    public int[] boxOf(int label) {
+        return new int[]{boxes[label * 4], boxes[label * 4 + 1], boxes[label * 4 + 2], boxes[label * 4 + 3]};
+    }
+
+    /**
+     * @return the labels of the first row of the tile, by column (0 - not a '1' cell)
+     */
+    public int[] getTop() {
+        return top;
+    }
+
+    public int[] getBottom() {
+        return bottom;
+    }
+
+    /**
+     * @return the labels of the first column of the tile, by row (0 - not a '1' cell)
+     */
+    public int[] getLeft() {
+        return left;
+    }
+
+    public int[] getRight() {
+        return right;
+    }
+
+    /**
+     * @return true if the tile has cells that are neither '0' nor '1'
+     */
+    public boolean hasOtherValues() {
+        return otherValues;
+    }
+
+    /**
+     * @return the cells of all the components (offsets in the tile), grouped by label - null if they were not asked for
+     */
+    public int[] getCells() {
+        return cells;
+    }
+}
@@ -10,10 +10,6 @@ public interface Traversable<T> {
 
     public Collection<Node<T>>  getNeighbors(Node<T> someNode);
 
-    public void setStartIndex(Index index);
-
-    public void setEndIndex(Index index);
-
     public int getSize();
 
     public int getValue(Node<T> someNode);
@@ -6,9 +6,14 @@ import java.util.stream.Collectors;
 /**
  * This class implements' adapter/wrapper/decorator design pattern
  */
-public class TraversableMatrix implements Traversable<Index> {
+public class TraversableMatrix implements IndexedTraversable<Index> {
     protected final Matrix matrix;
     protected Index startIndex, endIndex;
+    /**
+     * When set, the reachable nodes are only the cells of this component - see restrictTo
+     */
+    protected ComponentIndex componentIndex;
+    protected int component;
 
     public TraversableMatrix(Matrix matrix) {
         this.matrix = matrix;
@@ -31,6 +36,15 @@ public class TraversableMatrix implements Traversable<Index> {
         this.endIndex = endIndex;
     }
 
+    /**
+     * restrictTo: the paths of the search must go through the given component (ComponentIndex.pathComponent) -
+     * getReachableNodes returns only its cells, so the search never enters a component that can't lead to the destination
+     */
+    public void restrictTo(ComponentIndex componentIndex, int component) {
+        this.componentIndex = componentIndex;
+        this.component = component;
+    }
+
     @Override
     public int getValue(Node<Index> someNode) {
         return matrix.getValue(new Index(someNode.getData().row,someNode.getData().column));
@@ -58,7 +72,7 @@ public class TraversableMatrix implements Traversable<Index> {
     public Collection<Node<Index>> getReachableNodes(Node<Index> someNode) {
         List<Node<Index>> reachableIndices = new ArrayList<>();
         for (Index index : this.matrix.getNeighbors(someNode.getData())) {
-            if (matrix.getValue(index) == 1) {
+            if (componentIndex != null ? componentIndex.labelOf(index.row, index.column) == component : matrix.getValue(index) == 1) {
                 // A neighboring index whose value is 1
                 Node<Index> indexNode = new Node<>(index, someNode);
                 reachableIndices.add(indexNode);
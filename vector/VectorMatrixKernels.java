@@ -0,0 +1,116 @@
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * This class is the MatrixKernels with the Vector API - every loop handles a whole vector of cells at a time
+ * (SPECIES_PREFERRED: 8 ints with AVX2, 16 with AVX-512) and the cells that don't fill a vector at the end with the scalar loop.
+ *
+ * A compare of a vector with the value gives a mask of the equal cells, and the kernels use the mask as it is:
+ *  - count:            the number of its set lanes (trueCount - a population count)
+ *  - indexesOf:        its set lanes, as the bits of a long (toLong), one place per set bit
+ *  - contains:         any of its lanes (anyTrue) - stops at the first vector with a match
+ *  - setBitsOf:        the long of the mask is ORed into the bitmap - one or two words per vector instead of a bit per cell
+ * hash multiplies the vector by 31^(length-1) .. 31^0 and adds up the lanes - a vector of cells is the same as length steps
+ * of hash = 31 * hash + cell (all in int arithmetic, that wraps around the same way).
+ *
+ * It is in a module of its own (vector/vector.iml) because jdk.incubator.vector is not resolved by default - the module is
+ * compiled and run with --add-modules jdk.incubator.vector, and MatrixKernels.get() falls back to the scalar kernels without it.
+ */
+public class VectorMatrixKernels extends MatrixKernels {
+
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+    private static final int LENGTH = SPECIES.length();
+    /**
+     * 31^(LENGTH-1), ..., 31, 1 - the factors of the cells of a vector in the hash
+     */
+    private static final IntVector HASH_FACTORS;
+    /**
+     * 31^LENGTH - the factor of the hash before a vector
+     */
+    private static final int HASH_STEP;
+
+    static {
+        int[] factors = new int[LENGTH];
+        int power = 1;
+        for (int i = LENGTH - 1; i >= 0; i--) {
+            factors[i] = power;
+            power *= 31;
+        }
+        HASH_FACTORS = IntVector.fromArray(SPECIES, factors, 0);
+        HASH_STEP = power;
+    }
+
+    @Override
+    public String getName() {
+        return "vector x" + LENGTH;
+    }
+
+    @Override
+    public int count(int[] cells, int from, int to, int value) {
+        int count = 0, i = from;
+        for (int bound = from + SPECIES.loopBound(to - from); i < bound; i += LENGTH)
+            count += IntVector.fromArray(SPECIES, cells, i).eq(value).trueCount();
+        return count + super.count(cells, i, to, value);
+    }
+
+    @Override
+    public int indexesOf(int[] cells, int from, int to, int value, int[] indexes) {
+        int found = 0, i = from;
+        for (int bound = from + SPECIES.loopBound(to - from); i < bound; i += LENGTH) {
+            long lanes = IntVector.fromArray(SPECIES, cells, i).eq(value).toLong();
+            while (lanes != 0) {
+                indexes[found++] = i + Long.numberOfTrailingZeros(lanes);
+                lanes &= lanes - 1;
+            }
+        }
+        for (; i < to; i++)
+            if (cells[i] == value)
+                indexes[found++] = i;
+        return found;
+    }
+
+    @Override
+    public boolean contains(int[] cells, int from, int to, int value) {
+        int i = from;
+        for (int bound = from + SPECIES.loopBound(to - from); i < bound; i += LENGTH)
+            if (IntVector.fromArray(SPECIES, cells, i).eq(value).anyTrue())
+                return true;
+        return super.contains(cells, i, to, value);
+    }
+
+    @Override
+    public boolean containsLessThan(int[] cells, int from, int to, int bound) {
+        int i = from;
+        for (int loopBound = from + SPECIES.loopBound(to - from); i < loopBound; i += LENGTH)
+            if (IntVector.fromArray(SPECIES, cells, i).lt(bound).anyTrue())
+                return true;
+        return super.containsLessThan(cells, i, to, bound);
+    }
+
+    @Override
+    public int hash(int hash, int[] cells, int from, int to) {
+        int i = from;
+        for (int bound = from + SPECIES.loopBound(to - from); i < bound; i += LENGTH)
+            hash = HASH_STEP * hash + IntVector.fromArray(SPECIES, cells, i).mul(HASH_FACTORS).reduceLanes(VectorOperators.ADD);
+        return super.hash(hash, cells, i, to);
+    }
+
+    @Override
+    public void setBitsOf(int[] cells, int from, int to, int value, long[] bits, long firstBit) {
+        int i = from;
+        for (int bound = from + SPECIES.loopBound(to - from); i < bound; i += LENGTH) {
+            VectorMask<Integer> equal = IntVector.fromArray(SPECIES, cells, i).eq(value);
+            long lanes = equal.toLong();
+            if (lanes == 0)
+                continue;
+            long bit = firstBit + i - from;
+            int word = (int) (bit >>> 6), shift = (int) (bit & 63);
+            bits[word] |= lanes << shift;
+            if (shift + LENGTH > 64) // the vector continues in the next word
+                bits[word + 1] |= lanes >>> (64 - shift);
+        }
+        super.setBitsOf(cells, i, to, value, bits, firstBit + i - from);
+    }
+}